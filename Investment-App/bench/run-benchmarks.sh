@@ -0,0 +1,38 @@
+#!/bin/sh
+# Builds the application and the benchmark jar, generates the 1k/100k/1M datasets
+# (once) and runs the benchmarks against each of them:
+#   - the JMH storage benchmarks (StorageBenchmark), from the dataset's directory,
+#   - the Benchmarks harness, which also covers the asset log, ledger and flushes,
+#   - a restart measured by StartupBenchmark.
+# The JMH portfolio and Zakat benchmarks and MemoryBenchmark need no dataset and run once.
+# JMH results are written to bench/jmh-*.csv, the harness results appended to bench/results.csv.
+#
+# Usage: bench/run-benchmarks.sh [iterations] [sizes...]
+set -e
+cd "$(dirname "$0")/.."
+ITERATIONS=${1:-10000}
+[ $# -gt 0 ] && shift
+SIZES=${*:-"1000 100000 1000000"}
+JAVA_OPTS=${JAVA_OPTS:-"-Xmx4g"}
+JAR=bench/target/benchmarks.jar
+
+mvn -B -q package -DskipTests
+
+for SIZE in $SIZES; do
+    DATA=bench/data/$SIZE
+    if [ ! -f "$DATA/users_list.ser" ]; then
+        mkdir -p "$DATA"
+        java $JAVA_OPTS -cp $JAR DataGenerator "$SIZE" 5 "$DATA/users_list.ser"
+    fi
+    # Start every run from the generated file, not from a store left by an earlier run
+    rm -f "$DATA"/users.* "$DATA"/users-* "$DATA"/assets.wal*
+    rm -rf "$DATA"/ledger "$DATA"/history
+    (cd "$DATA" && java -jar ../../../$JAR StorageBenchmark -p users="$SIZE" -rf csv -rff ../../jmh-storage-"$SIZE".csv)
+    rm -f "$DATA"/users.* "$DATA"/users-* "$DATA"/assets.wal*
+    rm -rf "$DATA"/ledger "$DATA"/history
+    (cd "$DATA" && java $JAVA_OPTS -cp ../../../$JAR Benchmarks "$SIZE" "$ITERATIONS" ../../results.csv)
+    (cd "$DATA" && java $JAVA_OPTS -cp ../../../$JAR StartupBenchmark "$SIZE" 20 ../../results.csv)
+done
+
+java -jar $JAR PortfolioBenchmark -rf csv -rff bench/jmh-portfolio.csv
+java $JAVA_OPTS -cp $JAR MemoryBenchmark
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks for the storage, portfolio and Zakat hot paths.
+ * Each benchmark runs a warm-up phase and then times every operation, reporting
+ * ops/s and latency percentiles so runs before and after a change can be compared.
+ *
+ * <p>Run from a directory holding a dataset made by {@link DataGenerator}; the
+ * store in that directory is created from users_list.ser on first start.
+ * {@code run-benchmarks.sh} builds everything and runs the 1k/100k/1M suites.</p>
+ *
+ * <p>Usage: {@code java Benchmarks <users> [iterations] [results.csv]}</p>
+ */
+public class Benchmarks {
+    private static final int WARMUP_DIVISOR = 5;
+    static volatile double sink; // keeps results alive so the JIT cannot drop the work
+
+    /**
+     * One timed operation.
+     */
+    interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    private final int users;
+    private final int iterations;
+    private final PrintWriter csv;
+    private final Random random = new Random(7);
+
+    Benchmarks(int users, int iterations, PrintWriter csv) {
+        this.users = users;
+        this.iterations = iterations;
+        this.csv = csv;
+    }
+
+    /**
+     * Warms up and then times an operation, printing one result line.
+     * @param name benchmark name
+     * @param operation operation to time; receives the iteration number
+     * @return measured latencies in nanoseconds, sorted
+     */
+    long[] measure(String name, Operation operation) throws Exception {
+        return measure(name, iterations, operation);
+    }
+
+    /**
+     * Warms up and then times an operation a given number of times, for operations
+     * too slow to run the full iteration count.
+     * @param name benchmark name
+     * @param iterations number of timed runs
+     * @param operation operation to time; receives the iteration number
+     * @return measured latencies in nanoseconds, sorted
+     */
+    long[] measure(String name, int iterations, Operation operation) throws Exception {
+        int warmup = Math.max(1, iterations / WARMUP_DIVISOR);
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        long[] samples = new long[iterations];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            operation.run(warmup + i);
+            samples[i] = System.nanoTime() - t0;
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(samples);
+        double opsPerSecond = iterations * 1e9 / elapsed;
+        double avg = (double) elapsed / iterations;
+        System.out.printf("%-32s %10d users %12.0f ops/s  avg %10.1f us  p50 %10.1f us  p99 %10.1f us  max %10.1f us%n",
+                name, users, opsPerSecond, avg / 1e3, percentile(samples, 0.50) / 1e3,
+                percentile(samples, 0.99) / 1e3, samples[samples.length - 1] / 1e3);
+        if (csv != null) {
+            csv.printf("%s,%d,%d,%.1f,%.1f,%d,%d,%d%n", name, users, iterations, opsPerSecond, avg,
+                    percentile(samples, 0.50), percentile(samples, 0.99), samples[samples.length - 1]);
+            csv.flush();
+        }
+        return samples;
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private String randomUser() {
+        return DataGenerator.username(random.nextInt(users));
+    }
+
+    void runAll() throws Exception {
+        long openStart = System.nanoTime();
+        UserStorage.userExists(DataGenerator.username(0)); // opens (and on first start migrates) the store
+        System.out.printf("%-32s %10d users %10.1f ms%n", "open store", users, (System.nanoTime() - openStart) / 1e6);
+
+        measure("UserStorage.findUser", i -> sink += UserStorage.findUser(randomUser()).getAssets().size());
+        // Logins derive a PBKDF2 key (and migrate plaintext records), so run far fewer of them
+        int logins = Math.max(10, iterations / 100);
+        measure("PasswordHasher.hash/" + PasswordHasher.getIterations(), logins,
+                i -> sink += PasswordHasher.hash(DataGenerator.PASSWORD).length());
+        measure("UserStorage.isValidLogin", logins, i -> {
+            if (UserStorage.isValidLogin(randomUser(), DataGenerator.PASSWORD)) sink++;
+        });
+        String cachedUser = randomUser();
+        measure("UserStorage.isValidLogin/cached", i -> {
+            if (UserStorage.isValidLogin(cachedUser, DataGenerator.PASSWORD)) sink++;
+        });
+        measure("UserStorage.userExists", i -> {
+            if (UserStorage.userExists(randomUser())) sink++;
+        });
+        measure("UserStorage.updateUser", i -> UserStorage.updateUser(UserStorage.findUser(randomUser())));
+        measure("UserStorage.flush", i -> {
+            for (int k = 0; k < 100; k++) {
+                UserStorage.updateUser(UserStorage.findUser(randomUser()));
+            }
+            UserStorage.flush();
+        });
+        measure("UserStorage.addAsset", i -> UserStorage.addAsset(UserStorage.findUser(randomUser()),
+                new Asset("Bench", i)));
+        Ledger ledger = UserStorage.getLedger();
+        measure("Ledger.getTotalValue", i -> sink += ledger.getTotalValue(randomUser()));
+        measure("Ledger.snapshot", 3, i -> sink += ledger.snapshot());
+        String prefix = "bench" + System.nanoTime() + "_";
+        String passwordHash = PasswordHasher.hash(DataGenerator.PASSWORD);
+        measure("UserStorage.saveUser", i -> UserStorage.saveUser(
+                new User(prefix + i, passwordHash, prefix + i + "@example.com")));
+
+        for (int size : new int[] {1_000, 100_000}) {
+            User portfolio = new User("portfolio" + size, DataGenerator.PASSWORD, "p@example.com");
+            for (int a = 0; a < size; a++) {
+                portfolio.addAsset(new Asset(DataGenerator.ASSET_NAMES[a % DataGenerator.ASSET_NAMES.length], a));
+            }
+            measure("Portfolio.getTotalValue/" + size, i -> sink += PortfolioService.getTotalPortfolioValue(portfolio));
+            measure("User.sumAssetValues/" + size, i -> sink += portfolio.sumAssetValues());
+            measure("User.forEachAsset/" + size, i -> portfolio.forEachAsset(
+                    (index, name, symbol, quantity, value) -> sink += value));
+        }
+
+        double[] values = new double[4096];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 1_000_000;
+        }
+        measure("ZakatService.calculateZakat x1k", i -> {
+            double total = 0;
+            for (int k = 0; k < 1_000; k++) {
+                total += ZakatService.calculateZakat(values[(i + k) & (values.length - 1)]);
+            }
+            sink += total;
+        });
+
+        UserStorage.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java Benchmarks <users> [iterations] [results.csv]");
+            return;
+        }
+        int users = Integer.parseInt(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        PrintWriter csv = null;
+        if (args.length > 2) {
+            File file = new File(args[2]);
+            boolean header = !file.exists();
+            csv = new PrintWriter(new FileWriter(file, true));
+            if (header) {
+                csv.println("benchmark,users,iterations,ops_per_sec,avg_ns,p50_ns,p99_ns,max_ns");
+            }
+        }
+        new Benchmarks(users, iterations, csv).runAll();
+        if (csv != null) {
+            csv.close();
+        }
+    }
+}
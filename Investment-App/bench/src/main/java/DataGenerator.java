@@ -0,0 +1,78 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic user datasets for benchmarks.
+ * Output is a users_list.ser file in the original Java serialization format,
+ * so the same dataset can be loaded by any version of the storage code
+ * (newer versions migrate it into their own store on first start).
+ *
+ * <p>Usage: {@code java DataGenerator <users> [assetsPerUser] [file] [seed]}</p>
+ * <p>Usernames are {@code user0 .. user(N-1)} and every password is {@link #PASSWORD},
+ * so benchmarks can pick valid credentials without reading the file. Passwords are
+ * written in plaintext, as in legacy files, and are hashed on each user's first login.</p>
+ */
+public class DataGenerator {
+    static final String PASSWORD = "Bench#123";
+    static final String[] ASSET_NAMES = {"Gold", "Silver", "Cash", "AAPL Stock", "MSFT Stock",
+            "Real Estate", "Bonds", "Bitcoin", "Savings", "Sukuk"};
+
+    /**
+     * @param index user number
+     * @return the generated username for that number
+     */
+    static String username(int index) {
+        return "user" + index;
+    }
+
+    /**
+     * Builds a reproducible list of users.
+     * @param users number of users
+     * @param assetsPerUser assets given to each user
+     * @param seed random seed for asset values
+     * @return generated users
+     */
+    static List<User> generate(int users, int assetsPerUser, long seed) {
+        Random random = new Random(seed);
+        List<User> list = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            User user = new User(username(i), PASSWORD, username(i) + "@example.com");
+            for (int a = 0; a < assetsPerUser; a++) {
+                String name = ASSET_NAMES[random.nextInt(ASSET_NAMES.length)];
+                user.addAsset(new Asset(name, Math.round(random.nextDouble() * 2_000_000) / 100.0));
+            }
+            list.add(user);
+        }
+        return list;
+    }
+
+    /**
+     * Writes users in the legacy users_list.ser format.
+     * @param users users to write
+     * @param file target file
+     * @throws IOException If the file cannot be written
+     */
+    static void writeSerialized(List<User> users, File file) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            oos.writeObject(users);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java DataGenerator <users> [assetsPerUser] [file] [seed]");
+            return;
+        }
+        int users = Integer.parseInt(args[0]);
+        int assetsPerUser = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File file = new File(args.length > 2 ? args[2] : "users_list.ser");
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+
+        long start = System.nanoTime();
+        writeSerialized(generate(users, assetsPerUser, seed), file);
+        System.out.printf("Wrote %,d users with %d assets each to %s in %.1f s%n",
+                users, assetsPerUser, file, (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,100 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what users cost in memory: the retained heap per user and per asset of users
+ * as they are read from the store, and the bytes allocated per call by the ways of reading
+ * a large portfolio. Only the public User API is used, so the same program can measure
+ * older versions of the storage code for comparison.
+ *
+ * <p>Usage: {@code java MemoryBenchmark [users] [assetsPerUser] [largePortfolio]}</p>
+ */
+public class MemoryBenchmark {
+    private static final int REPEATS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int assetsPerUser = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int largePortfolio = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        long empty = retainedPerUser(users, 0);
+        long full = retainedPerUser(users, assetsPerUser);
+        System.out.printf("%-32s %10d users %10d bytes%n", "memory.user/0 assets", users, empty);
+        System.out.printf("%-32s %10d users %10d bytes%n", "memory.user/" + assetsPerUser + " assets", users, full);
+        if (assetsPerUser > 0) {
+            System.out.printf("%-32s %10d users %10d bytes%n", "memory.asset", users, (full - empty) / assetsPerUser);
+        }
+
+        User user = DataGenerator.generate(1, largePortfolio, 7).get(0);
+        System.out.printf("%-32s %10d assets %9d bytes/call%n", "alloc.getAssets", largePortfolio,
+                allocatedPerCall(() -> Benchmarks.sink += user.getAssets().size()));
+        System.out.printf("%-32s %10d assets %9d bytes/call%n", "alloc.getAssetsView/iterate", largePortfolio,
+                allocatedPerCall(() -> {
+                    double total = 0;
+                    synchronized (user) {
+                        for (Asset asset : user.getAssetsView()) {
+                            total += asset.getValue();
+                        }
+                    }
+                    Benchmarks.sink += total;
+                }));
+        System.out.printf("%-32s %10d assets %9d bytes/call%n", "alloc.getTotalValue", largePortfolio,
+                allocatedPerCall(() -> Benchmarks.sink += user.getTotalValue()));
+    }
+
+    /**
+     * Decodes users from their store records, the way the user cache holds them, and
+     * returns the heap they retain divided by their number.
+     */
+    private static long retainedPerUser(int users, int assetsPerUser) throws Exception {
+        List<ByteBuffer> records = encode(users, assetsPerUser);
+        long before = usedHeap();
+        User[] decoded = new User[users];
+        for (int i = 0; i < users; i++) {
+            decoded[i] = UserCodec.decode(records.get(i).duplicate());
+            Benchmarks.sink += decoded[i].getTotalValue(); // the portfolio is in use
+        }
+        long after = usedHeap();
+        Benchmarks.sink += decoded.length + records.size();
+        return (after - before) / users;
+    }
+
+    /**
+     * Generates users and encodes them, in its own frame so the generated users are garbage
+     * once it returns.
+     */
+    private static List<ByteBuffer> encode(int users, int assetsPerUser) {
+        List<ByteBuffer> records = new ArrayList<>(users);
+        for (User user : DataGenerator.generate(users, assetsPerUser, 42)) {
+            records.add(UserCodec.encode(user));
+        }
+        return records;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Runs an operation until the JIT has compiled it, then reports the bytes the thread
+     * allocates per call.
+     */
+    private static long allocatedPerCall(Runnable operation) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < REPEATS * 10; i++) {
+            operation.run();
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < REPEATS; i++) {
+            operation.run();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - before) / REPEATS;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * The portfolio and Zakat operations measured by {@link bench.PortfolioBenchmark}.
+ */
+public class PortfolioWorkloads implements bench.PortfolioWorkload {
+    private User portfolio;
+    private double sum;
+
+    @Override
+    public void generate(int assets) {
+        portfolio = new User("portfolio" + assets, DataGenerator.PASSWORD, "p@example.com");
+        for (int a = 0; a < assets; a++) {
+            portfolio.addAsset(new Asset(DataGenerator.ASSET_NAMES[a % DataGenerator.ASSET_NAMES.length], a));
+        }
+    }
+
+    @Override
+    public double getTotalPortfolioValue() {
+        return PortfolioService.getTotalPortfolioValue(portfolio);
+    }
+
+    @Override
+    public double sumAssetValues() {
+        return portfolio.sumAssetValues();
+    }
+
+    @Override
+    public double forEachAsset() {
+        sum = 0;
+        portfolio.forEachAsset((index, name, symbol, quantity, value) -> sum += value);
+        return sum;
+    }
+
+    @Override
+    public double calculateZakat(double totalValue) {
+        return ZakatService.calculateZakat(totalValue);
+    }
+}
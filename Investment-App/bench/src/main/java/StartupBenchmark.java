@@ -0,0 +1,107 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how quickly a restarted application can serve users: the time until the
+ * store answers its first lookup, the latency of the first lookups and logins while
+ * the indexes and ledger still load in the background, the latency of logins by users
+ * warmed up from {@code users.recent}, and the time until everything is loaded.
+ * Every sample is a cold, first-time operation, so nothing is warmed up before timing.
+ *
+ * <p>Run in a fresh JVM from a dataset directory whose store already exists, e.g.
+ * after {@link Benchmarks}, which also leaves the users it logged in as recent users.</p>
+ *
+ * <p>Usage: {@code java StartupBenchmark <users> [samples] [results.csv]}</p>
+ */
+public class StartupBenchmark {
+    private final int users;
+    private final int samples;
+    private final PrintWriter csv;
+    private final Random random = new Random(11);
+
+    StartupBenchmark(int users, int samples, PrintWriter csv) {
+        this.users = users;
+        this.samples = samples;
+        this.csv = csv;
+    }
+
+    /**
+     * Times each sample of an operation once, printing one result line.
+     * @param name benchmark name
+     * @param count number of samples
+     * @param operation operation to time; receives the sample number
+     */
+    void sample(String name, int count, Benchmarks.Operation operation) throws Exception {
+        if (count == 0) return;
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            long t0 = System.nanoTime();
+            operation.run(i);
+            latencies[i] = System.nanoTime() - t0;
+        }
+        long first = latencies[0];
+        Arrays.sort(latencies);
+        double avg = Arrays.stream(latencies).average().orElse(0);
+        System.out.printf("%-32s %10d users  first %10.1f ms  p50 %10.1f ms  p99 %10.1f ms  max %10.1f ms%n",
+                name, users, first / 1e6, Benchmarks.percentile(latencies, 0.50) / 1e6,
+                Benchmarks.percentile(latencies, 0.99) / 1e6, latencies[count - 1] / 1e6);
+        if (csv != null) {
+            csv.printf("%s,%d,%d,%.1f,%.1f,%d,%d,%d%n", name, users, count, count * 1e9 / Arrays.stream(latencies).sum(),
+                    avg, Benchmarks.percentile(latencies, 0.50), Benchmarks.percentile(latencies, 0.99), latencies[count - 1]);
+            csv.flush();
+        }
+    }
+
+    private String randomUser() {
+        return DataGenerator.username(random.nextInt(users));
+    }
+
+    void runAll(long jvmStart) throws Exception {
+        List<String> recent = readRecentUsers();
+        sample("startup.ready", 1, i -> UserStorage.userExists(DataGenerator.username(0)));
+        sample("startup.findUser/cold", samples, i -> Benchmarks.sink += UserStorage.findUser(randomUser()).getVersion());
+        sample("startup.isValidLogin/cold", samples, i -> {
+            if (UserStorage.isValidLogin(randomUser(), DataGenerator.PASSWORD)) Benchmarks.sink++;
+        });
+        int warmed = Math.min(samples, recent.size());
+        sample("startup.isValidLogin/recent", warmed, i -> {
+            if (UserStorage.isValidLogin(recent.get(recent.size() - 1 - i), DataGenerator.PASSWORD)) Benchmarks.sink++;
+        });
+        sample("startup.indexes_loaded", 1, i -> {
+            if (UserStorage.emailExists(DataGenerator.username(0) + "@example.com")) Benchmarks.sink++;
+        });
+        sample("startup.ledger_loaded", 1, i -> Benchmarks.sink += UserStorage.getLedger().getTotalValue(randomUser()));
+        System.out.printf("%-32s %10d users %10.1f ms%n", "startup.fully_loaded", users, (System.nanoTime() - jvmStart) / 1e6);
+    }
+
+    private static List<String> readRecentUsers() throws IOException {
+        File file = new File("users.recent");
+        return file.exists() ? Files.readAllLines(file.toPath()) : List.of();
+    }
+
+    public static void main(String[] args) throws Exception {
+        long jvmStart = System.nanoTime();
+        if (args.length < 1) {
+            System.out.println("Usage: java StartupBenchmark <users> [samples] [results.csv]");
+            return;
+        }
+        int users = Integer.parseInt(args[0]);
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        PrintWriter csv = null;
+        if (args.length > 2) {
+            File file = new File(args[2]);
+            boolean header = !file.exists();
+            csv = new PrintWriter(new FileWriter(file, true));
+            if (header) {
+                csv.println("benchmark,users,iterations,ops_per_sec,avg_ns,p50_ns,p99_ns,max_ns");
+            }
+        }
+        new StartupBenchmark(users, samples, csv).runAll(jvmStart);
+        if (csv != null) {
+            csv.close();
+        }
+    }
+}
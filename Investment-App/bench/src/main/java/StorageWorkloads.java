@@ -0,0 +1,65 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The storage operations measured by {@link bench.StorageBenchmark}, against the store
+ * in the working directory.
+ */
+public class StorageWorkloads implements bench.StorageWorkload {
+    /** Users whose plaintext passwords are hashed during setup; logins pick among them. */
+    private static final int LOGIN_USERS = 1_000;
+
+    private final AtomicLong newUsers = new AtomicLong();
+    private int users;
+    private String prefix;
+    private String passwordHash;
+
+    @Override
+    public void open(int users) throws Exception {
+        this.users = users;
+        File legacy = new File("users_list.ser");
+        if (!legacy.exists() && !new File(ShardedUserStore.MANIFEST_FILENAME).exists()) {
+            DataGenerator.writeSerialized(DataGenerator.generate(users, 5, 42), legacy);
+        }
+        UserStorage.userExists(DataGenerator.username(0)); // opens (and on first start migrates) the store
+        prefix = "jmh" + System.nanoTime() + "_";
+        passwordHash = PasswordHasher.hash(DataGenerator.PASSWORD);
+        // Migrate the generated plaintext passwords now, so isValidLogin measures logins, not migrations
+        for (int i = 0; i < Math.min(users, LOGIN_USERS); i++) {
+            UserStorage.isValidLogin(DataGenerator.username(i), DataGenerator.PASSWORD);
+        }
+    }
+
+    private String randomUser() {
+        return DataGenerator.username(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Override
+    public Object findUser() throws IOException, ClassNotFoundException {
+        return UserStorage.findUser(randomUser());
+    }
+
+    @Override
+    public boolean isValidLogin() throws IOException, ClassNotFoundException {
+        String username = DataGenerator.username(ThreadLocalRandom.current().nextInt(Math.min(users, LOGIN_USERS)));
+        return UserStorage.isValidLogin(username, DataGenerator.PASSWORD);
+    }
+
+    @Override
+    public void updateUser() throws IOException, ClassNotFoundException {
+        UserStorage.updateUser(UserStorage.findUser(randomUser()));
+    }
+
+    @Override
+    public void saveUser() throws IOException, ClassNotFoundException {
+        String username = prefix + newUsers.getAndIncrement();
+        UserStorage.saveUser(new User(username, passwordHash, username + "@example.com"));
+    }
+
+    @Override
+    public void close() throws IOException, ClassNotFoundException {
+        UserStorage.flush();
+    }
+}
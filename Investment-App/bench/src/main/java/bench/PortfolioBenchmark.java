@@ -0,0 +1,56 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of portfolio valuation on large portfolios and of the Zakat calculation.
+ * They need no store, so they can run from any directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortfolioBenchmark {
+    @Param({"1000", "100000"})
+    public int assets;
+
+    private PortfolioWorkload workload;
+    private final double[] values = new double[4096];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void generate() throws ReflectiveOperationException {
+        workload = PortfolioWorkload.load();
+        workload.generate(assets);
+        Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 1_000_000;
+        }
+    }
+
+    @Benchmark
+    public double getTotalPortfolioValue() {
+        return workload.getTotalPortfolioValue();
+    }
+
+    @Benchmark
+    public double sumAssetValues() {
+        return workload.sumAssetValues();
+    }
+
+    @Benchmark
+    public double forEachAsset() {
+        return workload.forEachAsset();
+    }
+
+    @Benchmark
+    public double calculateZakat() {
+        next = (next + 1) & (values.length - 1);
+        return workload.calculateZakat(values[next]);
+    }
+}
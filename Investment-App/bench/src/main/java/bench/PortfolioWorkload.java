@@ -0,0 +1,35 @@
+package bench;
+
+/**
+ * The portfolio and Zakat operations {@link PortfolioBenchmark} measures, implemented
+ * by {@code PortfolioWorkloads} in the application's package (see {@link StorageWorkload}).
+ */
+public interface PortfolioWorkload {
+    /**
+     * Builds the portfolio the operations read.
+     * @param assets number of assets in it
+     */
+    void generate(int assets);
+
+    /** @return {@code PortfolioService.getTotalPortfolioValue} of the portfolio */
+    double getTotalPortfolioValue();
+
+    /** @return the sum of the portfolio's asset values, read asset by asset */
+    double sumAssetValues();
+
+    /** @return the sum of the portfolio's asset values, read through a visitor */
+    double forEachAsset();
+
+    /**
+     * @param totalValue a portfolio value
+     * @return {@code ZakatService.calculateZakat} of it
+     */
+    double calculateZakat(double totalValue);
+
+    /**
+     * @return the application's implementation
+     */
+    static PortfolioWorkload load() throws ReflectiveOperationException {
+        return (PortfolioWorkload) Class.forName("PortfolioWorkloads").getDeclaredConstructor().newInstance();
+    }
+}
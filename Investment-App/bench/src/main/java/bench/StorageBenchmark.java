@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the {@code UserStorage} hot paths against a dataset of
+ * {@code users} generated users.
+ * The store lives in the working directory, so run each size from its own dataset
+ * directory (see {@code run-benchmarks.sh}); if the directory holds no store yet the
+ * dataset is generated there first, as a {@code users_list.ser} file that is migrated
+ * into the store on first start, like a legacy installation.
+ *
+ * <p>Usage: {@code cd bench/data/100000 && java -jar ../../target/benchmarks.jar StorageBenchmark -p users=100000}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class StorageBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private StorageWorkload workload;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        workload = StorageWorkload.load();
+        workload.open(users);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object findUser() throws Exception {
+        return workload.findUser();
+    }
+
+    /**
+     * Each call derives a PBKDF2 key, so this measures the hashing cost more than storage.
+     */
+    @Benchmark
+    public boolean isValidLogin() throws Exception {
+        return workload.isValidLogin();
+    }
+
+    @Benchmark
+    public void updateUser() throws Exception {
+        workload.updateUser();
+    }
+
+    @Benchmark
+    public void saveUser() throws Exception {
+        workload.saveUser();
+    }
+}
@@ -0,0 +1,37 @@
+package bench;
+
+/**
+ * The storage operations {@link StorageBenchmark} measures.
+ * JMH only runs benchmarks declared in a named package, and code in a named package
+ * cannot refer to the application's classes, which are in the unnamed package; so the
+ * operations are implemented there, by {@code StorageWorkloads}, and looked up by name.
+ */
+public interface StorageWorkload {
+    /**
+     * Opens the store in the working directory, generating a dataset there first if it holds none.
+     * @param users number of users in the dataset
+     */
+    void open(int users) throws Exception;
+
+    /** Looks up a random user. */
+    Object findUser() throws Exception;
+
+    /** Logs in a random user whose password is already hashed. */
+    boolean isValidLogin() throws Exception;
+
+    /** Stores a random user again without changes. */
+    void updateUser() throws Exception;
+
+    /** Stores a new user. */
+    void saveUser() throws Exception;
+
+    /** Writes pending changes to disk. */
+    void close() throws Exception;
+
+    /**
+     * @return the application's implementation
+     */
+    static StorageWorkload load() throws ReflectiveOperationException {
+        return (StorageWorkload) Class.forName("StorageWorkloads").getDeclaredConstructor().newInstance();
+    }
+}
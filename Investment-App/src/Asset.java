@@ -1,7 +1,12 @@
 import java.io.Serializable;
+import java.util.Objects;
 
 /**
  * Represents an investment asset with a name and monetary value.
+ * An asset may also hold a quantity of a market symbol (e.g. 10 x "XAU"); such
+ * assets are marked to market by {@link ValuationEngine}, which replaces them with
+ * a revalued copy whenever the symbol's price changes. Assets without a symbol keep
+ * the value the user entered.
  * This class is serializable for persistent storage.
  */
 public class Asset implements Serializable {
@@ -20,13 +25,36 @@ public class Asset implements Serializable {
      */
     private final double value;
 
+    /**
+     * Market symbol the asset tracks (e.g., "XAU", "AAPL"), or null if it is valued by hand
+     */
+    private final String symbol;
+
+    /**
+     * Number of units of the symbol held
+     */
+    private final double quantity;
+
     /**
      * Constructs a new Asset instance
      * @param name The name/identifier of the asset
      * @param value The monetary value of the asset
      */
     public Asset(String name, double value) {
+        this(name, null, 0, value);
+    }
+
+    /**
+     * Constructs an asset holding a quantity of a market symbol
+     * @param name The name/identifier of the asset
+     * @param symbol The market symbol, or null for a manually valued asset
+     * @param quantity Number of units held
+     * @param value The monetary value of the asset at the latest known price
+     */
+    public Asset(String name, String symbol, double quantity, double value) {
         this.name = name;
+        this.symbol = symbol;
+        this.quantity = quantity;
         this.value = value;
     }
 
@@ -44,12 +72,64 @@ public class Asset implements Serializable {
         return value; 
     }
 
+    /**
+     * @return The market symbol, or null if the asset is valued by hand
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * @return The number of units of the symbol held (0 for manually valued assets)
+     */
+    public double getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * @param newValue The new monetary value
+     * @return A copy of this asset with a different value and the same symbol and quantity
+     */
+    public Asset withValue(double newValue) {
+        return new Asset(name, symbol, quantity, newValue);
+    }
+
+    /**
+     * @param price The latest price of one unit of the symbol
+     * @return A copy of this asset valued at quantity times price
+     */
+    public Asset markToMarket(double price) {
+        return new Asset(name, symbol, quantity, quantity * price);
+    }
+
+    /**
+     * Assets are immutable values: two assets are equal if every field is.
+     * @param other object to compare with
+     * @return true if other is an asset with the same name, symbol, quantity and value
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof Asset)) return false;
+        Asset asset = (Asset) other;
+        return Objects.equals(name, asset.name) && Objects.equals(symbol, asset.symbol)
+                && Double.compare(quantity, asset.quantity) == 0 && Double.compare(value, asset.value) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, symbol, quantity, value);
+    }
+
     /**
      * Provides a string representation of the asset
-     * @return Format: "Asset: [name], Value: [value]"
+     * @return Format: "Asset: [name], Value: [value]" or "Asset: [name] ([quantity] x [symbol]), Value: [value]"
      */
     @Override
     public String toString() {
+        if (symbol != null) {
+            return String.format("Asset: %s (%s x %s), Value: $%,.2f", name, quantity, symbol, value);
+        }
         return String.format("Asset: %s, Value: $%,.2f", name, value);
     }
 }
\ No newline at end of file
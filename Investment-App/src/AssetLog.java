@@ -0,0 +1,510 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of asset mutations (add, update, remove).
+ * Every mutation is appended as a small checksummed record and fsync'ed in groups
+ * by a background thread, so an edit is durable at append cost.
+ * A background compaction periodically folds the log into the user store
+ * and starts a fresh log segment; on startup the remaining records are replayed.
+ * A {@link Listener} (the {@link Ledger}) sees every record as it is appended and is
+ * flushed before compaction discards records.
+ * If an fsync fails the log turns read-only: the records written since the last good
+ * sync may be lost, and a later fsync can report success without them, so appends and
+ * waits for durability fail until the application is restarted and replays the log.
+ *
+ * <p>Segment layout: a 16 byte header (magic, version, first sequence number)
+ * followed by records of the form (payload length, CRC32, payload). The payload is
+ * (sequence, op, username, index, asset name, asset value), followed by the asset's
+ * symbol and quantity when it tracks a market symbol.</p>
+ */
+public class AssetLog implements Closeable {
+    static final byte OP_ADD = 1;
+    static final byte OP_UPDATE = 2;
+    static final byte OP_REMOVE = 3;
+
+    private static final int MAGIC = 0x4957414C; // "IWAL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final Metrics.Counter syncFailures = Metrics.counter("asset_log.sync_failures");
+
+    /**
+     * A single logged asset mutation.
+     */
+    public static final class Record {
+        final long sequence;
+        final byte op;
+        final String username;
+        final int index;
+        final Asset asset;
+
+        Record(long sequence, byte op, String username, int index, Asset asset) {
+            this.sequence = sequence;
+            this.op = op;
+            this.username = username;
+            this.index = index;
+            this.asset = asset;
+        }
+
+        /**
+         * Applies this mutation to the given user.
+         * @param user the user named by this record
+         */
+        void applyTo(User user) {
+            switch (op) {
+                case OP_ADD:
+                    user.addAsset(asset);
+                    break;
+                case OP_UPDATE:
+                    user.updateAsset(index, asset);
+                    break;
+                case OP_REMOVE:
+                    user.removeAsset(index);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown asset log operation: " + op);
+            }
+        }
+    }
+
+    /**
+     * Receives every appended record, in sequence order, while the log's lock is held.
+     * Its {@link #flush} is called before records it has seen are discarded.
+     */
+    public interface Listener extends Flushable {
+        void appended(Record record) throws IOException;
+    }
+
+    private final File file;
+    private final File oldFile;
+    private final ReentrantReadWriteLock rotationLock = new ReentrantReadWriteLock();
+    private Thread syncer; // set by open
+    private ScheduledExecutorService compactor;
+    private Listener listener;
+
+    private FileChannel channel;
+    private long segmentBase;
+    private long nextSequence;
+    private long writtenSequence;
+    private long durableSequence;
+    private IOException syncFailure; // set once an fsync fails; the log is read-only from then on
+    private boolean closed;
+
+    private AssetLog(File file) throws IOException {
+        this.file = file;
+        this.oldFile = new File(file.getPath() + ".old");
+
+        long lastSequence = 0;
+        if (oldFile.exists()) {
+            lastSequence = Math.max(lastSequence, lastSequenceIn(oldFile));
+        }
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segmentBase = readHeader(channel, file);
+            long end = scan(channel, null);
+            channel.truncate(end);
+            lastSequence = Math.max(lastSequence, Math.max(segmentBase - 1, lastSequenceIn(channel)));
+            nextSequence = lastSequence + 1;
+        } else {
+            nextSequence = lastSequence + 1;
+            channel = createSegment(file, nextSequence);
+            segmentBase = nextSequence;
+        }
+        writtenSequence = nextSequence - 1;
+        durableSequence = writtenSequence;
+    }
+
+    /**
+     * Opens the log, creating an empty segment if none exists, and starts the group-commit thread.
+     * A torn record at the end of the current segment is truncated.
+     * @param file path of the current log segment; the previous segment uses the same name plus ".old"
+     * @return the open log; close it when done
+     * @throws IOException If the log cannot be opened or is corrupt
+     */
+    public static AssetLog open(File file) throws IOException {
+        AssetLog log = new AssetLog(file);
+        log.syncer = new Thread(log::syncLoop, "asset-log-sync");
+        log.syncer.setDaemon(true);
+        log.syncer.start();
+        return log;
+    }
+
+    /**
+     * Stops background compaction, makes every appended record durable and stops the
+     * group-commit thread. Records are not folded into the store; the next open replays them.
+     * @throws IOException If the final fsync fails
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = compactor;
+        }
+        if (stopping != null) {
+            // Let a compaction in progress finish: interrupting it would close the segment
+            stopping.shutdown();
+            try {
+                stopping.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping asset log compaction");
+            }
+        }
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            try {
+                if (syncFailure == null) {
+                    channel.force(false);
+                    durableSequence = writtenSequence;
+                }
+            } catch (IOException e) {
+                syncFailures.increment();
+                syncFailure = e;
+                throw e;
+            } finally {
+                notifyAll();
+                channel.close();
+            }
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the asset log");
+        }
+    }
+
+    /**
+     * Lock that mutators hold while appending and applying a record.
+     * Compaction takes the exclusive side so it never splits an append from its apply.
+     * @return the shared mutation lock
+     */
+    public Lock mutationLock() {
+        return rotationLock.readLock();
+    }
+
+    /**
+     * Sets the listener that sees every record appended from now on.
+     * @param listener the listener, or null for none
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return sequence number of the last record appended
+     */
+    public synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Appends a mutation record. The record is written immediately but only becomes
+     * durable once the group-commit thread has fsync'ed it (see {@link #awaitDurable}).
+     * @param op one of OP_ADD, OP_UPDATE, OP_REMOVE
+     * @param username user the mutation applies to
+     * @param index asset position (ignored for OP_ADD)
+     * @param asset new asset (null for OP_REMOVE)
+     * @return the record's sequence number
+     * @throws IOException If the write fails or the log is read-only after a failed sync
+     */
+    public synchronized long append(byte op, String username, int index, Asset asset) throws IOException {
+        checkWritable();
+        long sequence = nextSequence;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(sequence);
+            out.writeByte(op);
+            out.writeUTF(username);
+            out.writeInt(index);
+            out.writeUTF(asset == null ? "" : asset.getName());
+            out.writeDouble(asset == null ? 0 : asset.getValue());
+            if (asset != null && asset.getSymbol() != null) {
+                out.writeUTF(asset.getSymbol());
+                out.writeDouble(asset.getQuantity());
+            }
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        PagedUserStore.writeFully(channel, record, channel.size());
+
+        nextSequence++;
+        writtenSequence = sequence;
+        notifyAll();
+        if (listener != null) {
+            listener.appended(new Record(sequence, op, username, index, asset));
+        }
+        return sequence;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number has been fsync'ed.
+     * @param sequence sequence number returned by {@link #append}
+     * @throws IOException If the wait is interrupted or the record can no longer be synced
+     */
+    public synchronized void awaitDurable(long sequence) throws IOException {
+        while (durableSequence < sequence) {
+            checkWritable();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for asset log sync");
+            }
+        }
+    }
+
+    /**
+     * Reads every record still held by the log, oldest first.
+     * @return records from the previous and current segments
+     * @throws IOException If a segment cannot be read
+     */
+    public synchronized List<Record> readAll() throws IOException {
+        List<Record> records = new ArrayList<>();
+        if (oldFile.exists()) {
+            try (FileChannel old = FileChannel.open(oldFile.toPath(), StandardOpenOption.READ)) {
+                readHeader(old, oldFile);
+                scan(old, records);
+            }
+        }
+        scan(channel, records);
+        return records;
+    }
+
+    /**
+     * @return true if an fsync has failed and the log no longer accepts records
+     */
+    public synchronized boolean isReadOnly() {
+        return syncFailure != null;
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed) {
+            throw new IOException("Asset log is closed: " + file);
+        }
+        if (syncFailure != null) {
+            throw new IOException("Asset log is read-only after a failed sync: " + syncFailure.getMessage(), syncFailure);
+        }
+    }
+
+    /**
+     * Folds the log into the user store: starts a new segment, flushes the store
+     * so it reflects every record of the old segment, then deletes the old segment.
+     * @param store flushes all in-memory user changes to the user store
+     * @throws IOException If rotation or the flush fails; the old segment is kept for replay
+     */
+    public void compact(Flushable store) throws IOException {
+        if (oldFile.exists()) {
+            // A previous compaction did not finish; fold that segment first
+            store.flush();
+            flushListener();
+            Files.delete(oldFile.toPath());
+        }
+        rotationLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (nextSequence == segmentBase) return; // nothing logged since the last compaction
+                // Keep the segment for replay; its unsynced records may be incomplete on disk
+                checkWritable();
+                channel.force(false);
+                durableSequence = writtenSequence;
+                notifyAll();
+                channel.close();
+                Files.move(file.toPath(), oldFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                channel = createSegment(file, nextSequence);
+                segmentBase = nextSequence;
+            }
+        } finally {
+            rotationLock.writeLock().unlock();
+        }
+        store.flush();
+        flushListener();
+        Files.delete(oldFile.toPath());
+    }
+
+    private void flushListener() throws IOException {
+        Listener current;
+        synchronized (this) {
+            current = listener;
+        }
+        if (current != null) current.flush();
+    }
+
+    /**
+     * Schedules periodic background compaction.
+     * @param store flushes all in-memory user changes to the user store
+     * @param initialDelayMillis delay before the first compaction; 0 folds the records
+     *                           left by a previous run right away, off the caller's thread
+     * @param intervalMillis delay between compactions
+     */
+    public synchronized void startCompaction(Flushable store, long initialDelayMillis, long intervalMillis) {
+        if (compactor != null) return;
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "asset-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact(store);
+            } catch (IOException e) {
+                System.err.println("[ERROR] Asset log compaction failed: " + e.getMessage());
+            }
+        }, initialDelayMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return size in bytes of the current log segment
+     * @throws IOException If the size cannot be read
+     */
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    // ------------------- Group commit -------------------
+
+    private void syncLoop() {
+        while (true) {
+            FileChannel target;
+            long sequence;
+            synchronized (this) {
+                while (writtenSequence == durableSequence && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                target = channel;
+                sequence = writtenSequence;
+            }
+            try {
+                target.force(false);
+            } catch (ClosedChannelException e) {
+                // Rotated meanwhile; compact() forced the segment before closing it
+                continue;
+            } catch (IOException e) {
+                // Retrying is unsafe: the failed pages may have been dropped and a second
+                // fsync would succeed without them. Fail the waiters and stop accepting records.
+                syncFailures.increment();
+                System.err.println("[ERROR] Asset log sync failed, the log is now read-only: " + e.getMessage());
+                synchronized (this) {
+                    syncFailure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                if (sequence > durableSequence) {
+                    durableSequence = sequence;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // ------------------- Segment handling -------------------
+
+    private static FileChannel createSegment(File segment, long base) throws IOException {
+        FileChannel created = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base).flip();
+        PagedUserStore.writeFully(created, header, 0);
+        created.force(true);
+        return created;
+    }
+
+    private static long readHeader(FileChannel segment, File source) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        PagedUserStore.readFully(segment, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) > VERSION) {
+            throw new IOException("Not a supported asset log: " + source);
+        }
+        return header.getLong(8);
+    }
+
+    private static long lastSequenceIn(File segment) throws IOException {
+        try (FileChannel in = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            long base = readHeader(in, segment);
+            return Math.max(base - 1, lastSequenceIn(in));
+        }
+    }
+
+    private static long lastSequenceIn(FileChannel segment) throws IOException {
+        List<Record> records = new ArrayList<>();
+        scan(segment, records);
+        return records.isEmpty() ? 0 : records.get(records.size() - 1).sequence;
+    }
+
+    /**
+     * Reads records from a segment until the end or the first torn/corrupt record.
+     * @param segment open segment
+     * @param sink receives decoded records, or null to only find the valid end
+     * @return file position just past the last valid record
+     */
+    private static long scan(FileChannel segment, List<Record> sink) throws IOException {
+        long size = segment.size();
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            PagedUserStore.readFully(segment, recordHeader, position);
+            int length = recordHeader.getInt(0);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            PagedUserStore.readFully(segment, payload, position + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != recordHeader.getInt(4)) break;
+            if (sink != null) {
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()))) {
+                    sink.add(readRecord(in));
+                }
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Decodes one record payload. Symbol and quantity are only present for market-valued assets.
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        byte op = in.readByte();
+        String username = in.readUTF();
+        int index = in.readInt();
+        String name = in.readUTF();
+        double value = in.readDouble();
+        String symbol = null;
+        double quantity = 0;
+        if (in.available() > 0) {
+            symbol = in.readUTF();
+            quantity = in.readDouble();
+        }
+        Asset asset = op == OP_REMOVE ? null : new Asset(name, symbol, quantity, value);
+        return new Record(sequence, op, username, index, asset);
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared tables of the strings assets are priced and named by.
+ * Each distinct market symbol gets a small int id, so {@link User} keeps symbols in an
+ * int array instead of a String per asset. Symbols come from the price feed, so there
+ * are few of them; ids are handed out in order and never reused. Lookups by id read a
+ * plain array and take no lock; only registering a new symbol does.
+ *
+ * <p>Asset names are typed by users and have no such bound, so they get no ids: they
+ * are only deduplicated, so that every portfolio holding "Gold" shares one String
+ * instance, and only until {@link #MAX_SHARED_NAMES} distinct names have been seen.
+ * Names seen after that are kept by each user as they are.</p>
+ */
+public final class AssetSymbols {
+    /** Id standing for no string (an asset without a symbol). */
+    static final int NONE = -1;
+    /** Most distinct asset names kept for sharing. */
+    static final int MAX_SHARED_NAMES = 1 << 16;
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] strings = new String[256];
+    private static int count;
+    private static final Map<String, String> names = new ConcurrentHashMap<>();
+
+    private AssetSymbols() {
+    }
+
+    /**
+     * Returns the shared instance of an asset name, adding it to the shared names while
+     * there is room.
+     * @param name an asset name, or null
+     * @return an equal String, shared with other portfolios where possible
+     */
+    static String shareName(String name) {
+        if (name == null) return null;
+        String shared = names.get(name);
+        if (shared != null) return shared;
+        if (names.size() >= MAX_SHARED_NAMES) return name;
+        shared = names.putIfAbsent(name, name);
+        return shared != null ? shared : name;
+    }
+
+    /**
+     * Returns the id of a symbol, registering it if it is new.
+     * @param value a market symbol, or null
+     * @return its id, or {@link #NONE} for null
+     */
+    static int idOf(String value) {
+        if (value == null) return NONE;
+        Integer id = ids.get(value);
+        return id != null ? id : register(value);
+    }
+
+    /**
+     * @param id an id returned by {@link #idOf}
+     * @return the shared string with that id, or null for {@link #NONE}
+     */
+    static String valueOf(int id) {
+        return id == NONE ? null : strings[id];
+    }
+
+    /**
+     * @return number of distinct symbols registered
+     */
+    public static synchronized int size() {
+        return count;
+    }
+
+    private static synchronized int register(String value) {
+        Integer existing = ids.get(value);
+        if (existing != null) return existing;
+        if (count == strings.length) {
+            strings = Arrays.copyOf(strings, count * 2);
+        }
+        // The string is stored before its id is published, so readers that see the id see the string
+        strings[count] = value;
+        ids.put(value, count);
+        return count++;
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Connection to the banks that card links are made with.
+ * Implementations may be slow or fail; {@link BankIntegration} only calls them from
+ * its own threads, with a timeout, retries and a circuit breaker, so a session never
+ * waits on a bank.
+ */
+public interface BankClient {
+
+    /**
+     * Asks a bank to link a card. The bank sends a one-time password to the card
+     * holder, which {@link #confirmLink} checks.
+     * @param bank bank name, as listed by {@link BankRegistry}
+     * @param cardNumber 16-digit card number
+     * @param expiry card expiry as MM/YY
+     * @return id of the pending link, which becomes the account id once confirmed
+     * @throws IOException If the bank cannot be reached
+     */
+    String requestLink(String bank, String cardNumber, String expiry) throws IOException;
+
+    /**
+     * Completes a pending link with the one-time password the card holder received.
+     * @param linkId id returned by {@link #requestLink}
+     * @param otp one-time password entered by the card holder
+     * @return true if the link is made, false if the password is wrong or the link unknown
+     * @throws IOException If the bank cannot be reached
+     */
+    boolean confirmLink(String linkId, String otp) throws IOException;
+
+    /**
+     * Reads transactions of a linked account in sequence order. A bank may deliver a
+     * transaction more than once, so callers must skip sequence numbers they have seen.
+     * @param accountId id of a confirmed link
+     * @param afterSequence only transactions after this sequence number are wanted
+     * @param limit maximum number of transactions to return
+     * @return the transactions, fewer than {@code limit} once the account has no more
+     * @throws IOException If the bank cannot be reached
+     */
+    List<BankTransaction> fetchTransactions(String accountId, long afterSequence, int limit) throws IOException;
+
+    /**
+     * @return short name of the client, used in messages and metrics
+     */
+    String getName();
+}
@@ -1,22 +1,219 @@
-
-
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Provides the functionality for linking a user's bank account.
- * Includes bank name validation, card details checking, and OTP simulation.
+ * Card details are checked against the {@link BankRegistry} first; the bank is then
+ * asked to send a one-time password (OTP), and the OTP the user enters is confirmed
+ * with the bank. Bank calls go through a pluggable {@link BankClient} (a
+ * {@link StubBankClient} by default) and run on virtual threads: every call returns a
+ * {@link CompletableFuture}, is abandoned after a timeout, retried with backoff when
+ * the bank fails, and rejected outright while the circuit breaker is open. A slow
+ * bank therefore never holds up the rest of a session.
  */
 public class BankIntegration {
+    static final long CALL_TIMEOUT_MS = 2_000;
+    static final int MAX_ATTEMPTS = 3;
+    static final long RETRY_BACKOFF_MS = 200;
+    private static final int BREAKER_FAILURES = 5;
+    private static final long BREAKER_OPEN_MS = 30_000;
+
+    private static final ExecutorService calls = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("bank-call-", 1).factory());
+    private static final CircuitBreaker breaker = CircuitBreaker.create("bank", BREAKER_FAILURES, BREAKER_OPEN_MS);
+    private static volatile BankClient client = new StubBankClient(100, 600, 0.1,
+            otp -> System.out.println("\nOTP sent to your registered mobile number: " + otp));
+
+    // Console links waiting for their OTP, by username
+    private static final Map<String, PendingLink> pendingLinks = new ConcurrentHashMap<>();
+
+    private static final Metrics.Histogram callLatency = Metrics.histogram("bank.call");
+    private static final Metrics.Counter callFailures = Metrics.counter("bank.failures");
+    private static final Metrics.Counter callTimeouts = Metrics.counter("bank.timeouts");
+    private static final Metrics.Counter callRetries = Metrics.counter("bank.retries");
+    private static final Metrics.Counter callsRejected = Metrics.counter("bank.rejected");
+
+    /**
+     * A bank call that may block or fail.
+     */
+    @FunctionalInterface
+    private interface BankCall<T> {
+        T call(BankClient client) throws IOException;
+    }
+
+    /**
+     * A link request started from the console.
+     */
+    private static final class PendingLink {
+        final String bank;
+        final String cardNumber;
+        final CompletableFuture<String> linkId;
+
+        PendingLink(String bank, String cardNumber, CompletableFuture<String> linkId) {
+            this.bank = bank;
+            this.cardNumber = cardNumber;
+            this.linkId = linkId;
+        }
+    }
+
+    /**
+     * Replaces the bank client, e.g. with a real bank connector.
+     * @param bankClient client used for all later calls
+     */
+    public static void setClient(BankClient bankClient) {
+        client = bankClient;
+    }
+
+    /**
+     * @return the circuit breaker guarding bank calls
+     */
+    static CircuitBreaker getBreaker() { return breaker; }
+
+    // ------------------- Pipeline -------------------
+
+    /**
+     * Checks card details and asks the bank to send an OTP, without blocking.
+     * @param bankName bank name as entered (case-insensitive)
+     * @param cardNumber card number as entered
+     * @param expiry card expiry as entered (MM/YY)
+     * @return future link id; fails with IllegalArgumentException for unsupported banks or
+     *         invalid card details, or with IOException if the bank cannot be reached
+     */
+    public static CompletableFuture<String> requestLink(String bankName, String cardNumber, String expiry) {
+        BankRegistry registry = BankRegistry.get();
+        String bank = registry.findBank(bankName);
+        if (bank == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Bank not supported."));
+        }
+        if (!registry.isValidCard(cardNumber, expiry)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid card details."));
+        }
+        return call(bankClient -> bankClient.requestLink(bank, cardNumber, expiry));
+    }
+
+    /**
+     * Confirms a pending link with the OTP the user entered, without blocking.
+     * @param linkId id from {@link #requestLink}
+     * @param otp OTP entered by the user
+     * @return future that is true if the account was linked, false if the OTP was wrong;
+     *         fails with IOException if the bank cannot be reached
+     */
+    public static CompletableFuture<Boolean> confirmLink(String linkId, String otp) {
+        return call(bankClient -> bankClient.confirmLink(linkId, otp));
+    }
+
+    /**
+     * Reads transactions of a linked account, without blocking.
+     * @param accountId id of a confirmed link
+     * @param afterSequence only transactions after this sequence number are wanted
+     * @param limit maximum number of transactions to return
+     * @return future transactions; fails with IOException if the bank cannot be reached
+     */
+    public static CompletableFuture<List<BankTransaction>> fetchTransactions(String accountId, long afterSequence, int limit) {
+        return call(bankClient -> bankClient.fetchTransactions(accountId, afterSequence, limit));
+    }
+
+    private static <T> CompletableFuture<T> call(BankCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, 1, result);
+        return result;
+    }
+
+    /**
+     * Runs one attempt of a call on a virtual thread and completes the result, or
+     * schedules the next attempt after a backoff if this one failed or timed out.
+     * A timed-out attempt keeps running in the background but its outcome is ignored.
+     */
+    private static <T> void attempt(BankCall<T> call, int attempt, CompletableFuture<T> result) {
+        if (!breaker.allowRequest()) {
+            callsRejected.increment();
+            result.completeExceptionally(new IOException("Bank service unavailable, please try again later."));
+            return;
+        }
+        BankClient bankClient = client;
+        long start = System.nanoTime();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call(bankClient);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, calls).orTimeout(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+            callLatency.recordSince(start);
+            if (error == null) {
+                breaker.recordSuccess();
+                result.complete(value);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            breaker.recordFailure();
+            callFailures.increment();
+            if (cause instanceof TimeoutException) {
+                callTimeouts.increment();
+                cause = new IOException("Bank " + bankClient.getName() + " did not answer within " + CALL_TIMEOUT_MS + " ms");
+            }
+            if (attempt < MAX_ATTEMPTS && cause instanceof IOException) {
+                callRetries.increment();
+                CompletableFuture.delayedExecutor(RETRY_BACKOFF_MS << (attempt - 1), TimeUnit.MILLISECONDS, calls)
+                        .execute(() -> attempt(call, attempt + 1, result));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    // ------------------- Console -------------------
 
     /**
-     * Interacts with the user via console input to collect and validate bank account data.
-     * Simulates OTP sending and checks validity of user input.
+     * Console flow for linking a bank account. The first use collects the card details
+     * and sends the link request in the background; once the bank has sent the OTP, the
+     * next use asks for it and confirms it in the background. Results are printed when
+     * they arrive, so the user can keep using the app meanwhile. A linked account is
+     * handed to {@link BankSync}, which keeps its balance in the portfolio up to date.
      *
      * @param scanner the Scanner object used to read user input from the console
+     * @param username user linking the account
      */
-    public static void connectBankAccount(Scanner scanner) {
+    public static void connectBankAccount(Scanner scanner, String username) {
         System.out.println("\n*== Connect Bank Account ==*");
+        PendingLink pending = pendingLinks.get(username);
+        if (pending != null) {
+            if (!pending.linkId.isDone()) {
+                System.out.println("Still waiting for " + pending.bank + " to send the OTP.");
+                return;
+            }
+            pendingLinks.remove(username, pending);
+            String linkId = pending.linkId.getNow(null);
+            if (linkId != null) {
+                System.out.print("Enter OTP sent by " + pending.bank + ": ");
+                String otp = scanner.nextLine();
+                confirmLink(linkId, otp).whenComplete((linked, error) -> {
+                    if (error != null) {
+                        System.out.println("\nBank linking failed: " + error.getMessage());
+                    } else if (linked) {
+                        System.out.println("\nBank account successfully linked!");
+                        try {
+                            BankSync.get().register(username, pending.bank, pending.cardNumber, linkId);
+                        } catch (IOException e) {
+                            System.err.println("[ERROR] Failed to save linked account: " + e.getMessage());
+                        }
+                    } else {
+                        System.out.println("\nIncorrect OTP. Bank linking failed.");
+                    }
+                });
+                System.out.println("Verifying OTP with " + pending.bank + "...");
+                return;
+            }
+        }
 
         System.out.print("Enter bank name: ");
         String bankName = scanner.nextLine();
@@ -27,20 +224,25 @@ public class BankIntegration {
         System.out.print("Enter card expiry (MM/YY): ");
         String expiry = scanner.nextLine();
 
-        String generatedOtp = "123456"; // Simulated OTP
-        System.out.println("OTP sent to your registered mobile number: " + generatedOtp);
-
-        System.out.print("Enter OTP: ");
-        String enteredOtp = scanner.nextLine();
-
-        if (!List.of("Bank A", "Bank B").contains(bankName)) {
-            System.out.println("Bank not supported.");
-        } else if (!cardNumber.matches("\\d{16}") || !expiry.matches("\\d{2}/\\d{2}")) {
-            System.out.println("Invalid card details.");
-        } else if (!enteredOtp.equals(generatedOtp)) {
-            System.out.println("Incorrect OTP. Bank linking failed.");
-        } else {
-            System.out.println("Bank account successfully linked!");
+        CompletableFuture<String> request = requestLink(bankName, cardNumber, expiry);
+        if (request.isCompletedExceptionally()) {
+            request.exceptionally(error -> {
+                System.out.println(error.getMessage());
+                return null;
+            });
+            return;
         }
+        String bank = BankRegistry.get().findBank(bankName);
+        PendingLink link = new PendingLink(bank, cardNumber, request);
+        pendingLinks.put(username, link);
+        request.whenComplete((linkId, error) -> {
+            if (error != null) {
+                pendingLinks.remove(username, link);
+                System.out.println("\nBank linking failed: " + error.getMessage());
+            } else {
+                System.out.println(bank + " sent an OTP; choose \"Add Bank\" again to enter it.");
+            }
+        });
+        System.out.println("Link request sent to " + bank + ". You can keep using the app meanwhile.");
     }
 }
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Supported banks and the card checks done before a bank is contacted.
+ * The bank list is read once, from {@code banks.txt} (one name per line, # for comments) if it exists
+ * and otherwise from the built-in defaults, and bank names are matched ignoring case.
+ * The card patterns are compiled once instead of on every check.
+ */
+public final class BankRegistry {
+    static final String BANKS_FILENAME = "banks.txt";
+    private static final String[] DEFAULT_BANKS = {"Bank A", "Bank B"};
+    private static final Pattern CARD_NUMBER = Pattern.compile("\\d{16}");
+    private static final Pattern EXPIRY = Pattern.compile("\\d{2}/\\d{2}");
+
+    private static volatile BankRegistry instance;
+
+    private final Map<String, String> banks; // lower-case name -> display name
+
+    private BankRegistry(Iterable<String> names) {
+        Map<String, String> byKey = new LinkedHashMap<>();
+        for (String name : names) {
+            String trimmed = name.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                byKey.putIfAbsent(key(trimmed), trimmed);
+            }
+        }
+        this.banks = Collections.unmodifiableMap(byKey);
+    }
+
+    /**
+     * Returns the shared registry, loading the bank list on first use.
+     * @return the registry
+     */
+    public static BankRegistry get() {
+        BankRegistry registry = instance;
+        if (registry == null) {
+            synchronized (BankRegistry.class) {
+                if (instance == null) {
+                    instance = load(new File(BANKS_FILENAME));
+                }
+                registry = instance;
+            }
+        }
+        return registry;
+    }
+
+    private static BankRegistry load(File file) {
+        if (file.exists()) {
+            BankRegistry registry = new BankRegistry(FileUtils.readFile(file.getPath()));
+            if (!registry.banks.isEmpty()) return registry;
+            System.err.println("[ERROR] No banks listed in " + file + ", using the default banks.");
+        }
+        return new BankRegistry(List.of(DEFAULT_BANKS));
+    }
+
+    /**
+     * @param name bank name as entered by the user
+     * @return the bank's name as listed, or null if the bank is not supported
+     */
+    public String findBank(String name) {
+        return name == null ? null : banks.get(key(name.trim()));
+    }
+
+    /**
+     * @return names of the supported banks
+     */
+    public Collection<String> getBanks() {
+        return banks.values();
+    }
+
+    /**
+     * @param cardNumber card number as entered
+     * @param expiry expiry as entered
+     * @return true if the number has 16 digits and the expiry looks like MM/YY
+     */
+    public boolean isValidCard(String cardNumber, String expiry) {
+        return cardNumber != null && expiry != null
+                && CARD_NUMBER.matcher(cardNumber).matches() && EXPIRY.matcher(expiry).matches();
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the cash held in linked bank accounts up to date in their owners' portfolios.
+ * Every linked account has a cash asset (e.g. "Bank A cash ****5678") and a cursor: the
+ * sequence number of the last bank transaction applied to it. A sync reads only the
+ * transactions after the cursor, in batches, and adds their sum to the cash asset;
+ * transactions the bank delivers again are skipped by their number.
+ *
+ * <p>Accounts and cursors are kept in {@code bank_accounts.properties}. A sync first
+ * reads the new transactions of all its accounts, then records the new cursors and the
+ * balances they lead to as pending in one write of the file, changes the assets in one
+ * batch of store writes, and commits the cursors in a second write. After a crash in
+ * between, the next sync commits a pending cursor if the asset already has the pending
+ * balance and drops it otherwise, so a transaction is never applied twice or lost.
+ * Concurrent syncs share writes of the file: a sync that finds a write in progress
+ * waits for it and is usually covered by it.
+ *
+ * <p>A sync round reads every account on virtual threads, at most
+ * {@code -Dinvestment.bankSyncConcurrency} (default 16) at a time; the round waits for a
+ * free slot before starting the next account, so a slow bank holds back the round
+ * rather than piling up calls. Rounds run in the background every
+ * {@code -Dinvestment.bankSyncSeconds} (default 60) once {@link #start} is called.
+ */
+public class BankSync {
+    static final String ACCOUNTS_FILENAME = "bank_accounts.properties";
+    static final int BATCH_SIZE = 200;
+    static final int MAX_BATCHES_PER_SYNC = 50;
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final long DEFAULT_INTERVAL_SECONDS = 60;
+
+    private static BankSync instance;
+    private static ScheduledExecutorService scheduler;
+
+    private final File file;
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>(); // by account id
+    private final Semaphore permits;
+    private final ExecutorService workers = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("bank-sync-", 1).factory());
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private long changes;       // guarded by this
+    private long changesWritten; // guarded by writeLock
+
+    private static final Metrics.Histogram roundLatency = Metrics.histogram("bank_sync.round");
+    private static final Metrics.Histogram accountLatency = Metrics.histogram("bank_sync.account");
+    private static final Metrics.Counter transactionsApplied = Metrics.counter("bank_sync.transactions");
+    private static final Metrics.Counter duplicatesSkipped = Metrics.counter("bank_sync.duplicates");
+    private static final Metrics.Counter syncConflicts = Metrics.counter("bank_sync.conflicts");
+    private static final Metrics.Counter syncErrors = Metrics.counter("bank_sync.errors");
+    private static final Metrics.Counter pendingRecovered = Metrics.counter("bank_sync.pending_recovered");
+    private static final Metrics.Counter fileWrites = Metrics.counter("bank_sync.file_writes");
+
+    /**
+     * A linked account and its sync state. Fields are guarded by the BankSync instance.
+     */
+    static final class Account {
+        final String id;
+        final String username;
+        final String assetName;
+        final AtomicBoolean syncing = new AtomicBoolean();
+        long cursor;
+        long pendingCursor = -1; // -1 when no change is pending
+        long pendingCents;
+
+        Account(String id, String username, String assetName, long cursor) {
+            this.id = id;
+            this.username = username;
+            this.assetName = assetName;
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * The new transactions read for an account in a sync, not applied yet.
+     */
+    private static final class Delta {
+        final Account account;
+        final User user;
+        final long last; // sequence number of the last transaction read
+        final long cents;
+        final int count;
+
+        Delta(Account account, User user, long last, long cents, int count) {
+            this.account = account;
+            this.user = user;
+            this.last = last;
+            this.cents = cents;
+            this.count = count;
+        }
+    }
+
+    private BankSync(File file, int concurrency) {
+        this.file = file;
+        this.permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * Reads the linked accounts from a file.
+     * @param file accounts file; created on the first link if missing
+     * @param concurrency number of accounts a round reads at the same time
+     * @return the sync engine
+     * @throws IOException If the accounts file cannot be read
+     */
+    static BankSync open(File file, int concurrency) throws IOException {
+        BankSync sync = new BankSync(file, concurrency);
+        sync.load();
+        Metrics.gauge("bank_sync.accounts", sync.accounts::size);
+        return sync;
+    }
+
+    /**
+     * Returns the shared instance, reading the linked accounts on first use.
+     * @return the sync engine
+     * @throws IOException If the accounts file cannot be read
+     */
+    public static synchronized BankSync get() throws IOException {
+        if (instance == null) {
+            instance = open(new File(ACCOUNTS_FILENAME),
+                    Integer.getInteger("investment.bankSyncConcurrency", DEFAULT_CONCURRENCY));
+        }
+        return instance;
+    }
+
+    /**
+     * Starts background sync rounds. Does nothing if they are already running.
+     */
+    public static synchronized void start() {
+        if (scheduler != null) return;
+        long interval = Long.getLong("investment.bankSyncSeconds", DEFAULT_INTERVAL_SECONDS);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                get().syncAll();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[ERROR] Bank sync failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // ------------------- Accounts -------------------
+
+    /**
+     * Records a newly linked account. Its transactions are synced from the first one.
+     * @param username owner of the account
+     * @param bank bank name
+     * @param cardNumber card the link was made with; only its last four digits are kept
+     * @param accountId id of the confirmed link
+     * @throws IOException If the accounts file cannot be written
+     */
+    public void register(String username, String bank, String cardNumber, String accountId) throws IOException {
+        String last4 = cardNumber.substring(Math.max(0, cardNumber.length() - 4));
+        Account account = new Account(accountId, username, bank + " cash ****" + last4, 0);
+        long written;
+        synchronized (this) {
+            if (accounts.putIfAbsent(accountId, account) != null) return;
+            written = noteChange();
+        }
+        writeChanges(written);
+    }
+
+    /**
+     * @param username a user
+     * @return ids of the accounts the user has linked
+     */
+    public List<String> getAccountIds(String username) {
+        List<String> ids = new ArrayList<>();
+        for (Account account : accounts.values()) {
+            if (account.username.equals(username)) ids.add(account.id);
+        }
+        return ids;
+    }
+
+    /**
+     * @param accountId id of a linked account
+     * @return sequence number of the last transaction applied, or -1 if the account is unknown
+     */
+    public synchronized long getCursor(String accountId) {
+        Account account = accounts.get(accountId);
+        return account == null ? -1 : account.cursor;
+    }
+
+    // ------------------- Syncing -------------------
+
+    /**
+     * Syncs every linked account once: reads them a bounded number at a time, waits until
+     * all are read, then applies the new transactions together. Failures are counted and
+     * reported; the accounts concerned are retried in the next round.
+     * @return number of transactions applied
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public long syncAll() throws InterruptedException {
+        long start = System.nanoTime();
+        List<Account> round = claim(accounts.values());
+        try {
+            Queue<Delta> deltas = new ConcurrentLinkedQueue<>();
+            CountDownLatch done = new CountDownLatch(round.size());
+            for (Account account : round) {
+                permits.acquire();
+                workers.execute(() -> {
+                    try {
+                        Delta delta = read(account);
+                        if (delta != null) deltas.add(delta);
+                    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                        syncErrors.increment();
+                        System.err.println("[ERROR] Failed to sync " + account.assetName + " of "
+                                + account.username + ": " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        permits.release();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            try {
+                return commit(new ArrayList<>(deltas));
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                syncErrors.increment();
+                System.err.println("[ERROR] Failed to apply bank transactions: " + e.getMessage());
+                return 0;
+            }
+        } finally {
+            release(round);
+            roundLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Syncs the accounts of one user now, e.g. when they open their portfolio.
+     * Accounts being synced by a round are skipped.
+     * @param username a user
+     * @return number of transactions applied
+     * @throws IOException If the bank cannot be reached or the portfolio cannot be updated
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     * @throws InterruptedException If interrupted while waiting for the bank
+     */
+    public long syncUser(String username) throws IOException, ClassNotFoundException, InterruptedException {
+        List<Account> owned = new ArrayList<>();
+        for (String id : getAccountIds(username)) {
+            Account account = accounts.get(id);
+            if (account != null) owned.add(account);
+        }
+        List<Account> claimed = claim(owned);
+        try {
+            List<Delta> deltas = new ArrayList<>();
+            for (Account account : claimed) {
+                Delta delta = read(account);
+                if (delta != null) deltas.add(delta);
+            }
+            return commit(deltas);
+        } finally {
+            release(claimed);
+        }
+    }
+
+    /**
+     * Marks accounts as being synced, skipping those another sync is working on.
+     * An account stays claimed until its transactions are applied, so they are never
+     * applied by two syncs.
+     * @return the accounts claimed
+     */
+    private static List<Account> claim(Collection<Account> candidates) {
+        List<Account> claimed = new ArrayList<>();
+        for (Account account : candidates) {
+            if (account.syncing.compareAndSet(false, true)) claimed.add(account);
+        }
+        return claimed;
+    }
+
+    private static void release(List<Account> claimed) {
+        for (Account account : claimed) {
+            account.syncing.set(false);
+        }
+    }
+
+    /**
+     * Settles any change left pending for the account, then reads its transactions
+     * after the cursor.
+     * @return the new transactions, or null if there are none
+     */
+    private Delta read(Account account) throws IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            User user = UserStorage.findUser(account.username);
+            if (user == null) {
+                throw new IOException("User not found in storage: " + account.username);
+            }
+            resolvePending(account, user);
+
+            long cursor;
+            synchronized (this) {
+                cursor = account.cursor;
+            }
+            long last = cursor;
+            long deltaCents = 0;
+            int count = 0;
+            for (int batch = 0; batch < MAX_BATCHES_PER_SYNC; batch++) {
+                List<BankTransaction> transactions = fetch(account.id, last);
+                for (BankTransaction transaction : transactions) {
+                    if (transaction.getSequence() <= last) {
+                        duplicatesSkipped.increment();
+                        continue;
+                    }
+                    last = transaction.getSequence();
+                    deltaCents += transaction.getAmountCents();
+                    count++;
+                }
+                if (transactions.size() < BATCH_SIZE) break;
+            }
+            return last == cursor ? null : new Delta(account, user, last, deltaCents, count);
+        } finally {
+            accountLatency.recordSince(start);
+        }
+    }
+
+    private static List<BankTransaction> fetch(String accountId, long afterSequence)
+        throws IOException, InterruptedException {
+        try {
+            return BankIntegration.fetchTransactions(accountId, afterSequence, BATCH_SIZE).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Bank call failed: " + cause, cause);
+        }
+    }
+
+    /**
+     * Adds the transactions read for some accounts to their cash assets and moves the
+     * cursors past them, with one write of the accounts file before the assets change
+     * and one after. If a user changes a cash asset meanwhile, nothing is applied to it
+     * and its transactions are read again in the next sync.
+     * @return number of transactions applied
+     */
+    private long commit(List<Delta> deltas) throws IOException, ClassNotFoundException {
+        List<UserStorage.AssetUpdate> updates = new ArrayList<>(deltas.size());
+        for (Delta delta : deltas) {
+            long seenVersion;
+            int index;
+            Asset seen;
+            synchronized (delta.user) {
+                seenVersion = delta.user.getVersion();
+                index = delta.user.indexOfAsset(delta.account.assetName);
+                seen = index < 0 ? null : delta.user.getAsset(index);
+            }
+            long newCents = (seen == null ? 0 : toCents(seen.getValue())) + delta.cents;
+            synchronized (this) {
+                delta.account.pendingCursor = delta.last;
+                delta.account.pendingCents = newCents;
+            }
+            updates.add(new UserStorage.AssetUpdate(delta.user, seenVersion, index, seen,
+                    new Asset(delta.account.assetName, newCents / 100.0)));
+        }
+        long written;
+        synchronized (this) {
+            // Also covers pending changes settled while reading
+            written = updates.isEmpty() ? changes : noteChange();
+        }
+        writeChanges(written);
+        if (updates.isEmpty()) return 0;
+
+        // If this fails part way, the next sync settles each pending change by its balance
+        List<UserStorage.AssetUpdate> rejected = UserStorage.updateAssets(updates);
+        long applied = 0;
+        synchronized (this) {
+            for (int i = 0; i < deltas.size(); i++) {
+                Delta delta = deltas.get(i);
+                if (rejected.contains(updates.get(i))) {
+                    syncConflicts.increment();
+                } else {
+                    delta.account.cursor = delta.last;
+                    applied += delta.count;
+                }
+                delta.account.pendingCursor = -1;
+            }
+            written = noteChange();
+        }
+        writeChanges(written);
+        transactionsApplied.add(applied);
+        return applied;
+    }
+
+    /**
+     * Settles a change left pending by a sync that did not finish: it is committed if the
+     * cash asset has the balance it was going to set, and dropped otherwise. The settled
+     * state is written with the next change of the accounts file.
+     */
+    private void resolvePending(Account account, User user) {
+        Asset cash;
+        synchronized (user) {
+            int index = user.indexOfAsset(account.assetName);
+            cash = index < 0 ? null : user.getAsset(index);
+        }
+        synchronized (this) {
+            if (account.pendingCursor < 0) return;
+            if (cash != null && toCents(cash.getValue()) == account.pendingCents) {
+                account.cursor = account.pendingCursor;
+            }
+            account.pendingCursor = -1;
+            noteChange();
+        }
+        pendingRecovered.increment();
+    }
+
+    private static long toCents(double value) {
+        return Math.round(value * 100);
+    }
+
+    // ------------------- Accounts file -------------------
+
+    /**
+     * Counts a change to the account states. Callers hold this instance's lock.
+     * @return the change number to pass to {@link #writeChanges}
+     */
+    private long noteChange() {
+        return ++changes;
+    }
+
+    /**
+     * Makes sure a change is on disk. If another thread is writing the file, waits for it;
+     * if that write already covered the change there is nothing left to do, otherwise one
+     * write covers this change and every other one made meanwhile.
+     */
+    private void writeChanges(long change) throws IOException {
+        writeLock.lock();
+        try {
+            if (changesWritten >= change) return;
+            Properties properties = new Properties();
+            long upTo;
+            synchronized (this) {
+                upTo = changes;
+                for (Account account : accounts.values()) {
+                    properties.setProperty(account.id + ".user", account.username);
+                    properties.setProperty(account.id + ".asset", account.assetName);
+                    properties.setProperty(account.id + ".cursor", String.valueOf(account.cursor));
+                    if (account.pendingCursor >= 0) {
+                        properties.setProperty(account.id + ".pending_cursor", String.valueOf(account.pendingCursor));
+                        properties.setProperty(account.id + ".pending_cents", String.valueOf(account.pendingCents));
+                    }
+                }
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                properties.store(new OutputStreamWriter(out, "UTF-8"), "Investment App linked bank accounts");
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changesWritten = upTo;
+            fileWrites.increment();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) return;
+        Properties properties = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+            properties.load(in);
+        }
+        try {
+            for (String key : properties.stringPropertyNames()) {
+                if (!key.endsWith(".user")) continue;
+                String id = key.substring(0, key.length() - ".user".length());
+                Account account = new Account(id, properties.getProperty(key),
+                        properties.getProperty(id + ".asset"), Long.parseLong(properties.getProperty(id + ".cursor")));
+                String pending = properties.getProperty(id + ".pending_cursor");
+                if (pending != null) {
+                    account.pendingCursor = Long.parseLong(pending);
+                    account.pendingCents = Long.parseLong(properties.getProperty(id + ".pending_cents"));
+                }
+                accounts.put(id, account);
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IOException("Corrupt bank accounts file: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * One transaction on a linked bank account, as reported by a {@link BankClient}.
+ * Transactions of an account are numbered by the bank with increasing sequence
+ * numbers; {@link BankSync} keeps the highest number it has applied as the account's
+ * cursor, so a transaction delivered again is recognised and skipped.
+ * Amounts are held in cents so that summing many of them stays exact.
+ */
+public final class BankTransaction {
+    private final long sequence;
+    private final long amountCents;
+    private final String description;
+
+    /**
+     * @param sequence the bank's number for the transaction, starting at 1
+     * @param amountCents amount in cents; positive for money in, negative for money out
+     * @param description text shown on the bank statement
+     */
+    public BankTransaction(long sequence, long amountCents, String description) {
+        if (sequence < 1) {
+            throw new IllegalArgumentException("Transaction sequence must be positive: " + sequence);
+        }
+        this.sequence = sequence;
+        this.amountCents = amountCents;
+        this.description = description;
+    }
+
+    public long getSequence() { return sequence; }
+
+    public long getAmountCents() { return amountCents; }
+
+    public String getDescription() { return description; }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %,.2f", sequence, description, amountCents / 100.0);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Stops calling a failing service for a while so callers fail fast instead of
+ * piling up behind timeouts.
+ * The breaker is closed while calls succeed. After a number of consecutive failures
+ * it opens and rejects calls for the open period; then it lets a single trial call
+ * through (half-open), which closes it again on success or reopens it on failure.
+ */
+public class CircuitBreaker {
+    /**
+     * State of a breaker.
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Metrics.Counter opened;
+
+    private int consecutiveFailures;
+    private long openedAt = -1; // -1 while closed
+    private boolean trialInFlight;
+
+    private CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.opened = Metrics.counter(name + ".breaker_opened");
+    }
+
+    /**
+     * Creates a closed breaker and registers its metrics.
+     * @param name metric name prefix, e.g. "bank"
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMillis how long the breaker rejects calls before a trial call
+     * @return the new breaker
+     */
+    public static CircuitBreaker create(String name, int failureThreshold, long openMillis) {
+        CircuitBreaker breaker = new CircuitBreaker(name, failureThreshold, openMillis);
+        Metrics.gauge(name + ".breaker_open", () -> breaker.getState() == State.CLOSED ? 0 : 1);
+        return breaker;
+    }
+
+    /**
+     * Asks whether a call may be made now. A call that is allowed must be followed by
+     * {@link #recordSuccess} or {@link #recordFailure}.
+     * @return true if the call may go ahead
+     */
+    public synchronized boolean allowRequest() {
+        if (openedAt < 0) return true;
+        if (trialInFlight || System.currentTimeMillis() - openedAt < openMillis) return false;
+        trialInFlight = true;
+        return true;
+    }
+
+    /**
+     * Records a successful call, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        openedAt = -1;
+        trialInFlight = false;
+    }
+
+    /**
+     * Records a failed call, opening the breaker once too many have failed in a row
+     * or when the trial call of a half-open breaker fails.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (trialInFlight || (openedAt < 0 && consecutiveFailures >= failureThreshold)) {
+            openedAt = System.currentTimeMillis();
+            opened.increment();
+        }
+        trialInFlight = false;
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        if (openedAt < 0) return State.CLOSED;
+        return trialInFlight || System.currentTimeMillis() - openedAt >= openMillis ? State.HALF_OPEN : State.OPEN;
+    }
+}
@@ -1,9 +1,12 @@
+import java.io.IOException;
 import java.util.List;
 import java.util.Scanner;
 
 /**
  * Handles the logic for editing or removing assets in a user's portfolio.
  * Provides an interface for modifying asset values or removing assets entirely.
+ * The chosen number refers to the list as displayed: if the portfolio is changed
+ * elsewhere before the action is confirmed, the change still applies to that asset.
  */
 public class EditAssets {
     private final User user;
@@ -21,7 +24,12 @@ public class EditAssets {
      * @param scanner Scanner instance for reading user input
      */
     public void showAssetEditor(Scanner scanner) {
-        List<Asset> displayedAssets = user.getAssets();
+        long displayedVersion;
+        List<Asset> displayedAssets;
+        synchronized (user) {
+            displayedVersion = user.getVersion();
+            displayedAssets = user.getAssets();
+        }
 
         if (displayedAssets.isEmpty()) {
             System.out.println("No assets to edit or remove.");
@@ -60,23 +68,25 @@ public class EditAssets {
             return;
         }
 
-        handleAssetAction(scanner, index, action);
+        handleAssetAction(scanner, displayedVersion, index, displayedAssets.get(index), action);
     }
 
     /**
      * Executes the selected asset modification action.
      * @param scanner Scanner for additional input
-     * @param index Index of selected asset
+     * @param version User version the displayed list was read at
+     * @param index Index of selected asset in the displayed list
+     * @param selected The selected asset as displayed
      * @param action Action to perform (1=edit, 2=remove)
      */
-    private void handleAssetAction(Scanner scanner, int index, String action) {
+    private void handleAssetAction(Scanner scanner, long version, int index, Asset selected, String action) {
         try {
             switch (action) {
                 case "1":
-                    handleEditAsset(scanner, index);
+                    handleEditAsset(scanner, version, index, selected);
                     break;
                 case "2":
-                    handleRemoveAsset(index);
+                    handleRemoveAsset(version, index, selected);
                     break;
                 default:
                     System.out.println("Invalid action selected.");
@@ -89,15 +99,18 @@ public class EditAssets {
     /**
      * Handles asset value modification.
      * @param scanner Scanner for new value input
-     * @param index Index of asset to modify
+     * @param version User version the displayed list was read at
+     * @param index Index of asset to modify in the displayed list
+     * @param oldAsset The asset as displayed
+     * @throws IOException If the change cannot be logged or the asset was changed elsewhere
+     * @throws ClassNotFoundException If serialization class mismatch occurs
      */
-    private void handleEditAsset(Scanner scanner, int index) {
+    private void handleEditAsset(Scanner scanner, long version, int index, Asset oldAsset)
+        throws IOException, ClassNotFoundException {
         System.out.print("Enter new asset value: ");
         try {
             double newValue = Double.parseDouble(scanner.nextLine());
-            Asset oldAsset = user.getAssets().get(index);
-            user.updateAsset(index, new Asset(oldAsset.getName(), newValue));
-            UserStorage.safeUpdateUser(user);
+            UserStorage.updateAsset(user, version, index, oldAsset, oldAsset.withValue(newValue));
             System.out.println("Asset value updated successfully.");
         } catch (NumberFormatException e) {
             System.out.println("Invalid value format. Use numbers only.");
@@ -106,11 +119,14 @@ public class EditAssets {
 
     /**
      * Handles asset removal from portfolio.
-     * @param index Index of asset to remove
+     * @param version User version the displayed list was read at
+     * @param index Index of asset to remove in the displayed list
+     * @param asset The asset as displayed
+     * @throws IOException If the change cannot be logged or the asset was changed elsewhere
+     * @throws ClassNotFoundException If serialization class mismatch occurs
      */
-    private void handleRemoveAsset(int index) {
-        user.removeAsset(index);
-        UserStorage.safeUpdateUser(user);
+    private void handleRemoveAsset(long version, int index, Asset asset) throws IOException, ClassNotFoundException {
+        UserStorage.removeAsset(user, version, index, asset);
         System.out.println("Asset removed successfully.");
     }
 }
\ No newline at end of file
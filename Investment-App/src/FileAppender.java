@@ -0,0 +1,166 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived appender for log and report files.
+ * Lines are collected in a direct buffer and written to the file channel when the
+ * buffer fills. Durability uses group commit: the file is fsynced once enough bytes
+ * have been written since the last sync, or by a background task every sync
+ * interval, instead of once per line.
+ */
+public class FileAppender implements Closeable, Flushable {
+    static final int BUFFER_SIZE = 1 << 16;
+    static final long DEFAULT_SYNC_INTERVAL_MS = 1_000;
+    static final long DEFAULT_SYNC_BYTES = 1 << 20;
+
+    private static ScheduledExecutorService syncer;
+    private static final Metrics.Histogram syncLatency = Metrics.histogram("appender.sync");
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long syncBytes;
+    private ScheduledFuture<?> syncTask; // set by open
+    private long unsyncedBytes; // written or buffered since the last fsync
+    private boolean closed;
+
+    private FileAppender(File file, long syncBytes) throws IOException {
+        this.file = file;
+        this.syncBytes = syncBytes;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens a file for appending with the default group commit settings.
+     * @param file file to append to; created if missing
+     * @return the open appender
+     * @throws IOException If the file cannot be opened
+     */
+    public static FileAppender open(File file) throws IOException {
+        return open(file, DEFAULT_SYNC_INTERVAL_MS, DEFAULT_SYNC_BYTES);
+    }
+
+    /**
+     * Opens a file for appending and schedules its periodic fsync.
+     * @param file file to append to; created if missing
+     * @param syncIntervalMillis longest time appended data may wait for an fsync
+     * @param syncBytes number of unsynced bytes that triggers an fsync on append
+     * @return the open appender
+     * @throws IOException If the file cannot be opened
+     */
+    public static FileAppender open(File file, long syncIntervalMillis, long syncBytes) throws IOException {
+        FileAppender appender = new FileAppender(file, syncBytes);
+        synchronized (appender) {
+            appender.syncTask = getSyncer().scheduleWithFixedDelay(appender::safeSync,
+                    syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return appender;
+    }
+
+    private static synchronized ScheduledExecutorService getSyncer() {
+        if (syncer == null) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "file-appender-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return syncer;
+    }
+
+    /**
+     * @return the file being appended to
+     */
+    public File getFile() { return file; }
+
+    /**
+     * Appends a line followed by a newline.
+     * @param line text to append
+     * @throws IOException If the file cannot be written or the appender is closed
+     */
+    public synchronized void append(String line) throws IOException {
+        write(line.getBytes(StandardCharsets.UTF_8));
+        write(new byte[] {'\n'});
+        if (unsyncedBytes >= syncBytes) {
+            sync();
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (closed) throw new IOException("Appender closed: " + file);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) drain();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+        unsyncedBytes += bytes.length;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes buffered lines to the file without waiting for them to reach the disk.
+     * @throws IOException If the file cannot be written
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) return;
+        drain();
+    }
+
+    /**
+     * Writes buffered lines and fsyncs the file, if anything was appended since the last sync.
+     * @throws IOException If the file cannot be written or synced
+     */
+    public synchronized void sync() throws IOException {
+        if (closed || unsyncedBytes == 0) return;
+        long start = System.nanoTime();
+        drain();
+        channel.force(false);
+        unsyncedBytes = 0;
+        syncLatency.recordSince(start);
+    }
+
+    private void safeSync() {
+        try {
+            sync();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Failed to sync " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Syncs and closes the file.
+     * @throws IOException If the final sync or close fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        syncTask.cancel(false);
+        try {
+            sync();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the gold price from a local text file, e.g. one kept up to date by a cron job.
+ * The last line that is neither blank nor a {@code #} comment holds the price per gram.
+ */
+public class FileGoldPriceSource implements GoldPriceSource {
+    private final File file;
+
+    /**
+     * @param file text file holding the price
+     */
+    public FileGoldPriceSource(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public double fetchPricePerGram() throws IOException {
+        if (!file.exists()) {
+            throw new IOException("Gold price file not found: " + file);
+        }
+        List<String> lines = FileUtils.readFile(file.getPath());
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            try {
+                return GoldPrice.checkPrice(Double.parseDouble(line));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid gold price in " + file + ": " + line);
+            }
+        }
+        throw new IOException("No gold price in " + file);
+    }
+
+    @Override
+    public String getName() {
+        return "file:" + file.getName();
+    }
+}
@@ -1,42 +1,351 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Provides utility methods for reading from and writing to text files.
  * Handles basic file I/O operations with error logging.
+ * Large files are streamed through NIO channels in 1 MB chunks, appends go
+ * through long-lived {@link FileAppender}s, and copies use {@code transferTo}.
  */
 public class FileUtils {
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+    private static final int CHANNEL_BUFFER_SIZE = 1 << 20;
+
+    private static final Map<String, FileAppender> appenders = new HashMap<>();
+    private static boolean shutdownHookAdded; // one hook closes every shared appender
+
+    /**
+     * Receives the lines of a file one at a time.
+     */
+    public interface LineHandler {
+        /**
+         * @param line the line without its terminator
+         * @param lineNumber 1-based line number
+         * @throws IOException If processing fails; reading stops
+         */
+        void handle(String line, long lineNumber) throws IOException;
+    }
+
     /**
      * Appends content to a text file. Creates the file if it doesn't exist.
+     * The file stays open and is fsynced in groups (see {@link FileAppender}),
+     * so appended lines reach the disk within about a second.
      * @param filename Path/name of the file to modify
      * @param content The text content to append
      */
     public static void appendToFile(String filename, String content) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename, true))) {
-            writer.write(content);
-            writer.newLine();
+        try {
+            appender(filename).append(content);
         } catch (IOException e) {
             System.err.println("Error writing to file: " + e.getMessage());
         }
     }
 
+    /**
+     * Returns the shared appender of a file, opening it on first use.
+     * Shared appenders are synced and closed at shutdown.
+     * @param filename Path/name of the file to append to
+     * @return the open appender
+     * @throws IOException If the file cannot be opened
+     */
+    public static synchronized FileAppender appender(String filename) throws IOException {
+        String key = new File(filename).getAbsolutePath();
+        FileAppender appender = appenders.get(key);
+        if (appender == null) {
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(FileUtils::closeAppenders, "file-appender-shutdown"));
+                shutdownHookAdded = true;
+            }
+            appender = FileAppender.open(new File(key));
+            appenders.put(key, appender);
+        }
+        return appender;
+    }
+
+    private static synchronized void closeAppenders() {
+        for (FileAppender appender : appenders.values()) {
+            try {
+                appender.close();
+            } catch (IOException e) {
+                System.err.println("Error writing to file: " + e.getMessage());
+            }
+        }
+        appenders.clear();
+    }
+
     /**
      * Reads all lines from a text file.
+     * Only suitable for small files; use {@link #forEachLine} to stream large ones.
      * @param filename Path/name of the file to read
      * @return List of strings representing each line in the file.
      *         Returns empty list if file doesn't exist or read fails.
      */
     public static List<String> readFile(String filename) {
         List<String> lines = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lines.add(line);
-            }
+        try {
+            forEachLine(filename, (line, lineNumber) -> lines.add(line));
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
         }
         return lines;
     }
-}
\ No newline at end of file
+
+    /**
+     * Streams a UTF-8 text file line by line, so memory use does not depend on the file size.
+     * @param filename Path/name of the file to read
+     * @param handler receives every line in order
+     * @return number of lines read
+     * @throws IOException If the file cannot be read or the handler fails
+     */
+    public static long forEachLine(String filename, LineHandler handler) throws IOException {
+        try (ChannelLineReader reader = new ChannelLineReader(filename)) {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handler.handle(line, ++lineNumber);
+            }
+            return lineNumber;
+        }
+    }
+
+    /**
+     * Returns the lines of a UTF-8 text file as a lazily read stream.
+     * The stream holds the file open; close it (e.g. with try-with-resources) when done.
+     * @param filename Path/name of the file to read
+     * @return stream of lines without their terminators
+     * @throws IOException If the file cannot be opened; read errors surface as UncheckedIOException
+     */
+    public static Stream<String> lines(String filename) throws IOException {
+        ChannelLineReader reader = new ChannelLineReader(filename);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Copies a file with {@code FileChannel.transferTo}, letting the kernel move the
+     * bytes without copying them through the Java heap. The copy is fsynced.
+     * @param source file to copy
+     * @param target file to create or replace
+     * @return number of bytes copied
+     * @throws IOException If either file cannot be opened or the copy fails
+     */
+    public static long copyFile(File source, File target) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(false);
+            return position;
+        }
+    }
+
+    /**
+     * Opens a UTF-8 text file for streaming reads with a large buffer.
+     * @param filename Path/name of the file to read
+     * @return a reader; close it when done
+     * @throws IOException If the file cannot be opened
+     */
+    public static BufferedReader openReader(String filename) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8),
+                STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a UTF-8 text file for streaming writes with a large buffer, replacing its contents.
+     * @param filename Path/name of the file to write
+     * @return a writer; close it when done
+     * @throws IOException If the file cannot be created
+     */
+    public static BufferedWriter openWriter(String filename) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8),
+                STREAM_BUFFER_SIZE);
+    }
+
+    // ------------------- CSV -------------------
+
+    /**
+     * Appends a CSV field, quoting it if it contains a comma, quote or line break.
+     * @param csv line being built
+     * @param value field value
+     */
+    public static void appendCsvField(StringBuilder csv, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            csv.append(value);
+        } else {
+            csv.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    /**
+     * Splits one CSV line into fields, honouring double-quoted fields.
+     * @param line a CSV line
+     * @return the unquoted fields
+     * @throws IllegalArgumentException If a quoted field is not closed
+     */
+    public static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // ------------------- Channel line reader -------------------
+
+    /**
+     * Reads lines from a file channel in large chunks and decodes them as UTF-8.
+     * Lines end at \n, \r or \r\n, as with BufferedReader.
+     * The byte buffer is a heap buffer on purpose: the channel reads it through the
+     * JDK's cached direct buffer anyway, and the UTF-8 decoder only takes its fast
+     * array path when both buffers are heap buffers.
+     */
+    private static final class ChannelLineReader implements Iterator<String>, Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer bytes = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+        private final CharBuffer chars = CharBuffer.allocate(CHANNEL_BUFFER_SIZE);
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final StringBuilder partial = new StringBuilder(); // line spanning a chunk boundary
+        private boolean endOfFile;
+        private boolean decoded; // every byte has been decoded
+        private boolean skipLineFeed; // last line ended with \r
+        private String next;
+
+        ChannelLineReader(String filename) throws IOException {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            chars.flip();
+        }
+
+        /**
+         * @return the next line, or null at the end of the file
+         */
+        String readLine() throws IOException {
+            while (true) {
+                char[] array = chars.array();
+                int start = chars.position();
+                int limit = chars.limit();
+                if (skipLineFeed && start < limit) {
+                    skipLineFeed = false;
+                    if (array[start] == '\n') start++;
+                }
+                for (int i = start; i < limit; i++) {
+                    char c = array[i];
+                    if (c == '\n' || c == '\r') {
+                        chars.position(i + 1);
+                        skipLineFeed = c == '\r';
+                        if (partial.length() == 0) return new String(array, start, i - start);
+                        String line = partial.append(array, start, i - start).toString();
+                        partial.setLength(0);
+                        return line;
+                    }
+                }
+                partial.append(array, start, limit - start);
+                chars.position(limit);
+                if (!fill()) {
+                    if (partial.length() == 0) return null;
+                    String line = partial.toString();
+                    partial.setLength(0);
+                    return line;
+                }
+            }
+        }
+
+        /**
+         * Decodes the next chunk of the file into the char buffer.
+         * @return false at the end of the file
+         */
+        private boolean fill() throws IOException {
+            chars.clear();
+            while (chars.position() == 0 && !decoded) {
+                if (!endOfFile && channel.read(bytes) < 0) endOfFile = true;
+                bytes.flip();
+                CoderResult result = decoder.decode(bytes, chars, endOfFile);
+                bytes.compact();
+                if (endOfFile && result.isUnderflow()) {
+                    decoder.flush(chars);
+                    decoded = true;
+                }
+            }
+            chars.flip();
+            return chars.hasRemaining();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String line = next;
+            next = null;
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
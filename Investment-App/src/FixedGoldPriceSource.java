@@ -0,0 +1,33 @@
+/**
+ * Local stub price source that always returns a configured price.
+ * Used when no price file is present and in tests or benchmarks that need a known price.
+ */
+public class FixedGoldPriceSource implements GoldPriceSource {
+    private volatile double pricePerGram;
+
+    /**
+     * @param pricePerGram price of one gram of gold to report
+     */
+    public FixedGoldPriceSource(double pricePerGram) {
+        this.pricePerGram = GoldPrice.checkPrice(pricePerGram);
+    }
+
+    /**
+     * Changes the price reported by the next fetch.
+     * @param pricePerGram price of one gram of gold
+     * @throws IllegalArgumentException If the price is not a positive number
+     */
+    public void setPricePerGram(double pricePerGram) {
+        this.pricePerGram = GoldPrice.checkPrice(pricePerGram);
+    }
+
+    @Override
+    public double fetchPricePerGram() {
+        return pricePerGram;
+    }
+
+    @Override
+    public String getName() {
+        return "fixed";
+    }
+}
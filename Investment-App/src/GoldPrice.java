@@ -0,0 +1,69 @@
+/**
+ * Immutable snapshot of the gold price and the Nisab threshold derived from it.
+ * A new snapshot is published whenever the price is refreshed; readers hold on to one
+ * snapshot for as long as they need a consistent threshold (e.g. a whole Zakat run).
+ */
+public final class GoldPrice {
+    private final double pricePerGram;
+    private final double nisabThreshold;
+    private final long version;
+    private final long fetchedAt;
+    private final String source;
+
+    /**
+     * @param pricePerGram price of one gram of gold
+     * @param version increases by one every time the price changes
+     * @param fetchedAt time the price was obtained, in epoch milliseconds
+     * @param source name of the source that supplied the price
+     */
+    GoldPrice(double pricePerGram, long version, long fetchedAt, String source) {
+        this.pricePerGram = pricePerGram;
+        this.nisabThreshold = ZakatService.NISAB_GOLD_GRAMS * pricePerGram;
+        this.version = version;
+        this.fetchedAt = fetchedAt;
+        this.source = source;
+    }
+
+    /**
+     * @param pricePerGram price to validate
+     * @return the price, if it is a positive finite number
+     * @throws IllegalArgumentException If it is not
+     */
+    static double checkPrice(double pricePerGram) {
+        if (!(pricePerGram > 0) || Double.isInfinite(pricePerGram)) {
+            throw new IllegalArgumentException("Gold price must be a positive number: " + pricePerGram);
+        }
+        return pricePerGram;
+    }
+
+    public double getPricePerGram() { return pricePerGram; }
+
+    /**
+     * @return Nisab threshold (Nisab gold weight times this price)
+     */
+    public double getNisabThreshold() { return nisabThreshold; }
+
+    public long getVersion() { return version; }
+
+    public long getFetchedAt() { return fetchedAt; }
+
+    public String getSource() { return source; }
+
+    /**
+     * @param now current time in epoch milliseconds
+     * @param ttlMillis how long a price stays fresh
+     * @return true if the price is older than the TTL
+     */
+    public boolean isStale(long now, long ttlMillis) {
+        return now - fetchedAt > ttlMillis;
+    }
+
+    /**
+     * Provides a formatted string representation of the snapshot
+     * @return Format: "GoldPrice{v3 $5400.00/g, nisab $459000.00, source=fixed}"
+     */
+    @Override
+    public String toString() {
+        return String.format("GoldPrice{v%d $%.2f/g, nisab $%.2f, source=%s}", version, pricePerGram, nisabThreshold, source);
+    }
+}
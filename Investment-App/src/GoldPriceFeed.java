@@ -0,0 +1,192 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the current gold price as an atomically published, immutable {@link GoldPrice}.
+ * A background thread refreshes the price from a pluggable {@link GoldPriceSource}
+ * every TTL period, and a read of a stale snapshot schedules an early refresh.
+ * Reads never block: they always return the latest published snapshot, and if the
+ * source fails the previous price stays in effect. Price changes are kept in a
+ * bounded history.
+ */
+public class GoldPriceFeed implements Closeable {
+    private static final int HISTORY_SIZE = 1_024;
+
+    private final AtomicReference<GoldPrice> current;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private final Deque<GoldPrice> history = new ArrayDeque<>();
+    private final ScheduledExecutorService refresher;
+    private final long ttlMillis;
+    private volatile GoldPriceSource source;
+
+    private final Metrics.Histogram fetchLatency = Metrics.histogram("gold.fetch");
+    private final Metrics.Counter fetchErrors = Metrics.counter("gold.fetch_errors");
+
+    private GoldPriceFeed(GoldPriceSource source, double initialPricePerGram, long ttlMillis) {
+        this.source = source;
+        this.ttlMillis = ttlMillis;
+        GoldPrice initial = new GoldPrice(GoldPrice.checkPrice(initialPricePerGram), 1, 0, "default");
+        this.current = new AtomicReference<>(initial);
+        history.add(initial);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gold-price-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a feed, publishes the initial price and starts background refreshes.
+     * @param source where prices are fetched from
+     * @param initialPricePerGram price in effect until the first successful fetch
+     * @param ttlMillis how long a fetched price stays fresh
+     * @return the running feed
+     */
+    public static GoldPriceFeed start(GoldPriceSource source, double initialPricePerGram, long ttlMillis) {
+        GoldPriceFeed feed = new GoldPriceFeed(source, initialPricePerGram, ttlMillis);
+        feed.refresher.scheduleWithFixedDelay(feed::safeRefresh, 0, ttlMillis, TimeUnit.MILLISECONDS);
+        Metrics.gauge("gold.price_per_gram", () -> feed.current.get().getPricePerGram());
+        Metrics.gauge("gold.version", () -> feed.current.get().getVersion());
+        return feed;
+    }
+
+    /**
+     * Returns the latest price without waiting. If it is older than the TTL,
+     * a refresh is scheduled in the background.
+     * @return the current price snapshot
+     */
+    public GoldPrice current() {
+        GoldPrice price = current.get();
+        if (price.isStale(System.currentTimeMillis(), ttlMillis) && !refresher.isShutdown()
+                && refreshPending.compareAndSet(false, true)) {
+            refresher.execute(this::safeRefresh);
+        }
+        return price;
+    }
+
+    /**
+     * Fetches a price from the source now and publishes it. If the source is replaced
+     * while the fetch runs, the fetched price is dropped and the current one returned.
+     * @return the newly published snapshot
+     * @throws IOException If the source cannot supply a valid price; the old price stays in effect
+     */
+    public GoldPrice refresh() throws IOException {
+        GoldPriceSource from = source;
+        double price = fetch(from);
+        synchronized (this) {
+            if (from != source) return current.get();
+            return publish(price, from.getName());
+        }
+    }
+
+    /**
+     * Fetches a price from another source and, if that succeeds, keeps using that source.
+     * @param newSource where prices are fetched from from now on
+     * @return the price published from the new source
+     * @throws IOException If the new source cannot supply a valid price; the old source and price stay in effect
+     */
+    public GoldPrice switchSource(GoldPriceSource newSource) throws IOException {
+        double price = fetch(newSource);
+        synchronized (this) {
+            source = newSource;
+            return publish(price, newSource.getName());
+        }
+    }
+
+    /**
+     * Publishes a price entered by hand (e.g., by an administrator) and keeps it in effect
+     * by switching to a fixed source that reports the same price.
+     * @param pricePerGram price of one gram of gold
+     * @return the newly published snapshot
+     * @throws IllegalArgumentException If the price is not a positive number
+     */
+    public synchronized GoldPrice fix(double pricePerGram) {
+        source = new FixedGoldPriceSource(pricePerGram);
+        return publish(pricePerGram, "manual");
+    }
+
+    private double fetch(GoldPriceSource from) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return GoldPrice.checkPrice(from.fetchPricePerGram());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            fetchLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Publishes a price, e.g. one entered by an administrator.
+     * The version only increases when the price actually changes.
+     * @param pricePerGram price of one gram of gold
+     * @param sourceName where the price came from
+     * @return the newly published snapshot
+     * @throws IllegalArgumentException If the price is not a positive number
+     */
+    public GoldPrice publish(double pricePerGram, String sourceName) {
+        GoldPrice.checkPrice(pricePerGram);
+        long now = System.currentTimeMillis();
+        GoldPrice previous;
+        GoldPrice next;
+        do {
+            previous = current.get();
+            long version = previous.getPricePerGram() == pricePerGram ? previous.getVersion() : previous.getVersion() + 1;
+            next = new GoldPrice(pricePerGram, version, now, sourceName);
+        } while (!current.compareAndSet(previous, next));
+        if (next.getVersion() != previous.getVersion()) {
+            synchronized (history) {
+                history.addLast(next);
+                if (history.size() > HISTORY_SIZE) {
+                    history.removeFirst();
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return price changes in the order they were published, oldest first
+     */
+    public List<GoldPrice> getHistory() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * Stops the background refreshes, waiting for a fetch in progress.
+     * The last published price can still be read.
+     * @throws IOException If interrupted while waiting
+     */
+    @Override
+    public void close() throws IOException {
+        refresher.shutdown();
+        try {
+            refresher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the gold price refresh");
+        }
+    }
+
+    private void safeRefresh() {
+        refreshPending.set(false);
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            fetchErrors.increment();
+            System.err.println("[ERROR] Failed to refresh gold price: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+/**
+ * Supplies the current market price of gold.
+ * Implementations may be slow or fail; {@link GoldPriceFeed} only calls them from
+ * its background refresh thread, so callers of the feed never wait on a fetch.
+ */
+public interface GoldPriceSource {
+
+    /**
+     * Fetches the current gold price.
+     * @return price of one gram of gold
+     * @throws IOException If the price cannot be obtained
+     */
+    double fetchPricePerGram() throws IOException;
+
+    /**
+     * @return short name of the source, recorded with every price it supplies
+     */
+    String getName();
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line-based request/response server in front of {@link InvestmentService}.
+ * Listens on a local port and handles every connection on its own virtual thread,
+ * so thousands of clients can be served from one process.
+ *
+ * <p>Each request is one line of tab-separated fields; each response starts with
+ * {@code OK} or {@code ERR} followed by tab-separated values:</p>
+ * <pre>
+ * SIGNUP    username password email    -> OK
+ * LOGIN     username password          -> OK token
+ * LOGOUT    token                      -> OK
+ * ADD       token name value           -> OK
+ * HOLD      token name symbol quantity -> OK value      (valued at the symbol's market price)
+ * EDIT      token number value         -> OK            (number is 1-based)
+ * REMOVE    token number               -> OK
+ * PORTFOLIO token                      -> OK count total, then count lines: number name value
+ * ZAKAT     token                      -> OK total nisab zakat applicable hawlComplete
+ * HISTORY   token days                 -> OK count, then count lines: epochMillis totalValue
+ * METRICS                              -> OK json          (latencies in nanoseconds)
+ * PING                                 -> OK
+ * QUIT                                 -> OK, then the connection is closed
+ * </pre>
+ *
+ * <p>EDIT and REMOVE numbers refer to the session's last PORTFOLIO listing, so they
+ * still pick the intended asset if another session changed the portfolio since.</p>
+ */
+public class InvestmentServer implements Closeable {
+    static final int DEFAULT_PORT = 7070;
+    private static final String METRICS_LOG = "metrics.log";
+    private static final long METRICS_DUMP_INTERVAL_MS = 60_000;
+    private static final Metrics.Histogram requestLatency = Metrics.histogram("server.request");
+    private static final Metrics.Counter requestErrors = Metrics.counter("server.errors");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Binds the server to a port on the loopback interface.
+     * @param port port to listen on (0 picks a free port)
+     * @throws IOException If the port cannot be bound
+     */
+    public InvestmentServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     * A metrics snapshot is appended to metrics.log every minute while serving,
+     * and market prices are re-read from prices.csv whenever it changes.
+     */
+    public void serve() {
+        System.out.println("InvestWise server listening on port " + getPort());
+        Metrics.startPeriodicDump(METRICS_LOG, METRICS_DUMP_INTERVAL_MS);
+        ValuationEngine.startPriceFeed();
+        BankSync.start();
+        acceptConnections();
+    }
+
+    /**
+     * Accepts connections until the server is closed, without the background services
+     * {@link #serve} starts.
+     */
+    void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.submit(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and waits for open connections to finish.
+     * @throws IOException If the server socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.close();
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] request = line.split("\t", -1);
+                if (request[0].equalsIgnoreCase("QUIT")) {
+                    out.println("OK");
+                    break;
+                }
+                long start = System.nanoTime();
+                String response = process(request);
+                requestLatency.recordSince(start);
+                if (response.startsWith("ERR")) {
+                    requestErrors.increment();
+                }
+                out.print(response);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executes one request.
+     * @param request command name followed by its arguments
+     * @return the full response text, ending with a newline
+     */
+    static String process(String[] request) {
+        try {
+            switch (request[0].toUpperCase()) {
+                case "PING":
+                    return "OK\n";
+                case "METRICS":
+                    return "OK\t" + Metrics.toJson() + "\n";
+                case "SIGNUP":
+                    requireArgs(request, 3);
+                    InvestmentService.signUp(request[1], request[2], request[3]);
+                    return "OK\n";
+                case "LOGIN":
+                    requireArgs(request, 2);
+                    return "OK\t" + InvestmentService.login(request[1], request[2]) + "\n";
+                case "LOGOUT":
+                    requireArgs(request, 1);
+                    InvestmentService.logout(request[1]);
+                    return "OK\n";
+                case "ADD":
+                    requireArgs(request, 3);
+                    InvestmentService.addAsset(request[1], request[2], Double.parseDouble(request[3]));
+                    return "OK\n";
+                case "HOLD":
+                    requireArgs(request, 4);
+                    return "OK\t" + InvestmentService.addHolding(request[1], request[2], request[3],
+                            Double.parseDouble(request[4])) + "\n";
+                case "EDIT":
+                    requireArgs(request, 3);
+                    InvestmentService.editAsset(request[1], Integer.parseInt(request[2]) - 1, Double.parseDouble(request[3]));
+                    return "OK\n";
+                case "REMOVE":
+                    requireArgs(request, 2);
+                    InvestmentService.removeAsset(request[1], Integer.parseInt(request[2]) - 1);
+                    return "OK\n";
+                case "PORTFOLIO":
+                    requireArgs(request, 1);
+                    return portfolio(request[1]);
+                case "ZAKAT":
+                    requireArgs(request, 1);
+                    return zakat(request[1]);
+                case "HISTORY":
+                    requireArgs(request, 2);
+                    return history(request[1], Integer.parseInt(request[2]));
+                default:
+                    return "ERR\tUnknown command: " + request[0] + "\n";
+            }
+        } catch (NumberFormatException e) {
+            return "ERR\tInvalid number: " + e.getMessage() + "\n";
+        } catch (Exception e) {
+            return "ERR\t" + e.getMessage() + "\n";
+        }
+    }
+
+    private static String portfolio(String token) throws IOException, ClassNotFoundException {
+        List<Asset> assets = InvestmentService.getPortfolio(token);
+        StringBuilder response = new StringBuilder();
+        double total = 0;
+        for (int i = 0; i < assets.size(); i++) {
+            Asset asset = assets.get(i);
+            total += asset.getValue();
+            response.append(i + 1).append('\t').append(asset.getName()).append('\t').append(asset.getValue()).append('\n');
+        }
+        return "OK\t" + assets.size() + "\t" + total + "\n" + response;
+    }
+
+    private static String zakat(String token) throws IOException, ClassNotFoundException {
+        User user = InvestmentService.getUser(token);
+        double totalValue = PortfolioService.getTotalPortfolioValue(user);
+        double nisabThreshold = ZakatService.getNisabThreshold();
+        return "OK\t" + totalValue + "\t" + nisabThreshold + "\t" + ZakatService.calculateZakat(totalValue, nisabThreshold)
+                + "\t" + ZakatService.isZakatApplicable(totalValue, nisabThreshold)
+                + "\t" + ZakatService.isHawlComplete(user.getUsername(), nisabThreshold) + "\n";
+    }
+
+    private static String history(String token, int days) throws IOException, ClassNotFoundException {
+        long now = System.currentTimeMillis();
+        List<TimeSeriesStore.Point> points = PortfolioService.getValueHistory(InvestmentService.getUser(token),
+                now - TimeUnit.DAYS.toMillis(days), now + 1);
+        StringBuilder response = new StringBuilder("OK\t").append(points.size()).append('\n');
+        for (TimeSeriesStore.Point point : points) {
+            response.append(point.getTime()).append('\t').append(point.getValue()).append('\n');
+        }
+        return response.toString();
+    }
+
+    private static void requireArgs(String[] request, int count) {
+        if (request.length < count + 1) {
+            throw new IllegalArgumentException(request[0].toUpperCase() + " expects " + count + " argument(s)");
+        }
+    }
+}
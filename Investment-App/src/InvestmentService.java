@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Application engine shared by every client (the console and the network server).
+ * Each operation works on a session token issued by {@link #login}, so many users
+ * can be served concurrently. Validation failures are reported as
+ * {@link IllegalArgumentException}s whose message can be shown to the user as-is.
+ */
+public class InvestmentService {
+    private static final Metrics.Histogram loginLatency = Metrics.histogram("session.login");
+
+    /**
+     * Registers a new user.
+     * @param username desired username
+     * @param password password meeting {@link UserStorage#isValidPassword} rules
+     * @param email the user's email address
+     * @throws IllegalArgumentException If the username or email is taken or the password is too weak
+     * @throws IOException If the user cannot be stored
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void signUp(String username, String password, String email)
+        throws IOException, ClassNotFoundException {
+        if (username == null || username.isEmpty()) {
+            throw new IllegalArgumentException("Username must not be empty.");
+        }
+        if (UserStorage.userExists(username)) {
+            throw new IllegalArgumentException("Username already exists.");
+        }
+        if (!UserStorage.isValidPassword(password)) {
+            throw new IllegalArgumentException("Password must contain at least one uppercase letter, one number or symbol, and be 6+ characters!");
+        }
+        if (UserStorage.emailExists(email)) {
+            throw new IllegalArgumentException("Email already registered.");
+        }
+        UserStorage.saveUser(new User(username, PasswordHasher.hash(password), email));
+    }
+
+    /**
+     * Authenticates a user and starts a session.
+     * @param username the username
+     * @param password the password
+     * @return the new session token
+     * @throws IllegalArgumentException If the account is locked or the credentials are wrong
+     * @throws IOException If the user cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static String login(String username, String password) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        try {
+            if (SessionManager.isLocked(username)) {
+                throw new IllegalArgumentException("Your account is temporarily locked due to multiple failed attempts!");
+            }
+            if (!UserStorage.isValidLogin(username, password)) {
+                SessionManager.recordFailure(username);
+                throw new IllegalArgumentException("Invalid credentials!");
+            }
+            SessionManager.resetAttempts(username);
+            return SessionManager.createSession(UserStorage.findUser(username));
+        } finally {
+            loginLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Ends a session. Its changes have been stored as they were made.
+     * @param token session token
+     */
+    public static void logout(String token) {
+        SessionManager.logout(token);
+    }
+
+    /**
+     * @param token session token
+     * @return the current instance of the session's user
+     * @throws IllegalArgumentException If the session does not exist or has expired
+     * @throws IOException If the user cannot be read or no longer exists
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static User getUser(String token) throws IOException, ClassNotFoundException {
+        return getSession(token).getUser();
+    }
+
+    private static Session getSession(String token) {
+        Session session = SessionManager.getSession(token);
+        if (session == null) {
+            throw new IllegalArgumentException("No active session!");
+        }
+        return session;
+    }
+
+    /**
+     * Adds an asset to the session user's portfolio.
+     * @param token session token
+     * @param name asset name
+     * @param value asset value
+     * @throws IOException If the change cannot be persisted
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void addAsset(String token, String name, double value) throws IOException, ClassNotFoundException {
+        UserStorage.addAsset(getUser(token), new Asset(name, value));
+    }
+
+    /**
+     * Adds a holding of a market symbol, valued at the symbol's latest price.
+     * Its value follows the market from then on (see {@link ValuationEngine}).
+     * @param token session token
+     * @param name asset name
+     * @param symbol market symbol, e.g. "AAPL"
+     * @param quantity number of units held
+     * @return the value the holding was added at
+     * @throws IllegalArgumentException If there is no price for the symbol or the quantity is not positive
+     * @throws IOException If the change cannot be persisted
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static double addHolding(String token, String name, String symbol, double quantity)
+        throws IOException, ClassNotFoundException {
+        User user = getUser(token);
+        Asset asset = newHolding(name, symbol, quantity);
+        UserStorage.addAsset(user, asset);
+        return asset.getValue();
+    }
+
+    /**
+     * Creates a holding of a market symbol valued at the symbol's latest price.
+     * @param name asset name
+     * @param symbol market symbol, e.g. "AAPL"
+     * @param quantity number of units held
+     * @return the new asset
+     * @throws IllegalArgumentException If there is no price for the symbol or the quantity is not positive
+     */
+    public static Asset newHolding(String name, String symbol, double quantity) {
+        String canonical = ValuationEngine.normalize(symbol);
+        double price = ValuationEngine.getPrice(canonical);
+        if (Double.isNaN(price)) {
+            throw new IllegalArgumentException("No market price for symbol " + canonical + ".");
+        }
+        if (!(quantity > 0)) {
+            throw new IllegalArgumentException("Quantity must be positive.");
+        }
+        return new Asset(name, canonical, quantity, quantity * price);
+    }
+
+    /**
+     * Changes the value of an asset in the session user's portfolio.
+     * @param token session token
+     * @param index zero-based position of the asset in the portfolio last shown to this session
+     * @param newValue new asset value
+     * @throws IllegalArgumentException If the index is out of range
+     * @throws IOException If the change cannot be persisted or the asset was changed by another session
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void editAsset(String token, int index, double newValue) throws IOException, ClassNotFoundException {
+        Session session = getSession(token);
+        Session.Listing listing = listing(session);
+        checkIndex(index, listing.assets.size());
+        Asset seen = listing.assets.get(index);
+        Asset edited = seen.withValue(newValue);
+        long version = UserStorage.updateAsset(session.getUser(), listing.version, index, seen, edited);
+        List<Asset> shown = new ArrayList<>(listing.assets);
+        shown.set(index, edited);
+        session.setListing(new Session.Listing(nextListingVersion(listing, version), shown));
+    }
+
+    /**
+     * Removes an asset from the session user's portfolio.
+     * @param token session token
+     * @param index zero-based position of the asset in the portfolio last shown to this session
+     * @throws IllegalArgumentException If the index is out of range
+     * @throws IOException If the change cannot be persisted or the asset was changed by another session
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void removeAsset(String token, int index) throws IOException, ClassNotFoundException {
+        Session session = getSession(token);
+        Session.Listing listing = listing(session);
+        checkIndex(index, listing.assets.size());
+        long version = UserStorage.removeAsset(session.getUser(), listing.version, index, listing.assets.get(index));
+        List<Asset> shown = new ArrayList<>(listing.assets);
+        shown.remove(index);
+        session.setListing(new Session.Listing(nextListingVersion(listing, version), shown));
+    }
+
+    /**
+     * Returns the session user's assets and remembers them as the listing that
+     * later positions refer to.
+     * @param token session token
+     * @return the session user's assets
+     * @throws IOException If the user cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static List<Asset> getPortfolio(String token) throws IOException, ClassNotFoundException {
+        Session session = getSession(token);
+        Session.Listing listing = snapshot(session.getUser());
+        session.setListing(listing);
+        return listing.assets;
+    }
+
+    /**
+     * @return the portfolio last shown to the session, or the current one if none was shown
+     */
+    private static Session.Listing listing(Session session) throws IOException, ClassNotFoundException {
+        Session.Listing listing = session.getListing();
+        return listing != null ? listing : snapshot(session.getUser());
+    }
+
+    private static Session.Listing snapshot(User user) {
+        synchronized (user) {
+            return new Session.Listing(user.getVersion(), user.getAssets());
+        }
+    }
+
+    /**
+     * After the session changed its own listing: the listing matches the stored portfolio at
+     * the new version only if no other change came in between; otherwise keep the old version
+     * so the next change is matched by asset again.
+     */
+    private static long nextListingVersion(Session.Listing listing, long version) {
+        return version == listing.version + 1 ? version : listing.version;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("Invalid selection.");
+        }
+    }
+}
@@ -0,0 +1,805 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Event-sourced ledger of every change to every portfolio: an asset was added,
+ * revalued (replaced by a copy with a new value) or removed. Unlike the
+ * {@link AssetLog}, which is folded into the user store and discarded, the ledger
+ * keeps every event, so it is the audit trail of how each portfolio came to be.
+ *
+ * <p>Events are appended to segment files in {@code ledger/} named after their first
+ * event's number; a segment is closed once it passes {@link #SEGMENT_BYTES}. Asset
+ * mutations enter the ledger as they are appended to the asset log (in the log's order),
+ * and revaluations by the {@link ValuationEngine} as they are made. Appends are not
+ * fsync'ed one by one: the asset log makes the ledger durable before it discards
+ * records, and on startup any asset log records the ledger is missing are appended.
+ * Revaluations have no asset log record to fall back on, so the user caches flush the
+ * ledger before they write any user (see {@link UserCache#setWriteAhead}).</p>
+ *
+ * <p>From the events the ledger keeps in-memory projections: each user's holdings,
+ * their total value and the Zakat-eligible balance over all users. A background thread
+ * periodically writes a snapshot of the projections, built by replaying the events since
+ * the previous snapshot, so startup only loads the latest snapshot and the events after it.
+ * A new ledger starts from a snapshot of the portfolios in the user store. Opening the
+ * ledger only reads the events after the latest snapshot, to find where to append; the
+ * projections are loaded by a background thread, and queries made before it finishes
+ * wait for it.</p>
+ *
+ * <p>Segment layout: a 16 byte header (magic, version, first event number) followed by
+ * records of the form (payload length, CRC32, payload). The payload is (type, event
+ * number, asset log sequence or 0, time, username, position, asset), with numbers as
+ * varints and the asset as name, value, and symbol and quantity when it has a symbol.
+ * A snapshot is (magic, version, last event number, last asset log sequence, holdings)
+ * followed by a CRC32 of everything before it, so a damaged snapshot is skipped in
+ * favour of an older one and a longer replay.</p>
+ */
+public class Ledger implements AssetLog.Listener, Closeable {
+    static final byte ASSET_ADDED = 1;
+    static final byte ASSET_REVALUED = 2;
+    static final byte ASSET_REMOVED = 3;
+
+    static final String DIRECTORY = "ledger";
+    static final long SEGMENT_BYTES = 8L << 20;
+    private static final long SNAPSHOT_INTERVAL_MS = 10 * 60_000;
+    private static final long SNAPSHOT_MIN_EVENTS = 10_000;
+    private static final int SNAPSHOTS_KEPT = 2;
+
+    private static final int SEGMENT_MAGIC = 0x49574C47; // "IWLG"
+    private static final int SNAPSHOT_MAGIC = 0x49574C53; // "IWLS"
+    private static final int VERSION = 1;
+    private static final int SNAPSHOT_VERSION = 2; // 1 had no checksum
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final File directory;
+    private final Projection projection;
+    private FileChannel segment;
+    private long nextSequence;
+    private long lastLogSequence; // highest asset log sequence in the ledger
+    private volatile long snapshotSequence;
+    private boolean loaded; // projections reflect every appended event
+    private ScheduledExecutorService snapshotter;
+    private boolean closed;
+
+    private static final Metrics.Counter eventsAppended = Metrics.counter("ledger.events");
+    private static final Metrics.Counter skippedEvents = Metrics.counter("ledger.skipped_events");
+    private static final Metrics.Histogram snapshotLatency = Metrics.histogram("ledger.snapshot");
+    private static final Metrics.Histogram openLatency = Metrics.histogram("ledger.open");
+    private static final Metrics.Histogram loadLatency = Metrics.histogram("ledger.load");
+
+    /**
+     * One change to a portfolio.
+     */
+    public static final class Event {
+        final byte type;
+        final long sequence;
+        final long logSequence;
+        final long time;
+        final String username;
+        final int index;
+        final Asset asset;
+
+        Event(byte type, long sequence, long logSequence, long time, String username, int index, Asset asset) {
+            this.type = type;
+            this.sequence = sequence;
+            this.logSequence = logSequence;
+            this.time = time;
+            this.username = username;
+            this.index = index;
+            this.asset = asset;
+        }
+
+        public String getUsername() { return username; }
+
+        /**
+         * @return time of the change in epoch milliseconds
+         */
+        public long getTime() { return time; }
+
+        @Override
+        public String toString() {
+            String what = type == ASSET_ADDED ? "AssetAdded" : type == ASSET_REVALUED ? "AssetRevalued" : "AssetRemoved";
+            return "#" + sequence + " " + Instant.ofEpochMilli(time) + " " + what + " " + username
+                    + (type == ASSET_ADDED ? "" : " at " + (index + 1)) + (asset == null ? "" : ": " + asset);
+        }
+    }
+
+    /**
+     * Portfolios as the events describe them: each user's assets in order, with running totals.
+     * Not thread-safe; the ledger guards its live projection with its own lock.
+     */
+    static final class Projection {
+        final Map<String, List<Asset>> holdings = new HashMap<>();
+        final Map<String, Double> totals = new HashMap<>();
+        long sequence;
+        long logSequence;
+
+        void apply(Event event) {
+            List<Asset> assets = holdings.get(event.username);
+            if (event.type == ASSET_ADDED) {
+                if (assets == null) {
+                    assets = new ArrayList<>(4);
+                    holdings.put(event.username, assets);
+                }
+                assets.add(event.asset);
+                totals.merge(event.username, event.asset.getValue(), Double::sum);
+            } else if (assets == null || event.index < 0 || event.index >= assets.size()) {
+                // A position outside the portfolio: User ignores such a change too, so skip it
+                skippedEvents.increment();
+            } else if (event.type == ASSET_REVALUED) {
+                Asset old = assets.set(event.index, event.asset);
+                totals.merge(event.username, event.asset.getValue() - old.getValue(), Double::sum);
+            } else {
+                Asset old = assets.remove(event.index);
+                totals.merge(event.username, -old.getValue(), Double::sum);
+            }
+            sequence = event.sequence;
+            if (event.logSequence > 0) logSequence = event.logSequence;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(sequence);
+            out.writeLong(logSequence);
+            out.writeInt(holdings.size());
+            for (Map.Entry<String, List<Asset>> entry : holdings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Asset asset : entry.getValue()) {
+                    writeAsset(out, asset);
+                }
+            }
+        }
+
+        void read(DataInputStream in) throws IOException {
+            sequence = in.readLong();
+            logSequence = in.readLong();
+            int users = in.readInt();
+            for (int u = 0; u < users; u++) {
+                String username = in.readUTF();
+                int count = in.readInt();
+                List<Asset> assets = new ArrayList<>(count);
+                double total = 0;
+                for (int i = 0; i < count; i++) {
+                    Asset asset = readAsset(in);
+                    assets.add(asset);
+                    total += asset.getValue();
+                }
+                holdings.put(username, assets);
+                totals.put(username, total);
+            }
+        }
+
+        void seed(String username, Asset asset) {
+            holdings.computeIfAbsent(username, u -> new ArrayList<>(4)).add(asset);
+            totals.merge(username, asset.getValue(), Double::sum);
+        }
+    }
+
+    private Ledger(File directory) {
+        this.directory = directory;
+        this.projection = new Projection();
+    }
+
+    /**
+     * Opens the ledger: finds the end of the events after the latest snapshot, appends
+     * the asset log records the ledger is missing and starts loading the projections in
+     * the background. A new ledger is first seeded with the portfolios in the store.
+     * Starts periodic snapshots.
+     * @param directory ledger directory
+     * @param store user store, flushed and read to seed a new ledger
+     * @param log asset log, whose records after the ledger's last one are appended
+     * @return the open ledger
+     * @throws IOException If the ledger cannot be read or written
+     */
+    public static Ledger open(File directory, ShardedUserStore store, AssetLog log) throws IOException {
+        long start = System.nanoTime();
+        Ledger ledger = new Ledger(directory);
+        boolean fresh = snapshotSequences(directory).length == 0 && segmentBases(directory).length == 0;
+        if (fresh) {
+            Files.createDirectories(directory.toPath());
+            ledger.seed(store, log.lastSequence());
+            ledger.loaded = true;
+        }
+        ledger.openSegments();
+        for (AssetLog.Record record : log.readAll()) {
+            if (record.sequence > ledger.lastLogSequence) {
+                ledger.appended(record);
+            }
+        }
+        if (!fresh) ledger.startLoading();
+        ledger.startSnapshots();
+        openLatency.recordSince(start);
+        return ledger;
+    }
+
+    // ------------------- Appending -------------------
+
+    /**
+     * Appends the event for an asset log record. Called by the asset log, in sequence order.
+     * @param record the record just appended to the asset log
+     * @throws IOException If the event cannot be written
+     */
+    @Override
+    public void appended(AssetLog.Record record) throws IOException {
+        byte type = record.op == AssetLog.OP_ADD ? ASSET_ADDED
+                : record.op == AssetLog.OP_UPDATE ? ASSET_REVALUED : ASSET_REMOVED;
+        append(type, record.sequence, record.username, record.index, record.asset);
+    }
+
+    /**
+     * Appends a revaluation that does not go through the asset log, e.g. marking an
+     * asset to market. Callers hold the user's lock, so the user's events stay in order.
+     * @param username owner of the asset
+     * @param index position of the asset in the portfolio
+     * @param asset revalued asset
+     * @throws IOException If the event cannot be written
+     */
+    public void revalued(String username, int index, Asset asset) throws IOException {
+        append(ASSET_REVALUED, 0, username, index, asset);
+    }
+
+    private synchronized void append(byte type, long logSequence, String username, int index, Asset asset)
+        throws IOException {
+        if (closed) {
+            throw new IOException("Ledger is closed: " + directory);
+        }
+        Event event = new Event(type, nextSequence, logSequence, System.currentTimeMillis(), username, index, asset);
+        if (segment == null || segment.size() >= SEGMENT_BYTES) {
+            rollSegment();
+        }
+        byte[] payload = encode(event);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        PagedUserStore.writeFully(segment, record, segment.size());
+        nextSequence++;
+        if (logSequence > 0) lastLogSequence = logSequence;
+        if (loaded) projection.apply(event);
+        eventsAppended.increment();
+    }
+
+    /**
+     * Forces appended events to disk.
+     * @throws IOException If the sync fails
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (segment != null) segment.force(false);
+    }
+
+    /**
+     * Stops periodic snapshots, waits for the projections to load, and forces and closes
+     * the current segment.
+     * @throws IOException If the final sync fails
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = snapshotter;
+        }
+        if (stopping != null) {
+            stopping.shutdown();
+            try {
+                stopping.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping ledger snapshots");
+            }
+        }
+        synchronized (this) {
+            if (closed) return;
+            awaitLoad();
+            closed = true;
+            if (segment != null) {
+                try {
+                    segment.force(false);
+                } finally {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        File file = segmentFile(nextSequence);
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).putInt(VERSION).putLong(nextSequence).flip();
+        PagedUserStore.writeFully(segment, header, 0);
+        segment.force(true);
+    }
+
+    // ------------------- Projections -------------------
+
+    /**
+     * @param username a user
+     * @return the user's assets, as the ledger describes them
+     */
+    public synchronized List<Asset> getHoldings(String username) {
+        awaitLoad();
+        List<Asset> assets = projection.holdings.get(username);
+        return assets == null ? Collections.emptyList() : new ArrayList<>(assets);
+    }
+
+    /**
+     * @param username a user
+     * @return value of the user's holdings by asset name
+     */
+    public synchronized Map<String, Double> getHoldingsByName(String username) {
+        awaitLoad();
+        Map<String, Double> byName = new LinkedHashMap<>();
+        for (Asset asset : projection.holdings.getOrDefault(username, Collections.emptyList())) {
+            byName.merge(asset.getName(), asset.getValue(), Double::sum);
+        }
+        return byName;
+    }
+
+    /**
+     * @param username a user
+     * @return total value of the user's holdings
+     */
+    public synchronized double getTotalValue(String username) {
+        awaitLoad();
+        return projection.totals.getOrDefault(username, 0.0);
+    }
+
+    /**
+     * @param username a user
+     * @param nisabThreshold Nisab threshold to compare against
+     * @return the user's total value if it meets the Nisab, otherwise 0
+     */
+    public synchronized double getZakatEligibleBalance(String username, double nisabThreshold) {
+        double total = getTotalValue(username);
+        return ZakatService.isZakatApplicable(total, nisabThreshold) ? total : 0;
+    }
+
+    /**
+     * @param nisabThreshold Nisab threshold to compare against
+     * @return sum of the total values of all users whose total meets the Nisab
+     */
+    public synchronized double getZakatEligibleBalance(double nisabThreshold) {
+        awaitLoad();
+        double eligible = 0;
+        for (double total : projection.totals.values()) {
+            if (ZakatService.isZakatApplicable(total, nisabThreshold)) eligible += total;
+        }
+        return eligible;
+    }
+
+    /**
+     * @return true once the projections reflect every appended event
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return number of the last event appended
+     */
+    public synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    // ------------------- Reading -------------------
+
+    /**
+     * Handles events read from the ledger.
+     */
+    @FunctionalInterface
+    public interface EventHandler {
+        void handle(Event event) throws IOException;
+    }
+
+    /**
+     * Reads every event after a given number, oldest first.
+     * @param afterSequence events up to this number are skipped
+     * @param handler receives the events
+     * @return number of the last event read
+     * @throws IOException If a segment cannot be read
+     */
+    public long forEachEvent(long afterSequence, EventHandler handler) throws IOException {
+        flush();
+        return readEvents(directory, afterSequence, handler);
+    }
+
+    private static long readEvents(File directory, long afterSequence, EventHandler handler) throws IOException {
+        long[] bases = segmentBases(directory);
+        long last = afterSequence;
+        for (int i = 0; i < bases.length; i++) {
+            if (i + 1 < bases.length && bases[i + 1] <= afterSequence + 1) continue; // wholly before the range
+            try (FileChannel in = FileChannel.open(segmentFile(directory, bases[i]).toPath(), StandardOpenOption.READ)) {
+                long[] lastRead = {last};
+                scan(in, event -> {
+                    if (event.sequence > afterSequence) {
+                        handler.handle(event);
+                        lastRead[0] = event.sequence;
+                    }
+                });
+                last = lastRead[0];
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Reads records from a segment until the end or the first torn/corrupt record.
+     * @return file position just past the last valid record
+     */
+    private static long scan(FileChannel in, EventHandler handler) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        PagedUserStore.readFully(in, header, 0);
+        if (header.getInt(0) != SEGMENT_MAGIC || header.getInt(4) > VERSION) {
+            throw new IOException("Not a supported ledger segment");
+        }
+        long size = in.size();
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            PagedUserStore.readFully(in, recordHeader, position);
+            int length = recordHeader.getInt(0);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            PagedUserStore.readFully(in, payload, position + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != recordHeader.getInt(4)) break;
+            if (handler != null) {
+                handler.handle(decode(payload.array()));
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    // ------------------- Opening -------------------
+
+    /**
+     * Starts a new ledger from the portfolios in the store, written as snapshot 0.
+     */
+    private void seed(ShardedUserStore store, long logSequence) throws IOException {
+        store.flush();
+        try (UserStoreCursor cursor = store.openCursor()) {
+            while (cursor.next()) {
+                while (cursor.nextAsset()) {
+                    projection.seed(cursor.username(), new Asset(cursor.assetName(), cursor.assetSymbol(),
+                            cursor.assetQuantity(), cursor.assetValue()));
+                }
+            }
+        }
+        projection.sequence = 0;
+        projection.logSequence = logSequence;
+        writeSnapshot(directory, projection);
+    }
+
+    private void loadLatestSnapshot(Projection target) {
+        long[] sequences = snapshotSequences(directory);
+        for (int i = sequences.length - 1; i >= 0; i--) {
+            File file = snapshotFile(directory, sequences[i]);
+            try {
+                readSnapshot(file, target);
+                return;
+            } catch (IOException e) {
+                System.err.println("[ERROR] Skipping unreadable ledger snapshot " + file + ": " + e.getMessage());
+                target.holdings.clear();
+                target.totals.clear();
+                target.sequence = 0;
+                target.logSequence = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the position of the latest readable snapshot and the events after it to find
+     * the next event number and the last asset log record in the ledger, and opens the
+     * last segment for appending, cutting off a torn record at its end. Only the snapshot's
+     * header is read; its checksum is checked when the projections are loaded.
+     */
+    private void openSegments() throws IOException {
+        long[] after = {0, 0}; // last event number in the snapshot, last asset log sequence seen
+        long[] sequences = snapshotSequences(directory);
+        for (int i = sequences.length - 1; i >= 0; i--) {
+            File file = snapshotFile(directory, sequences[i]);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64))) {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() > SNAPSHOT_VERSION) {
+                    throw new IOException("Not a supported ledger snapshot");
+                }
+                after[0] = in.readLong();
+                after[1] = in.readLong();
+                break;
+            } catch (IOException e) {
+                System.err.println("[ERROR] Skipping unreadable ledger snapshot " + file + ": " + e.getMessage());
+            }
+        }
+        snapshotSequence = after[0];
+        long last = readEvents(directory, after[0], event -> {
+            if (event.logSequence > 0) after[1] = event.logSequence;
+        });
+        nextSequence = Math.max(last, after[0]) + 1;
+        lastLogSequence = after[1];
+        long[] bases = segmentBases(directory);
+        if (bases.length > 0) {
+            File file = segmentFile(bases[bases.length - 1]);
+            segment = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment.truncate(scan(segment, null));
+        }
+    }
+
+    /**
+     * Starts a thread that loads the latest snapshot into the projections and then, holding
+     * the ledger lock so no event slips by, applies every event appended after it.
+     */
+    private void startLoading() {
+        Thread loader = new Thread(() -> {
+            long start = System.nanoTime();
+            loadLatestSnapshot(projection);
+            synchronized (this) {
+                try {
+                    flush();
+                    readEvents(directory, projection.sequence, projection::apply);
+                } catch (IOException e) {
+                    System.err.println("[ERROR] Ledger projections are incomplete: " + e.getMessage());
+                } finally {
+                    loaded = true;
+                    notifyAll();
+                }
+            }
+            loadLatency.recordSince(start);
+        }, "ledger-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Waits until the projections are loaded. Callers hold the ledger lock.
+     */
+    private void awaitLoad() {
+        boolean interrupted = false;
+        while (!loaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // ------------------- Snapshots -------------------
+
+    private synchronized void startSnapshots() {
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                if (lastSequence() - snapshotSequence >= SNAPSHOT_MIN_EVENTS) snapshot();
+            } catch (IOException e) {
+                System.err.println("[ERROR] Ledger snapshot failed: " + e.getMessage());
+            }
+        }, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a snapshot of the projections as of the last appended event. The snapshot is
+     * built apart from the live projections, from the previous snapshot and the events
+     * since, so appends are never held up. Older snapshots beyond the last few are deleted.
+     * @return number of the last event the snapshot covers
+     * @throws IOException If the ledger cannot be read or the snapshot written
+     */
+    public long snapshot() throws IOException {
+        long start = System.nanoTime();
+        long upTo = lastSequence();
+        flush();
+        Projection built = new Projection();
+        long[] sequences = snapshotSequences(directory);
+        if (sequences.length > 0) {
+            readSnapshot(snapshotFile(directory, sequences[sequences.length - 1]), built);
+        }
+        if (built.sequence >= upTo) return built.sequence;
+        readEvents(directory, built.sequence, event -> {
+            if (event.sequence <= upTo) built.apply(event);
+        });
+        writeSnapshot(directory, built);
+        snapshotSequence = built.sequence;
+        sequences = snapshotSequences(directory);
+        for (int i = 0; i < sequences.length - SNAPSHOTS_KEPT; i++) {
+            Files.deleteIfExists(snapshotFile(directory, sequences[i]).toPath());
+        }
+        snapshotLatency.recordSince(start);
+        return built.sequence;
+    }
+
+    private static void writeSnapshot(File directory, Projection projection) throws IOException {
+        File file = snapshotFile(directory, projection.sequence);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(fileOut, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            projection.write(out);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readSnapshot(File file, Projection projection) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            int version;
+            if (in.readInt() != SNAPSHOT_MAGIC || (version = in.readInt()) > SNAPSHOT_VERSION) {
+                throw new IOException("Not a supported ledger snapshot");
+            }
+            projection.read(in);
+            if (version >= 2 && (int) checked.getChecksum().getValue() != in.readInt()) {
+                throw new IOException("Checksum mismatch");
+            }
+        }
+    }
+
+    // ------------------- Files -------------------
+
+    private File segmentFile(long base) {
+        return segmentFile(directory, base);
+    }
+
+    private static File segmentFile(File directory, long base) {
+        return new File(directory, String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private static File snapshotFile(File directory, long sequence) {
+        return new File(directory, String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+    }
+
+    private static long[] segmentBases(File directory) {
+        return numbered(directory, "", SEGMENT_SUFFIX);
+    }
+
+    private static long[] snapshotSequences(File directory) {
+        return numbered(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * @return the numbers in the names of the files with the given prefix and suffix, sorted
+     */
+    private static long[] numbered(File directory, String prefix, String suffix) {
+        String[] names = directory.list((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix)
+                && name.length() == prefix.length() + 20 + suffix.length());
+        if (names == null) return new long[0];
+        long[] numbers = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = Long.parseLong(names[i].substring(prefix.length(), prefix.length() + 20));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    // ------------------- Encoding -------------------
+
+    private static byte[] encode(Event event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(event.type);
+            writeVarLong(out, event.sequence);
+            writeVarLong(out, event.logSequence);
+            writeVarLong(out, event.time);
+            writeString(out, event.username);
+            writeVarLong(out, event.index + 1L);
+            if (event.asset != null) {
+                writeAsset(out, event.asset);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Event decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            byte type = in.readByte();
+            long sequence = readVarLong(in);
+            long logSequence = readVarLong(in);
+            long time = readVarLong(in);
+            String username = readString(in);
+            int index = (int) (readVarLong(in) - 1);
+            Asset asset = type == ASSET_REMOVED ? null : readAsset(in);
+            return new Event(type, sequence, logSequence, time, username, index, asset);
+        }
+    }
+
+    private static void writeAsset(DataOutputStream out, Asset asset) throws IOException {
+        writeString(out, asset.getName());
+        out.writeDouble(asset.getValue());
+        out.writeBoolean(asset.getSymbol() != null);
+        if (asset.getSymbol() != null) {
+            writeString(out, asset.getSymbol());
+            out.writeDouble(asset.getQuantity());
+        }
+    }
+
+    private static Asset readAsset(DataInputStream in) throws IOException {
+        String name = readString(in);
+        double value = in.readDouble();
+        if (!in.readBoolean()) return new Asset(name, value);
+        String symbol = readString(in);
+        return new Asset(name, symbol, in.readDouble(), value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed varint in ledger");
+    }
+
+    /**
+     * Prints the ledger events of one user, or of all users: {@code java Ledger [username]}.
+     * @param args optional username
+     * @throws IOException If the ledger cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        String username = args.length > 0 ? args[0] : null;
+        readEvents(new File(DIRECTORY), 0, event -> {
+            if (username == null || username.equals(event.username)) {
+                System.out.println(event);
+            }
+        });
+    }
+}
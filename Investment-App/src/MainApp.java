@@ -1,7 +1,16 @@
+import java.io.IOException;
 import java.util.Scanner;
 
 public class MainApp {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : InvestmentServer.DEFAULT_PORT;
+            new InvestmentServer(port).serve();
+            return;
+        }
+
+        ValuationEngine.startPriceFeed();
+        BankSync.start();
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.println("\n*== Welcome to Our InvestWise App ==*");
@@ -48,9 +57,15 @@ public class MainApp {
             System.out.print("Enter email: ");
             String email = scanner.nextLine();
 
-            User newUser = new User(username, password, email);
-            UserStorage.saveUser(newUser);
+            if (UserStorage.emailExists(email)) {
+                System.out.println("Email already registered.");
+                return;
+            }
+
+            InvestmentService.signUp(username, password, email);
             System.out.println("User registered successfully.");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
         } catch (Exception e) {
             System.out.println("Error: " + e.getMessage());
         }
@@ -69,16 +84,12 @@ public class MainApp {
             System.out.print("Enter password: ");
             String password = scanner.nextLine();
 
-            if (UserStorage.isValidLogin(username, password)) {
-                SessionManager.resetAttempts(username);
-                User user = UserStorage.findUser(username);
-                SessionManager.setCurrentUser(user);
-                System.out.println("Login successful. Welcome " + username + "!");
-                showDashboard(scanner);
-            } else {
-                SessionManager.recordFailure(username);
-                System.out.println("Invalid credentials!");
-            }
+            String token = InvestmentService.login(username, password);
+            SessionManager.setConsoleSession(token);
+            System.out.println("Login successful. Welcome " + username + "!");
+            showDashboard(scanner);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
         } catch (Exception e) {
             System.out.println("Error: " + e.getMessage());
         }
@@ -88,14 +99,19 @@ public class MainApp {
         try {
             System.out.print("Enter asset name: ");
             String assetName = scanner.nextLine();
-            System.out.print("Enter asset value: ");
-            double assetValue = Double.parseDouble(scanner.nextLine());
-            
-            // Add asset to user's portfolio
-            user.addAsset(new Asset(assetName, assetValue));
-            
-            // Persist changes to users_list.ser
-            UserStorage.updateUser(user);
+            System.out.print("Enter market symbol (leave blank to enter a fixed value): ");
+            String symbol = scanner.nextLine();
+            Asset asset;
+            if (symbol.isBlank()) {
+                System.out.print("Enter asset value: ");
+                asset = new Asset(assetName, Double.parseDouble(scanner.nextLine()));
+            } else {
+                System.out.print("Enter quantity: ");
+                asset = InvestmentService.newHolding(assetName, symbol, Double.parseDouble(scanner.nextLine()));
+            }
+
+            // Add asset to user's portfolio and log it durably
+            UserStorage.addAsset(user, asset);
             System.out.println("Asset added successfully!");
         } catch (NumberFormatException e) {
             System.out.println("Invalid value! Must be a number.");
@@ -106,26 +122,52 @@ public class MainApp {
     
     private static void calculateZakat(User user) {
         double totalValue = PortfolioService.getTotalPortfolioValue(user);
-        double zakat = ZakatService.calculateZakat(totalValue);
-        double nisabThreshold = ZakatService.NISAB_GOLD_GRAMS * ZakatService.goldPricePerGram ;
+        double nisabThreshold = ZakatService.getNisabThreshold();
+        double zakat = ZakatService.calculateZakat(totalValue, nisabThreshold);
     
         System.out.println("\n*== Zakat Calculation ==*");
         System.out.printf("Total Portfolio Value: $%,.2f%n", totalValue);
         System.out.printf("Nisab Threshold: $%,.2f%n", nisabThreshold);
     
-        if (ZakatService.isZakatApplicable(totalValue)) {
+        if (ZakatService.isZakatApplicable(totalValue, nisabThreshold)) {
             System.out.printf("Zakat Due (2.5%%): $%,.2f%n", zakat);
         } else {
             System.out.println("Zakat is not applicable (portfolio below Nisab).");
         }
+
+        try {
+            double minimum = ZakatService.getMinimumBalanceOverHawl(user.getUsername());
+            if (Double.isNaN(minimum)) {
+                System.out.println("Hawl: less than one lunar year of portfolio history.");
+            } else {
+                System.out.printf("Lowest balance over the last lunar year: $%,.2f (hawl %s)%n", minimum,
+                        ZakatService.isZakatApplicable(minimum, nisabThreshold) ? "complete" : "not complete");
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
     }
 
-    private static void showDashboard(Scanner scanner) {
-        User user = SessionManager.getCurrentUser();
-        if (user == null) {
-            System.out.println("No active session!");
-            return;
+    /**
+     * Looks up the console user again, since the user cache may have reloaded it meanwhile.
+     * @return the current instance of the logged-in user, or null after reporting why there is none
+     */
+    private static User currentUser() {
+        try {
+            User user = SessionManager.getCurrentUser();
+            if (user == null) {
+                System.out.println("No active session!");
+            }
+            return user;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Error: " + e.getMessage());
+            return null;
         }
+    }
+
+    private static void showDashboard(Scanner scanner) {
+        User user = currentUser();
+        if (user == null) return;
 
         while (true) {
             System.out.println("\n*== Dashboard ==*");
@@ -139,6 +181,8 @@ public class MainApp {
             System.out.println("7. Logout");
             System.out.print("Choose an option: ");
             String choice = scanner.nextLine();
+            user = currentUser();
+            if (user == null) return;
 
             switch (choice) {
                 case "1":
@@ -147,21 +191,12 @@ public class MainApp {
                     System.out.println("Email: " + user.getEmail());
                     break;
                 case "2":
-                    try {
-                        System.out.print("Enter asset name: ");
-                        String assetName = scanner.nextLine();
-                        System.out.print("Enter asset value: ");
-                        double assetValue = Double.parseDouble(scanner.nextLine());
-                        user.addAsset(new Asset(assetName, assetValue));
-                        System.out.println("Asset added successfully.");
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid value! Must be a number.");
-                    }
+                    addAsset(scanner, user);
                     break;
                 case "3":
                     System.out.println("\n*== Portfolio ==*");
-                    for (Asset asset : user.getAssets()) {
-                        System.out.println("Asset: " + asset.getName() + ", Value: " + asset.getValue());
+                    for (Asset asset : user.getAssetsView()) {
+                        System.out.println(asset);
                     }
                     break;
 
@@ -174,7 +209,8 @@ public class MainApp {
                     break;
 
                 case "6":
-                    BankIntegration.connectBankAccount(scanner);
+                    BankIntegration.connectBankAccount(scanner, user.getUsername());
+                    break;
                 case "7":
                     SessionManager.logout();
                     System.out.println("Logged out successfully.");
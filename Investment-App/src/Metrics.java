@@ -0,0 +1,229 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Lightweight in-process metrics registry: counters, latency histograms and gauges.
+ * Metrics are looked up once (typically into a static field) and then updated without
+ * allocating, so they can sit on hot paths. The registry can be dumped as text or JSON,
+ * on demand or periodically to a log file.
+ */
+public class Metrics {
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper;
+
+    /**
+     * Monotonic event counter.
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * Adds one to the counter.
+         */
+        public void increment() { count.increment(); }
+
+        /**
+         * @param delta amount to add
+         */
+        public void add(long delta) { count.add(delta); }
+
+        /**
+         * @return current count
+         */
+        public long get() { return count.sum(); }
+    }
+
+    /**
+     * Latency histogram with HDR-style log-linear buckets: every power of two is split
+     * into 16 linear sub-buckets, which keeps the relative error of any percentile
+     * below about 6% from nanoseconds up to centuries in a fixed 1024-slot array.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records one latency sample.
+         * @param nanos duration in nanoseconds
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                // retry until our value is stored or a larger one wins
+            }
+        }
+
+        /**
+         * Records the time elapsed since a {@link System#nanoTime()} reading.
+         * @param startNanos value of System.nanoTime() when the operation started
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * @return number of recorded samples
+         */
+        public long getCount() { return count.sum(); }
+
+        /**
+         * @return largest recorded sample in nanoseconds
+         */
+        public long getMax() { return max.get(); }
+
+        /**
+         * @return mean of the recorded samples in nanoseconds
+         */
+        public double getMean() {
+            long samples = count.sum();
+            return samples == 0 ? 0 : (double) sum.sum() / samples;
+        }
+
+        /**
+         * @param quantile quantile between 0 and 1 (e.g. 0.99)
+         * @return approximate value at that quantile in nanoseconds (upper edge of its bucket)
+         */
+        public long getPercentile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperEdge(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperEdge(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+        }
+    }
+
+    // ------------------- Registry -------------------
+
+    /**
+     * @param name metric name, e.g. "storage.flush.users"
+     * @return the counter with this name, created on first use
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * @param name metric name, e.g. "session.login"
+     * @return the latency histogram with this name, created on first use
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers (or replaces) a gauge that is sampled whenever metrics are dumped.
+     * @param name metric name
+     * @param supplier reads the current value
+     */
+    public static void gauge(String name, DoubleSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    // ------------------- Export -------------------
+
+    /**
+     * @return all metrics as human-readable lines; latencies are in microseconds
+     */
+    public static String toText() {
+        StringBuilder out = new StringBuilder();
+        new TreeMap<>(counters).forEach((name, counter) ->
+                out.append(String.format("counter   %-32s %d%n", name, counter.get())));
+        new TreeMap<>(gauges).forEach((name, gauge) ->
+                out.append(String.format("gauge     %-32s %.3f%n", name, gauge.getAsDouble())));
+        new TreeMap<>(histograms).forEach((name, histogram) ->
+                out.append(String.format("histogram %-32s count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                        name, histogram.getCount(), histogram.getMean() / 1e3,
+                        histogram.getPercentile(0.50) / 1e3, histogram.getPercentile(0.99) / 1e3,
+                        histogram.getPercentile(0.999) / 1e3, histogram.getMax() / 1e3)));
+        return out.toString();
+    }
+
+    /**
+     * @return all metrics as a single-line JSON object; latencies are in nanoseconds
+     */
+    public static String toJson() {
+        StringBuilder out = new StringBuilder("{\"counters\":{");
+        appendJoined(out, new TreeMap<>(counters), (name, counter) ->
+                out.append('"').append(name).append("\":").append(counter.get()));
+        out.append("},\"gauges\":{");
+        appendJoined(out, new TreeMap<>(gauges), (name, gauge) ->
+                out.append('"').append(name).append("\":").append(gauge.getAsDouble()));
+        out.append("},\"histograms\":{");
+        appendJoined(out, new TreeMap<>(histograms), (name, histogram) ->
+                out.append('"').append(name).append("\":{\"count\":").append(histogram.getCount())
+                        .append(",\"mean\":").append(Math.round(histogram.getMean()))
+                        .append(",\"p50\":").append(histogram.getPercentile(0.50))
+                        .append(",\"p99\":").append(histogram.getPercentile(0.99))
+                        .append(",\"p999\":").append(histogram.getPercentile(0.999))
+                        .append(",\"max\":").append(histogram.getMax()).append('}'));
+        return out.append("}}").toString();
+    }
+
+    private static <T> void appendJoined(StringBuilder out, Map<String, T> metrics,
+                                         BiConsumer<String, T> writer) {
+        boolean first = true;
+        for (Map.Entry<String, T> entry : metrics.entrySet()) {
+            if (!first) out.append(',');
+            writer.accept(entry.getKey(), entry.getValue());
+            first = false;
+        }
+    }
+
+    /**
+     * Starts appending a JSON snapshot of all metrics to a log file at a fixed interval.
+     * @param filename log file to append to
+     * @param intervalMillis delay between snapshots
+     */
+    public static synchronized void startPeriodicDump(String filename, long intervalMillis) {
+        if (dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> FileUtils.appendToFile(filename,
+                System.currentTimeMillis() + " " + toJson()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,852 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Page-based storage engine for user records.
+ * Every user is stored in its own slot inside the data file, and a persistent
+ * username-to-offset index lets lookups and updates touch a single record
+ * instead of rewriting the whole user list.
+ *
+ * <p>Both files start with a 16 byte header (magic, format version, generation).
+ * Data file layout: the header followed by slots. Each slot has a 16 byte header
+ * (capacity, length, status, CRC32 of the payload) and a payload area of
+ * {@code capacity} bytes holding a {@link UserCodec} record. Records are never rewritten in
+ * place: an update writes the record to a new slot at the end of the file, points the index
+ * at it once the slot is durable and only then marks the old slot free, so a crash mid-write
+ * leaves the old record in use. The checksum detects a slot torn by such a crash when the
+ * index is rebuilt from the data file; version 1 files have no checksums.</p>
+ *
+ * <p>Index file layout: the header followed by append-only entries
+ * (name length, UTF-8 name, slot offset). The last entry for a name wins; an
+ * offset of -1 records that the user was deleted.</p>
+ *
+ * <p>{@link #compact} writes a new data file and its index side by side with the
+ * old ones and renames them into place, data file first; the generation in the
+ * headers tells which index belongs to which data file, so an interrupted
+ * compaction is either discarded or completed when the store is opened.
+ * {@link #compactIfNeeded} does this once free slots take up a large part of the file.</p>
+ *
+ * <p>Open {@link UserStoreCursor}s pin the data file (see {@link #openCursor}): until the
+ * last one is closed, freed slots keep their contents and the file is not compacted, so every cursor keeps seeing the records it was opened on.</p>
+ */
+public class PagedUserStore implements Closeable {
+    static final int DATA_MAGIC = 0x49575544; // "IWUD"
+    static final int INDEX_MAGIC = 0x49575549; // "IWUI"
+    static final int DATA_FORMAT_VERSION = 2; // version 2 added slot checksums
+    static final int INDEX_FORMAT_VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+    static final int SLOT_HEADER_SIZE = 16;
+    static final int STATUS_FREE = 0;
+    static final int STATUS_LIVE = 1;
+    private static final int MIN_SLOT_CAPACITY = 128;
+    private static final int SLOT_ALIGNMENT = 64;
+    private static final int INDEX_BUFFER_SIZE = 1 << 20;
+    private static final String COMPACT_SUFFIX = ".compact";
+    // Compact once free slots take up this share of the data file, and at least this many bytes
+    private static final double COMPACTION_FREE_RATIO = 0.5;
+    private static final long COMPACTION_MIN_FREE_BYTES = 1 << 20;
+
+    private static final Metrics.Counter compactions = Metrics.counter("storage.compactions");
+    private static final Metrics.Histogram compactionLatency = Metrics.histogram("storage.compaction");
+
+    private final File dataFile;
+    private final File indexFile;
+    private FileChannel data;
+    private FileChannel index;
+    private final Map<String, Long> offsets = new HashMap<>();
+    private int indexEntries;
+    private long generation;
+    private boolean checksummed;
+    private long freeBytes = -1; // bytes in free slots, or -1 until counted
+    private int pins; // open cursors
+    private final List<Long> deferredFrees = new ArrayList<>(); // slots to free once no cursor is open
+
+    /**
+     * Opens (or creates) a store backed by the given data and index files.
+     * If the index is missing, or belongs to another generation of the data file,
+     * it is rebuilt from the data file, skipping slots that are torn or cannot be decoded.
+     * @param dataFile file holding the user slots
+     * @param indexFile file holding the username-to-offset index
+     * @throws IOException If the files cannot be opened or their headers are corrupt
+     */
+    public PagedUserStore(File dataFile, File indexFile) throws IOException {
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        // Without a committed data file, a compaction never got to its commit point
+        Files.deleteIfExists(compactFile(dataFile).toPath());
+        this.data = FileChannel.open(dataFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (data.size() == 0) {
+            writeFileHeader(data, DATA_MAGIC, DATA_FORMAT_VERSION, 0);
+            data.force(true);
+            checksummed = true;
+            freeBytes = 0;
+        } else {
+            ByteBuffer header = checkFileHeader(data, DATA_MAGIC, DATA_FORMAT_VERSION, dataFile);
+            checksummed = header.getInt(4) >= 2;
+            generation = header.getLong(8);
+        }
+        finishCompaction();
+
+        if (indexFile.exists() && indexFile.length() > 0) {
+            this.index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = checkFileHeader(index, INDEX_MAGIC, INDEX_FORMAT_VERSION, indexFile);
+            if (header.getLong(8) == generation) {
+                loadIndex();
+                truncateUnindexedTail();
+                return;
+            }
+            System.err.println("[ERROR] " + indexFile + " belongs to another generation of " + dataFile
+                    + "; rebuilding it.");
+        }
+        rebuildIndex();
+    }
+
+    /**
+     * Completes a compaction interrupted between renaming its data file and its index
+     * into place: the new index is installed if it belongs to the data file now in place,
+     * and discarded otherwise.
+     */
+    private void finishCompaction() throws IOException {
+        File pending = compactFile(indexFile);
+        if (!pending.exists()) return;
+        boolean complete;
+        try (FileChannel channel = FileChannel.open(pending.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            readFully(channel, header, 0);
+            complete = header.getInt(0) == INDEX_MAGIC && header.getLong(8) == generation;
+        } catch (EOFException e) {
+            complete = false;
+        }
+        if (complete) {
+            Files.move(pending.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.delete(pending.toPath());
+        }
+    }
+
+    /**
+     * Imports every user from a legacy serialized user list (the old users_list.ser format).
+     * Users that already exist in the store are skipped.
+     * @param legacyFile serialized {@code List<User>} file
+     * @return number of users imported
+     * @throws IOException If the legacy file cannot be read or the store cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized int migrateFrom(File legacyFile) throws IOException, ClassNotFoundException {
+        List<User> legacyUsers;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))) {
+            legacyUsers = (List<User>) ois.readObject();
+        }
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        for (User user : legacyUsers) {
+            if (!offsets.containsKey(user.getUsername())) {
+                payloads.putIfAbsent(user.getUsername(), encode(user));
+            }
+        }
+        insertPayloads(payloads);
+        return payloads.size();
+    }
+
+    /**
+     * @param username Username to check
+     * @return true if a record exists for this username
+     */
+    public synchronized boolean contains(String username) {
+        return offsets.containsKey(username);
+    }
+
+    /**
+     * @return number of users in the store
+     */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Reads a single user record.
+     * @param username Username to look up
+     * @return User object or null if not found
+     * @throws IOException If the record cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public synchronized User read(String username) throws IOException, ClassNotFoundException {
+        Long offset = offsets.get(username);
+        if (offset == null) return null;
+        return decode(readPayload(offset));
+    }
+
+    /**
+     * Adds a new user record.
+     * @param user User to store
+     * @throws IOException If the user already exists or the write fails
+     */
+    public void insert(User user) throws IOException {
+        insertPayloads(Map.of(user.getUsername(), encode(user)));
+    }
+
+    /**
+     * Writes an existing user record to a new slot and then points the index at it.
+     * @param user User with updated data
+     * @throws IOException If the user does not exist or the write fails
+     */
+    public void update(User user) throws IOException {
+        updateAll(List.of(user), null);
+    }
+
+    /**
+     * Writes a batch of existing user records with a single fsync of the data file and one
+     * of the index. Every record goes to a new slot and only becomes visible once it is durable;
+     * the old slots are freed afterwards, or once no cursor is open any more.
+     * @param users Users with updated data
+     * @param writeAhead flushed after the records are encoded and before any is written,
+     *                   for state that must never lag the store (may be null)
+     * @throws IOException If a user does not exist or a write fails
+     */
+    public void updateAll(Collection<User> users, Flushable writeAhead) throws IOException {
+        // Encode before taking the store lock: encoding locks each user, and
+        // callers holding a user lock may call into the store
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        for (User user : users) {
+            payloads.put(user.getUsername(), encode(user));
+        }
+        if (writeAhead != null) writeAhead.flush();
+        writeAll(payloads);
+    }
+
+    private synchronized void writeAll(Map<String, byte[]> payloads) throws IOException {
+        for (String username : payloads.keySet()) {
+            if (!offsets.containsKey(username)) {
+                throw new IOException("User not found in storage: " + username);
+            }
+        }
+        Map<String, Long> written = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : payloads.entrySet()) {
+            written.put(entry.getKey(), appendSlot(entry.getValue()));
+        }
+        data.force(false);
+        for (Map.Entry<String, Long> entry : written.entrySet()) {
+            appendIndexEntry(entry.getKey(), entry.getValue());
+        }
+        index.force(false);
+        for (Map.Entry<String, Long> entry : written.entrySet()) {
+            free(offsets.put(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Picks slot offsets that divide the data file into ranges holding roughly
+     * the same number of users, for parallel scans with {@link UserStoreCursor}.
+     * @param parts desired number of ranges
+     * @return ascending offsets; the first is the first slot and the last is the file end
+     * @throws IOException If the file size cannot be read
+     */
+    public synchronized long[] splitPoints(int parts) throws IOException {
+        long[] live = new long[offsets.size()];
+        int i = 0;
+        for (long offset : offsets.values()) {
+            live[i++] = offset;
+        }
+        Arrays.sort(live);
+        int ranges = Math.max(1, Math.min(parts, live.length));
+        long[] points = new long[ranges + 1];
+        points[0] = FILE_HEADER_SIZE;
+        for (int r = 1; r < ranges; r++) {
+            points[r] = live[(int) ((long) r * live.length / ranges)];
+        }
+        points[ranges] = data.size();
+        return points;
+    }
+
+    // ------------------- Cursors -------------------
+
+    /**
+     * Opens a cursor over every record, pinning the store until the cursor is closed.
+     * @return a cursor positioned before the first user
+     * @throws IOException If the file cannot be mapped
+     */
+    public synchronized UserStoreCursor openCursor() throws IOException {
+        return new UserStoreCursor(this, FILE_HEADER_SIZE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens cursors over disjoint ranges of the data file (see {@link #splitPoints}),
+     * all seeing the records as they are now.
+     * @param parts desired number of cursors
+     * @return cursors covering the whole file; close each when done
+     * @throws IOException If the file cannot be mapped
+     */
+    public synchronized List<UserStoreCursor> openCursors(int parts) throws IOException {
+        long[] points = splitPoints(parts);
+        List<UserStoreCursor> cursors = new ArrayList<>(points.length - 1);
+        try {
+            for (int i = 0; i + 1 < points.length; i++) {
+                cursors.add(new UserStoreCursor(this, points[i], points[i + 1]));
+            }
+        } catch (IOException e) {
+            for (UserStoreCursor cursor : cursors) {
+                cursor.close();
+            }
+            throw e;
+        }
+        return cursors;
+    }
+
+    /**
+     * Pins the data file for a cursor. Every slot before the returned offset keeps its
+     * contents until {@link #unpin} is called as often as this method.
+     * @return the end of the data file, where the cursor's view ends
+     * @throws IOException If the file size cannot be read
+     */
+    synchronized long pin() throws IOException {
+        pins++;
+        return data.size();
+    }
+
+    /**
+     * Releases a pin taken by {@link #pin}, freeing the slots left behind meanwhile
+     * once no cursor is open any more.
+     * @throws IOException If a slot cannot be freed
+     */
+    synchronized void unpin() throws IOException {
+        if (--pins > 0 || deferredFrees.isEmpty()) return;
+        for (long offset : deferredFrees) {
+            markFree(offset);
+        }
+        deferredFrees.clear();
+        data.force(false);
+    }
+
+    /**
+     * Adds many new user records with one fsync of the data file and one of the index.
+     * @param users Users to store
+     * @throws IOException If a user already exists or a write fails
+     */
+    public void insertAll(Collection<User> users) throws IOException {
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        for (User user : users) {
+            payloads.put(user.getUsername(), encode(user));
+        }
+        insertPayloads(payloads);
+    }
+
+    /**
+     * Adds encoded user records, e.g. records moved from another store.
+     * Each record is durable before the index points to it.
+     * @param payloads encoded records by username
+     * @throws IOException If a user already exists or a write fails
+     */
+    synchronized void insertPayloads(Map<String, byte[]> payloads) throws IOException {
+        for (String username : payloads.keySet()) {
+            if (offsets.containsKey(username)) {
+                throw new IOException("User already exists in storage: " + username);
+            }
+        }
+        Map<String, Long> added = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : payloads.entrySet()) {
+            added.put(entry.getKey(), appendSlot(entry.getValue()));
+        }
+        data.force(false);
+        for (Map.Entry<String, Long> entry : added.entrySet()) {
+            appendIndexEntry(entry.getKey(), entry.getValue());
+        }
+        index.force(false);
+        offsets.putAll(added);
+    }
+
+    /**
+     * Reads the encoded records of some users.
+     * @param usernames users to read; unknown names are skipped
+     * @return encoded records by username
+     * @throws IOException If a record cannot be read
+     */
+    synchronized Map<String, byte[]> readPayloads(Collection<String> usernames) throws IOException {
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        for (String username : usernames) {
+            Long offset = offsets.get(username);
+            if (offset != null) payloads.put(username, readPayload(offset));
+        }
+        return payloads;
+    }
+
+    /**
+     * Deletes user records. The index forgets them before their slots are freed,
+     * so a crash in between never leaves an index entry pointing at a free slot.
+     * @param usernames users to delete; unknown names are skipped
+     * @throws IOException If a write fails
+     */
+    public synchronized void deleteAll(Collection<String> usernames) throws IOException {
+        List<Long> freed = new ArrayList<>();
+        for (String username : usernames) {
+            Long offset = offsets.remove(username);
+            if (offset == null) continue;
+            appendIndexEntry(username, -1);
+            freed.add(offset);
+        }
+        if (freed.isEmpty()) return;
+        index.force(false);
+        for (long offset : freed) {
+            free(offset);
+        }
+        data.force(false);
+    }
+
+    /**
+     * @return the names of all stored users (a copy)
+     */
+    public synchronized List<String> usernames() {
+        return new ArrayList<>(offsets.keySet());
+    }
+
+    /**
+     * @return the data file holding the user slots
+     */
+    public File getDataFile() { return dataFile; }
+
+    /**
+     * Reads every user record in the store.
+     * @return List of all stored users
+     * @throws IOException If a record cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public synchronized List<User> readAll() throws IOException, ClassNotFoundException {
+        List<User> users = new ArrayList<>(offsets.size());
+        for (long offset : offsets.values()) {
+            users.add(decode(readPayload(offset)));
+        }
+        return users;
+    }
+
+    /**
+     * Rewrites the data and index files so that only live records remain.
+     * Reclaims the space left behind by relocated and deleted records, re-encodes records
+     * still stored in the old Java serialization format and upgrades the file to the
+     * current format.
+     * The new data file and its index are both written and fsynced under temporary names
+     * with the next generation number before either replaces the old one, and the data
+     * file is renamed first: a crash before that rename leaves the old files in use, and
+     * a crash after it is completed by the next open (see {@link #finishCompaction}).
+     * @throws IOException If the rewrite fails or cursors are open
+     * @throws ClassNotFoundException If a legacy record cannot be deserialized
+     */
+    public synchronized void compact() throws IOException, ClassNotFoundException {
+        if (pins > 0) {
+            throw new IOException("Cannot compact " + dataFile + " while cursors are open");
+        }
+        long start = System.nanoTime();
+        long nextGeneration = generation + 1;
+        File newData = compactFile(dataFile);
+        File newIndex = compactFile(indexFile);
+        Map<String, Long> newOffsets = new HashMap<>();
+        try (FileChannel out = FileChannel.open(newData.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFileHeader(out, DATA_MAGIC, DATA_FORMAT_VERSION, nextGeneration);
+            long position = FILE_HEADER_SIZE;
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                byte[] payload = readPayload(entry.getValue());
+                if (UserCodec.isLegacy(ByteBuffer.wrap(payload))) {
+                    payload = encode(decode(payload));
+                }
+                int capacity = slotCapacityFor(payload.length);
+                writeFully(out, slotBuffer(capacity, payload), position);
+                newOffsets.put(entry.getKey(), position);
+                position += SLOT_HEADER_SIZE + capacity;
+            }
+            out.force(true);
+        }
+        writeIndex(newIndex, newOffsets, nextGeneration);
+
+        data.close();
+        index.close();
+        try {
+            // The commit point: from here on the next open finds the new index's generation in place
+            Files.move(newData.toPath(), dataFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            generation = nextGeneration;
+            checksummed = true;
+            offsets.clear();
+            offsets.putAll(newOffsets);
+            freeBytes = 0;
+            Files.move(newIndex.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexEntries = offsets.size();
+        } finally {
+            data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        compactions.increment();
+        compactionLatency.recordSince(start);
+    }
+
+    /**
+     * Compacts the store if free slots take up at least half of the data file, or if
+     * the file is still in an older format. Does nothing while cursors are open.
+     * @return true if the store was compacted
+     * @throws IOException If the free space cannot be counted or the rewrite fails
+     * @throws ClassNotFoundException If a legacy record cannot be deserialized
+     */
+    public synchronized boolean compactIfNeeded() throws IOException, ClassNotFoundException {
+        if (pins > 0) return false;
+        long free = getFreeBytes();
+        boolean fragmented = free >= COMPACTION_MIN_FREE_BYTES && free >= data.size() * COMPACTION_FREE_RATIO;
+        if (!fragmented && checksummed) return false;
+        compact();
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes taken up by free slots, counting them with one
+     * sequential pass over the slot headers the first time it is called after opening.
+     * @return bytes in free slots, slot headers included
+     * @throws IOException If the data file cannot be read
+     */
+    public synchronized long getFreeBytes() throws IOException {
+        if (freeBytes >= 0) return freeBytes;
+        long size = data.size();
+        long free = 0;
+        long position = FILE_HEADER_SIZE;     // start of the next slot
+        long readPosition = FILE_HEADER_SIZE; // file offset just past the buffered bytes
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_BUFFER_SIZE);
+        buffer.flip();
+        while (position + SLOT_HEADER_SIZE <= size) {
+            long skip = position - (readPosition - buffer.remaining());
+            if (skip < buffer.remaining() && buffer.remaining() - skip >= SLOT_HEADER_SIZE) {
+                int at = buffer.position() + (int) skip;
+                int capacity = buffer.getInt(at);
+                if (capacity <= 0) {
+                    throw new IOException("Corrupt user slot at offset " + position);
+                }
+                if (buffer.getInt(at + 8) != STATUS_LIVE) free += SLOT_HEADER_SIZE + capacity;
+                position += SLOT_HEADER_SIZE + capacity;
+                continue;
+            }
+            // Refill the buffer starting at the next slot header
+            buffer.clear();
+            readPosition = position;
+            int read = data.read(buffer, readPosition);
+            buffer.flip();
+            if (read <= 0) break;
+            readPosition += read;
+        }
+        freeBytes = free;
+        return freeBytes;
+    }
+
+    /**
+     * Copies the data and index files into a directory as a consistent snapshot.
+     * Writers are blocked while the files are copied.
+     * @param directory directory that receives the copies; created if missing
+     * @return number of bytes copied
+     * @throws IOException If the directory cannot be created or a copy fails
+     */
+    public synchronized long backupTo(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create backup directory: " + directory);
+        }
+        data.force(true);
+        index.force(true);
+        return FileUtils.copyFile(dataFile, new File(directory, dataFile.getName()))
+                + FileUtils.copyFile(indexFile, new File(directory, indexFile.getName()));
+    }
+
+    /**
+     * Flushes and closes the underlying files.
+     * @throws IOException If closing fails
+     */
+    public synchronized void close() throws IOException {
+        data.force(true);
+        index.force(true);
+        data.close();
+        index.close();
+    }
+
+    // ------------------- Record encoding -------------------
+
+    private static byte[] encode(User user) {
+        return UserCodec.encode(user).array();
+    }
+
+    private static User decode(byte[] payload) throws IOException, ClassNotFoundException {
+        return UserCodec.decode(ByteBuffer.wrap(payload));
+    }
+
+    // ------------------- Slot handling -------------------
+
+    private long appendSlot(byte[] payload) throws IOException {
+        long offset = data.size();
+        int capacity = slotCapacityFor(payload.length);
+        writeFully(data, slotBuffer(capacity, payload), offset);
+        return offset;
+    }
+
+    private static ByteBuffer slotBuffer(int capacity, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_HEADER_SIZE + capacity);
+        buffer.putInt(capacity).putInt(payload.length).putInt(STATUS_LIVE).putInt(checksum(payload)).put(payload);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Frees a slot that no record points to any more, or defers that while cursors are open.
+     */
+    private void free(long offset) throws IOException {
+        if (pins > 0) {
+            deferredFrees.add(offset);
+        } else {
+            markFree(offset);
+        }
+    }
+
+    private void markFree(long offset) throws IOException {
+        if (freeBytes >= 0) {
+            freeBytes += SLOT_HEADER_SIZE + readSlotHeader(offset).getInt(0);
+        }
+        ByteBuffer status = ByteBuffer.allocate(4).putInt(STATUS_FREE);
+        status.flip();
+        writeFully(data, status, offset + 8);
+    }
+
+    private ByteBuffer readSlotHeader(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SLOT_HEADER_SIZE);
+        readFully(data, header, offset);
+        return header;
+    }
+
+    private byte[] readPayload(long offset) throws IOException {
+        ByteBuffer header = readSlotHeader(offset);
+        int length = header.getInt(4);
+        if (header.getInt(8) != STATUS_LIVE || length < 0 || length > header.getInt(0)) {
+            throw new IOException("Corrupt user slot at offset " + offset);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(data, payload, offset + SLOT_HEADER_SIZE);
+        if (checksummed && checksum(payload.array()) != header.getInt(12)) {
+            throw new IOException("Corrupt user slot at offset " + offset + ": checksum mismatch");
+        }
+        return payload.array();
+    }
+
+    /**
+     * Slots are never rewritten, so they get no room to grow beyond the alignment.
+     */
+    private static int slotCapacityFor(int length) {
+        int capacity = Math.max(MIN_SLOT_CAPACITY, length);
+        return (capacity + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT;
+    }
+
+    // ------------------- Index handling -------------------
+
+    /**
+     * Reads the index in large sequential chunks; entries are decoded straight from
+     * the chunk buffer instead of reading each one separately.
+     */
+    private void loadIndex() throws IOException {
+        long size = index.size();
+        long position = FILE_HEADER_SIZE;     // start of the next entry
+        long readPosition = FILE_HEADER_SIZE; // file offset just past the buffered bytes
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_BUFFER_SIZE);
+        buffer.flip();
+        while (position + 4 <= size) {
+            if (buffer.remaining() >= 4) {
+                int at = buffer.position();
+                int nameLength = buffer.getInt(at);
+                if (nameLength <= 0 || position + 4 + nameLength + 8 > size) break;
+                if (buffer.remaining() >= 4 + nameLength + 8) {
+                    String name = new String(buffer.array(), at + 4, nameLength, StandardCharsets.UTF_8);
+                    long offset = buffer.getLong(at + 4 + nameLength);
+                    if (offset < 0) {
+                        offsets.remove(name);
+                    } else {
+                        offsets.put(name, offset);
+                    }
+                    indexEntries++;
+                    buffer.position(at + 4 + nameLength + 8);
+                    position += 4 + nameLength + 8;
+                    continue;
+                }
+                if (4 + nameLength + 8 > buffer.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + nameLength + 8);
+                    bigger.put(buffer).flip();
+                    buffer = bigger;
+                }
+            }
+            buffer.compact();
+            int read = index.read(buffer, readPosition);
+            buffer.flip();
+            if (read <= 0) break;
+            readPosition += read;
+        }
+        if (position < size) {
+            // Drop a torn entry left behind by a crash during an index append
+            index.truncate(position);
+        }
+        if (indexEntries > 2 * offsets.size() + 1024) {
+            rewriteIndex();
+        }
+    }
+
+    private void appendIndexEntry(String username, long offset) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(4 + name.length + 8);
+        entry.putInt(name.length).put(name).putLong(offset).flip();
+        writeFully(index, entry, index.size());
+        indexEntries++;
+    }
+
+    /**
+     * Rebuilds the index from the live slots of the data file. A crash after an update was
+     * indexed but before its old slot was freed leaves two live slots for a user; the later
+     * one is the newer record and the earlier one is freed. A slot that is torn or cannot be
+     * decoded is logged and freed, so the older record of its user, if any, stays in use and
+     * cursors do not trip over it; a slot torn at the end of the file is cut off.
+     */
+    private void rebuildIndex() throws IOException {
+        long size = data.size();
+        long position = FILE_HEADER_SIZE;
+        while (position + SLOT_HEADER_SIZE <= size) {
+            ByteBuffer header = readSlotHeader(position);
+            int capacity = header.getInt(0);
+            if (capacity <= 0) {
+                System.err.println("[ERROR] Corrupt user slot header at offset " + position + " in " + dataFile
+                        + "; ignoring the rest of the file.");
+                break;
+            }
+            if (position + SLOT_HEADER_SIZE + capacity > size) {
+                System.err.println("[ERROR] Torn user slot at offset " + position + " in " + dataFile
+                        + "; truncating it.");
+                data.truncate(position);
+                break;
+            }
+            if (header.getInt(8) == STATUS_LIVE) {
+                Long superseded;
+                try {
+                    superseded = offsets.put(decode(readPayload(position)).getUsername(), position);
+                } catch (IOException | ClassNotFoundException e) {
+                    System.err.println("[ERROR] Freeing unreadable user slot at offset " + position + " in "
+                            + dataFile + ": " + e.getMessage());
+                    superseded = position;
+                }
+                if (superseded != null) markFree(superseded);
+            }
+            position += SLOT_HEADER_SIZE + capacity;
+        }
+        rewriteIndex();
+    }
+
+    /**
+     * Cuts off slots past the last one the index points to. Every slot is appended and then
+     * indexed, so anything there was left behind by a crash before its index entry was durable,
+     * or is free; a torn slot there would otherwise stop every cursor scanning the file.
+     */
+    private void truncateUnindexedTail() throws IOException {
+        long last = -1;
+        for (long offset : offsets.values()) {
+            last = Math.max(last, offset);
+        }
+        long end = last < 0 ? FILE_HEADER_SIZE : last + SLOT_HEADER_SIZE + readSlotHeader(last).getInt(0);
+        if (data.size() > end) {
+            data.truncate(end);
+            data.force(true);
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        if (index != null) index.close();
+        File tmpIndex = new File(indexFile.getPath() + ".tmp");
+        writeIndex(tmpIndex, offsets, generation);
+        Files.move(tmpIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexEntries = offsets.size();
+    }
+
+    /**
+     * Writes a complete, fsynced index of some offsets to a new file.
+     */
+    private static void writeIndex(File file, Map<String, Long> offsets, long generation) throws IOException {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFileHeader(out, INDEX_MAGIC, INDEX_FORMAT_VERSION, generation);
+            long position = FILE_HEADER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_BUFFER_SIZE);
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < 4 + name.length + 8) {
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    writeFully(out, buffer, position);
+                    position += length;
+                    buffer = ByteBuffer.allocate(Math.max(INDEX_BUFFER_SIZE, 4 + name.length + 8));
+                }
+                buffer.putInt(name.length).put(name).putLong(entry.getValue());
+            }
+            buffer.flip();
+            writeFully(out, buffer, position);
+            out.force(true);
+        }
+    }
+
+    // ------------------- Low-level I/O -------------------
+
+    private static void writeFileHeader(FileChannel channel, int magic, int version, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(magic).putInt(version).putLong(generation).flip();
+        writeFully(channel, header, 0);
+    }
+
+    /**
+     * @return the file header (magic, version, generation)
+     */
+    private static ByteBuffer checkFileHeader(FileChannel channel, int magic, int version, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != magic) {
+            throw new IOException("Not a user store file: " + file);
+        }
+        if (header.getInt(4) > version) {
+            throw new IOException("Unsupported user store version " + header.getInt(4) + " in " + file);
+        }
+        return header;
+    }
+
+    private static File compactFile(File file) {
+        return new File(file.getPath() + COMPACT_SUFFIX);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long read = 0;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + read);
+            if (count < 0) throw new EOFException("Unexpected end of file at " + position);
+            read += count;
+        }
+        buffer.flip();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Salted, iterated password hashing with PBKDF2 (HMAC-SHA256) from the JDK.
+ * Stored hashes look like {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} (Base64),
+ * so records hashed with an older cost keep verifying and can be upgraded on login;
+ * anything else is a legacy plaintext password.
+ *
+ * <p>The cost is set per deployment with the {@code investment.password.iterations}
+ * system property; {@code java PasswordHasher} prints the time per hash for a range of
+ * costs to help choose it. Hashing runs on a bounded worker pool so a burst of logins
+ * cannot occupy every request thread, and recent successful verifications are
+ * remembered for a short time so repeated logins skip the key derivation.</p>
+ */
+public class PasswordHasher {
+    static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    static final String PREFIX = "pbkdf2-sha256$";
+    static final int DEFAULT_ITERATIONS = 310_000;
+    private static final int MIN_ITERATIONS = 1_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long CACHE_TTL_MS = 60_000;
+    private static final int CACHE_MAX_ENTRIES = 10_000;
+
+    private static volatile int iterations = checkIterations(
+            Integer.getInteger("investment.password.iterations", DEFAULT_ITERATIONS));
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadPoolExecutor pool = newPool(Runtime.getRuntime().availableProcessors());
+
+    // Successful verifications, keyed by an HMAC (with a per-process key) of the username,
+    // password and stored hash, so the cache never holds anything usable outside this process
+    private static final Map<String, Long> verified = new ConcurrentHashMap<>();
+    private static final byte[] cacheKey = new byte[32];
+    private static volatile long cacheTtlMillis = CACHE_TTL_MS;
+
+    private static final Metrics.Histogram hashLatency = Metrics.histogram("password.hash");
+    private static final Metrics.Histogram verifyLatency = Metrics.histogram("password.verify");
+    private static final Metrics.Counter cacheHits = Metrics.counter("password.cache_hits");
+    private static final Metrics.Counter rejected = Metrics.counter("password.rejected");
+
+    static {
+        random.nextBytes(cacheKey);
+        Metrics.gauge("password.iterations", () -> iterations);
+        Metrics.gauge("password.queue", () -> pool.getQueue().size());
+    }
+
+    private static ThreadPoolExecutor newPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // ------------------- Configuration -------------------
+
+    /**
+     * @return PBKDF2 iteration count used for new hashes
+     */
+    public static int getIterations() { return iterations; }
+
+    /**
+     * Changes the cost of new hashes. Existing hashes keep their own cost and are
+     * upgraded the next time their owner logs in.
+     * @param count PBKDF2 iteration count
+     * @throws IllegalArgumentException If the count is too low
+     */
+    public static void setIterations(int count) {
+        iterations = checkIterations(count);
+    }
+
+    /**
+     * Sets how long a successful verification is remembered; 0 disables the cache.
+     * @param ttlMillis time to live in milliseconds
+     */
+    public static void setCacheTtlMillis(long ttlMillis) {
+        cacheTtlMillis = Math.max(0, ttlMillis);
+        if (ttlMillis <= 0) verified.clear();
+    }
+
+    private static int checkIterations(int count) {
+        if (count < MIN_ITERATIONS) {
+            throw new IllegalArgumentException("Password hash iterations must be at least " + MIN_ITERATIONS + ": " + count);
+        }
+        return count;
+    }
+
+    // ------------------- Hashing -------------------
+
+    /**
+     * Hashes a password with a fresh salt at the current cost, on the hashing pool.
+     * @param password plaintext password
+     * @return the encoded hash to store
+     * @throws IOException If the pool is saturated or hashing fails
+     */
+    public static String hash(String password) throws IOException {
+        return runOnPool(() -> encode(password, iterations));
+    }
+
+    /**
+     * Checks a password against a stored value (a hash, or legacy plaintext), on the hashing pool.
+     * @param username owner of the stored value; part of the cache key
+     * @param password password to check
+     * @param stored stored hash or legacy plaintext password
+     * @return true if the password matches
+     * @throws IOException If the pool is saturated or hashing fails
+     */
+    public static boolean verify(String username, String password, String stored) throws IOException {
+        if (password == null || stored == null) return false;
+        long start = System.nanoTime();
+        try {
+            String key = cacheTtlMillis > 0 ? cacheKey(username, password, stored) : null;
+            if (key != null) {
+                Long expires = verified.get(key);
+                if (expires != null && expires > System.currentTimeMillis()) {
+                    cacheHits.increment();
+                    return true;
+                }
+            }
+            boolean matches = isHash(stored)
+                    ? runOnPool(() -> matches(password, stored))
+                    : MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+            if (matches && key != null) {
+                remember(key);
+            }
+            return matches;
+        } finally {
+            verifyLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * @param stored stored hash or legacy plaintext password
+     * @return true if the value should be re-hashed: it is plaintext or uses a different cost
+     */
+    public static boolean needsRehash(String stored) {
+        if (!isHash(stored)) return true;
+        String[] parts = split(stored);
+        return parts == null || Integer.parseInt(parts[0]) != iterations;
+    }
+
+    /**
+     * @param stored a stored password value
+     * @return true if it is a PBKDF2 hash rather than legacy plaintext
+     */
+    public static boolean isHash(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    private static String encode(String password, int cost) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + cost + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(derive(password, salt, cost));
+    }
+
+    private static boolean matches(String password, String stored) throws GeneralSecurityException {
+        String[] parts = split(stored);
+        if (parts == null) return false;
+        Base64.Decoder base64 = Base64.getDecoder();
+        byte[] expected = base64.decode(parts[2]);
+        return MessageDigest.isEqual(expected, derive(password, base64.decode(parts[1]), Integer.parseInt(parts[0])));
+    }
+
+    /**
+     * @return {iterations, salt, hash} or null if the value is malformed
+     */
+    private static String[] split(String stored) {
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3 || !parts[0].matches("\\d{1,9}")) return null;
+        return parts;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int cost) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, cost, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+            hashLatency.recordSince(start);
+        }
+    }
+
+    private static <T> T runOnPool(Callable<T> task) throws IOException {
+        try {
+            return pool.submit(task).get();
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new IOException("Too many logins in progress, please try again.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Password hashing interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Password hashing failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // ------------------- Verification cache -------------------
+
+    private static String cacheKey(String username, String password, String stored) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            for (String part : new String[] {username, password, stored}) {
+                byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                mac.update((byte) (bytes.length >>> 24));
+                mac.update((byte) (bytes.length >>> 16));
+                mac.update((byte) (bytes.length >>> 8));
+                mac.update((byte) bytes.length);
+                mac.update(bytes);
+            }
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private static void remember(String key) {
+        long now = System.currentTimeMillis();
+        if (verified.size() >= CACHE_MAX_ENTRIES) {
+            for (Iterator<Long> it = verified.values().iterator(); it.hasNext(); ) {
+                if (it.next() <= now) it.remove();
+            }
+            if (verified.size() >= CACHE_MAX_ENTRIES) verified.clear();
+        }
+        verified.put(key, now + cacheTtlMillis);
+    }
+
+    // ------------------- Cost benchmark -------------------
+
+    /**
+     * Prints the time per hash and the hashing throughput of the pool for a range of costs.
+     * Usage: {@code java PasswordHasher [iterations...]}
+     * @param args iteration counts to measure; a default range if none are given
+     * @throws IOException If hashing fails
+     */
+    public static void main(String[] args) throws IOException {
+        int[] costs = args.length == 0
+                ? new int[] {100_000, 210_000, DEFAULT_ITERATIONS, 600_000}
+                : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        int threads = pool.getMaximumPoolSize();
+        for (int cost : costs) {
+            setIterations(cost);
+            hash("warm-up");
+            long start = System.nanoTime();
+            int samples = 5;
+            for (int i = 0; i < samples; i++) {
+                hash("Password1!");
+            }
+            double single = (System.nanoTime() - start) / 1e6 / samples;
+            int burst = threads * 4;
+            start = System.nanoTime();
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < burst; i++) {
+                futures.add(pool.submit(() -> encode("Password1!", cost)));
+            }
+            for (Future<String> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e);
+                }
+            }
+            double perSecond = burst * 1e9 / (System.nanoTime() - start);
+            System.out.printf("%,9d iterations: %8.1f ms per hash, %8.1f hashes/s on %d threads%n",
+                    cost, single, perSecond, threads);
+        }
+    }
+}
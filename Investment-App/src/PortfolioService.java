@@ -1,16 +1,50 @@
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Manages portfolio operations directly via User objects in users_list.ser
  */
 public class PortfolioService {
-    
+    private static final Metrics.Histogram scanLatency = Metrics.histogram("portfolio.scan_all");
+
     /**
-     * Calculates total portfolio value from the logged-in user's assets.
+     * Returns the total portfolio value of the logged-in user's assets.
+     * The total is maintained incrementally by User, so this is O(1).
      * @param user the logged-in User object
      * @return total portfolio value
      */
     public static double getTotalPortfolioValue(User user) {
-        return user.getAssets().stream()
-                .mapToDouble(Asset::getValue)
-                .sum();
+        return user.getTotalValue();
+    }
+
+    /**
+     * Returns how a user's total portfolio value changed over a time range.
+     * @param user the User object
+     * @param from start of the range in epoch milliseconds (inclusive)
+     * @param to end of the range in epoch milliseconds (exclusive)
+     * @return portfolio value snapshots in the range, oldest first
+     * @throws IOException If the history cannot be read
+     */
+    public static List<TimeSeriesStore.Point> getValueHistory(User user, long from, long to) throws IOException {
+        return UserStorage.getHistory().query(user.getUsername(), TimeSeriesStore.TOTAL, from, to);
+    }
+
+    /**
+     * Calculates the combined portfolio value of every stored user.
+     * Streams over the store with a memory-mapped cursor instead of loading all users.
+     * @return sum of all users' portfolio values
+     * @throws IOException If the store cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static double getTotalValueOfAllPortfolios() throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        double total = 0;
+        try (UserStoreCursor cursor = UserStorage.openCursor()) {
+            while (cursor.next()) {
+                total += cursor.totalValue();
+            }
+        }
+        scanLatency.recordSince(start);
+        return total;
     }
 }  
\ No newline at end of file
@@ -0,0 +1,506 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming bulk import and export of portfolio assets.
+ *
+ * <p>Files hold one row per asset: {@code username, asset, value} and optionally
+ * {@code symbol, quantity} for market-valued holdings. Two formats are accepted,
+ * chosen by file extension:</p>
+ * <ul>
+ *   <li>CSV ({@code .csv}) with an optional header line, e.g.
+ *       {@code alice,Gold,1200.50} or {@code alice,Apple,,AAPL,10}</li>
+ *   <li>JSON ({@code .json}): an array of flat objects, or one object per line, e.g.
+ *       {@code {"username":"alice","asset":"Gold","value":1200.5}}</li>
+ * </ul>
+ *
+ * <p>Import reads the file as a stream, validates each row and groups valid rows by
+ * user in batches of {@link #BATCH_ROWS}; each batch is applied with one
+ * {@link UserStorage#addAssets} call and flushed, so memory stays bounded whatever the
+ * file size. Invalid rows are skipped and reported. Export streams every stored
+ * asset out through {@link UserStoreCursor}s without loading users, formatting
+ * slices of the store shards in parallel and writing them in store order. Backup copies
+ * the store files as they are, with {@link FileUtils#copyFile}.</p>
+ *
+ * <p>Usage: {@code java PortfolioTransfer import|export <file.csv|file.json>} or
+ * {@code java PortfolioTransfer backup <directory>}</p>
+ */
+public class PortfolioTransfer {
+    static final int BATCH_ROWS = 10_000;
+    private static final int EXPORT_SLICES_PER_THREAD = 4;
+    private static final int MAX_REPORTED_REJECTS = 20;
+
+    /**
+     * Counters of one import or export run.
+     */
+    public static final class Summary {
+        long rows;
+        long rejected;
+        long users;
+        long elapsedNanos;
+        final List<String> rejects = new ArrayList<>();
+
+        /**
+         * @return rows processed per second
+         */
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        /**
+         * @return number of rows that were skipped as invalid
+         */
+        public long getRejected() { return rejected; }
+
+        void reject(String where, String reason) {
+            rejected++;
+            if (rejects.size() < MAX_REPORTED_REJECTS) {
+                rejects.add(where + ": " + reason);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder(String.format("%,d rows (%,d rejected) for %,d users in %.1f ms, %,.0f rows/s",
+                    rows, rejected, users, elapsedNanos / 1_000_000.0, getRowsPerSecond()));
+            for (String reject : rejects) {
+                out.append(System.lineSeparator()).append("  rejected ").append(reject);
+            }
+            if (rejected > rejects.size()) {
+                out.append(System.lineSeparator()).append("  ... and ").append(rejected - rejects.size()).append(" more");
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * Receives parsed rows from a reader.
+     */
+    private interface RowHandler {
+        void row(String where, Map<String, String> fields) throws IOException;
+    }
+
+    // ------------------- Import -------------------
+
+    /**
+     * Imports assets from a CSV or JSON file.
+     * @param file file to read; the format is chosen by its extension
+     * @return counts of imported and rejected rows
+     * @throws IOException If the file cannot be read, is not valid JSON, or the store cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static Summary importFile(File file) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        Summary summary = new Summary();
+        Batch batch = new Batch(summary);
+        RowHandler handler = (where, fields) -> batch.add(where, fields);
+        if (isJson(file)) {
+            try (Reader in = FileUtils.openReader(file.getPath())) {
+                new JsonRows(in).forEach(handler);
+            }
+        } else {
+            readCsv(file, summary, handler);
+        }
+        batch.apply();
+        UserStorage.flush();
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Valid rows waiting to be applied, grouped by user.
+     */
+    private static final class Batch {
+        private final Summary summary;
+        private final Map<String, List<Asset>> byUser = new LinkedHashMap<>();
+        private final Set<String> seenUsers = new HashSet<>(); // users can span batches
+        private int rows;
+
+        Batch(Summary summary) {
+            this.summary = summary;
+        }
+
+        void add(String where, Map<String, String> fields) throws IOException {
+            summary.rows++;
+            Asset asset;
+            try {
+                asset = toAsset(fields);
+            } catch (IllegalArgumentException e) {
+                summary.reject(where, e.getMessage());
+                return;
+            }
+            byUser.computeIfAbsent(fields.get("username"), name -> new ArrayList<>()).add(asset);
+            if (++rows >= BATCH_ROWS) {
+                apply();
+            }
+        }
+
+        void apply() throws IOException {
+            if (byUser.isEmpty()) return;
+            Map<User, List<Asset>> additions = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<String, List<Asset>> entry : byUser.entrySet()) {
+                    User user = UserStorage.findUser(entry.getKey());
+                    if (user == null) {
+                        for (int i = 0; i < entry.getValue().size(); i++) {
+                            summary.reject("user " + entry.getKey(), "unknown user");
+                        }
+                        continue;
+                    }
+                    additions.put(user, entry.getValue());
+                }
+                UserStorage.addAssets(additions);
+                UserStorage.flush(); // keep the cache's dirty set bounded by one batch
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Cannot load users: " + e.getMessage(), e);
+            }
+            for (User user : additions.keySet()) {
+                if (seenUsers.add(user.getUsername())) summary.users++;
+            }
+            byUser.clear();
+            rows = 0;
+        }
+    }
+
+    /**
+     * Validates a row and turns it into an asset.
+     * @throws IllegalArgumentException If a field is missing or invalid
+     */
+    private static Asset toAsset(Map<String, String> fields) {
+        String username = fields.get("username");
+        String name = fields.get("asset");
+        if (username == null || username.isBlank()) throw new IllegalArgumentException("missing username");
+        if (name == null || name.isBlank()) throw new IllegalArgumentException("missing asset name");
+        String symbol = fields.get("symbol");
+        if (symbol != null && !symbol.isBlank()) {
+            double quantity = parseNumber(fields.get("quantity"), "quantity");
+            if (!(quantity > 0)) throw new IllegalArgumentException("quantity must be positive");
+            String canonical = ValuationEngine.normalize(symbol);
+            double price = ValuationEngine.getPrice(canonical);
+            String value = fields.get("value");
+            double assetValue = Double.isNaN(price) ? parseNumber(value, "value (no market price for " + canonical + ")")
+                    : quantity * price;
+            return new Asset(name, canonical, quantity, checkValue(assetValue));
+        }
+        return new Asset(name, checkValue(parseNumber(fields.get("value"), "value")));
+    }
+
+    private static double parseNumber(String text, String field) {
+        if (text == null || text.isBlank()) throw new IllegalArgumentException("missing " + field);
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + field + ": " + text);
+        }
+    }
+
+    private static double checkValue(double value) {
+        if (!(value >= 0) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("value must be a non-negative number: " + value);
+        }
+        return value;
+    }
+
+    private static void readCsv(File file, Summary summary, RowHandler handler) throws IOException {
+        String[] columns = {"username", "asset", "value", "symbol", "quantity"};
+        FileUtils.forEachLine(file.getPath(), (line, lineNumber) -> {
+            if (line.isBlank()) return;
+            String where = "line " + lineNumber;
+            List<String> values;
+            try {
+                values = FileUtils.parseCsvLine(line);
+            } catch (IllegalArgumentException e) {
+                summary.rows++;
+                summary.reject(where, e.getMessage());
+                return;
+            }
+            if (lineNumber == 1 && values.get(0).trim().equalsIgnoreCase("username")) return; // header
+            Map<String, String> fields = new LinkedHashMap<>();
+            for (int i = 0; i < columns.length && i < values.size(); i++) {
+                fields.put(columns[i], values.get(i).trim());
+            }
+            handler.row(where, fields);
+        });
+    }
+
+    // ------------------- Export -------------------
+
+    /**
+     * Writes every stored asset to a CSV or JSON file, streaming over the store.
+     * Slices of the store are formatted in parallel, with a bounded number in flight.
+     * @param file file to write; the format is chosen by its extension
+     * @return counts of exported rows and users
+     * @throws IOException If the store cannot be read or the file cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static Summary exportFile(File file) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        Summary summary = new Summary();
+        boolean json = isJson(file);
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<UserStoreCursor> cursors = UserStorage.openCursors(threads * EXPORT_SLICES_PER_THREAD);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (Writer out = FileUtils.openWriter(file.getPath())) {
+            out.write(json ? "[" : "username,asset,value,symbol,quantity\n");
+            Deque<Future<ExportSlice>> inFlight = new ArrayDeque<>();
+            int submitted = 0;
+            while (submitted < cursors.size() || !inFlight.isEmpty()) {
+                while (submitted < cursors.size() && inFlight.size() < threads * 2) {
+                    UserStoreCursor cursor = cursors.get(submitted++);
+                    inFlight.add(pool.submit(() -> exportSlice(cursor, json)));
+                }
+                ExportSlice slice = inFlight.removeFirst().get();
+                // JSON slices start every row with a separator; the first row of the file needs none
+                int skip = json && summary.rows == 0 && slice.rows > 0 ? 1 : 0;
+                out.append(slice.text, skip, slice.text.length());
+                summary.rows += slice.rows;
+                summary.users += slice.users;
+            }
+            if (json) {
+                out.write("\n]\n");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Export failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+            for (UserStoreCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Formatted rows of one slice of the store.
+     */
+    private static final class ExportSlice {
+        final StringBuilder text = new StringBuilder();
+        long rows;
+        long users;
+    }
+
+    private static ExportSlice exportSlice(UserStoreCursor cursor, boolean json) throws IOException {
+        ExportSlice slice = new ExportSlice();
+        StringBuilder line = slice.text;
+        while (cursor.next()) {
+            if (cursor.assetCount() == 0) continue;
+            String username = cursor.username();
+            slice.users++;
+            while (cursor.nextAsset()) {
+                String symbol = cursor.assetSymbol();
+                if (json) {
+                    line.append(",\n{\"username\":");
+                    appendJsonString(line, username);
+                    line.append(",\"asset\":");
+                    appendJsonString(line, cursor.assetName());
+                    line.append(",\"value\":").append(cursor.assetValue());
+                    if (symbol != null) {
+                        line.append(",\"symbol\":");
+                        appendJsonString(line, symbol);
+                        line.append(",\"quantity\":").append(cursor.assetQuantity());
+                    }
+                    line.append('}');
+                } else {
+                    FileUtils.appendCsvField(line, username);
+                    line.append(',');
+                    FileUtils.appendCsvField(line, cursor.assetName());
+                    line.append(',').append(cursor.assetValue()).append(',');
+                    if (symbol != null) {
+                        FileUtils.appendCsvField(line, symbol);
+                        line.append(',').append(cursor.assetQuantity());
+                    } else {
+                        line.append(',');
+                    }
+                    line.append('\n');
+                }
+                slice.rows++;
+            }
+        }
+        return slice;
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static boolean isJson(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".json");
+    }
+
+    // ------------------- JSON -------------------
+
+    /**
+     * Minimal streaming reader for a JSON array of flat objects (or one object per line).
+     * Values may be strings, numbers, booleans or null; nested values are not supported.
+     */
+    private static final class JsonRows {
+        private final Reader in;
+        private int next;
+        private long line = 1;
+
+        JsonRows(Reader in) throws IOException {
+            this.in = in;
+            this.next = in.read();
+        }
+
+        void forEach(RowHandler handler) throws IOException {
+            skipWhitespace();
+            boolean array = next == '[';
+            if (array) advance();
+            long record = 0;
+            while (true) {
+                skipWhitespace();
+                if (next == -1 || (array && next == ']')) return;
+                if (next == ',') {
+                    advance();
+                    continue;
+                }
+                long startLine = line;
+                Map<String, String> fields = readObject();
+                handler.row("record " + (++record) + " (line " + startLine + ")", fields);
+            }
+        }
+
+        private Map<String, String> readObject() throws IOException {
+            expect('{');
+            Map<String, String> fields = new LinkedHashMap<>();
+            skipWhitespace();
+            if (next == '}') {
+                advance();
+                return fields;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                fields.put(key, readValue());
+                skipWhitespace();
+                if (next == ',') {
+                    advance();
+                } else {
+                    expect('}');
+                    return fields;
+                }
+            }
+        }
+
+        private String readValue() throws IOException {
+            if (next == '"') return readString();
+            StringBuilder literal = new StringBuilder();
+            while (next != -1 && next != ',' && next != '}' && !Character.isWhitespace(next)) {
+                if (next == '{' || next == '[') throw syntaxError("nested values are not supported");
+                literal.append((char) next);
+                advance();
+            }
+            String value = literal.toString();
+            if (value.isEmpty()) throw syntaxError("missing value");
+            return value.equals("null") ? null : value;
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (next != '"') {
+                if (next == -1 || next == '\n') throw syntaxError("unterminated string");
+                if (next == '\\') {
+                    advance();
+                    switch (next) {
+                        case 'n': value.append('\n'); break;
+                        case 't': value.append('\t'); break;
+                        case 'r': value.append('\r'); break;
+                        case 'b': value.append('\b'); break;
+                        case 'f': value.append('\f'); break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            for (int i = 0; i < 4; i++) {
+                                advance();
+                                hex[i] = (char) next;
+                            }
+                            try {
+                                value.append((char) Integer.parseInt(new String(hex), 16));
+                            } catch (NumberFormatException e) {
+                                throw syntaxError("bad \\u escape");
+                            }
+                            break;
+                        default: value.append((char) next);
+                    }
+                } else {
+                    value.append((char) next);
+                }
+                advance();
+            }
+            advance();
+            return value.toString();
+        }
+
+        private void expect(char c) throws IOException {
+            if (next != c) throw syntaxError("expected '" + c + "'");
+            advance();
+        }
+
+        private void skipWhitespace() throws IOException {
+            while (next != -1 && Character.isWhitespace(next)) advance();
+        }
+
+        private void advance() throws IOException {
+            if (next == '\n') line++;
+            next = in.read();
+        }
+
+        private IOException syntaxError(String message) {
+            return new IOException("Invalid JSON at line " + line + ": " + message);
+        }
+    }
+
+    /**
+     * Runs an import, export or backup from the command line and prints its summary.
+     * @param args {@code import|export <file>} or {@code backup <directory>}
+     * @throws IOException If a file or the store cannot be read or written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export") || args[0].equals("backup"))) {
+            System.out.println("Usage: java PortfolioTransfer import|export <file.csv|file.json>");
+            System.out.println("       java PortfolioTransfer backup <directory>");
+            return;
+        }
+        File file = new File(args[1]);
+        if (args[0].equals("import")) {
+            System.out.println("Imported " + importFile(file));
+        } else if (args[0].equals("export")) {
+            System.out.println("Exported " + exportFile(file));
+        } else {
+            long start = System.nanoTime();
+            long bytes = UserStorage.backup(file);
+            System.out.printf("Backed up %,d bytes to %s in %.1f ms%n", bytes, file, (System.nanoTime() - start) / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which users logged in most recently, so that after a restart they can be
+ * loaded into the user cache before they log in again.
+ * The names are kept in memory in login order (oldest first), bounded in number, and
+ * written to a file on every {@link UserStorage#flush}; a missing or unreadable file
+ * only means there is nothing to warm up.
+ *
+ * <p>File layout: one username per line, UTF-8, most recent last.</p>
+ */
+public class RecentUsers {
+    private static final int DEFAULT_WARMUP_USERS = 1_000;
+
+    private final File file;
+    private final int capacity;
+    private final Map<String, Boolean> logins;
+    private boolean changed;
+
+    private static final Metrics.Counter usersWarmed = Metrics.counter("warmup.users");
+    private static final Metrics.Histogram warmupLatency = Metrics.histogram("warmup.duration");
+
+    /**
+     * @param file file the names are written to and read from
+     * @param capacity number of names kept
+     */
+    public RecentUsers(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+        this.logins = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > RecentUsers.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return number of users to warm up on startup, set with {@code -Dinvestment.warmupUsers}
+     *         (0 turns warm-up off)
+     */
+    public static int configuredWarmupUsers() {
+        return Integer.getInteger("investment.warmupUsers", DEFAULT_WARMUP_USERS);
+    }
+
+    /**
+     * Records a successful login.
+     * @param username user who logged in
+     */
+    public synchronized void loggedIn(String username) {
+        logins.put(username, Boolean.TRUE);
+        changed = true;
+    }
+
+    /**
+     * @return the remembered usernames, oldest login first
+     */
+    public synchronized List<String> getUsernames() {
+        return new ArrayList<>(logins.keySet());
+    }
+
+    /**
+     * Reads the file written by an earlier run. Names already recorded in this run stay
+     * more recent than the ones read.
+     * @throws IOException If the file exists but cannot be read
+     */
+    public synchronized void load() throws IOException {
+        if (!file.exists()) return;
+        List<String> current = new ArrayList<>(logins.keySet());
+        logins.clear();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) logins.put(line, Boolean.TRUE);
+        }
+        for (String username : current) {
+            logins.put(username, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Writes the names to the file if they changed since the last save.
+     * @throws IOException If the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (!changed) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             Writer out = new BufferedWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8))) {
+            for (String username : logins.keySet()) {
+                out.write(username);
+                out.write('\n');
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changed = false;
+    }
+
+    /**
+     * Starts a background thread that loads the most recent users into the cache and
+     * decodes their portfolios, most recent first, so their next login and first page
+     * do not wait on the disk.
+     * @param store store whose cache receives the users
+     * @param count maximum number of users to load
+     */
+    public void warmUp(ShardedUserStore store, int count) {
+        if (count <= 0) return;
+        Thread warmer = new Thread(() -> {
+            long start = System.nanoTime();
+            List<String> usernames = getUsernames();
+            int loaded = 0;
+            for (int i = usernames.size() - 1; i >= 0 && loaded < count; i--) {
+                try {
+                    User user = store.get(usernames.get(i));
+                    if (user == null) continue;
+                    user.getTotalValue(); // decodes the assets
+                    loaded++;
+                } catch (IOException | ClassNotFoundException e) {
+                    System.err.println("[ERROR] Could not warm up user " + usernames.get(i) + ": " + e.getMessage());
+                }
+            }
+            usersWarmed.add(loaded);
+            warmupLatency.recordSince(start);
+        }, "user-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A logged-in user session, identified by a random token.
+ * Sessions are created and tracked by {@link SessionManager}.
+ * A session remembers the portfolio it last showed, so asset positions chosen by
+ * the client refer to what it saw even if another session changed the portfolio since.
+ * It holds the username rather than a {@link User}: the user cache may evict and reload
+ * a user at any time, so the user is looked up again on every request.
+ */
+public class Session {
+    private final String token;
+    private final String username;
+    private final long createdAt;
+    private volatile long lastAccess;
+    private volatile Listing listing;
+
+    /**
+     * A portfolio as shown to the client, with the user version it was read at.
+     */
+    static final class Listing {
+        final long version;
+        final List<Asset> assets;
+
+        Listing(long version, List<Asset> assets) {
+            this.version = version;
+            this.assets = assets;
+        }
+    }
+
+    /**
+     * Constructs a new Session for a logged-in user.
+     * @param token unique session token
+     * @param username the logged-in user's name
+     * @param createdAt creation time in epoch milliseconds
+     */
+    public Session(String token, String username, long createdAt) {
+        this.token = token;
+        this.username = username;
+        this.createdAt = createdAt;
+        this.lastAccess = createdAt;
+    }
+
+    /**
+     * @return the session token
+     */
+    public String getToken() { return token; }
+
+    /**
+     * @return name of the user this session belongs to
+     */
+    public String getUsername() { return username; }
+
+    /**
+     * Looks up the current instance of the session's user, the one changes are applied to.
+     * @return the user this session belongs to
+     * @throws IOException If the user cannot be read or no longer exists
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public User getUser() throws IOException, ClassNotFoundException {
+        User user = UserStorage.findUser(username);
+        if (user == null) {
+            throw new IOException("User not found in storage: " + username);
+        }
+        return user;
+    }
+
+    /**
+     * @return creation time in epoch milliseconds
+     */
+    public long getCreatedAt() { return createdAt; }
+
+    /**
+     * @return time of the last request on this session in epoch milliseconds
+     */
+    public long getLastAccess() { return lastAccess; }
+
+    /**
+     * @return the portfolio last shown to the client, or null if none was shown yet
+     */
+    Listing getListing() { return listing; }
+
+    /**
+     * Remembers the portfolio shown to the client.
+     * @param listing version and assets as shown
+     */
+    void setListing(Listing listing) {
+        this.listing = listing;
+    }
+
+    /**
+     * Marks the session as used, postponing its idle expiry.
+     * @param now current time in epoch milliseconds
+     */
+    void touch(long now) {
+        lastAccess = now;
+    }
+
+    /**
+     * @param now current time in epoch milliseconds
+     * @param idleTimeoutMillis maximum allowed idle time
+     * @return true if the session has been idle for longer than the timeout
+     */
+    boolean isIdle(long now, long idleTimeoutMillis) {
+        return now - lastAccess > idleTimeoutMillis;
+    }
+}
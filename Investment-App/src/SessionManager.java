@@ -1,22 +1,88 @@
 import java.io.IOException;
-import java.util.HashMap;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 /**
- * Manages login attempts, tracks the current logged-in user, and persists user data on logout.
+ * Manages login attempts and logged-in sessions.
+ * User changes are stored as they are made (see {@link UserStorage}), so ending a
+ * session never writes its copy of the user back over changes made by other sessions.
+ * Any number of sessions can be active at once; each is identified by a random token.
+ * Failed-attempt counters are per username and unlock automatically after a lockout period.
+ * Idle sessions are evicted by a background sweeper.
  */
 public class SessionManager {
-    private static Map<String, Integer> failedAttempts = new HashMap<>();
-    private static final int MAX_ATTEMPTS = 3;
-    private static User currentUser = null;
+    static final int MAX_ATTEMPTS = 3;
+    static final long LOCKOUT_MS = 5 * 60_000;
+    static final long IDLE_TIMEOUT_MS = 30 * 60_000;
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private static final Map<String, LoginAttempts> failedAttempts = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile String consoleToken = null;
+    static volatile LongSupplier clock = System::currentTimeMillis; // replaced by tests
+
+    private static final Metrics.Counter sessionsCreated = Metrics.counter("session.created");
+    private static final Metrics.Counter sessionsEvicted = Metrics.counter("session.evicted");
+    private static final Metrics.Counter loginFailures = Metrics.counter("session.login_failures");
+    private static final Metrics.Counter lockouts = Metrics.counter("session.lockouts");
+
+    static {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(SessionManager::evictIdle, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Metrics.gauge("session.active", SessionManager::getActiveSessionCount);
+    }
+
+    /**
+     * Failed login attempts for one username. Instances are immutable and replaced as a
+     * whole, so the count and the lock it triggered are always seen together.
+     */
+    private static final class LoginAttempts {
+        final int count;
+        final long lockedUntil;
+        final long lastFailure;
+
+        LoginAttempts(int count, long lockedUntil, long lastFailure) {
+            this.count = count;
+            this.lockedUntil = lockedUntil;
+            this.lastFailure = lastFailure;
+        }
+
+        boolean isLocked(long now) {
+            return count >= MAX_ATTEMPTS && now < lockedUntil;
+        }
+
+        boolean lockExpired(long now) {
+            return count >= MAX_ATTEMPTS && now >= lockedUntil;
+        }
+    }
+
+    // ------------------- Login attempts -------------------
 
     /**
      * Checks if the account is locked due to failed attempts.
+     * A lock expires on its own once the lockout period has passed.
      * @param username the username to check
      * @return true if locked
      */
     public static boolean isLocked(String username) {
-        return failedAttempts.getOrDefault(username, 0) >= MAX_ATTEMPTS;
+        LoginAttempts attempts = failedAttempts.get(username);
+        if (attempts == null) return false;
+        long now = clock.getAsLong();
+        if (attempts.isLocked(now)) return true;
+        // Only forget this very state: a failure recorded meanwhile replaced it
+        if (attempts.lockExpired(now)) failedAttempts.remove(username, attempts);
+        return false;
     }
 
     /**
@@ -24,7 +90,20 @@ public class SessionManager {
      * @param username the username to track
      */
     public static void recordFailure(String username) {
-        failedAttempts.put(username, failedAttempts.getOrDefault(username, 0) + 1);
+        long now = clock.getAsLong();
+        LoginAttempts attempts = failedAttempts.compute(username, (name, previous) -> {
+            if (previous == null || previous.lockExpired(now)) {
+                return new LoginAttempts(1, 0, now);
+            }
+            int count = previous.count + 1;
+            long lockedUntil = count == MAX_ATTEMPTS ? now + LOCKOUT_MS : previous.lockedUntil;
+            return new LoginAttempts(count, lockedUntil, now);
+        });
+        loginFailures.increment();
+        // compute runs one update at a time, so exactly one caller sees the count reach the limit
+        if (attempts.count == MAX_ATTEMPTS) {
+            lockouts.increment();
+        }
     }
 
     /**
@@ -35,34 +114,131 @@ public class SessionManager {
         failedAttempts.remove(username);
     }
 
+    // ------------------- Sessions -------------------
+
+    /**
+     * Starts a new session for a logged-in user.
+     * @param user the authenticated user
+     * @return the new session's token
+     */
+    public static String createSession(User user) {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(token, user.getUsername(), clock.getAsLong()));
+        sessionsCreated.increment();
+        return token;
+    }
+
+    /**
+     * Looks up an active session and marks it as used.
+     * A session found idle for too long is ended, even if the sweeper has not got to it yet.
+     * @param token session token
+     * @return the session, or null if the token is unknown or expired
+     */
+    public static Session getSession(String token) {
+        if (token == null) return null;
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        long now = clock.getAsLong();
+        if (session.isIdle(now, IDLE_TIMEOUT_MS)) {
+            if (sessions.remove(token, session)) sessionsEvicted.increment();
+            return null;
+        }
+        session.touch(now);
+        return session;
+    }
+
     /**
-     * Sets the currently logged-in user and updates the session.
+     * @param token session token
+     * @return the session's user, or null if the token is unknown or expired
+     * @throws IOException If the user cannot be read or no longer exists
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static User getUser(String token) throws IOException, ClassNotFoundException {
+        Session session = getSession(token);
+        return session == null ? null : session.getUser();
+    }
+
+    /**
+     * Ends a session.
+     * @param token session token
+     */
+    public static void logout(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    /**
+     * @return number of active sessions
+     */
+    public static int getActiveSessionCount() {
+        return sessions.size();
+    }
+
+    // ------------------- Console session -------------------
+
+    /**
+     * Sets the currently logged-in user of the console client and starts its session.
      * @param user the active user
      */
     public static void setCurrentUser(User user) {
-        currentUser = user;
+        consoleToken = user == null ? null : createSession(user);
     }
 
     /**
-     * @return the current logged-in user, or null if no session is active
+     * Makes an existing session the console client's current session.
+     * @param token session token returned by {@link InvestmentService#login}
      */
-    public static User getCurrentUser() {
-        return currentUser;
+    public static void setConsoleSession(String token) {
+        consoleToken = token;
     }
 
     /**
-     * Logs out the current user and persists their data (e.g., assets).
-     * Automatically saves changes to the user's profile via UserStorage.
+     * @return the console's logged-in user, or null if no session is active
+     * @throws IOException If the user cannot be read or no longer exists
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static User getCurrentUser() throws IOException, ClassNotFoundException {
+        return getUser(consoleToken);
+    }
+
+    /**
+     * Logs out the console user and writes pending user changes to disk.
      */
     public static void logout() {
-        if (currentUser != null) {
-            try {
-                UserStorage.updateUser(currentUser); // Persist user data (including assets)
-                System.out.println("User data saved successfully.");
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error saving user data: " + e.getMessage());
-            }
-            currentUser = null;
+        Session session = consoleToken == null ? null : sessions.remove(consoleToken);
+        consoleToken = null;
+        if (session != null && flush()) {
+            System.out.println("User data saved successfully.");
+        }
+    }
+
+    // ------------------- Housekeeping -------------------
+
+    /**
+     * Removes sessions that have been idle too long
+     * and forgets failed-attempt counters whose lockout has expired.
+     */
+    static void evictIdle() {
+        long now = clock.getAsLong();
+        sessions.values().removeIf(session -> {
+            if (!session.isIdle(now, IDLE_TIMEOUT_MS)) return false;
+            sessionsEvicted.increment();
+            return true;
+        });
+        failedAttempts.values().removeIf(attempts ->
+                now - attempts.lastFailure > LOCKOUT_MS && now >= attempts.lockedUntil);
+    }
+
+    private static boolean flush() {
+        try {
+            UserStorage.flush();
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error saving user data: " + e.getMessage());
+            return false;
         }
     }
-}
\ No newline at end of file
+}
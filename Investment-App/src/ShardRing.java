@@ -0,0 +1,76 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Consistent-hash ring that maps usernames to shard numbers.
+ * Every shard owns {@link #VIRTUAL_NODES} points on a 64-bit ring, and a username
+ * belongs to the shard owning the first point at or after the username's hash.
+ * A shard's points depend only on its number, so growing from N to N+1 shards
+ * moves only the roughly 1/(N+1) of users that land on the new shard's points.
+ */
+public final class ShardRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final int shardCount;
+    private final long[] points; // sorted
+    private final int[] owners;  // shard owning points[i]
+
+    /**
+     * @param shardCount number of shards, at least 1
+     * @throws IllegalArgumentException If the count is not positive
+     */
+    public ShardRing(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+        }
+        this.shardCount = shardCount;
+        int size = shardCount * VIRTUAL_NODES;
+        long[][] entries = new long[size][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                entries[shard * VIRTUAL_NODES + node] = new long[] {hash("shard-" + shard + "#" + node), shard};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[size];
+        owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    /**
+     * @return number of shards on the ring
+     */
+    public int getShardCount() { return shardCount; }
+
+    /**
+     * @param username a username
+     * @return the shard (0 .. shardCount-1) the user belongs to
+     */
+    public int shardOf(String username) {
+        if (shardCount == 1) return 0;
+        int at = Arrays.binarySearch(points, hash(username));
+        if (at < 0) at = -at - 1;
+        return owners[at == points.length ? 0 : at];
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so
+     * that similar names spread over the whole ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
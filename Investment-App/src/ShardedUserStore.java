@@ -0,0 +1,584 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User store split over several {@link PagedUserStore} shards, each with its own
+ * data and index files, lock and {@link UserCache}. Users are assigned to shards
+ * by a {@link ShardRing}, so writes to users on different shards never wait for
+ * each other and bulk scans can read the shards in parallel.
+ *
+ * <p>Shard {@code i} lives in {@code users-i.dat} / {@code users-i.idx}. The shard
+ * count is recorded in a small manifest ({@code users.shards}). When the store is
+ * opened with a different count, the users whose shard changes are moved before
+ * the store is used; the manifest records the target count while the move runs,
+ * so an interrupted rebalance resumes on the next start. A single-file store
+ * from an older version ({@code users.dat} / {@code users.idx}) becomes shard 0 and
+ * is rebalanced the same way.</p>
+ *
+ * <p>An open store registers one shutdown hook that drains every shard's cache;
+ * {@link #close} does the same, closes the shard files and removes the hook.</p>
+ */
+public class ShardedUserStore implements Flushable, Closeable {
+    static final String MANIFEST_FILENAME = "users.shards";
+    static final String LEGACY_DATA_FILENAME = "users.dat";
+    static final String LEGACY_INDEX_FILENAME = "users.idx";
+    static final int DEFAULT_SHARDS = 4;
+    private static final int MOVE_BATCH = 10_000;
+
+    private final File directory;
+    private final ShardRing ring;
+    private final PagedUserStore[] stores;
+    private final UserCache[] caches;
+    private ScheduledExecutorService compactor;
+    private Thread shutdownHook; // set by open
+    private boolean closed;
+
+    private ShardedUserStore(File directory, int shardCount, int cacheEntries, long flushIntervalMillis)
+        throws IOException, ClassNotFoundException {
+        this.directory = directory;
+        this.ring = new ShardRing(shardCount);
+        Properties manifest = readManifest();
+        if (manifest == null) {
+            manifest = adoptLegacyStore(shardCount);
+        }
+        int current = Integer.parseInt(manifest.getProperty("shards"));
+        String target = manifest.getProperty("target");
+        if (target != null) {
+            // A previous rebalance was interrupted; finish it before anything else
+            current = rebalance(current, Integer.parseInt(target));
+        }
+        if (current != shardCount) {
+            rebalance(current, shardCount);
+        }
+        this.stores = new PagedUserStore[shardCount];
+        this.caches = new UserCache[shardCount];
+        int perShard = Math.max(1, cacheEntries / shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            stores[shard] = openShard(shard);
+            caches[shard] = UserCache.open(stores[shard], perShard, flushIntervalMillis);
+        }
+    }
+
+    /**
+     * Opens (or creates) the sharded store in a directory, rebalancing it first if it
+     * was last used with a different shard count, and registers its shutdown hook.
+     * @param directory directory holding the shard files and manifest
+     * @param shardCount number of shards to use
+     * @param cacheEntries total number of cached users, divided between the shards
+     * @param flushIntervalMillis delay between write-behind flushes of each shard's cache
+     * @return the open store; close it when done
+     * @throws IOException If a shard cannot be opened or the rebalance fails
+     * @throws ClassNotFoundException If a record cannot be deserialized
+     */
+    public static ShardedUserStore open(File directory, int shardCount, int cacheEntries, long flushIntervalMillis)
+        throws IOException, ClassNotFoundException {
+        ShardedUserStore store = new ShardedUserStore(directory, shardCount, cacheEntries, flushIntervalMillis);
+        store.shutdownHook = new Thread(store::closeCaches, "user-store-shutdown");
+        Runtime.getRuntime().addShutdownHook(store.shutdownHook);
+        return store;
+    }
+
+    /**
+     * @return the shard count configured with {@code -Dinvestment.shards}, or the default
+     */
+    public static int configuredShardCount() {
+        return Integer.getInteger("investment.shards", DEFAULT_SHARDS);
+    }
+
+    // ------------------- Routing -------------------
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() { return stores.length; }
+
+    /**
+     * @param username a username
+     * @return number of the shard that owns the user
+     */
+    public int shardOf(String username) {
+        return ring.shardOf(username);
+    }
+
+    /**
+     * @param username a username
+     * @return the cache of the shard that owns the user
+     */
+    UserCache cacheFor(String username) {
+        return caches[ring.shardOf(username)];
+    }
+
+    /**
+     * Returns a user from the owning shard's cache, loading it on a miss.
+     * @param username Username to look up
+     * @return the cached user, or null if no such user exists
+     * @throws IOException If the record cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public User get(String username) throws IOException, ClassNotFoundException {
+        return cacheFor(username).get(username);
+    }
+
+    /**
+     * Claims the cached instance of a user for a change (see {@link UserCache#claim}).
+     * Callers hold the user's lock and make the change only if this returns true.
+     * @param user a user instance returned by {@link #get}
+     * @return false if the instance is no longer cached; look the user up again and retry
+     * @throws IOException If the user is not stored
+     */
+    public boolean claim(User user) throws IOException {
+        return cacheFor(user.getUsername()).claim(user);
+    }
+
+    /**
+     * Installs another instance of a user in place of the cached one (see {@link UserCache#replace}).
+     * @param current the instance the cache is expected to hold
+     * @param replacement the instance to cache and write back from now on
+     * @return false if {@code current} is no longer cached
+     * @throws IOException If the user is not stored
+     */
+    public boolean replace(User current, User replacement) throws IOException {
+        return cacheFor(current.getUsername()).replace(current, replacement);
+    }
+
+    /**
+     * @param username Username to check
+     * @return true if the user is stored
+     */
+    public boolean contains(String username) {
+        return cacheFor(username).contains(username);
+    }
+
+    /**
+     * Stores a new user in its shard.
+     * @param user User to store
+     * @throws IOException If the user already exists or the write fails
+     */
+    public void insert(User user) throws IOException {
+        cacheFor(user.getUsername()).insert(user);
+    }
+
+    /**
+     * Marks a user as changed so its shard writes it back on the next flush.
+     * @param user User whose state changed
+     * @throws IOException If the user is not stored
+     */
+    public void markDirty(User user) throws IOException {
+        cacheFor(user.getUsername()).markDirty(user);
+    }
+
+    /**
+     * Registers a log that every shard flushes before writing user records.
+     * @param flushable the write-ahead log
+     */
+    public void setWriteAhead(Flushable flushable) {
+        for (UserCache cache : caches) {
+            cache.setWriteAhead(flushable);
+        }
+    }
+
+    /**
+     * Writes every shard's pending updates to disk.
+     * @throws IOException If a shard cannot be written
+     */
+    @Override
+    public void flush() throws IOException {
+        for (UserCache cache : caches) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Stops background compaction, drains every shard's cache and closes the shard files.
+     * @throws IOException If a shard cannot be written or closed; the others are still closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (compactor != null) {
+            // Let a compaction in progress finish: interrupting it would close the shard's channels
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping user store compaction");
+            }
+        }
+        IOException failure = closeCaches();
+        for (PagedUserStore store : stores) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down; the hook is running or has run
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Stops every shard's flusher and writes its pending changes. Run at shutdown.
+     * @return the first failure, or null; every shard is attempted
+     */
+    private IOException closeCaches() {
+        IOException failure = null;
+        for (UserCache cache : caches) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                System.err.println("[ERROR] Failed to flush cached users: " + e.getMessage());
+                if (failure == null) failure = e;
+            }
+        }
+        return failure;
+    }
+
+    // ------------------- Scans -------------------
+
+    /**
+     * Opens a cursor that scans every shard in turn. Every shard is pinned when the cursor
+     * is opened, so the cursor sees each record as it was then. Flush first so it sees cached changes.
+     * @return a cursor positioned before the first user
+     * @throws IOException If a shard cannot be mapped
+     */
+    public UserStoreCursor openCursor() throws IOException {
+        return new UserStoreCursor(Arrays.asList(stores));
+    }
+
+    /**
+     * Opens cursors over disjoint slices of the shards, each shard getting a share of
+     * the cursors proportional to its size and at least one. The cursors of a shard all
+     * see its records as they were when they were opened. Flush first so they see cached changes.
+     * @param parts desired total number of cursors
+     * @return cursors covering every shard; close each when done
+     * @throws IOException If a shard cannot be mapped
+     */
+    public List<UserStoreCursor> openCursors(int parts) throws IOException {
+        long total = Math.max(1, size());
+        List<UserStoreCursor> cursors = new ArrayList<>();
+        try {
+            for (PagedUserStore store : stores) {
+                int shardParts = (int) Math.max(1, Math.round((double) parts * store.size() / total));
+                cursors.addAll(store.openCursors(shardParts));
+            }
+        } catch (IOException e) {
+            for (UserStoreCursor cursor : cursors) {
+                cursor.close();
+            }
+            throw e;
+        }
+        return cursors;
+    }
+
+    /**
+     * Reads every stored user. Flush first so the result includes cached changes.
+     * @return all users, shard by shard
+     * @throws IOException If a record cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public List<User> readAll() throws IOException, ClassNotFoundException {
+        List<User> users = new ArrayList<>(size());
+        for (PagedUserStore store : stores) {
+            users.addAll(store.readAll());
+        }
+        return users;
+    }
+
+    // ------------------- Maintenance -------------------
+
+    /**
+     * Imports every user from a legacy serialized user list (the old users_list.ser format),
+     * with one batched write per shard. Users that already exist are skipped.
+     * @param legacyFile serialized {@code List<User>} file
+     * @return number of users imported
+     * @throws IOException If the legacy file cannot be read or a shard cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    @SuppressWarnings("unchecked")
+    public int migrateFrom(File legacyFile) throws IOException, ClassNotFoundException {
+        List<User> legacyUsers;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))) {
+            legacyUsers = (List<User>) ois.readObject();
+        }
+        Map<Integer, Map<String, User>> byShard = new HashMap<>();
+        for (User user : legacyUsers) {
+            int shard = ring.shardOf(user.getUsername());
+            if (!stores[shard].contains(user.getUsername())) {
+                byShard.computeIfAbsent(shard, key -> new LinkedHashMap<>()).putIfAbsent(user.getUsername(), user);
+            }
+        }
+        int imported = 0;
+        for (Map.Entry<Integer, Map<String, User>> entry : byShard.entrySet()) {
+            stores[entry.getKey()].insertAll(entry.getValue().values());
+            imported += entry.getValue().size();
+        }
+        return imported;
+    }
+
+    /**
+     * Copies every shard and the manifest into a backup directory. Flush first so the
+     * copy holds cached changes. Each shard is copied as a consistent snapshot.
+     * @param target directory that receives the copies; created if missing
+     * @return number of bytes copied
+     * @throws IOException If the directory cannot be created or a copy fails
+     */
+    public long backupTo(File target) throws IOException {
+        long bytes = 0;
+        for (PagedUserStore store : stores) {
+            bytes += store.backupTo(target);
+        }
+        return bytes + FileUtils.copyFile(new File(directory, MANIFEST_FILENAME), new File(target, MANIFEST_FILENAME));
+    }
+
+    /**
+     * Compacts every shard whose data file is mostly free slots (see {@link PagedUserStore#compactIfNeeded}).
+     * @return number of shards compacted
+     * @throws IOException If a shard cannot be compacted
+     * @throws ClassNotFoundException If a legacy record cannot be deserialized
+     */
+    public int compactIfNeeded() throws IOException, ClassNotFoundException {
+        int compacted = 0;
+        for (PagedUserStore store : stores) {
+            if (store.compactIfNeeded()) compacted++;
+        }
+        return compacted;
+    }
+
+    /**
+     * Schedules a periodic check that compacts fragmented shards, so the space left
+     * behind by relocated and deleted records is reclaimed while the store runs.
+     * @param intervalMillis delay between checks
+     */
+    public synchronized void startCompaction(long intervalMillis) {
+        if (compactor != null) return;
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compactIfNeeded();
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("[ERROR] User store compaction failed: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // ------------------- Statistics -------------------
+
+    /**
+     * @return number of stored users over all shards
+     */
+    public int size() {
+        int size = 0;
+        for (PagedUserStore store : stores) {
+            size += store.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of users stored in each shard
+     */
+    public int[] shardSizes() {
+        int[] sizes = new int[stores.length];
+        for (int shard = 0; shard < stores.length; shard++) {
+            sizes[shard] = stores[shard].size();
+        }
+        return sizes;
+    }
+
+    /**
+     * @param shard a shard number
+     * @return usernames stored in that shard
+     */
+    List<String> shardUsernames(int shard) {
+        return stores[shard].usernames();
+    }
+
+    /**
+     * @return cache hits over all shards
+     */
+    public long getCacheHits() {
+        long hits = 0;
+        for (UserCache cache : caches) hits += cache.getHits();
+        return hits;
+    }
+
+    /**
+     * @return cache misses over all shards
+     */
+    public long getCacheMisses() {
+        long misses = 0;
+        for (UserCache cache : caches) misses += cache.getMisses();
+        return misses;
+    }
+
+    /**
+     * @return users waiting to be written back, over all shards
+     */
+    public int getDirtyCount() {
+        int dirty = 0;
+        for (UserCache cache : caches) dirty += cache.getDirtyCount();
+        return dirty;
+    }
+
+    /**
+     * @return cached users over all shards
+     */
+    public int getCacheSize() {
+        int size = 0;
+        for (UserCache cache : caches) size += cache.size();
+        return size;
+    }
+
+    // ------------------- Shard files -------------------
+
+    private File dataFile(int shard) {
+        return new File(directory, "users-" + shard + ".dat");
+    }
+
+    private File indexFile(int shard) {
+        return new File(directory, "users-" + shard + ".idx");
+    }
+
+    private PagedUserStore openShard(int shard) throws IOException, ClassNotFoundException {
+        return new PagedUserStore(dataFile(shard), indexFile(shard));
+    }
+
+    /**
+     * Creates the manifest on first start. A single-file store from an older version
+     * becomes shard 0 of a one-shard store; otherwise the store starts empty with the
+     * requested number of shards.
+     */
+    private Properties adoptLegacyStore(int shardCount) throws IOException {
+        File legacyData = new File(directory, LEGACY_DATA_FILENAME);
+        int current = shardCount;
+        if (legacyData.exists()) {
+            File legacyIndex = new File(directory, LEGACY_INDEX_FILENAME);
+            if (legacyIndex.exists()) {
+                Files.move(legacyIndex.toPath(), indexFile(0).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(legacyData.toPath(), dataFile(0).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            current = 1;
+            System.out.println("Converted " + LEGACY_DATA_FILENAME + " to a sharded store.");
+        }
+        Properties manifest = new Properties();
+        manifest.setProperty("shards", String.valueOf(current));
+        writeManifest(manifest);
+        return manifest;
+    }
+
+    private Properties readManifest() throws IOException {
+        File file = new File(directory, MANIFEST_FILENAME);
+        if (!file.exists()) return null;
+        Properties manifest = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+            manifest.load(in);
+        }
+        if (manifest.getProperty("shards") == null) {
+            throw new IOException("Corrupt shard manifest: " + file);
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces the manifest atomically: the new content is fsynced under a temporary
+     * name and then renamed over the old file.
+     */
+    private void writeManifest(Properties manifest) throws IOException {
+        File file = new File(directory, MANIFEST_FILENAME);
+        File tmp = new File(directory, MANIFEST_FILENAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            manifest.store(new OutputStreamWriter(out, "UTF-8"), "Investment App user store shards");
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ------------------- Rebalancing -------------------
+
+    /**
+     * Moves every user whose shard differs between {@code from} and {@code to} shards.
+     * Records are copied to their new shard (and fsynced) before they are deleted from
+     * the old one, in batches. A user found in both shards after a crash is only deleted
+     * from the old one. Each shard is compacted afterwards to reclaim the moved slots,
+     * and shards beyond the new count are removed.
+     * @return the new shard count
+     */
+    private int rebalance(int from, int to) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        Properties manifest = new Properties();
+        manifest.setProperty("shards", String.valueOf(from));
+        manifest.setProperty("target", String.valueOf(to));
+        writeManifest(manifest);
+
+        ShardRing target = new ShardRing(to);
+        int shards = Math.max(from, to);
+        PagedUserStore[] open = new PagedUserStore[shards];
+        long moved = 0;
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                open[shard] = openShard(shard);
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                List<String> leaving = new ArrayList<>();
+                for (String username : open[shard].usernames()) {
+                    if (target.shardOf(username) != shard) leaving.add(username);
+                }
+                for (int i = 0; i < leaving.size(); i += MOVE_BATCH) {
+                    List<String> batch = leaving.subList(i, Math.min(leaving.size(), i + MOVE_BATCH));
+                    Map<Integer, Map<String, byte[]>> byTarget = new HashMap<>();
+                    for (Map.Entry<String, byte[]> entry : open[shard].readPayloads(batch).entrySet()) {
+                        int destination = target.shardOf(entry.getKey());
+                        if (!open[destination].contains(entry.getKey())) {
+                            byTarget.computeIfAbsent(destination, key -> new LinkedHashMap<>())
+                                    .put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    for (Map.Entry<Integer, Map<String, byte[]>> entry : byTarget.entrySet()) {
+                        open[entry.getKey()].insertPayloads(entry.getValue());
+                    }
+                    open[shard].deleteAll(batch);
+                    moved += batch.size();
+                }
+            }
+            for (int shard = 0; shard < to; shard++) {
+                open[shard].compact();
+            }
+        } finally {
+            for (PagedUserStore store : open) {
+                if (store != null) store.close();
+            }
+        }
+        for (int shard = to; shard < from; shard++) {
+            Files.deleteIfExists(dataFile(shard).toPath());
+            Files.deleteIfExists(indexFile(shard).toPath());
+        }
+
+        manifest.remove("target");
+        manifest.setProperty("shards", String.valueOf(to));
+        writeManifest(manifest);
+        System.out.printf("Rebalanced user store from %d to %d shards: moved %,d users in %.1f ms.%n",
+                from, to, moved, (System.nanoTime() - start) / 1_000_000.0);
+        return to;
+    }
+}
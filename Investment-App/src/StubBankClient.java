@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Local stub bank service. Every call sleeps for a random time within a latency range
+ * and fails with a configurable probability, so the linking pipeline can be exercised
+ * against slow and unreliable banks without a network. One-time passwords are random
+ * and handed to a callback instead of being sent by SMS.
+ */
+public class StubBankClient implements BankClient {
+    static final int MAX_NEW_TRANSACTIONS = 5;
+    private static final int MAX_REPLAYED_TRANSACTIONS = 2;
+    private static final String[] DESCRIPTIONS = {"Salary", "Transfer in", "Card payment", "Bill payment", "ATM withdrawal"};
+
+    private final long minLatencyMillis;
+    private final long maxLatencyMillis;
+    private final double failureRate;
+    private final Consumer<String> otpSink;
+    private final Map<String, String> pendingOtps = new ConcurrentHashMap<>();
+    private final Map<String, Long> feedHeads = new ConcurrentHashMap<>(); // account id -> last available sequence
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param minLatencyMillis shortest simulated call time
+     * @param maxLatencyMillis longest simulated call time
+     * @param failureRate probability (0 to 1) that a call fails with an IOException
+     * @param otpSink receives every one-time password the stub "sends"
+     */
+    public StubBankClient(long minLatencyMillis, long maxLatencyMillis, double failureRate, Consumer<String> otpSink) {
+        if (minLatencyMillis < 0 || maxLatencyMillis < minLatencyMillis) {
+            throw new IllegalArgumentException("Invalid latency range: " + minLatencyMillis + ".." + maxLatencyMillis);
+        }
+        if (!(failureRate >= 0 && failureRate <= 1)) {
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1: " + failureRate);
+        }
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.failureRate = failureRate;
+        this.otpSink = otpSink;
+    }
+
+    @Override
+    public String requestLink(String bank, String cardNumber, String expiry) throws IOException {
+        simulateCall();
+        String linkId = UUID.randomUUID().toString();
+        String otp = String.format("%06d", random.nextInt(1_000_000));
+        pendingOtps.put(linkId, otp);
+        otpSink.accept(otp);
+        return linkId;
+    }
+
+    @Override
+    public boolean confirmLink(String linkId, String otp) throws IOException {
+        simulateCall();
+        String expected = pendingOtps.get(linkId);
+        if (expected == null || otp == null
+                || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), otp.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        return pendingOtps.remove(linkId, expected);
+    }
+
+    @Override
+    public List<BankTransaction> fetchTransactions(String accountId, long afterSequence, int limit) throws IOException {
+        simulateCall();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long head = feedHeads.merge(accountId, afterSequence + rnd.nextInt(MAX_NEW_TRANSACTIONS + 1),
+                (old, fresh) -> Math.max(old, fresh));
+        long from = Math.max(1, afterSequence + 1 - rnd.nextInt(MAX_REPLAYED_TRANSACTIONS + 1));
+        List<BankTransaction> transactions = new ArrayList<>();
+        for (long sequence = from; sequence <= head && transactions.size() < limit; sequence++) {
+            transactions.add(transaction(accountId, sequence));
+        }
+        return transactions;
+    }
+
+    /**
+     * Makes up the transaction with a given number: money in is between $0 and $500,
+     * money out between $0 and $200.
+     */
+    static BankTransaction transaction(String accountId, long sequence) {
+        SplittableRandom rnd = new SplittableRandom(accountId.hashCode() * 0x9E3779B97F4A7C15L + sequence);
+        int kind = rnd.nextInt(DESCRIPTIONS.length);
+        long cents = kind < 2 ? rnd.nextLong(1, 50_001) : -rnd.nextLong(1, 20_001);
+        return new BankTransaction(sequence, cents, DESCRIPTIONS[kind]);
+    }
+
+    @Override
+    public String getName() {
+        return "stub";
+    }
+
+    /**
+     * Waits for the simulated latency, then fails with the configured probability.
+     * A failed call has no effect, so it is safe to retry.
+     */
+    private void simulateCall() throws IOException {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        try {
+            Thread.sleep(minLatencyMillis + (long) (rnd.nextDouble() * (maxLatencyMillis - minLatencyMillis)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bank call interrupted");
+        }
+        if (rnd.nextDouble() < failureRate) {
+            throw new IOException("Bank service temporarily unavailable");
+        }
+    }
+}
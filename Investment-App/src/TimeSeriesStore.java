@@ -0,0 +1,548 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of per-user value snapshots, one series per user and asset name
+ * plus one for the portfolio total ({@link #TOTAL}).
+ * Snapshots are buffered in memory and written periodically as compressed column blocks
+ * to one partition file per UTC day ({@code yyyy-MM-dd.ts}), so a range query only reads
+ * the days it covers and never loads whole users.
+ *
+ * <p>Block layout: a 16 byte header (magic, row count, payload length, CRC32 of the payload)
+ * followed by the payload. Rows are sorted by (user, series, time) and stored column by column:</p>
+ * <pre>
+ * varint dictionary size, then that many strings (varint length, UTF-8 bytes)
+ * user   column: zigzag varint delta of the user's dictionary id
+ * series column: varint dictionary id
+ * time   column: zigzag varint delta of epoch milliseconds
+ * value  column: varint of the value's IEEE-754 bits XOR the previous row's bits
+ * </pre>
+ * <p>Consecutive rows of one series share user and series ids, have small time deltas
+ * and similar values, so most fields take one or two bytes. A torn block at the end of
+ * a partition (e.g. after a crash) is ignored and overwritten by the next write.</p>
+ *
+ * <p>Recording only appends to the buffer: a flush takes the buffered rows and writes them
+ * without holding the buffer's lock, and queries merge the rows that are still buffered
+ * or being written with what they read from the partitions.</p>
+ */
+public class TimeSeriesStore implements Flushable, Closeable {
+    /** Series name of a user's total portfolio value */
+    static final String TOTAL = "";
+
+    private static final int BLOCK_MAGIC = 0x49575453; // "IWTS"
+    private static final int BLOCK_HEADER_SIZE = 16;
+    private static final String PARTITION_SUFFIX = ".ts";
+    private static final long DAY_MS = 86_400_000L;
+    /** How far back {@link #lastBefore} looks for a value by default */
+    static final long DEFAULT_LOOKBACK_MS = 732 * DAY_MS;
+
+    /**
+     * One value of a series at a point in time.
+     */
+    public static final class Point {
+        private final long time;
+        private final double value;
+
+        Point(long time, double value) {
+            this.time = time;
+            this.value = value;
+        }
+
+        /**
+         * @return time of the snapshot in epoch milliseconds
+         */
+        public long getTime() { return time; }
+
+        public double getValue() { return value; }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.2f", Instant.ofEpochMilli(time), value);
+        }
+    }
+
+    /**
+     * A buffered snapshot waiting to be written.
+     */
+    private static final class Row {
+        final long time;
+        final String username;
+        final String series;
+        final double value;
+
+        Row(long time, String username, String series, double value) {
+            this.time = time;
+            this.username = username;
+            this.series = series;
+            this.value = value;
+        }
+    }
+
+    private static final Comparator<Point> POINT_ORDER = Comparator.comparingLong(Point::getTime)
+            .thenComparingDouble(Point::getValue);
+    private static final Comparator<Row> ROW_ORDER = Comparator.<Row, String>comparing(row -> row.username)
+            .thenComparing(row -> row.series).thenComparingLong(row -> row.time);
+
+    private final File directory;
+    private List<Row> pending = new ArrayList<>(); // guarded by this
+    private List<Row> writing = List.of(); // rows a flush is writing; guarded by this
+    private final Object writeLock = new Object(); // one flush at a time; guards validEnds
+    private final Map<File, Long> validEnds = new HashMap<>();
+    private final ScheduledExecutorService flusher;
+    private Thread shutdownHook; // set by open
+
+    private final Metrics.Histogram queryLatency = Metrics.histogram("history.query");
+    private final Metrics.Counter rowsWritten = Metrics.counter("history.rows_written");
+
+    private TimeSeriesStore(File directory) {
+        this.directory = directory;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "history-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens (creating if needed) a history directory, starts its background writer and
+     * registers a shutdown hook that writes what is still buffered.
+     * @param directory directory holding the daily partition files
+     * @param flushIntervalMillis delay between writes of buffered snapshots
+     * @return the open store; close it when done
+     * @throws IOException If the directory cannot be created
+     */
+    public static TimeSeriesStore open(File directory, long flushIntervalMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory: " + directory);
+        }
+        TimeSeriesStore store = new TimeSeriesStore(directory);
+        store.flusher.scheduleWithFixedDelay(store::safeFlush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        store.shutdownHook = new Thread(store::safeFlush, "history-shutdown");
+        Runtime.getRuntime().addShutdownHook(store.shutdownHook);
+        return store;
+    }
+
+    /**
+     * Stops the background writer, writes every buffered snapshot and removes the shutdown hook.
+     * @throws IOException If the buffered snapshots cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the history writer");
+        }
+        flush();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down; the hook is running or has run
+        }
+    }
+
+    // ------------------- Writing -------------------
+
+    /**
+     * Records the current value of a series.
+     * @param username user the series belongs to
+     * @param series asset name, or {@link #TOTAL} for the portfolio total
+     * @param value value at this moment
+     */
+    public void record(String username, String series, double value) {
+        record(System.currentTimeMillis(), username, series, value);
+    }
+
+    /**
+     * Records the value of a series at a given time, e.g. when back-filling history.
+     * @param time epoch milliseconds
+     * @param username user the series belongs to
+     * @param series asset name, or {@link #TOTAL} for the portfolio total
+     * @param value value at that time
+     */
+    public synchronized void record(long time, String username, String series, double value) {
+        pending.add(new Row(time, username, series, value));
+    }
+
+    /**
+     * Writes all buffered snapshots, one block per day they fall on. Snapshots recorded
+     * meanwhile are buffered for the next flush.
+     * @throws IOException If a partition cannot be written; the snapshots not written stay buffered
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            List<Row> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) return;
+                batch = pending;
+                pending = new ArrayList<>();
+                writing = batch;
+            }
+            Map<Long, List<Row>> byDay = new TreeMap<>();
+            for (Row row : batch) {
+                byDay.computeIfAbsent(Math.floorDiv(row.time, DAY_MS), day -> new ArrayList<>()).add(row);
+            }
+            try {
+                for (List<Row> rows : byDay.values()) {
+                    rows.sort(ROW_ORDER);
+                    appendBlock(partition(Math.floorDiv(rows.get(0).time, DAY_MS)), encodeBlock(rows));
+                    rowsWritten.add(rows.size());
+                    rows.clear();
+                }
+            } catch (IOException e) {
+                // Keep the days not written yet buffered for the next attempt
+                synchronized (this) {
+                    List<Row> retry = new ArrayList<>();
+                    byDay.values().forEach(retry::addAll);
+                    retry.addAll(pending);
+                    pending = retry;
+                    writing = List.of();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                writing = List.of();
+            }
+        }
+    }
+
+    private void safeFlush() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Failed to write portfolio history: " + e.getMessage());
+        }
+    }
+
+    private void appendBlock(File file, ByteBuffer block) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Long end = validEnds.get(file);
+            if (end == null) {
+                end = scan(channel, null, null, null);
+            }
+            channel.truncate(end); // drop a torn block left by a crash
+            PagedUserStore.writeFully(channel, block, end);
+            channel.force(false);
+            validEnds.put(file, end + block.capacity());
+        }
+    }
+
+    private static ByteBuffer encodeBlock(List<Row> rows) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Row row : rows) {
+            dictionary.putIfAbsent(row.username, dictionary.size());
+            dictionary.putIfAbsent(row.series, dictionary.size());
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(rows.size() * 6 + 64);
+        writeVarint(payload, dictionary.size());
+        for (String entry : dictionary.keySet()) {
+            byte[] utf8 = entry.getBytes(StandardCharsets.UTF_8);
+            writeVarint(payload, utf8.length);
+            payload.write(utf8, 0, utf8.length);
+        }
+        long previous = 0;
+        for (Row row : rows) {
+            int id = dictionary.get(row.username);
+            writeVarint(payload, zigzag(id - previous));
+            previous = id;
+        }
+        for (Row row : rows) {
+            writeVarint(payload, dictionary.get(row.series));
+        }
+        previous = 0;
+        for (Row row : rows) {
+            writeVarint(payload, zigzag(row.time - previous));
+            previous = row.time;
+        }
+        previous = 0;
+        for (Row row : rows) {
+            long bits = Double.doubleToLongBits(row.value);
+            writeVarint(payload, bits ^ previous);
+            previous = bits;
+        }
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + bytes.length);
+        block.putInt(BLOCK_MAGIC).putInt(rows.size()).putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+        return block.flip();
+    }
+
+    // ------------------- Queries -------------------
+
+    /**
+     * Returns the snapshots of one series in a time range, oldest first.
+     * Only the partitions of the days in the range are read; snapshots not written yet
+     * are taken from the buffer.
+     * @param username user the series belongs to
+     * @param series asset name, or {@link #TOTAL} for the portfolio total
+     * @param from start of the range in epoch milliseconds (inclusive)
+     * @param to end of the range in epoch milliseconds (exclusive)
+     * @return the matching points
+     * @throws IOException If a partition cannot be read
+     */
+    public List<Point> query(String username, String series, long from, long to) throws IOException {
+        long start = System.nanoTime();
+        // Take the buffered rows first: a row a flush writes meanwhile is then read from
+        // its partition as well, never missed, and the duplicate is dropped below
+        List<Point> points = new ArrayList<>();
+        for (Point point : buffered(username, series)) {
+            if (point.time >= from && point.time < to) points.add(point);
+        }
+        for (long day = Math.floorDiv(from, DAY_MS); day <= Math.floorDiv(to - 1, DAY_MS); day++) {
+            File file = partition(day);
+            if (!file.exists()) continue;
+            List<Point> found = new ArrayList<>();
+            read(file, username, series, found);
+            for (Point point : found) {
+                if (point.time >= from && point.time < to) points.add(point);
+            }
+        }
+        points.sort(POINT_ORDER);
+        List<Point> distinct = new ArrayList<>(points.size());
+        for (Point point : points) {
+            Point last = distinct.isEmpty() ? null : distinct.get(distinct.size() - 1);
+            if (last == null || POINT_ORDER.compare(last, point) != 0) distinct.add(point);
+        }
+        queryLatency.recordSince(start);
+        return distinct;
+    }
+
+    /**
+     * Finds the latest snapshot of a series before a point in time within the default
+     * lookback ({@value #DEFAULT_LOOKBACK_MS} ms).
+     * @param username user the series belongs to
+     * @param series asset name, or {@link #TOTAL} for the portfolio total
+     * @param time epoch milliseconds (exclusive)
+     * @return the latest earlier point, or null if the series has none in the lookback
+     * @throws IOException If a partition cannot be read
+     */
+    public Point lastBefore(String username, String series, long time) throws IOException {
+        return lastBefore(username, series, time, DEFAULT_LOOKBACK_MS);
+    }
+
+    /**
+     * Finds the latest snapshot of a series before a point in time, reading partitions
+     * backwards from that day until one holds the series, but no further back than the
+     * lookback, so a series without history costs a bounded number of reads.
+     * @param username user the series belongs to
+     * @param series asset name, or {@link #TOTAL} for the portfolio total
+     * @param time epoch milliseconds (exclusive)
+     * @param lookbackMillis how far before {@code time} to look
+     * @return the latest earlier point, or null if the series has none in the lookback
+     * @throws IOException If a partition cannot be read
+     */
+    public Point lastBefore(String username, String series, long time, long lookbackMillis) throws IOException {
+        long earliest = time - lookbackMillis;
+        Point latest = null;
+        for (Point point : buffered(username, series)) {
+            if (point.time < time && point.time >= earliest && (latest == null || point.time >= latest.time)) {
+                latest = point;
+            }
+        }
+        long lastDay = Math.floorDiv(time - 1, DAY_MS);
+        long firstDay = Math.floorDiv(earliest, DAY_MS);
+        List<Long> days = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                Long day = dayOf(name);
+                if (day != null && day >= firstDay && day <= lastDay) days.add(day);
+            }
+        }
+        days.sort(Comparator.reverseOrder());
+        for (long day : days) {
+            // Nothing in this or an older partition can be later than a buffered point of a later day
+            if (latest != null && latest.time >= (day + 1) * DAY_MS) break;
+            List<Point> found = new ArrayList<>();
+            read(partition(day), username, series, found);
+            Point inDay = null;
+            for (Point point : found) {
+                if (point.time < time && point.time >= earliest && (inDay == null || point.time >= inDay.time)) {
+                    inDay = point;
+                }
+            }
+            if (inDay != null) {
+                return latest == null || inDay.time >= latest.time ? inDay : latest;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return the snapshots of a series that are buffered or being written, in no particular order
+     */
+    private synchronized List<Point> buffered(String username, String series) {
+        List<Point> points = new ArrayList<>();
+        for (List<Row> rows : List.of(writing, pending)) {
+            for (Row row : rows) {
+                if (row.username.equals(username) && row.series.equals(series)) {
+                    points.add(new Point(row.time, row.value));
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Computes the lowest value a series held during a time range, counting the
+     * value carried into the range from before it (see {@link #lastBefore}).
+     * @param username user the series belongs to
+     * @param series asset name, or {@link #TOTAL} for the portfolio total
+     * @param from start of the range in epoch milliseconds (inclusive)
+     * @param to end of the range in epoch milliseconds (exclusive)
+     * @return the minimum, or NaN if the series has no value within the default lookback
+     *         before the start of the range
+     * @throws IOException If a partition cannot be read
+     */
+    public double minimum(String username, String series, long from, long to) throws IOException {
+        Point opening = lastBefore(username, series, from);
+        if (opening == null) return Double.NaN;
+        double minimum = opening.value;
+        for (Point point : query(username, series, from, to)) {
+            minimum = Math.min(minimum, point.value);
+        }
+        return minimum;
+    }
+
+    // ------------------- Partitions -------------------
+
+    private File partition(long day) {
+        return new File(directory, LocalDate.ofEpochDay(day) + PARTITION_SUFFIX);
+    }
+
+    private static Long dayOf(String fileName) {
+        if (!fileName.endsWith(PARTITION_SUFFIX)) return null;
+        try {
+            return LocalDate.parse(fileName.substring(0, fileName.length() - PARTITION_SUFFIX.length())).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static void read(File file, String username, String series, List<Point> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            scan(channel, username, series, sink);
+        }
+    }
+
+    /**
+     * Reads blocks until the end of a partition or the first torn/corrupt block.
+     * Blocks whose dictionary does not contain the user or series are skipped undecoded.
+     * @param sink receives matching points, or null to only find the valid end
+     * @return file position just past the last valid block
+     */
+    private static long scan(FileChannel channel, String username, String series, List<Point> sink) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        while (position + BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            PagedUserStore.readFully(channel, header, position);
+            int rows = header.getInt(4);
+            int length = header.getInt(8);
+            if (header.getInt(0) != BLOCK_MAGIC || rows < 0 || length < 0
+                    || position + BLOCK_HEADER_SIZE + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            PagedUserStore.readFully(channel, payload, position + BLOCK_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != header.getInt(12)) break;
+            if (sink != null) {
+                try {
+                    decodeBlock(payload, rows, username, series, sink);
+                } catch (BufferUnderflowException e) {
+                    throw new IOException("Corrupt history block at offset " + position);
+                }
+            }
+            position += BLOCK_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void decodeBlock(ByteBuffer payload, int rows, String username, String series, List<Point> sink) {
+        int dictionarySize = (int) readVarint(payload);
+        int userId = -1;
+        int seriesId = -1;
+        for (int i = 0; i < dictionarySize; i++) {
+            int length = (int) readVarint(payload);
+            String entry = new String(payload.array(), payload.position(), length, StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+            if (userId < 0 && entry.equals(username)) userId = i;
+            if (seriesId < 0 && entry.equals(series)) seriesId = i;
+        }
+        if (userId < 0 || seriesId < 0) return;
+
+        boolean[] match = new boolean[rows];
+        long id = 0;
+        for (int i = 0; i < rows; i++) {
+            id += unzigzag(readVarint(payload));
+            match[i] = id == userId;
+        }
+        for (int i = 0; i < rows; i++) {
+            match[i] &= readVarint(payload) == seriesId;
+        }
+        long[] times = new long[rows];
+        long time = 0;
+        for (int i = 0; i < rows; i++) {
+            time += unzigzag(readVarint(payload));
+            times[i] = time;
+        }
+        long bits = 0;
+        for (int i = 0; i < rows; i++) {
+            bits ^= readVarint(payload);
+            if (match[i]) sink.add(new Point(times[i], Double.longBitsToDouble(bits)));
+        }
+    }
+
+    // ------------------- Varints -------------------
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new BufferUnderflowException();
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
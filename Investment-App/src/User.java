@@ -1,23 +1,91 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
 
 /**
  * Represents a user of the Investment application.
  * Stores username, password, email, and investment assets.
+ * Asset methods are synchronized so a cached user can be flushed in the background
+ * while the session keeps editing it.
+ * Assets are kept as columns rather than as {@link Asset} objects: a {@code double[]} of
+ * values, names shared with other portfolios and int ids of symbols from the shared
+ * {@link AssetSymbols} table.
+ * {@code Asset} instances are built on request, while {@link #forEachAsset}, the per-index
+ * getters and {@link #sumAssetValues} read the columns without allocating. The portfolio
+ * total is kept up to date on every change, as are the per-asset-name totals once first
+ * queried, so reading them is O(1).
+ * A user read from the store keeps its assets encoded until the portfolio is first
+ * used (see {@link UserCodec#decode}), so a lookup that only checks the password stays cheap.
+ * Every stored change also increments the user's version (see {@link #getVersion}),
+ * which lets {@link UserStorage} detect changes made from an out-of-date copy.
  */
 public class User implements Serializable {
     private static final long serialVersionUID = 1L; // Required for serialization
-    
+    private static final String[] NO_NAMES = new String[0];
+    private static final double[] NO_VALUES = new double[0];
+    /** Serialized form: the fields User had when it kept a {@code List<Asset>}. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("username", String.class),
+        new ObjectStreamField("password", String.class),
+        new ObjectStreamField("email", String.class),
+        new ObjectStreamField("assets", List.class),
+        new ObjectStreamField("logSequence", long.class),
+        new ObjectStreamField("version", long.class),
+    };
+
     private String username;
     private String password;
     private String email;
-    private List<Asset> assets = new ArrayList<>(); // Portfolio assets
+    private long logSequence; // Last asset log record applied to this user
+    private long version; // Number of stored changes
+
+    // Portfolio assets, one column per field: asset i is (names[i], values[i], symbolIds[i],
+    // quantities[i]) for i < assetCount. Symbols are ids in AssetSymbols; the symbol and
+    // quantity columns stay null until the user holds an asset with a symbol.
+    private transient int assetCount;
+    private transient String[] names = NO_NAMES;
+    private transient double[] values = NO_VALUES;
+    private transient int[] symbolIds;
+    private transient double[] quantities;
+    private transient boolean columnsShared; // a snapshot from getAssets() reads the columns
+
+    private transient double totalValue; // Running sum of all asset values
+    private transient Map<String, NameTotal> totalsByName; // Built on the first per-name query
+    private transient List<Asset> assetsView; // Read-only, non-copying view of assets
+    private transient byte[] encodedAssets; // Assets not decoded yet, in UserCodec format
+    private transient byte encodedVersion;
+    private transient int encodedCount;
+
+    /**
+     * Running value and count of the assets sharing one name.
+     */
+    private static final class NameTotal {
+        double value;
+        int count;
+    }
+
+    /**
+     * Receives the assets of a portfolio one at a time, without any being created.
+     */
+    @FunctionalInterface
+    public interface AssetVisitor {
+        void visit(int index, String name, String symbol, double quantity, double value);
+    }
 
     /**
      * Constructs a new User object.
      * @param username the unique username
-     * @param password the user's password
+     * @param password the user's password hash (see {@link PasswordHasher})
      * @param email the user's email address
      */
     public User(String username, String password, String email) {
@@ -31,16 +99,238 @@ public class User implements Serializable {
      * Adds an asset to the user's portfolio.
      * @param asset the investment asset to add
      */
-    public void addAsset(Asset asset) {
-        assets.add(asset);
+    public synchronized void addAsset(Asset asset) {
+        addAsset(asset.getName(), asset.getSymbol(), asset.getQuantity(), asset.getValue());
+    }
+
+    /**
+     * Adds an asset given by its fields, without creating an {@link Asset}.
+     * @param name asset name
+     * @param symbol market symbol, or null
+     * @param quantity units of the symbol held
+     * @param value asset value
+     */
+    synchronized void addAsset(String name, String symbol, double quantity, double value) {
+        decodeAssets();
+        ensureCapacity(assetCount + 1);
+        set(assetCount, name, symbol, quantity, value);
+        assetCount++;
+        track(name, value, 1);
     }
 
     /**
-     * Retrieves all assets in the user's portfolio.
+     * Retrieves all assets in the user's portfolio as they are now.
+     * The snapshot shares the asset columns with the user, who copies them before
+     * changing an asset in place, so taking it costs no copy.
      * @return list of assets (immutable)
      */
-    public List<Asset> getAssets() {
-        return new ArrayList<>(assets); // Defensive copy
+    public synchronized List<Asset> getAssets() {
+        decodeAssets();
+        columnsShared = true;
+        return new AssetsSnapshot(assetCount, names, values, symbolIds, quantities);
+    }
+
+    /**
+     * Returns a read-only view of the portfolio without copying it.
+     * The view reflects later changes; callers on other threads should hold
+     * the user's lock while iterating. Each element read is a new {@link Asset}
+     * built from the stored fields.
+     * @return unmodifiable live view of the assets
+     */
+    public synchronized List<Asset> getAssetsView() {
+        decodeAssets();
+        if (assetsView == null) {
+            assetsView = new AssetsView();
+        }
+        return assetsView;
+    }
+
+    /**
+     * @return number of assets in the portfolio
+     */
+    public synchronized int getAssetCount() {
+        decodeAssets();
+        return assetCount;
+    }
+
+    /**
+     * @param index position of an asset
+     * @return the asset at that position, as a new {@link Asset}
+     * @throws IndexOutOfBoundsException If there is no asset at that position
+     */
+    public synchronized Asset getAsset(int index) {
+        decodeAssets();
+        Objects.checkIndex(index, assetCount);
+        return assetAt(index);
+    }
+
+    /**
+     * @param index position of an asset
+     * @return the asset's name (nothing is allocated)
+     */
+    public synchronized String getAssetName(int index) {
+        decodeAssets();
+        return names[Objects.checkIndex(index, assetCount)];
+    }
+
+    /**
+     * @param index position of an asset
+     * @return the asset's value
+     */
+    public synchronized double getAssetValue(int index) {
+        decodeAssets();
+        return values[Objects.checkIndex(index, assetCount)];
+    }
+
+    /**
+     * @param index position of an asset
+     * @return the asset's market symbol, or null if it is valued by hand
+     */
+    public synchronized String getAssetSymbol(int index) {
+        decodeAssets();
+        Objects.checkIndex(index, assetCount);
+        return symbolIds == null ? null : AssetSymbols.valueOf(symbolIds[index]);
+    }
+
+    /**
+     * @param index position of an asset
+     * @return units of the asset's symbol held
+     */
+    public synchronized double getAssetQuantity(int index) {
+        decodeAssets();
+        Objects.checkIndex(index, assetCount);
+        return quantities == null ? 0 : quantities[index];
+    }
+
+    /**
+     * @param name an asset name
+     * @return position of the first asset with this name, or -1 if none
+     */
+    public synchronized int indexOfAsset(String name) {
+        decodeAssets();
+        if (name == null) return -1;
+        for (int i = 0; i < assetCount; i++) {
+            if (name.equals(names[i])) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Passes every asset to a visitor in portfolio order, without creating any objects.
+     * @param visitor receives each asset's fields
+     */
+    public synchronized void forEachAsset(AssetVisitor visitor) {
+        decodeAssets();
+        for (int i = 0; i < assetCount; i++) {
+            visitor.visit(i, names[i],
+                    symbolIds == null ? null : AssetSymbols.valueOf(symbolIds[i]),
+                    quantities == null ? 0 : quantities[i], values[i]);
+        }
+    }
+
+    /**
+     * Adds up the asset values from scratch, unlike {@link #getTotalValue()}, which
+     * returns the running total. Allocates nothing.
+     * @return sum of the values of all assets
+     */
+    public synchronized double sumAssetValues() {
+        decodeAssets();
+        double sum = 0;
+        for (int i = 0; i < assetCount; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Adds up the values of the assets with one name from scratch. Allocates nothing.
+     * @param name an asset name
+     * @return sum of the values of the assets with this name (0 if none)
+     */
+    public synchronized double sumAssetValues(String name) {
+        decodeAssets();
+        if (name == null) return 0;
+        double sum = 0;
+        for (int i = 0; i < assetCount; i++) {
+            if (name.equals(names[i])) sum += values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return total value of all assets in the portfolio
+     */
+    public synchronized double getTotalValue() {
+        decodeAssets();
+        return totalValue;
+    }
+
+    /**
+     * @param name an asset name
+     * @return total value of the assets with this name (0 if none)
+     */
+    public synchronized double getTotalValue(String name) {
+        decodeAssets();
+        NameTotal total = totalsByName().get(name);
+        return total == null ? 0 : total.value;
+    }
+
+    /**
+     * @param name an asset name
+     * @return true if the portfolio holds at least one asset with this name
+     */
+    public synchronized boolean holdsAsset(String name) {
+        decodeAssets();
+        return totalsByName().containsKey(name);
+    }
+
+    /**
+     * Immutable list over asset columns as they were when it was taken; each get builds an
+     * {@link Asset}. The user never changes the first {@code size} entries of columns it
+     * has shared (see {@link #ownColumns}).
+     */
+    private static final class AssetsSnapshot extends AbstractList<Asset> implements RandomAccess {
+        private final int size;
+        private final String[] names;
+        private final double[] values;
+        private final int[] symbolIds;
+        private final double[] quantities;
+
+        AssetsSnapshot(int size, String[] names, double[] values, int[] symbolIds, double[] quantities) {
+            this.size = size;
+            this.names = names;
+            this.values = values;
+            this.symbolIds = symbolIds;
+            this.quantities = quantities;
+        }
+
+        @Override
+        public Asset get(int index) {
+            Objects.checkIndex(index, size);
+            return new Asset(names[index],
+                    symbolIds == null ? null : AssetSymbols.valueOf(symbolIds[index]),
+                    quantities == null ? 0 : quantities[index], values[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Read-only list over the asset columns; each get builds an {@link Asset}.
+     */
+    private final class AssetsView extends AbstractList<Asset> implements RandomAccess {
+        @Override
+        public Asset get(int index) {
+            return getAsset(index);
+        }
+
+        @Override
+        public int size() {
+            return getAssetCount();
+        }
     }
 
     // ------------------- Getters -------------------
@@ -50,22 +340,42 @@ public class User implements Serializable {
     public String getUsername() { return username; }
 
     /**
-     * @return the user's password
+     * @return the user's password hash (or, for records not yet migrated, the plaintext password)
+     */
+    public synchronized String getPassword() { return password; }
+
+    /**
+     * Replaces the stored password value.
+     * @param password encoded hash from {@link PasswordHasher#hash}
      */
-    public String getPassword() { return password; }
+    synchronized void setPassword(String password) { this.password = password; }
 
     /**
      * @return the user's email address
      */
     public String getEmail() { return email; }
 
-        /**
+    /**
      * Removes an asset from the user's portfolio by index.
      * @param index the position of the asset to remove
      */
-    public void removeAsset(int index) {
-        if (index >= 0 && index < assets.size()) {
-            assets.remove(index);
+    public synchronized void removeAsset(int index) {
+        decodeAssets();
+        if (index >= 0 && index < assetCount) {
+            ownColumns();
+            track(names[index], values[index], -1);
+            int moved = assetCount - index - 1;
+            System.arraycopy(names, index + 1, names, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+            if (symbolIds != null) {
+                System.arraycopy(symbolIds, index + 1, symbolIds, index, moved);
+                System.arraycopy(quantities, index + 1, quantities, index, moved);
+            }
+            assetCount--;
+            names[assetCount] = null;
+            if (assetCount == 0) {
+                totalValue = 0; // drop any rounding drift
+            }
         }
     }
 
@@ -74,19 +384,234 @@ public class User implements Serializable {
      * @param index the position of the asset to update
      * @param newAsset the new asset to replace the old one
      */
-    public void updateAsset(int index, Asset newAsset) {
-        if (index >= 0 && index < assets.size()) {
-            assets.set(index, newAsset);
+    public synchronized void updateAsset(int index, Asset newAsset) {
+        decodeAssets();
+        if (index >= 0 && index < assetCount) {
+            ownColumns();
+            track(names[index], values[index], -1);
+            set(index, newAsset.getName(), newAsset.getSymbol(), newAsset.getQuantity(), newAsset.getValue());
+            track(newAsset.getName(), newAsset.getValue(), 1);
+        }
+    }
+
+    /**
+     * Revalues every asset that tracks one of the given symbols at its new price
+     * (quantity times price, as {@link Asset#markToMarket}).
+     * @param prices latest price per symbol
+     * @return number of assets that track one of the symbols
+     */
+    public synchronized int markToMarket(Map<String, Double> prices) {
+        decodeAssets();
+        if (symbolIds == null) return 0;
+        int held = 0;
+        for (int i = 0; i < assetCount; i++) {
+            if (symbolIds[i] == AssetSymbols.NONE) continue;
+            Double price = prices.get(AssetSymbols.valueOf(symbolIds[i]));
+            if (price == null) continue;
+            held++;
+            double revalued = quantities[i] * price;
+            if (revalued != values[i]) {
+                ownColumns();
+                String name = names[i];
+                track(name, values[i], -1);
+                values[i] = revalued;
+                track(name, revalued, 1);
+            }
+        }
+        return held;
+    }
+
+    // ------------------- Columns -------------------
+    private Asset assetAt(int index) {
+        return new Asset(names[index],
+                symbolIds == null ? null : AssetSymbols.valueOf(symbolIds[index]),
+                quantities == null ? 0 : quantities[index], values[index]);
+    }
+
+    /**
+     * Copies the columns if a snapshot shares them, before an asset is changed in place.
+     * Appending needs no copy: snapshots never read past their own size.
+     */
+    private void ownColumns() {
+        if (!columnsShared) return;
+        names = names.clone();
+        values = values.clone();
+        if (symbolIds != null) {
+            symbolIds = symbolIds.clone();
+            quantities = quantities.clone();
+        }
+        columnsShared = false;
+    }
+
+    private void set(int index, String name, String symbol, double quantity, double value) {
+        names[index] = AssetSymbols.shareName(name);
+        values[index] = value;
+        if (symbolIds == null && (symbol != null || quantity != 0)) {
+            symbolIds = new int[names.length];
+            Arrays.fill(symbolIds, AssetSymbols.NONE);
+            quantities = new double[names.length];
+        }
+        if (symbolIds != null) {
+            symbolIds[index] = AssetSymbols.idOf(symbol);
+            quantities[index] = quantity;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length) return;
+        int grown = Math.max(capacity, Math.max(4, names.length + (names.length >> 1)));
+        names = Arrays.copyOf(names, grown);
+        values = Arrays.copyOf(values, grown);
+        columnsShared = false;
+        if (symbolIds != null) {
+            int old = symbolIds.length;
+            symbolIds = Arrays.copyOf(symbolIds, grown);
+            Arrays.fill(symbolIds, old, grown, AssetSymbols.NONE);
+            quantities = Arrays.copyOf(quantities, grown);
+        }
+    }
+
+    // ------------------- Lazy Decoding -------------------
+    /**
+     * Keeps the encoded assets of a user read from the store, to be decoded on first use.
+     * Called while the user is being decoded, before it is shared.
+     * @param version record version the assets were written with
+     * @param count number of assets
+     * @param encoded the assets' bytes
+     */
+    void setEncodedAssets(byte version, int count, byte[] encoded) {
+        encodedVersion = version;
+        encodedCount = count;
+        encodedAssets = encoded;
+    }
+
+    /**
+     * Decodes the assets kept encoded, if any. Callers hold the user's lock.
+     */
+    private void decodeAssets() {
+        if (encodedAssets == null) return;
+        byte[] encoded = encodedAssets;
+        encodedAssets = null;
+        ensureCapacity(encodedCount);
+        try {
+            UserCodec.decodeAssets(this, encodedVersion, encodedCount, encoded);
+        } catch (IOException e) {
+            // decode checked the bytes already
+            throw new IllegalStateException("Corrupt assets for user " + username, e);
+        }
+    }
+
+    // ------------------- Totals -------------------
+    /**
+     * Adds an asset to (sign 1) or removes it from (sign -1) the running totals.
+     */
+    private void track(String name, double assetValue, int sign) {
+        double value = sign * assetValue;
+        totalValue += value;
+        if (totalsByName == null) return;
+        NameTotal total = totalsByName.get(name);
+        if (total == null) {
+            total = new NameTotal();
+            totalsByName.put(name, total);
         }
+        total.value += value;
+        total.count += sign;
+        if (total.count == 0) {
+            totalsByName.remove(name);
+        }
+    }
+
+    /**
+     * @return the per-name totals, built from the asset columns on first use
+     */
+    private Map<String, NameTotal> totalsByName() {
+        if (totalsByName == null) {
+            totalsByName = new HashMap<>();
+            for (int i = 0; i < assetCount; i++) {
+                String name = names[i];
+                NameTotal total = totalsByName.computeIfAbsent(name, key -> new NameTotal());
+                total.value += values[i];
+                total.count++;
+            }
+        }
+        return totalsByName;
     }
 
+    // ------------------- Asset Log -------------------
+    /**
+     * @return sequence number of the last asset log record applied to this user
+     */
+    long getLogSequence() { return logSequence; }
+
+    /**
+     * Records that an asset log record has been applied to this user.
+     * @param logSequence sequence number of the applied record
+     */
+    void setLogSequence(long logSequence) { this.logSequence = logSequence; }
+
+    // ------------------- Versioning -------------------
+    /**
+     * @return number of changes stored for this user; it grows with every change
+     */
+    public synchronized long getVersion() { return version; }
+
+    /**
+     * Sets the version of a user read from storage.
+     * @param version stored version
+     */
+    void setVersion(long version) { this.version = version; }
+
+    /**
+     * Counts one more stored change. Callers hold the user's lock.
+     * @return the new version
+     */
+    long nextVersion() { return ++version; }
+
     // ------------------- Utility -------------------
+    /**
+     * Restores a user written with Java serialization.
+     * Older records may have been written without an asset list.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        username = (String) fields.get("username", null);
+        password = (String) fields.get("password", null);
+        email = (String) fields.get("email", null);
+        logSequence = fields.get("logSequence", 0L);
+        version = fields.get("version", 0L);
+        names = NO_NAMES;
+        values = NO_VALUES;
+        @SuppressWarnings("unchecked")
+        List<Asset> assets = (List<Asset>) fields.get("assets", null);
+        if (assets != null) {
+            ensureCapacity(assets.size());
+            for (Asset asset : assets) {
+                addAsset(asset);
+            }
+        }
+    }
+
+    /**
+     * Decodes the assets and writes the user in its serialized form, with the assets as a list.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("username", username);
+        fields.put("password", password);
+        fields.put("email", email);
+        fields.put("assets", new ArrayList<>(getAssets()));
+        fields.put("logSequence", logSequence);
+        fields.put("version", version);
+        out.writeFields();
+    }
+
     @Override
-    public String toString() {
+    public synchronized String toString() {
+        decodeAssets();
         return "User{" +
                 "username='" + username + '\'' +
                 ", email='" + email + '\'' +
-                ", assets=" + assets +
+                ", assets=" + getAssets() +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,328 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe cache of users in front of a {@link PagedUserStore}.
+ * Recently used users are kept in an LRU map. Updated users are marked dirty and
+ * written back in periodic batches by a background flusher instead of on every change.
+ * A dirty user that falls out of the LRU map stays reachable until it has been flushed:
+ * while a batch is being written its users are held in a separate map, so a lookup in
+ * that window finds the pending instance instead of reading the old record from the store.
+ */
+public class UserCache implements Flushable, Closeable {
+    private final PagedUserStore store;
+    private final Map<String, User> lru;
+    private final Map<String, User> dirty = new ConcurrentHashMap<>();
+    private final Map<String, User> flushing = new ConcurrentHashMap<>(); // batch being written
+    private long flushEpoch; // counts batches written; guarded by lru
+    private final ScheduledExecutorService flusher;
+    private volatile Flushable writeAhead;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedUsers = new LongAdder();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final Metrics.Histogram flushLatency = Metrics.histogram("cache.flush");
+    private final Metrics.Histogram flushBatch = Metrics.histogram("cache.flush.users");
+    private final Metrics.Counter flushErrors = Metrics.counter("cache.flush.errors");
+
+    private UserCache(PagedUserStore store, int maxEntries) {
+        this.store = store;
+        this.lru = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-cache-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a cache and starts its background flusher.
+     * The cache does not flush itself at shutdown: its owner closes it (see {@link ShardedUserStore}).
+     * @param store the store that holds the persistent copy of every user
+     * @param maxEntries maximum number of users kept in the LRU map
+     * @param flushIntervalMillis delay between write-behind flushes
+     * @return the running cache
+     */
+    public static UserCache open(PagedUserStore store, int maxEntries, long flushIntervalMillis) {
+        UserCache cache = new UserCache(store, maxEntries);
+        cache.flusher.scheduleWithFixedDelay(cache::safeFlush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        return cache;
+    }
+
+    /**
+     * Looks up a user, loading it from the store on a cache miss.
+     * @param username Username to look up
+     * @return the cached User object or null if not found
+     * @throws IOException If the record cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public User get(String username) throws IOException, ClassNotFoundException {
+        User user;
+        long epoch;
+        synchronized (lru) {
+            user = cached(username);
+            epoch = flushEpoch;
+        }
+        if (user != null) {
+            hits.increment();
+            return user;
+        }
+        misses.increment();
+        while (true) {
+            User loaded = store.read(username);
+            if (loaded == null) return null;
+            synchronized (lru) {
+                // Another thread may have loaded or changed the same user meanwhile; keep a single shared instance
+                User existing = cached(username);
+                if (existing != null) return existing;
+                if (epoch == flushEpoch) {
+                    lru.put(username, loaded);
+                    return loaded;
+                }
+                // A batch written during the read may hold a newer record than the one read
+                epoch = flushEpoch;
+            }
+        }
+    }
+
+    /**
+     * Returns the cached instance of a user without loading it or counting a lookup.
+     * @param username Username to look up
+     * @return the cached User object, or null if it is not cached
+     */
+    public User peek(String username) {
+        synchronized (lru) {
+            return cached(username);
+        }
+    }
+
+    /**
+     * Returns the instance of a user held by the cache: in the LRU map, or changed and
+     * not written back yet. The flusher adds a user to {@link #flushing} before it clears
+     * the dirty mark, and removes it once the store holds its record, so a changed user is
+     * always in one of the two maps until then. Callers hold the lock on {@link #lru}.
+     */
+    private User cached(String username) {
+        User user = lru.get(username);
+        if (user == null) user = dirty.get(username);
+        return user != null ? user : flushing.get(username);
+    }
+
+    /**
+     * @param username Username to check
+     * @return true if the user is cached or stored
+     */
+    public boolean contains(String username) {
+        return dirty.containsKey(username) || store.contains(username);
+    }
+
+    /**
+     * Writes a new user straight through to the store and caches it.
+     * @param user User to add
+     * @throws IOException If the user already exists or the write fails
+     */
+    public void insert(User user) throws IOException {
+        store.insert(user);
+        synchronized (lru) {
+            lru.put(user.getUsername(), user);
+        }
+    }
+
+    /**
+     * Records that a user has changed. The change reaches the store on the next flush.
+     * @param user User with updated data
+     * @throws IOException If the user does not exist in the store
+     */
+    public void markDirty(User user) throws IOException {
+        if (!store.contains(user.getUsername())) {
+            throw new IOException("User not found in storage: " + user.getUsername());
+        }
+        synchronized (lru) {
+            lru.put(user.getUsername(), user);
+            dirty.put(user.getUsername(), user);
+        }
+    }
+
+    /**
+     * Claims the cached instance of a user for a change, before the caller makes it.
+     * The instance is marked dirty at once, so it stays the one the cache hands out (it
+     * cannot be evicted and loaded again from the old record) until the change is flushed.
+     * Callers hold the user's lock: a flush that picks the user up meanwhile encodes it
+     * only once the change is complete, since encoding takes the same lock.
+     * @param user the instance to change, as returned by {@link #get}
+     * @return false if the cache holds another instance or none; look the user up again and retry
+     * @throws IOException If the user does not exist in the store
+     */
+    public boolean claim(User user) throws IOException {
+        return replace(user, user);
+    }
+
+    /**
+     * Like {@link #claim}, but installs another instance of the user in place of the
+     * cached one, e.g. a copy that was changed after it had been evicted.
+     * Callers hold the locks of both instances.
+     * @param current the instance the cache is expected to hold
+     * @param replacement the instance to cache and write back from now on
+     * @return false if the cache holds another instance than {@code current}, or none
+     * @throws IOException If the user does not exist in the store
+     */
+    public boolean replace(User current, User replacement) throws IOException {
+        String username = current.getUsername();
+        if (!store.contains(username)) {
+            throw new IOException("User not found in storage: " + username);
+        }
+        synchronized (lru) {
+            // An instance no longer cached may have been reloaded, changed and evicted
+            // again since, so only the instance held right now is safe to change
+            if (cached(username) != current) return false;
+            lru.put(username, replacement);
+            dirty.put(username, replacement);
+            return true;
+        }
+    }
+
+    /**
+     * Registers state that must reach the disk before user records do, such as
+     * indexes derived from them. It is flushed before every batch write.
+     * @param flushable flushed ahead of each batch, or null for none
+     */
+    public void setWriteAhead(Flushable flushable) {
+        this.writeAhead = flushable;
+    }
+
+    /**
+     * Writes all dirty users to the store in one batch with a single fsync.
+     * @throws IOException If the batch cannot be written; its users stay dirty
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (dirty.isEmpty()) return;
+        long start = System.nanoTime();
+        List<User> batch = new ArrayList<>(dirty.values());
+        for (User user : batch) {
+            flushing.put(user.getUsername(), user);
+            // Only clear the dirty mark if nobody replaced the entry meanwhile
+            dirty.remove(user.getUsername(), user);
+        }
+        try {
+            store.updateAll(batch, writeAhead);
+        } catch (IOException e) {
+            for (User user : batch) {
+                dirty.putIfAbsent(user.getUsername(), user);
+            }
+            throw e;
+        } finally {
+            synchronized (lru) {
+                for (User user : batch) {
+                    flushing.remove(user.getUsername(), user);
+                }
+                flushEpoch++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        flushes.increment();
+        flushedUsers.add(batch.size());
+        lastFlushNanos.set(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        flushLatency.record(elapsed);
+        flushBatch.record(batch.size());
+    }
+
+    /**
+     * Stops the background flusher, waiting for a flush in progress, and writes
+     * every pending change. The store itself stays open.
+     * @throws IOException If the final flush fails; its users stay dirty
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the cache flusher");
+        }
+        flush();
+    }
+
+    private void safeFlush() {
+        try {
+            flush();
+        } catch (IOException e) {
+            flushErrors.increment();
+            System.err.println("[ERROR] Failed to flush cached users: " + e.getMessage());
+        }
+    }
+
+    // ------------------- Statistics -------------------
+
+    /**
+     * @return number of lookups served from the cache
+     */
+    public long getHits() { return hits.sum(); }
+
+    /**
+     * @return number of lookups that had to read the store
+     */
+    public long getMisses() { return misses.sum(); }
+
+    /**
+     * @return number of users waiting to be flushed
+     */
+    public int getDirtyCount() { return dirty.size(); }
+
+    /**
+     * @return number of users currently held in the LRU map
+     */
+    public int size() {
+        synchronized (lru) {
+            return lru.size();
+        }
+    }
+
+    /**
+     * @return number of completed flushes
+     */
+    public long getFlushCount() { return flushes.sum(); }
+
+    /**
+     * @return duration of the most recent flush in milliseconds
+     */
+    public double getLastFlushMillis() { return lastFlushNanos.get() / 1_000_000.0; }
+
+    /**
+     * @return duration of the slowest flush so far in milliseconds
+     */
+    public double getMaxFlushMillis() { return maxFlushNanos.get() / 1_000_000.0; }
+
+    /**
+     * Provides a one-line summary of the cache counters
+     * @return Format: "UserCache{size=.., hits=.., misses=.., ...}"
+     */
+    @Override
+    public String toString() {
+        return String.format("UserCache{size=%d, hits=%d, misses=%d, dirty=%d, flushes=%d, flushedUsers=%d, lastFlush=%.3fms, maxFlush=%.3fms}",
+                size(), getHits(), getMisses(), getDirtyCount(), getFlushCount(), flushedUsers.sum(),
+                getLastFlushMillis(), getMaxFlushMillis());
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact, versioned binary format for {@link User} records.
+ * Replaces Java serialization in the user store: no class descriptors, just
+ * length-prefixed UTF-8 strings and raw IEEE-754 doubles in big-endian order.
+ *
+ * <p>Version 3 layout:</p>
+ * <pre>
+ * byte   version
+ * string username, password, email     (int length or -1 for null, then UTF-8 bytes)
+ * long   logSequence
+ * int    assetCount
+ * assetCount x (string name, double value, string symbol, double quantity)
+ * long   userVersion                    (see {@link User#getVersion})
+ * </pre>
+ *
+ * <p>Version 2 records end after the assets; version 1 records also have no
+ * symbol or quantity after each asset.</p>
+ *
+ * <p>New fields are appended in later versions. The decoder reads every version up to
+ * {@link #VERSION} and gives fields missing from older records their default value,
+ * so records never need to be rewritten when {@code User} grows.</p>
+ *
+ * <p>Decoding leaves the assets encoded: their bytes are handed to the user, which
+ * decodes them the first time its portfolio is used (see {@link #decodeAssets}), so
+ * looking up a user to check a password does not build their asset objects.</p>
+ */
+public class UserCodec {
+    static final byte VERSION = 3;
+
+    /**
+     * Encodes a user into a new buffer ready for reading.
+     * @param user User to encode
+     * @return buffer holding exactly the encoded record
+     */
+    public static ByteBuffer encode(User user) {
+        synchronized (user) {
+            int assetCount = user.getAssetCount();
+            byte[] username = utf8(user.getUsername());
+            byte[] password = utf8(user.getPassword());
+            byte[] email = utf8(user.getEmail());
+            byte[][] names = new byte[assetCount][];
+            byte[][] symbols = new byte[assetCount][];
+            int size = 1 + stringSize(username) + stringSize(password) + stringSize(email) + 8 + 4 + 8;
+            for (int i = 0; i < assetCount; i++) {
+                names[i] = utf8(user.getAssetName(i));
+                symbols[i] = utf8(user.getAssetSymbol(i));
+                size += stringSize(names[i]) + 8 + stringSize(symbols[i]) + 8;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.put(VERSION);
+            putString(buffer, username);
+            putString(buffer, password);
+            putString(buffer, email);
+            buffer.putLong(user.getLogSequence());
+            buffer.putInt(names.length);
+            for (int i = 0; i < assetCount; i++) {
+                putString(buffer, names[i]);
+                buffer.putDouble(user.getAssetValue(i));
+                putString(buffer, symbols[i]);
+                buffer.putDouble(user.getAssetQuantity(i));
+            }
+            buffer.putLong(user.getVersion());
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Decodes a user from the buffer's current position. The assets are checked and
+     * kept encoded until the user first needs them.
+     * Records written with Java serialization by older versions of the store are also accepted.
+     * @param buffer buffer positioned at the start of a record
+     * @return the decoded User
+     * @throws IOException If the record is truncated or has an unknown version
+     * @throws ClassNotFoundException If a legacy serialized record references a missing class
+     */
+    public static User decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        if (isLegacy(buffer)) {
+            return decodeLegacy(buffer);
+        }
+        try {
+            byte version = buffer.get();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported user record version: " + version);
+            }
+            User user = new User(getString(buffer), getString(buffer), getString(buffer));
+            user.setLogSequence(buffer.getLong());
+            int assetCount = buffer.getInt();
+            if (assetCount < 0) {
+                throw new IOException("Corrupt user record: negative asset count");
+            }
+            int assetsStart = buffer.position();
+            for (int i = 0; i < assetCount; i++) {
+                skipString(buffer);
+                buffer.getDouble();
+                if (version >= 2) {
+                    skipString(buffer);
+                    buffer.getDouble();
+                }
+            }
+            if (assetCount > 0) {
+                byte[] assets = Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + assetsStart,
+                        buffer.arrayOffset() + buffer.position());
+                user.setEncodedAssets(version, assetCount, assets);
+            }
+            if (version >= 3) {
+                user.setVersion(buffer.getLong());
+            }
+            return user;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated user record");
+        }
+    }
+
+    /**
+     * Decodes assets left encoded by {@link #decode} and adds them to their user.
+     * Called by the user, holding its lock.
+     * @param user owner of the assets
+     * @param version record version the assets were written with
+     * @param count number of assets
+     * @param encoded the assets' bytes, already checked by {@link #decode}
+     * @throws IOException If the bytes are not valid assets
+     */
+    static void decodeAssets(User user, byte version, int count, byte[] encoded) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = getString(buffer);
+                double value = buffer.getDouble();
+                if (version >= 2) {
+                    user.addAsset(name, getString(buffer), buffer.getDouble(), value);
+                } else {
+                    user.addAsset(name, null, 0, value);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated user record");
+        }
+    }
+
+    /**
+     * @param buffer buffer positioned at the start of a record
+     * @return true if the record was written with Java serialization
+     */
+    static boolean isLegacy(ByteBuffer buffer) {
+        int position = buffer.position();
+        return buffer.remaining() >= 2
+                && buffer.get(position) == (byte) 0xAC && buffer.get(position + 1) == (byte) 0xED;
+    }
+
+    private static User decodeLegacy(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (User) ois.readObject();
+        }
+    }
+
+    // ------------------- Strings -------------------
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(byte[] utf8) {
+        return 4 + (utf8 == null ? 0 : utf8.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] utf8) {
+        if (utf8 == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(utf8.length).put(utf8);
+        }
+    }
+
+    private static void skipString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1) return;
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt user record: bad string length " + length);
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt user record: bad string length " + length);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // ------------------- Conversion -------------------
+
+    /**
+     * Converts a legacy users_list.ser file into a user store using this binary format.
+     * Usage: {@code java UserCodec [users_list.ser] [users.dat] [users.idx]}
+     * @param args optional source file, data file and index file names
+     * @throws IOException If a file cannot be read or written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        File source = new File(args.length > 0 ? args[0] : "users_list.ser");
+        File dataFile = new File(args.length > 1 ? args[1] : "users.dat");
+        File indexFile = new File(args.length > 2 ? args[2] : "users.idx");
+
+        PagedUserStore store = new PagedUserStore(dataFile, indexFile);
+        int imported = source.exists() ? store.migrateFrom(source) : 0;
+        // Compaction re-encodes records left in the old serialized format
+        store.compact();
+        System.out.println("Converted " + imported + " users from " + source + "; store now holds "
+                + store.size() + " users.");
+        store.close();
+    }
+}
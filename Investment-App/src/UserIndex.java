@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent secondary indexes over the user store: email to username, and asset
+ * name to the usernames holding at least one asset with that name.
+ * Both live in concurrent hash maps, so lookups never touch the disk; every change
+ * is also appended to an index file that is replayed on startup.
+ *
+ * <p>The file is fsynced before the user cache writes a batch to the store (see
+ * {@link UserCache#setWriteAhead}), so it never lags the store; changes it is still
+ * missing after a crash are re-derived when the asset log is replayed. A missing
+ * file is rebuilt by scanning the store.</p>
+ *
+ * <p>An existing file is loaded by a background thread, so opening the index does not
+ * hold up startup; lookups and updates made before the load finishes wait for it.
+ * The thread fills the maps without holding the index lock and only takes it to
+ * publish the result, so {@link #isEmpty} and {@link #isLoaded} answer at once.
+ * A file that cannot be loaded is rebuilt from the store by the same thread.</p>
+ *
+ * <p>File layout: a 16 byte header (magic, version) followed by records of the form
+ * (payload length, CRC32, payload), where the payload is (op, key, username) and each
+ * string is an unsigned 16-bit length followed by UTF-8 bytes. The file is rewritten
+ * from memory once most of its records are obsolete.</p>
+ */
+public class UserIndex implements Flushable, Closeable {
+    private static final int MAGIC = 0x49575358; // "IWSX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+    private static final int LOAD_BUFFER_SIZE = 1 << 20;
+    private static final byte OP_EMAIL = 1;
+    private static final byte OP_HOLD = 2;
+    private static final byte OP_RELEASE = 3;
+    private static final byte OP_RELEASE_EMAIL = 4;
+    private static final long COMPACT_MIN_RECORDS = 100_000;
+
+    private final File file;
+    private final Source source;
+    private FileChannel channel;
+    private final Map<String, String> emails = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> holders = new ConcurrentHashMap<>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private volatile long records; // written under the lock or by the loader, read by isEmpty without it
+    private long holdings;
+    private final long sizeAtOpen;
+    private volatile boolean loaded;
+    private IOException loadFailure;
+
+    private final Metrics.Histogram flushLatency = Metrics.histogram("index.flush");
+
+    /**
+     * Scans the user store the index covers.
+     */
+    public interface Source {
+        /**
+         * @return a cursor over every stored user, positioned before the first one
+         * @throws IOException If the store cannot be scanned
+         */
+        UserStoreCursor openCursor() throws IOException;
+    }
+
+    private UserIndex(File file, Source source) throws IOException {
+        this.file = file;
+        this.source = source;
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            checkHeader();
+            sizeAtOpen = channel.size();
+        } else {
+            channel = createFile(file);
+            sizeAtOpen = HEADER_SIZE;
+            loaded = true;
+        }
+    }
+
+    /**
+     * Opens an index file and starts loading it into memory in the background.
+     * A torn record at the end is truncated once the load reaches it; a file that
+     * cannot be loaded at all is rebuilt from the store instead.
+     * @param file index file; if it does not exist yet, call {@link #rebuild} to fill it
+     * @param source the store the index covers, scanned if the file cannot be loaded
+     * @return the open index
+     * @throws IOException If the file cannot be opened or is not an index file
+     */
+    public static UserIndex open(File file, Source source) throws IOException {
+        UserIndex index = new UserIndex(file, source);
+        if (!index.loaded) {
+            Thread loader = new Thread(index::loadInBackground, "index-load");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        return index;
+    }
+
+    /**
+     * Tells whether the index holds no records, e.g. because it was just created.
+     * Does not wait for a background load: until it finishes, the file size decides.
+     * @return true if the index holds no records
+     */
+    public boolean isEmpty() {
+        return loaded ? records == 0 : sizeAtOpen <= HEADER_SIZE;
+    }
+
+    /**
+     * @return true once the index file has been loaded into memory
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // ------------------- Lookups -------------------
+
+    /**
+     * @param email email address (case-insensitive)
+     * @return username registered with this email, or null
+     */
+    public String findUsernameByEmail(String email) {
+        String key = normalizeEmail(email);
+        if (key == null) return null;
+        awaitLoad();
+        return emails.get(key);
+    }
+
+    /**
+     * Returns the users holding an asset with the given name.
+     * The set is a live, read-only view; iteration is weakly consistent.
+     * @param assetName exact asset name
+     * @return usernames of the holders (empty if none)
+     */
+    public Set<String> findHolders(String assetName) {
+        awaitLoad();
+        Set<String> users = holders.get(assetName);
+        return users == null ? Collections.emptySet() : Collections.unmodifiableSet(users);
+    }
+
+    /**
+     * @return number of (asset name, user) pairs in the index
+     */
+    public synchronized long getHoldingCount() {
+        awaitLoad();
+        return holdings;
+    }
+
+    /**
+     * @return number of registered emails in the index
+     */
+    public int getEmailCount() {
+        awaitLoad();
+        return emails.size();
+    }
+
+    /**
+     * @param email an email address as typed
+     * @return the key it is indexed under (trimmed, lower case), or null if blank
+     */
+    static String normalizeEmail(String email) {
+        if (email == null || email.isBlank()) return null;
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // ------------------- Updates -------------------
+
+    /**
+     * Indexes a user that is about to be inserted: claims their email (unless an
+     * existing user owns it) and records the assets they start with.
+     * The entries are durable when this returns.
+     * @param user new user
+     * @param isLive tells whether a username belongs to a stored user, so entries
+     *               left behind by a failed sign-up do not block the email
+     * @return false if another existing user owns the email; nothing is indexed then
+     * @throws IOException If the index file cannot be written
+     */
+    public synchronized boolean register(User user, Predicate<String> isLive) throws IOException {
+        checkLoaded();
+        String username = user.getUsername();
+        String key = normalizeEmail(user.getEmail());
+        if (key != null) {
+            String owner = emails.get(key);
+            if (owner != null && !owner.equals(username) && isLive.test(owner)) return false;
+            if (!username.equals(owner)) {
+                emails.put(key, username);
+                log(OP_EMAIL, key, username);
+            }
+        }
+        synchronized (user) {
+            for (int i = 0; i < user.getAssetCount(); i++) {
+                hold(user.getAssetName(i), username);
+            }
+        }
+        flush();
+        return true;
+    }
+
+    /**
+     * Undoes {@link #register} after the user could not be inserted.
+     * If a user with the same name exists after all, their entries are left alone.
+     * @param user user that was not inserted
+     * @param isLive tells whether a username belongs to a stored user
+     * @throws IOException If the index file cannot be written
+     */
+    public synchronized void unregister(User user, Predicate<String> isLive) throws IOException {
+        checkLoaded();
+        String username = user.getUsername();
+        if (isLive.test(username)) return;
+        String key = normalizeEmail(user.getEmail());
+        if (key != null && emails.remove(key, username)) {
+            log(OP_RELEASE_EMAIL, key, username);
+        }
+        synchronized (user) {
+            for (int i = 0; i < user.getAssetCount(); i++) {
+                release(user.getAssetName(i), username);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Brings the asset name entries of one user in line with their portfolio.
+     * Callers hold the user's lock.
+     * @param user User whose portfolio changed
+     * @param assetNames names of the assets that were added, changed or removed
+     * @throws IOException If the index file cannot be written
+     */
+    public synchronized void refresh(User user, Collection<String> assetNames) throws IOException {
+        checkLoaded();
+        for (String name : assetNames) {
+            if (user.holdsAsset(name)) {
+                hold(name, user.getUsername());
+            } else {
+                release(name, user.getUsername());
+            }
+        }
+    }
+
+    private void hold(String assetName, String username) throws IOException {
+        if (holders.computeIfAbsent(assetName, key -> ConcurrentHashMap.newKeySet()).add(username)) {
+            holdings++;
+            log(OP_HOLD, assetName, username);
+        }
+    }
+
+    private void release(String assetName, String username) throws IOException {
+        Set<String> users = holders.get(assetName);
+        if (users != null && users.remove(username)) {
+            holdings--;
+            log(OP_RELEASE, assetName, username);
+        }
+    }
+
+    private void log(byte op, String key, String username) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] userBytes = username.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_STRING_BYTES || userBytes.length > MAX_STRING_BYTES) {
+            throw new IOException("Value too long to index: " + key);
+        }
+        int length = 1 + 2 + keyBytes.length + 2 + userBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length).putInt(0).put(op)
+                .putShort((short) keyBytes.length).put(keyBytes)
+                .putShort((short) userBytes.length).put(userBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(4, (int) crc.getValue());
+        pending.write(record.array(), 0, record.capacity());
+        records++;
+    }
+
+    /**
+     * Writes pending changes to the index file and fsyncs it, rewriting the file
+     * first if most of its records have been superseded.
+     * @throws IOException If the file cannot be written
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (pending.size() == 0) return;
+        checkLoaded();
+        long start = System.nanoTime();
+        if (records > COMPACT_MIN_RECORDS && records > 2 * (emails.size() + holdings)) {
+            rewrite();
+        } else {
+            PagedUserStore.writeFully(channel, ByteBuffer.wrap(pending.toByteArray()), channel.size());
+            channel.force(false);
+        }
+        pending.reset();
+        flushLatency.recordSince(start);
+    }
+
+    /**
+     * Writes and closes the index file.
+     * @throws IOException If the final write fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        awaitLoad();
+        flush();
+        channel.close();
+    }
+
+    // ------------------- Rebuild -------------------
+
+    /**
+     * Replaces the whole index with one built by scanning the user store.
+     * Pending user updates must have been flushed to the store first.
+     * @param cursor a cursor over every stored user, positioned before the first one
+     * @throws IOException If the store cannot be scanned or the index cannot be written
+     */
+    public synchronized void rebuild(UserStoreCursor cursor) throws IOException {
+        awaitLoad();
+        rebuildFrom(cursor);
+    }
+
+    private void rebuildFrom(UserStoreCursor cursor) throws IOException {
+        emails.clear();
+        holders.clear();
+        holdings = 0;
+        while (cursor.next()) {
+            String username = cursor.username();
+            String email = normalizeEmail(cursor.email());
+            if (email != null) emails.put(email, username);
+            while (cursor.nextAsset()) {
+                if (holders.computeIfAbsent(cursor.assetName(), key -> ConcurrentHashMap.newKeySet()).add(username)) {
+                    holdings++;
+                }
+            }
+        }
+        rewrite();
+        pending.reset();
+        loadFailure = null;
+    }
+
+    /**
+     * Writes the in-memory index to a fresh file and swaps it in atomically.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        pending.reset();
+        records = 0;
+        try (FileChannel out = createFile(tmp)) {
+            for (Map.Entry<String, String> entry : emails.entrySet()) {
+                log(OP_EMAIL, entry.getKey(), entry.getValue());
+                if (pending.size() > 1 << 20) drainTo(out);
+            }
+            for (Map.Entry<String, Set<String>> entry : holders.entrySet()) {
+                for (String username : entry.getValue()) {
+                    log(OP_HOLD, entry.getKey(), username);
+                    if (pending.size() > 1 << 20) drainTo(out);
+                }
+            }
+            drainTo(out);
+            out.force(true);
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void drainTo(FileChannel out) throws IOException {
+        PagedUserStore.writeFully(out, ByteBuffer.wrap(pending.toByteArray()), out.size());
+        pending.reset();
+    }
+
+    // ------------------- File handling -------------------
+
+    private static FileChannel createFile(File target) throws IOException {
+        FileChannel created = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(0).flip();
+        PagedUserStore.writeFully(created, header, 0);
+        created.force(true);
+        return created;
+    }
+
+    private void checkHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        PagedUserStore.readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) > VERSION) {
+            throw new IOException("Not a supported index file: " + file);
+        }
+    }
+
+    /**
+     * Loads the file, then publishes it under the index lock and wakes the threads waiting
+     * for it. Nothing else touches the maps or the file before then: lookups and updates
+     * wait for the load first.
+     * If the file cannot be loaded, the index is rebuilt from the store; only if that
+     * fails too is the failure reported by every later update, so the file is not appended to.
+     */
+    private void loadInBackground() {
+        try {
+            channel.truncate(load());
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not load " + file + ", rebuilding it from the store: " + e.getMessage());
+            try (UserStoreCursor cursor = source.openCursor()) {
+                rebuildFrom(cursor);
+            } catch (IOException rebuildFailure) {
+                rebuildFailure.addSuppressed(e);
+                loadFailure = rebuildFailure;
+                System.err.println("[ERROR] Could not rebuild " + file + ": " + rebuildFailure.getMessage());
+            }
+        } finally {
+            synchronized (this) {
+                loaded = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the background load has finished.
+     */
+    private void awaitLoad() {
+        if (loaded) return;
+        synchronized (this) {
+            boolean interrupted = false;
+            while (!loaded) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the background load and fails if it did not succeed.
+     */
+    private void checkLoaded() throws IOException {
+        awaitLoad();
+        if (loadFailure != null) {
+            throw new IOException("Index " + file + " could not be loaded or rebuilt", loadFailure);
+        }
+    }
+
+    /**
+     * Replays the index file into memory until the end or the first torn/corrupt record.
+     * @return file position just past the last valid record
+     */
+    private long load() throws IOException {
+        long size = channel.size();
+        long position = HEADER_SIZE;     // start of the next record
+        long readPosition = HEADER_SIZE; // file offset just past the buffered bytes
+        ByteBuffer buffer = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        Map<String, String> usernames = new HashMap<>(); // one String per user across all records
+        long loadedRecords = 0;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            if (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int at = buffer.position();
+                int length = buffer.getInt(at);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) break;
+                if (buffer.remaining() >= RECORD_HEADER_SIZE + length) {
+                    crc.reset();
+                    crc.update(buffer.array(), at + RECORD_HEADER_SIZE, length);
+                    if ((int) crc.getValue() != buffer.getInt(at + 4)) break;
+                    apply(buffer.array(), at + RECORD_HEADER_SIZE, usernames);
+                    buffer.position(at + RECORD_HEADER_SIZE + length);
+                    loadedRecords++;
+                    position += RECORD_HEADER_SIZE + length;
+                    continue;
+                }
+                if (RECORD_HEADER_SIZE + length > buffer.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+                    bigger.put(buffer).flip();
+                    buffer = bigger;
+                }
+            }
+            buffer.compact();
+            int read = channel.read(buffer, readPosition);
+            buffer.flip();
+            if (read <= 0) break;
+            readPosition += read;
+        }
+        records = loadedRecords;
+        return position;
+    }
+
+    private void apply(byte[] record, int offset, Map<String, String> usernames) throws IOException {
+        byte op = record[offset];
+        int keyLength = ((record[offset + 1] & 0xFF) << 8) | (record[offset + 2] & 0xFF);
+        String key = new String(record, offset + 3, keyLength, StandardCharsets.UTF_8);
+        int userAt = offset + 3 + keyLength;
+        int userLength = ((record[userAt] & 0xFF) << 8) | (record[userAt + 1] & 0xFF);
+        String username = new String(record, userAt + 2, userLength, StandardCharsets.UTF_8);
+        String shared = usernames.putIfAbsent(username, username);
+        if (shared != null) username = shared;
+        switch (op) {
+            case OP_EMAIL:
+                emails.put(key, username);
+                break;
+            case OP_RELEASE_EMAIL:
+                emails.remove(key, username);
+                break;
+            case OP_HOLD:
+                if (holders.computeIfAbsent(key, name -> ConcurrentHashMap.newKeySet()).add(username)) holdings++;
+                break;
+            case OP_RELEASE:
+                Set<String> users = holders.get(key);
+                if (users != null && users.remove(username)) holdings--;
+                break;
+            default:
+                throw new IOException("Unknown index record " + op + " in " + file);
+        }
+    }
+}
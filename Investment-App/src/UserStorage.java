@@ -1,42 +1,772 @@
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
- * Manages persistent storage of user data using Java serialization.
+ * Manages persistent storage of user data.
+ * Users are kept in page-based stores (see {@link PagedUserStore}) so that each
+ * operation reads or writes a single record, split into shards by username (see
+ * {@link ShardedUserStore}; the count is set with {@code -Dinvestment.shards}).
+ * An existing users_list.ser file is migrated into the store on first start.
+ * Lookups go through each shard's {@link UserCache}, and updates are written back
+ * in batches by the caches' background flushers.
+ * Asset mutations are recorded in an {@link AssetLog} first, so they survive a crash
+ * before the next flush; the log is replayed on startup. Shards whose files are mostly
+ * space left behind by moved or deleted records are compacted in the background. Every change is also
+ * recorded in a {@link TimeSeriesStore} so past values can be queried.
+ * A {@link UserIndex} finds users by email and by the names of the assets they hold.
+ * Startup only waits for the store's username index: the secondary indexes and the
+ * ledger's projections load in the background, users are read when first looked up,
+ * and the users who logged in most recently are loaded ahead of time ({@link RecentUsers}).
+ * Concurrent changes to one user are serialized on that user's lock only; changes made
+ * from an out-of-date copy are detected by the user's version and merged or rejected.
+ * All files live in one data directory: {@code -Dinvestment.data}, or the working
+ * directory by default (see {@link #useDirectory}).
  * Handles user creation, updates, and authentication.
  */
 public class UserStorage {
     private static final String FILENAME = "users_list.ser";
+    private static final int CACHE_SIZE = 10_000;
+    private static final long FLUSH_INTERVAL_MS = 1_000;
+    private static final String ASSET_LOG_FILENAME = "assets.wal";
+    private static final long COMPACTION_INTERVAL_MS = 60_000;
+    private static final String HISTORY_DIRNAME = "history";
+    private static final String SECONDARY_INDEX_FILENAME = "users.six";
+    private static final String RECENT_USERS_FILENAME = "users.recent";
+    private static final long HISTORY_FLUSH_INTERVAL_MS = 5_000;
+
+    private static final Metrics.Histogram findLatency = Metrics.histogram("storage.find");
+    private static final Metrics.Histogram saveLatency = Metrics.histogram("storage.save");
+    private static final Metrics.Histogram assetUpdateLatency = Metrics.histogram("storage.asset_update");
+    private static final Metrics.Histogram readAllLatency = Metrics.histogram("storage.read_all");
+    private static final Metrics.Counter updateErrors = Metrics.counter("storage.update_errors");
+    private static final Metrics.Counter passwordsMigrated = Metrics.counter("storage.passwords_migrated");
+    // Contention on popular users: changes made against an out-of-date version, how many were
+    // merged into the current portfolio or rejected, and retries after the cached instance changed
+    private static final Metrics.Counter casConflicts = Metrics.counter("storage.cas_conflicts");
+    private static final Metrics.Counter casMerged = Metrics.counter("storage.cas_merged");
+    private static final Metrics.Counter casRejected = Metrics.counter("storage.cas_rejected");
+    private static final Metrics.Counter casRetries = Metrics.counter("storage.cas_retries");
+    private static final Metrics.Histogram userLockWait = Metrics.histogram("storage.user_lock_wait");
+    // Taken before both users' locks when two instances of a user have the same identity hash
+    private static final Object tieLock = new Object();
+
+    private static File directory = new File(System.getProperty("investment.data", "."));
+    private static ShardedUserStore store;
+    private static boolean storageReady;
+    private static AssetLog assetLog;
+    private static Ledger ledger;
+    private static TimeSeriesStore history;
+    private static UserIndex userIndex;
+    private static RecentUsers recentUsers;
+
+    /**
+     * Moves storage to another data directory. Storage open in the current directory is
+     * closed first; the new one is opened on first use, and created then if it is missing.
+     * @param dataDirectory directory holding the user store, logs, indexes and history
+     * @throws IOException If the storage open until now cannot be closed cleanly
+     */
+    public static synchronized void useDirectory(File dataDirectory) throws IOException {
+        close();
+        directory = dataDirectory;
+    }
+
+    /**
+     * @return the directory storage keeps its files in
+     */
+    public static synchronized File getDirectory() {
+        return directory;
+    }
+
+    private static File dataFile(String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * Writes every pending change and closes the storage files and background threads.
+     * Asset log records are kept for the next start to replay. The next call that needs
+     * storage opens it again.
+     * @throws IOException If something could not be written; everything is still closed
+     */
+    public static synchronized void close() throws IOException {
+        IOException failure = null;
+        // The log before the store, so no compaction flushes the store while it closes;
+        // the store then writes its users, flushing the index and the ledger ahead of them
+        for (Closeable closeable : new Closeable[] {history, assetLog, store, ledger, userIndex}) {
+            if (closeable == null) continue;
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        try {
+            if (recentUsers != null) recentUsers.save();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+        store = null;
+        storageReady = false;
+        ValuationEngine.forgetHolders();
+        assetLog = null;
+        ledger = null;
+        history = null;
+        userIndex = null;
+        recentUsers = null;
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Returns the shared store, opening it (and migrating the legacy file) on first use.
+     * @return the open user store
+     * @throws IOException If the store cannot be opened
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    static synchronized ShardedUserStore getStore() throws IOException, ClassNotFoundException {
+        if (store == null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create data directory: " + directory);
+            }
+            boolean firstStart = !dataFile(ShardedUserStore.MANIFEST_FILENAME).exists()
+                    && !dataFile(ShardedUserStore.LEGACY_DATA_FILENAME).exists();
+            ShardedUserStore opened = ShardedUserStore.open(directory,
+                    ShardedUserStore.configuredShardCount(), CACHE_SIZE, FLUSH_INTERVAL_MS);
+            File legacyFile = dataFile(FILENAME);
+            if (firstStart && legacyFile.exists()) {
+                int imported = opened.migrateFrom(legacyFile);
+                System.out.println("Migrated " + imported + " users from " + FILENAME + ".");
+            }
+            store = opened;
+        }
+        return store;
+    }
+
+    /**
+     * Returns the shared store once it is ready for use, preparing it on first use.
+     * Preparing it also opens the secondary indexes (rebuilding them from the
+     * store if their file is missing), replays any asset log records left by a previous run
+     * and opens the {@link Ledger}, which from then on sees every logged change, then starts
+     * warming up the cache with the users who logged in most recently.
+     * Only the replay waits for the secondary indexes to load, and only if there is something
+     * to replay; folding the replayed records into the store is left to the background
+     * compactor. The time taken is recorded as {@code storage.ready}.
+     * @return the sharded user store with its caches
+     * @throws IOException If the store cannot be opened
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    static synchronized ShardedUserStore getCache() throws IOException, ClassNotFoundException {
+        if (!storageReady) {
+            long start = System.nanoTime();
+            ShardedUserStore opened = getStore();
+            UserIndex index = UserIndex.open(dataFile(SECONDARY_INDEX_FILENAME), opened::openCursor);
+            if (index.isEmpty() && opened.size() > 0) {
+                try (UserStoreCursor cursor = opened.openCursor()) {
+                    index.rebuild(cursor);
+                }
+                System.out.println("Rebuilt " + SECONDARY_INDEX_FILENAME + " for " + opened.size() + " users.");
+            }
+            opened.setWriteAhead(index);
+            AssetLog log = AssetLog.open(dataFile(ASSET_LOG_FILENAME));
+            recover(log, opened, index);
+            Ledger openedLedger = Ledger.open(dataFile(Ledger.DIRECTORY), opened, log);
+            log.setListener(openedLedger);
+            // Revaluations reach the ledger but not the asset log, so the ledger must be
+            // durable before the users they changed are written
+            opened.setWriteAhead(() -> {
+                index.flush();
+                openedLedger.flush();
+            });
+            log.startCompaction(opened, 0, COMPACTION_INTERVAL_MS);
+            opened.startCompaction(COMPACTION_INTERVAL_MS);
+            RecentUsers recent = new RecentUsers(dataFile(RECENT_USERS_FILENAME), RecentUsers.configuredWarmupUsers());
+            try {
+                recent.load();
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not read " + RECENT_USERS_FILENAME + ": " + e.getMessage());
+            }
+            recent.warmUp(opened, RecentUsers.configuredWarmupUsers());
+            assetLog = log;
+            ledger = openedLedger;
+            userIndex = index;
+            recentUsers = recent;
+            storageReady = true;
+            Metrics.histogram("storage.ready").recordSince(start);
+            Metrics.gauge("cache.hits", opened::getCacheHits);
+            Metrics.gauge("cache.misses", opened::getCacheMisses);
+            Metrics.gauge("cache.dirty", opened::getDirtyCount);
+            Metrics.gauge("cache.size", opened::getCacheSize);
+            Metrics.gauge("storage.users", opened::size);
+            Metrics.gauge("storage.shards", opened::getShardCount);
+        }
+        return store;
+    }
+
+    /**
+     * Replays asset log records that had not reached the store before the last shutdown.
+     * Records already reflected in a stored user (by sequence number) are skipped.
+     * The log is compacted by the caller once the ledger has caught up with it.
+     * Waits for the secondary indexes to load only when a record is replayed.
+     * @param log the asset log to replay
+     * @param userCache the user store the records apply to
+     * @param index secondary indexes, brought up to date with every replayed change
+     * @throws IOException If the log or a user cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    static void recover(AssetLog log, ShardedUserStore userCache, UserIndex index)
+        throws IOException, ClassNotFoundException {
+        int replayed = 0;
+        for (AssetLog.Record record : log.readAll()) {
+            User user = userCache.get(record.username);
+            if (user == null || user.getLogSequence() >= record.sequence) continue;
+            synchronized (user) {
+                List<String> changed = changedAssetNames(user, record.index, record.asset);
+                record.applyTo(user);
+                user.setLogSequence(record.sequence);
+                user.nextVersion();
+                index.refresh(user, changed);
+            }
+            userCache.markDirty(user);
+            replayed++;
+        }
+        if (replayed > 0) {
+            System.out.println("Recovered " + replayed + " asset changes from " + ASSET_LOG_FILENAME + ".");
+        }
+    }
+
+    /**
+     * Returns the portfolio history store, opening it on first use.
+     * @return the time-series store of past asset and portfolio values
+     * @throws IOException If the history directory cannot be created
+     */
+    public static synchronized TimeSeriesStore getHistory() throws IOException {
+        if (history == null) {
+            history = TimeSeriesStore.open(dataFile(HISTORY_DIRNAME), HISTORY_FLUSH_INTERVAL_MS);
+        }
+        return history;
+    }
+
+    /**
+     * Records the current value of some of a user's assets (by name) and of their
+     * whole portfolio in the history store. Callers hold the user's lock.
+     * @param user User whose values changed
+     * @param names asset names whose value changed
+     * @throws IOException If the history store cannot be opened
+     */
+    static void recordHistory(User user, Collection<String> names) throws IOException {
+        TimeSeriesStore store = getHistory();
+        long now = System.currentTimeMillis();
+        for (String name : names) {
+            store.record(now, user.getUsername(), name, user.getTotalValue(name));
+        }
+        store.record(now, user.getUsername(), TimeSeriesStore.TOTAL, user.getTotalValue());
+    }
+
+    private static synchronized AssetLog getAssetLog() throws IOException, ClassNotFoundException {
+        getCache();
+        return assetLog;
+    }
+
+    /**
+     * Returns the portfolio ledger, preparing storage on first use.
+     * @return the ledger of every portfolio change
+     * @throws IOException If storage cannot be opened
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static synchronized Ledger getLedger() throws IOException, ClassNotFoundException {
+        getCache();
+        return ledger;
+    }
+
+    private static synchronized UserIndex getIndex() throws IOException, ClassNotFoundException {
+        getCache();
+        return userIndex;
+    }
+
+    private static synchronized RecentUsers getRecentUsers() throws IOException, ClassNotFoundException {
+        getCache();
+        return recentUsers;
+    }
+
+    /**
+     * Writes all pending user updates to disk immediately.
+     * @throws IOException If file write operation fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void flush() throws IOException, ClassNotFoundException {
+        getCache().flush();
+        getLedger().flush();
+        getRecentUsers().save();
+    }
+
+    /**
+     * Flushes pending updates and copies the user store into a backup directory.
+     * The copy holds every flushed change, so the asset log is not needed to restore it.
+     * @param directory directory that receives the shard files and the shard manifest
+     * @return number of bytes copied
+     * @throws IOException If the store cannot be flushed or copied
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static long backup(File directory) throws IOException, ClassNotFoundException {
+        flush();
+        return getCache().backupTo(directory);
+    }
 
     /**
      * Saves a new user to persistent storage.
      * @param newUser User object to be saved
-     * @throws IOException If file write operation fails
+     * @throws IOException If file write operation fails or the user already exists
      * @throws ClassNotFoundException If serialization class mismatch occurs
      */
     public static void saveUser(User newUser) throws IOException, ClassNotFoundException {
-        List<User> users = getAllUsers();
-        users.add(newUser);
-        saveAllUsers(users);
+        long start = System.nanoTime();
+        ShardedUserStore userCache = getCache();
+        if (userCache.contains(newUser.getUsername())) {
+            throw new IOException("User already exists in storage: " + newUser.getUsername());
+        }
+        // Index first, so the store never holds a user the indexes do not know about
+        UserIndex index = getIndex();
+        if (!index.register(newUser, userCache::contains)) {
+            throw new IOException("Email already registered: " + newUser.getEmail());
+        }
+        try {
+            userCache.insert(newUser);
+        } catch (IOException e) {
+            index.unregister(newUser, userCache::contains);
+            throw e;
+        }
+        synchronized (newUser) {
+            ValuationEngine.addHolders(newUser);
+        }
+        saveLatency.recordSince(start);
     }
 
     /**
-     * Updates existing user data in storage.
+     * Updates existing user data in storage with a compare-and-set on the user's version.
+     * Changes made through the asset methods below are stored already; use this after
+     * changing a user in any other way. If the given object is no longer the cached
+     * instance (it was evicted and the user loaded again), it is only accepted if no
+     * other change has been stored since it was read.
+     * The change is cached immediately and persisted on the next background flush.
      * @param updatedUser Modified user object with new data
-     * @throws IOException If file write operation fails
+     * @throws IOException If the user is not stored, or was changed by another session since this copy was read
      * @throws ClassNotFoundException If serialization class mismatch occurs
      */
     public static void updateUser(User updatedUser) throws IOException, ClassNotFoundException {
-        List<User> users = getAllUsers();
-        for (int i = 0; i < users.size(); i++) {
-            if (users.get(i).getUsername().equals(updatedUser.getUsername())) {
-                users.set(i, updatedUser);
-                saveAllUsers(users);
-                return;
+        ShardedUserStore users = getCache();
+        long seenVersion;
+        synchronized (updatedUser) {
+            seenVersion = updatedUser.getVersion();
+        }
+        while (true) {
+            User current = currentInstance(users, updatedUser);
+            if (current == updatedUser) {
+                synchronized (current) {
+                    if (users.claim(current)) {
+                        current.nextVersion();
+                        ValuationEngine.addHolders(current);
+                        return;
+                    }
+                }
+            } else {
+                // Lock both instances in a fixed order, so two threads updating from
+                // each other's instance cannot deadlock
+                int order = Integer.compare(System.identityHashCode(current), System.identityHashCode(updatedUser));
+                User first = order <= 0 ? current : updatedUser;
+                User second = order <= 0 ? updatedUser : current;
+                synchronized (order == 0 ? tieLock : first) {
+                    synchronized (first) {
+                        synchronized (second) {
+                            if (current.getVersion() != seenVersion) {
+                                casConflicts.increment();
+                                casRejected.increment();
+                                throw new IOException("User " + updatedUser.getUsername()
+                                        + " was changed by another session; reload it and try again.");
+                            }
+                            if (users.replace(current, updatedUser)) {
+                                updatedUser.setVersion(current.getVersion());
+                                updatedUser.nextVersion();
+                                ValuationEngine.addHolders(updatedUser);
+                                return;
+                            }
+                        }
+                    }
+                }
             }
+            casRetries.increment();
+        }
+    }
+
+    /**
+     * Adds an asset to a user's portfolio and durably logs the change.
+     * Additions commute, so one made from an out-of-date copy of the user is simply
+     * applied to the current portfolio.
+     * @param user User whose portfolio changes
+     * @param asset Asset to add
+     * @throws IOException If the user is not stored or the log write fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void addAsset(User user, Asset asset) throws IOException, ClassNotFoundException {
+        applyLogged(user, 0, null, AssetLog.OP_ADD, -1, asset);
+    }
+
+    /**
+     * Replaces an asset in a user's portfolio and durably logs the change.
+     * @param user User whose portfolio changes
+     * @param index Position of the asset to replace in this copy of the user
+     * @param asset New asset
+     * @throws IOException If the user is not stored, the asset was removed meanwhile or the log write fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void updateAsset(User user, int index, Asset asset) throws IOException, ClassNotFoundException {
+        long seenVersion;
+        Asset seen;
+        synchronized (user) {
+            seenVersion = user.getVersion();
+            seen = assetAt(user, index);
+        }
+        updateAsset(user, seenVersion, index, seen, asset);
+    }
+
+    /**
+     * Replaces an asset the caller saw at a given version of the user, e.g. in a list
+     * shown to the user earlier. If other changes were stored since, the asset is
+     * found again in the current portfolio and replaced there.
+     * @param user User whose portfolio changes
+     * @param seenVersion version of the user the position refers to (see {@link User#getVersion})
+     * @param index Position of the asset to replace at that version
+     * @param seen the asset found at that position
+     * @param asset New asset
+     * @return the user's version after the change
+     * @throws IOException If the user is not stored, the asset was removed meanwhile or the log write fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static long updateAsset(User user, long seenVersion, int index, Asset seen, Asset asset)
+        throws IOException, ClassNotFoundException {
+        return applyLogged(user, seenVersion, seen, AssetLog.OP_UPDATE, index, asset);
+    }
+
+    /**
+     * Removes an asset from a user's portfolio and durably logs the change.
+     * @param user User whose portfolio changes
+     * @param index Position of the asset to remove in this copy of the user
+     * @throws IOException If the user is not stored, the asset was changed meanwhile or the log write fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void removeAsset(User user, int index) throws IOException, ClassNotFoundException {
+        long seenVersion;
+        Asset seen;
+        synchronized (user) {
+            seenVersion = user.getVersion();
+            seen = assetAt(user, index);
         }
-        throw new IOException("User not found in storage: " + updatedUser.getUsername());
+        removeAsset(user, seenVersion, index, seen);
+    }
+
+    /**
+     * Removes an asset the caller saw at a given version of the user. If other changes
+     * were stored since, the asset is found again in the current portfolio and removed there.
+     * @param user User whose portfolio changes
+     * @param seenVersion version of the user the position refers to (see {@link User#getVersion})
+     * @param index Position of the asset to remove at that version
+     * @param seen the asset found at that position
+     * @return the user's version after the change
+     * @throws IOException If the user is not stored, the asset was changed meanwhile or the log write fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static long removeAsset(User user, long seenVersion, int index, Asset seen)
+        throws IOException, ClassNotFoundException {
+        return applyLogged(user, seenVersion, seen, AssetLog.OP_REMOVE, index, null);
+    }
+
+    private static Asset assetAt(User user, int index) {
+        return index >= 0 && index < user.getAssetCount() ? user.getAsset(index) : null;
+    }
+
+    /**
+     * Appends a mutation to the asset log and applies it to the current instance of the
+     * user, which is claimed (marked dirty) first. Returns once the log record has been fsync'ed.
+     * The mutation is retried if the cached instance is replaced while waiting for its lock.
+     * @return the user's version after the change
+     */
+    private static long applyLogged(User user, long seenVersion, Asset seen, byte op, int index, Asset asset)
+        throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        ShardedUserStore users = getCache();
+        AssetLog log = getAssetLog();
+        UserIndex indexes = getIndex();
+        long sequence;
+        long version;
+        while (true) {
+            User current = currentInstance(users, user);
+            log.mutationLock().lock();
+            try {
+                long waitStart = System.nanoTime();
+                synchronized (current) {
+                    userLockWait.recordSince(waitStart);
+                    if (!users.claim(current)) {
+                        casRetries.increment();
+                        continue;
+                    }
+                    int target = op == AssetLog.OP_ADD ? index : rebase(current, seenVersion, index, seen);
+                    List<String> changed = changedAssetNames(current, target, asset);
+                    sequence = logAndApply(log, current, op, target, asset);
+                    recordHistory(current, changed);
+                    indexes.refresh(current, changed);
+                    version = current.getVersion();
+                }
+            } finally {
+                log.mutationLock().unlock();
+            }
+            break;
+        }
+        log.awaitDurable(sequence);
+        assetUpdateLatency.recordSince(start);
+        return version;
+    }
+
+    /**
+     * Returns the instance of a user that changes must be applied to. It differs from the
+     * caller's copy if that copy was evicted from the cache and the user loaded again.
+     */
+    private static User currentInstance(ShardedUserStore users, User user) throws IOException, ClassNotFoundException {
+        User current = users.get(user.getUsername());
+        if (current == null) {
+            throw new IOException("User not found in storage: " + user.getUsername());
+        }
+        return current;
+    }
+
+    /**
+     * Finds the position of the asset an update or removal was aimed at in the current
+     * portfolio. Callers hold the user's lock.
+     * @param current current instance of the user
+     * @param seenVersion version of the user the caller's position refers to
+     * @param index position the caller picked
+     * @param seen asset the caller saw at that position
+     * @return the position to apply the change at
+     * @throws IOException If the asset is no longer in the portfolio, or several equal copies of it are
+     */
+    private static int rebase(User current, long seenVersion, int index, Asset seen) throws IOException {
+        if (current.getVersion() == seenVersion) return index;
+        // Other changes were stored since the caller looked; merge if its asset is still there
+        casConflicts.increment();
+        List<Asset> assets = current.getAssetsView();
+        int at = seen == null ? -1 : assets.indexOf(seen);
+        if (at >= 0 && at != assets.lastIndexOf(seen)) {
+            // Equal copies of it are held, and positions may have shifted: there is no
+            // telling which one the caller meant
+            at = -1;
+        }
+        if (at < 0) {
+            casRejected.increment();
+            throw new IOException("The asset was changed by another session; reload the portfolio and try again.");
+        }
+        casMerged.increment();
+        return at;
+    }
+
+    /**
+     * Adds many assets to many users at once, e.g. during a bulk import.
+     * Each user is locked and marked dirty once, and the call waits for a single
+     * fsync of the asset log covering every record instead of one per asset.
+     * @param additions assets to add, by user
+     * @throws IOException If a user is not stored or the log write fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void addAssets(Map<User, List<Asset>> additions) throws IOException, ClassNotFoundException {
+        ShardedUserStore users = getCache();
+        AssetLog log = getAssetLog();
+        UserIndex indexes = getIndex();
+        long lastSequence = 0;
+        for (Map.Entry<User, List<Asset>> entry : additions.entrySet()) {
+            while (true) {
+                User current = currentInstance(users, entry.getKey());
+                log.mutationLock().lock();
+                try {
+                    synchronized (current) {
+                        if (!users.claim(current)) {
+                            casRetries.increment();
+                            continue;
+                        }
+                        Set<String> changed = new LinkedHashSet<>();
+                        for (Asset asset : entry.getValue()) {
+                            lastSequence = logAndApply(log, current, AssetLog.OP_ADD, -1, asset);
+                            changed.add(asset.getName());
+                        }
+                        recordHistory(current, changed);
+                        indexes.refresh(current, changed);
+                    }
+                } finally {
+                    log.mutationLock().unlock();
+                }
+                break;
+            }
+        }
+        log.awaitDurable(lastSequence);
+    }
+
+    /**
+     * One change in a batch of asset updates (see {@link #updateAssets}): replaces the
+     * asset seen at a version of the user, or adds the asset if none was seen.
+     */
+    static final class AssetUpdate {
+        final User user;
+        final long seenVersion;
+        final int index;
+        final Asset seen;
+        final Asset asset;
+
+        /**
+         * @param user User whose portfolio changes
+         * @param seenVersion version of the user the position refers to
+         * @param index position of the asset to replace at that version, or -1 to add
+         * @param seen the asset found at that position, or null to add
+         * @param asset new asset
+         */
+        AssetUpdate(User user, long seenVersion, int index, Asset seen, Asset asset) {
+            this.user = user;
+            this.seenVersion = seenVersion;
+            this.index = index;
+            this.seen = seen;
+            this.asset = asset;
+        }
+    }
+
+    /**
+     * Applies many asset updates at once, e.g. a round of bank syncs. Updates are applied
+     * shard by shard and merged like {@link #updateAsset(User, long, int, Asset, Asset)},
+     * and the call waits for a single fsync of the asset log covering every record
+     * instead of one per update.
+     * @param updates changes to apply
+     * @return the updates that were not applied because their asset was changed or removed meanwhile
+     * @throws IOException If a user is not stored or the log write fails; updates applied before stay applied
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    static List<AssetUpdate> updateAssets(List<AssetUpdate> updates) throws IOException, ClassNotFoundException {
+        ShardedUserStore users = getCache();
+        AssetLog log = getAssetLog();
+        UserIndex indexes = getIndex();
+        Map<Integer, List<AssetUpdate>> byShard = new TreeMap<>();
+        for (AssetUpdate update : updates) {
+            byShard.computeIfAbsent(users.shardOf(update.user.getUsername()), shard -> new ArrayList<>()).add(update);
+        }
+        List<AssetUpdate> rejected = new ArrayList<>();
+        long lastSequence = 0;
+        for (List<AssetUpdate> shardUpdates : byShard.values()) {
+            for (AssetUpdate update : shardUpdates) {
+                while (true) {
+                    User current = currentInstance(users, update.user);
+                    log.mutationLock().lock();
+                    try {
+                        synchronized (current) {
+                            if (!users.claim(current)) {
+                                casRetries.increment();
+                                continue;
+                            }
+                            int target = -1;
+                            if (update.seen != null) {
+                                try {
+                                    target = rebase(current, update.seenVersion, update.index, update.seen);
+                                } catch (IOException e) {
+                                    rejected.add(update);
+                                    break;
+                                }
+                            }
+                            List<String> changed = changedAssetNames(current, target, update.asset);
+                            lastSequence = logAndApply(log, current, target < 0 ? AssetLog.OP_ADD : AssetLog.OP_UPDATE,
+                                    target, update.asset);
+                            recordHistory(current, changed);
+                            indexes.refresh(current, changed);
+                        }
+                    } finally {
+                        log.mutationLock().unlock();
+                    }
+                    break;
+                }
+            }
+        }
+        log.awaitDurable(lastSequence);
+        return rejected;
+    }
+
+    /**
+     * Marks a user's holdings of some symbols to market (see {@link User#markToMarket}).
+     * The revaluation is applied to the cached instance of the user, loading it again if
+     * it was evicted meanwhile, and only once that instance is claimed (marked dirty) are
+     * the revalued assets recorded in the ledger and the history.
+     * @param username user to revalue
+     * @param prices new price per symbol
+     * @return false if the user is not stored or holds none of the symbols
+     * @throws IOException If the user cannot be read or the ledger cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    static boolean markToMarket(String username, Map<String, Double> prices) throws IOException, ClassNotFoundException {
+        ShardedUserStore users = getCache();
+        Ledger portfolioLedger = getLedger();
+        while (true) {
+            User current = users.get(username);
+            if (current == null) return false;
+            synchronized (current) {
+                if (!users.claim(current)) {
+                    casRetries.increment();
+                    continue;
+                }
+                double[] before = new double[current.getAssetCount()];
+                for (int i = 0; i < before.length; i++) {
+                    before[i] = current.getAssetValue(i);
+                }
+                if (current.markToMarket(prices) == 0) return false;
+                current.nextVersion();
+                Set<String> names = new LinkedHashSet<>();
+                for (int i = 0; i < before.length; i++) {
+                    String symbol = current.getAssetSymbol(i);
+                    if (symbol != null && prices.containsKey(symbol)) {
+                        names.add(current.getAssetName(i));
+                    }
+                    if (current.getAssetValue(i) != before[i]) {
+                        portfolioLedger.revalued(username, i, current.getAsset(i));
+                    }
+                }
+                recordHistory(current, names);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the assets a mutation touches: the one it replaces or
+     * removes (if any) and the one it adds. Call before applying the mutation.
+     */
+    private static List<String> changedAssetNames(User user, int index, Asset asset) {
+        List<String> changed = new ArrayList<>(2);
+        if (index >= 0 && index < user.getAssetCount()) {
+            changed.add(user.getAssetName(index));
+        }
+        if (asset != null && !changed.contains(asset.getName())) {
+            changed.add(asset.getName());
+        }
+        return changed;
+    }
+
+    /**
+     * Appends one mutation to the asset log, applies it to the user and counts a new version.
+     * Callers hold the log's mutation lock and the user's lock.
+     * @return the record's sequence number
+     */
+    private static long logAndApply(AssetLog log, User user, byte op, int index, Asset asset) throws IOException {
+        long sequence = log.append(op, user.getUsername(), index, asset);
+        new AssetLog.Record(sequence, op, user.getUsername(), index, asset).applyTo(user);
+        user.setLogSequence(sequence);
+        user.nextVersion();
+        if (asset != null && asset.getSymbol() != null) {
+            ValuationEngine.addHolder(asset.getSymbol(), user.getUsername());
+        }
+        return sequence;
     }
 
     /**
@@ -47,6 +777,7 @@ public class UserStorage {
         try {
             updateUser(user);
         } catch (IOException | ClassNotFoundException e) {
+            updateErrors.increment();
             System.err.println("[ERROR] Failed to update user data: " + e.getMessage());
             System.err.println("Changes may not be saved permanently!");
         }
@@ -59,26 +790,116 @@ public class UserStorage {
      * @throws ClassNotFoundException If serialization class mismatch occurs
      */
     public static List<User> getAllUsers() throws IOException, ClassNotFoundException {
-        File file = new File(FILENAME);
-        if (!file.exists()) return new ArrayList<>();
+        long start = System.nanoTime();
+        flush();
+        List<User> users = getCache().readAll();
+        readAllLatency.recordSince(start);
+        return users;
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(FILENAME))) {
-            return (List<User>) ois.readObject();
-        }
+    /**
+     * Opens a memory-mapped cursor over all stored users for bulk, read-only scans.
+     * Pending updates are flushed first so the cursor sees them; later changes are not
+     * seen (see {@link UserStoreCursor}).
+     * @return a cursor over every shard in turn, positioned before the first user; close it when done
+     * @throws IOException If the store cannot be flushed or mapped
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static UserStoreCursor openCursor() throws IOException, ClassNotFoundException {
+        flush();
+        return getCache().openCursor();
+    }
+
+    /**
+     * Opens one memory-mapped cursor per slice of the store so a scan can run in parallel.
+     * Every shard is split into at least one slice.
+     * Pending updates are flushed first so the cursors see them. Together the cursors
+     * visit every stored user exactly once, as stored when they were opened.
+     * @param parts desired number of cursors
+     * @return cursors over disjoint ranges of the shards; close each when done
+     * @throws IOException If the store cannot be flushed or mapped
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static List<UserStoreCursor> openCursors(int parts) throws IOException, ClassNotFoundException {
+        flush();
+        return getCache().openCursors(parts);
     }
 
     /**
      * Validates user credentials against stored data.
+     * A password stored in plaintext or hashed at an outdated cost is re-hashed
+     * with the current cost once it has been verified.
      * @param username Username to verify
      * @param password Password to verify
      * @return true if credentials match stored data
-     * @throws IOException If file read operation fails
+     * @throws IOException If file read operation fails or the hashing pool is saturated
      * @throws ClassNotFoundException If serialization class mismatch occurs
      */
     public static boolean isValidLogin(String username, String password) 
         throws IOException, ClassNotFoundException {
-        return getAllUsers().stream()
-            .anyMatch(u -> u.getUsername().equals(username) && u.getPassword().equals(password));
+        User user = findUser(username);
+        if (user == null) return false;
+        String stored = user.getPassword();
+        if (!PasswordHasher.verify(username, password, stored)) return false;
+        getRecentUsers().loggedIn(username);
+        if (PasswordHasher.needsRehash(stored)) {
+            String upgraded = PasswordHasher.hash(password);
+            synchronized (user) {
+                // Leave a password changed meanwhile alone
+                if (!stored.equals(user.getPassword())) return true;
+                user.setPassword(upgraded);
+            }
+            updateUser(user);
+            passwordsMigrated.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Looks up a user by email address through the secondary index.
+     * @param email email address (case-insensitive)
+     * @return User object or null if no user has this email
+     * @throws IOException If file read operation fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static User findUserByEmail(String email) throws IOException, ClassNotFoundException {
+        String username = getIndex().findUsernameByEmail(email);
+        return username == null ? null : findUser(username);
+    }
+
+    /**
+     * Checks if an email address is already registered to an existing user.
+     * @param email email address (case-insensitive)
+     * @return true if a stored user has this email
+     * @throws IOException If file read operation fails
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static boolean emailExists(String email) throws IOException, ClassNotFoundException {
+        String username = getIndex().findUsernameByEmail(email);
+        return username != null && getCache().contains(username);
+    }
+
+    /**
+     * Finds the users holding at least one asset with the given name, without scanning the store.
+     * @param assetName exact asset name
+     * @return live read-only set of usernames
+     * @throws IOException If the store cannot be opened
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static Set<String> findUsernamesHoldingAsset(String assetName) throws IOException, ClassNotFoundException {
+        return getIndex().findHolders(assetName);
+    }
+
+    /**
+     * Rebuilds the secondary indexes from the user store, e.g. after restoring a backup.
+     * Asset changes made while the rebuild runs may be missed, so run it while the store is quiet.
+     * @throws IOException If the store cannot be scanned or the index cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void rebuildIndexes() throws IOException, ClassNotFoundException {
+        try (UserStoreCursor cursor = openCursor()) {
+            getIndex().rebuild(cursor);
+        }
     }
 
     /**
@@ -89,7 +910,7 @@ public class UserStorage {
      * @throws ClassNotFoundException If serialization class mismatch occurs
      */
     public static boolean userExists(String username) throws IOException, ClassNotFoundException {
-        return getAllUsers().stream().anyMatch(u -> u.getUsername().equals(username));
+        return getCache().contains(username);
     }
 
     /**
@@ -109,20 +930,10 @@ public class UserStorage {
      * @throws ClassNotFoundException If serialization class mismatch occurs
      */
     public static User findUser(String username) throws IOException, ClassNotFoundException {
-        return getAllUsers().stream()
-            .filter(u -> u.getUsername().equals(username))
-            .findFirst()
-            .orElse(null);
+        long start = System.nanoTime();
+        User user = getCache().get(username);
+        findLatency.recordSince(start);
+        return user;
     }
 
-    /**
-     * Internal method for saving user list to file.
-     * @param users List of users to save
-     * @throws IOException If file write operation fails
-     */
-    private static void saveAllUsers(List<User> users) throws IOException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(FILENAME))) {
-            oos.writeObject(users);
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,388 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only, memory-mapped view over {@link PagedUserStore} data files for bulk scans.
+ * The cursor is a flyweight: it walks the slots in file order and reads fields directly
+ * from the mapping, so iterating users and their asset values allocates nothing per record.
+ * Only {@link #username()} and {@link #assetName()} create objects, on demand.
+ * A cursor over several files (the shards of a {@link ShardedUserStore}) visits them one after another.
+ *
+ * <p>A cursor opened through a {@link PagedUserStore} sees every record as it was when the
+ * cursor was opened. While a cursor is open the store pins its data file: changed records are
+ * written to new slots past the end of the scan instead of in place, the slots they leave
+ * behind are only freed once the last cursor is closed, and compaction is refused. A cursor
+ * over several stores pins all of them when it is opened. Call {@link UserStorage#flush()}
+ * first so that cached changes are included. A cursor opened directly on a file has no such
+ * protection and is meant for files no store is writing to.</p>
+ *
+ * <pre>
+ * try (UserStoreCursor cursor = UserStorage.openCursor()) {
+ *     while (cursor.next()) {
+ *         double total = cursor.totalValue();
+ *     }
+ * }
+ * </pre>
+ */
+public class UserStoreCursor implements Closeable {
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * A range of one data file still to be scanned, and the store pinned for it.
+     */
+    private static final class Range {
+        final File dataFile;
+        final PagedUserStore store; // null for a file opened directly
+        final long start;
+        final long end;
+
+        Range(File dataFile, PagedUserStore store, long start, long end) {
+            this.dataFile = dataFile;
+            this.store = store;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final Deque<Range> remaining = new ArrayDeque<>();
+    private Range current;
+    private FileChannel channel;
+    private long end;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private boolean checksummed; // slots carry a CRC32 of their payload (format version 2+)
+    private final CRC32 crc = new CRC32();
+
+    private long nextSlot;
+    private int payload = -1;     // window position of the current record
+    private User legacyUser;      // current record when it is still Java-serialized
+    private boolean assetTrailer; // assets carry a symbol and quantity after their value (version 2+)
+    private int emailAt;          // window position of the email
+    private int assetCountAt;     // window position of the asset count
+    private int assetRemaining;
+    private int assetAt;          // window position of the current asset entry
+    private int nextAssetAt;
+
+    /**
+     * Opens a cursor over the whole data file, for files that no store is writing to.
+     * @param dataFile a user store data file
+     * @throws IOException If the file cannot be mapped or is not a user store
+     */
+    public UserStoreCursor(File dataFile) throws IOException {
+        remaining.add(new Range(dataFile, null, PagedUserStore.FILE_HEADER_SIZE, Long.MAX_VALUE));
+        nextFile();
+    }
+
+    /**
+     * Opens a cursor over the slots in a byte range of a store's data file, so that
+     * several cursors can scan disjoint parts of the store in parallel. Pins the store.
+     * @param store the store to scan
+     * @param start offset of the first slot to visit; must be a slot boundary
+     *              (see {@link PagedUserStore#splitPoints})
+     * @param end offset at which the scan stops (exclusive)
+     * @throws IOException If the file cannot be mapped or is not a user store
+     */
+    UserStoreCursor(PagedUserStore store, long start, long end) throws IOException {
+        long pinnedEnd = store.pin();
+        remaining.add(new Range(store.getDataFile(), store, start, Math.min(end, pinnedEnd)));
+        openFirst();
+    }
+
+    /**
+     * Opens a cursor that scans several stores in order, pinning all of them now.
+     * @param stores the stores to scan
+     * @throws IOException If a file cannot be mapped or is not a user store
+     */
+    UserStoreCursor(List<PagedUserStore> stores) throws IOException {
+        for (PagedUserStore store : stores) {
+            long pinnedEnd = store.pin();
+            remaining.add(new Range(store.getDataFile(), store, PagedUserStore.FILE_HEADER_SIZE, pinnedEnd));
+        }
+        openFirst();
+    }
+
+    private void openFirst() throws IOException {
+        try {
+            nextFile();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void open(Range range) throws IOException {
+        current = range;
+        FileChannel opened = FileChannel.open(range.dataFile.toPath(), StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(PagedUserStore.FILE_HEADER_SIZE);
+        try {
+            PagedUserStore.readFully(opened, header, 0);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        if (header.getInt(0) != PagedUserStore.DATA_MAGIC) {
+            opened.close();
+            throw new IOException("Not a user store file: " + range.dataFile);
+        }
+        this.channel = opened;
+        this.checksummed = header.getInt(4) >= 2;
+        this.end = Math.min(range.end, opened.size());
+        this.window = null;
+        this.nextSlot = Math.max(range.start, PagedUserStore.FILE_HEADER_SIZE);
+    }
+
+    /**
+     * Advances to the next live user record.
+     * @return true if positioned on a user, false when the scan is complete
+     * @throws IOException If the file is corrupt
+     */
+    public boolean next() throws IOException {
+        payload = -1;
+        legacyUser = null;
+        while (nextSlot + PagedUserStore.SLOT_HEADER_SIZE <= end || nextFile()) {
+            long slot = nextSlot;
+            int at = map(slot, PagedUserStore.SLOT_HEADER_SIZE);
+            int capacity = window.getInt(at);
+            int length = window.getInt(at + 4);
+            int status = window.getInt(at + 8);
+            if (capacity <= 0 || length < 0 || length > capacity) {
+                throw new IOException("Corrupt user slot at offset " + slot);
+            }
+            nextSlot = slot + PagedUserStore.SLOT_HEADER_SIZE + capacity;
+            if (status != PagedUserStore.STATUS_LIVE) continue;
+
+            int start = map(slot, PagedUserStore.SLOT_HEADER_SIZE + length) + PagedUserStore.SLOT_HEADER_SIZE;
+            if (checksummed && checksum(start, length) != window.getInt(start - 4)) {
+                throw new IOException("Corrupt user slot at offset " + slot + ": checksum mismatch");
+            }
+            payload = start;
+            // Same test as UserCodec.isLegacy, without a buffer view per record
+            if (length >= 2 && window.get(start) == (byte) 0xAC && window.get(start + 1) == (byte) 0xED) {
+                legacyUser = decodeLegacy(start, length);
+            } else {
+                assetTrailer = window.get(start) >= 2;
+                int position = start + 1;          // version
+                position = skipString(position);   // username
+                position = skipString(position);   // password
+                emailAt = position;
+                position = skipString(position);   // email
+                position += 8;                     // log sequence
+                assetCountAt = position;
+            }
+            rewindAssets();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves on to the next non-empty range once the current one is exhausted,
+     * releasing the store pinned for the finished one.
+     * @return true if another range was opened
+     */
+    private boolean nextFile() throws IOException {
+        while (!remaining.isEmpty()) {
+            release();
+            open(remaining.poll());
+            if (nextSlot + PagedUserStore.SLOT_HEADER_SIZE <= end) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes the current file and unpins its store.
+     */
+    private void release() throws IOException {
+        window = null;
+        Range done = current;
+        current = null;
+        try {
+            if (channel != null) channel.close();
+        } finally {
+            channel = null;
+            if (done != null && done.store != null) done.store.unpin();
+        }
+    }
+
+    /**
+     * @return the current user's name (allocates a String)
+     */
+    public String username() {
+        if (legacyUser != null) return legacyUser.getUsername();
+        return readString(payload + 1);
+    }
+
+    /**
+     * @return the current user's email address (allocates a String), or null if none
+     */
+    public String email() {
+        if (legacyUser != null) return legacyUser.getEmail();
+        return readString(emailAt);
+    }
+
+    /**
+     * @return number of assets held by the current user
+     */
+    public int assetCount() {
+        if (legacyUser != null) return legacyUser.getAssetCount();
+        return window.getInt(assetCountAt);
+    }
+
+    /**
+     * Sums the current user's asset values without materializing any Asset.
+     * @return total portfolio value of the current user
+     */
+    public double totalValue() {
+        if (legacyUser != null) return PortfolioService.getTotalPortfolioValue(legacyUser);
+        int count = window.getInt(assetCountAt);
+        int position = assetCountAt + 4;
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            position = skipString(position);
+            total += window.getDouble(position);
+            position = skipTrailer(position + 8);
+        }
+        return total;
+    }
+
+    /**
+     * Restarts asset iteration for the current user.
+     */
+    public void rewindAssets() {
+        if (legacyUser != null) {
+            assetRemaining = legacyUser.getAssetCount();
+            nextAssetAt = 0;
+        } else {
+            assetRemaining = window.getInt(assetCountAt);
+            nextAssetAt = assetCountAt + 4;
+        }
+        assetAt = -1;
+    }
+
+    /**
+     * Advances to the current user's next asset.
+     * @return true if positioned on an asset
+     */
+    public boolean nextAsset() {
+        if (assetRemaining == 0) return false;
+        assetRemaining--;
+        assetAt = nextAssetAt;
+        if (legacyUser != null) {
+            nextAssetAt++;
+        } else {
+            nextAssetAt = skipTrailer(skipString(assetAt) + 8);
+        }
+        return true;
+    }
+
+    /**
+     * @return value of the current asset
+     */
+    public double assetValue() {
+        if (legacyUser != null) return legacyUser.getAssetValue(assetAt);
+        return window.getDouble(skipString(assetAt));
+    }
+
+    /**
+     * @return name of the current asset (allocates a String)
+     */
+    public String assetName() {
+        if (legacyUser != null) return legacyUser.getAssetName(assetAt);
+        return readString(assetAt);
+    }
+
+    /**
+     * @return market symbol of the current asset, or null if it is valued by hand (allocates a String)
+     */
+    public String assetSymbol() {
+        if (legacyUser != null) return legacyUser.getAssetSymbol(assetAt);
+        if (!assetTrailer) return null;
+        return readString(skipString(assetAt) + 8);
+    }
+
+    /**
+     * @return quantity of the current asset's symbol held
+     */
+    public double assetQuantity() {
+        if (legacyUser != null) return legacyUser.getAssetQuantity(assetAt);
+        if (!assetTrailer) return 0;
+        return window.getDouble(skipString(skipString(assetAt) + 8));
+    }
+
+    /**
+     * Unmaps the view, closes the file and unpins every store the cursor still holds.
+     * @throws IOException If closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            release();
+        } finally {
+            Range range;
+            while ((range = remaining.poll()) != null) {
+                if (range.store != null) range.store.unpin();
+            }
+        }
+    }
+
+    // ------------------- Mapping -------------------
+
+    /**
+     * Makes sure {@code length} bytes starting at file offset {@code offset} are mapped.
+     * @return the window position of {@code offset}
+     */
+    private int map(long offset, int length) throws IOException {
+        if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+            long size = Math.min(end - offset, Math.max(WINDOW_SIZE, length));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            windowStart = offset;
+        }
+        return (int) (offset - windowStart);
+    }
+
+    private int checksum(int start, int length) {
+        crc.reset();
+        window.limit(start + length).position(start);
+        crc.update(window);
+        window.clear();
+        return (int) crc.getValue();
+    }
+
+    private int skipString(int position) {
+        int length = window.getInt(position);
+        return position + 4 + Math.max(length, 0);
+    }
+
+    /**
+     * Skips the symbol and quantity that follow an asset's value in version 2+ records.
+     */
+    private int skipTrailer(int position) {
+        return assetTrailer ? skipString(position) + 8 : position;
+    }
+
+    private String readString(int position) {
+        int length = window.getInt(position);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        window.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private User decodeLegacy(int start, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        window.get(start, bytes);
+        try {
+            return UserCodec.decode(ByteBuffer.wrap(bytes));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot read legacy user record: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks portfolios to market: assets that hold a quantity of a market symbol are
+ * valued at quantity times the symbol's latest price.
+ * Symbols are interned to small integer ids, and the latest prices live in a
+ * {@code double[]} indexed by id. A reverse index from symbol id to the usernames
+ * holding it means a price tick only touches the portfolios that hold a changed
+ * symbol; those are revalued in parallel on a pool of their own, since every
+ * revaluation may read the store, and written back by the user cache.
+ * Ticks are applied one at a time. A new price is published as soon as its tick
+ * starts, so assets added meanwhile are valued at it, and its symbol stays pending
+ * until every holder has been revalued: if a tick fails, the next one revalues the
+ * holders again even if the price has not changed since.
+ *
+ * <p>Prices come from a feed file with one {@code SYMBOL,price} line per symbol
+ * ({@code #} starts a comment); see {@link #applyPriceFile} and {@link #watch}.</p>
+ */
+public class ValuationEngine {
+    private static final int INITIAL_SYMBOLS = 64;
+    private static final String PRICE_FEED_FILENAME = "prices.csv";
+    private static final long PRICE_FEED_POLL_MS = 5_000;
+    private static final int REVALUE_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final Map<String, Integer> symbolIds = new HashMap<>();
+    private static double[] prices = newPriceTable(INITIAL_SYMBOLS); // NaN until a price is known
+    private static final List<Set<String>> holders = new ArrayList<>(); // by symbol id
+    private static final BitSet pending = new BitSet(); // symbol ids whose holders may carry an old price
+    private static final Object tickLock = new Object(); // one tick at a time
+    private static boolean indexed;
+    private static ScheduledExecutorService watcher;
+    private static final ExecutorService revaluers = Executors.newFixedThreadPool(REVALUE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "valuation-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Metrics.Histogram tickLatency = Metrics.histogram("valuation.tick");
+    private static final Metrics.Counter portfoliosRevalued = Metrics.counter("valuation.portfolios_revalued");
+
+    /**
+     * Outcome of applying one set of prices.
+     */
+    public static final class Revaluation {
+        int symbolsChanged;
+        int portfoliosRevalued;
+        long elapsedNanos;
+
+        /**
+         * @return number of symbols whose price changed
+         */
+        public int getSymbolsChanged() { return symbolsChanged; }
+
+        /**
+         * @return number of portfolios holding a changed symbol that were revalued
+         */
+        public int getPortfoliosRevalued() { return portfoliosRevalued; }
+
+        @Override
+        public String toString() {
+            return String.format("Revaluation: %d symbols changed, %,d portfolios revalued in %.1f ms",
+                    symbolsChanged, portfoliosRevalued, elapsedNanos / 1_000_000.0);
+        }
+    }
+
+    // ------------------- Price table -------------------
+
+    /**
+     * @param symbol a market symbol as typed by a user or found in a feed
+     * @return the symbol in canonical form (trimmed, upper case)
+     */
+    static String normalize(String symbol) {
+        return symbol.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @param symbol market symbol, in any case and with any surrounding spaces
+     * @return latest known price of one unit, or NaN if none has been received
+     */
+    public static synchronized double getPrice(String symbol) {
+        Integer id = symbolIds.get(normalize(symbol));
+        return id == null ? Double.NaN : prices[id];
+    }
+
+    /**
+     * Returns the id of a symbol, assigning the next free id on first sight.
+     * Callers hold the class lock.
+     */
+    private static int symbolId(String symbol) {
+        Integer id = symbolIds.get(symbol);
+        if (id != null) return id;
+        int next = symbolIds.size();
+        if (next == prices.length) {
+            double[] grown = newPriceTable(next * 2);
+            System.arraycopy(prices, 0, grown, 0, next);
+            prices = grown;
+        }
+        symbolIds.put(symbol, next);
+        holders.add(new HashSet<>());
+        return next;
+    }
+
+    private static double checkPrice(double price) {
+        if (!(price > 0) || Double.isInfinite(price)) {
+            throw new IllegalArgumentException("Price must be a positive number: " + price);
+        }
+        return price;
+    }
+
+    private static double[] newPriceTable(int size) {
+        double[] table = new double[size];
+        Arrays.fill(table, Double.NaN);
+        return table;
+    }
+
+    // ------------------- Holders index -------------------
+
+    /**
+     * Records that a user holds a symbol, so the next tick of that symbol revalues them.
+     * @param symbol market symbol
+     * @param username user holding it
+     */
+    static synchronized void addHolder(String symbol, String username) {
+        holders.get(symbolId(symbol)).add(username);
+    }
+
+    /**
+     * Records every symbol a user holds, for a user written as a whole rather than
+     * one asset at a time. Callers hold the user's lock.
+     * @param user user whose holdings to record
+     */
+    static synchronized void addHolders(User user) {
+        for (int i = 0; i < user.getAssetCount(); i++) {
+            String symbol = user.getAssetSymbol(i);
+            if (symbol != null) holders.get(symbolId(symbol)).add(user.getUsername());
+        }
+    }
+
+    /**
+     * Forgets every holder, e.g. when storage moves to another directory; the index is
+     * built again from the store on the next tick. Prices are kept.
+     */
+    static synchronized void forgetHolders() {
+        for (Set<String> symbolHolders : holders) {
+            symbolHolders.clear();
+        }
+        pending.clear();
+        indexed = false;
+    }
+
+    /**
+     * Builds the symbol to holders index from the store on first use.
+     * {@link UserStorage#openCursor} flushes the user cache first, so holdings only cached
+     * so far, including changes replayed from the asset log, are scanned too.
+     * Holdings added afterwards are recorded by {@link #addHolder} and {@link #addHolders}.
+     */
+    private static void ensureIndexed() throws IOException, ClassNotFoundException {
+        synchronized (ValuationEngine.class) {
+            if (indexed) return;
+        }
+        // Scan without holding the lock so asset edits are not blocked meanwhile
+        Map<String, Set<String>> found = new HashMap<>();
+        try (UserStoreCursor cursor = UserStorage.openCursor()) {
+            while (cursor.next()) {
+                String username = null;
+                while (cursor.nextAsset()) {
+                    String symbol = cursor.assetSymbol();
+                    if (symbol == null) continue;
+                    if (username == null) username = cursor.username();
+                    found.computeIfAbsent(symbol, key -> new HashSet<>()).add(username);
+                }
+            }
+        }
+        synchronized (ValuationEngine.class) {
+            if (indexed) return;
+            for (Map.Entry<String, Set<String>> entry : found.entrySet()) {
+                holders.get(symbolId(entry.getKey())).addAll(entry.getValue());
+            }
+            indexed = true;
+        }
+    }
+
+    // ------------------- Revaluation -------------------
+
+    /**
+     * Publishes new prices and revalues every portfolio that holds a symbol whose price
+     * changed, or whose last tick did not finish. A user changed concurrently is revalued
+     * again on their current state; users that fail leave their symbols pending.
+     * @param ticks latest price per symbol
+     * @return what changed
+     * @throws IllegalArgumentException If a price is not a positive number; no price is published
+     * @throws IOException If some portfolios cannot be read or updated; the others are revalued
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static Revaluation applyPrices(Map<String, Double> ticks) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        for (double price : ticks.values()) {
+            checkPrice(price);
+        }
+        ensureIndexed();
+        synchronized (tickLock) {
+            Map<String, Double> changed = new HashMap<>();
+            Set<String> affected = new HashSet<>();
+            synchronized (ValuationEngine.class) {
+                for (Map.Entry<String, Double> tick : ticks.entrySet()) {
+                    double price = tick.getValue();
+                    int id = symbolId(tick.getKey());
+                    if (prices[id] == price && !pending.get(id)) continue;
+                    prices[id] = price;
+                    pending.set(id);
+                    changed.put(tick.getKey(), price);
+                    affected.addAll(holders.get(id));
+                }
+            }
+
+            List<String> usernames = new ArrayList<>(affected);
+            List<Future<Boolean>> results = new ArrayList<>(usernames.size());
+            for (String username : usernames) {
+                results.add(revaluers.submit(() -> UserStorage.markToMarket(username, changed)));
+            }
+            int revalued = 0;
+            int failed = 0;
+            Throwable failure = null;
+            Set<String> noLongerHolding = new HashSet<>();
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (results.get(i).get()) {
+                        revalued++;
+                    } else {
+                        noLongerHolding.add(usernames.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    if (failure == null) failure = e.getCause();
+                } catch (InterruptedException e) {
+                    for (Future<Boolean> result : results) {
+                        result.cancel(false);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Revaluation interrupted");
+                }
+            }
+            synchronized (ValuationEngine.class) {
+                for (String symbol : changed.keySet()) {
+                    int id = symbolIds.get(symbol);
+                    holders.get(id).removeAll(noLongerHolding);
+                    if (failure == null) pending.clear(id);
+                }
+            }
+            portfoliosRevalued.add(revalued);
+            if (failure != null) {
+                throw new IOException(failed + " of " + usernames.size()
+                        + " portfolios could not be revalued; the next tick retries them: " + failure.getMessage(), failure);
+            }
+
+            Revaluation result = new Revaluation();
+            result.symbolsChanged = changed.size();
+            result.portfoliosRevalued = revalued;
+            result.elapsedNanos = System.nanoTime() - start;
+            tickLatency.record(result.elapsedNanos);
+            return result;
+        }
+    }
+
+    // ------------------- Price feed -------------------
+
+    /**
+     * Reads a price feed file and applies its prices.
+     * @param file feed with one {@code SYMBOL,price} line per symbol
+     * @return what changed
+     * @throws IOException If the file is missing or malformed, or a portfolio cannot be updated
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static Revaluation applyPriceFile(File file) throws IOException, ClassNotFoundException {
+        if (!file.exists()) {
+            throw new IOException("Price file not found: " + file);
+        }
+        Map<String, Double> ticks = new HashMap<>();
+        FileUtils.forEachLine(file.getPath(), (raw, lineNumber) -> {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) return;
+            String[] fields = line.split("[,\\s]+");
+            try {
+                if (fields.length != 2) throw new IllegalArgumentException("expected SYMBOL,price");
+                ticks.put(normalize(fields[0]), checkPrice(Double.parseDouble(fields[1])));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+            }
+        });
+        return applyPrices(ticks);
+    }
+
+    /**
+     * Starts watching the default price feed, prices.csv in the working directory.
+     */
+    public static void startPriceFeed() {
+        watch(new File(PRICE_FEED_FILENAME), PRICE_FEED_POLL_MS);
+    }
+
+    /**
+     * Polls a price feed file in the background and applies it whenever it changes.
+     * @param file feed file to watch; it does not need to exist yet
+     * @param intervalMillis delay between checks
+     */
+    public static synchronized void watch(File file, long intervalMillis) {
+        if (watcher != null) return;
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "price-feed-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastModified = {0};
+        watcher.scheduleWithFixedDelay(() -> {
+            long modified = file.lastModified();
+            if (modified == 0 || modified == lastModified[0]) return;
+            lastModified[0] = modified;
+            try {
+                applyPriceFile(file);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                System.err.println("[ERROR] Failed to apply prices from " + file + ": " + e.getMessage());
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies a price feed file once and writes the revalued portfolios to disk.
+     * Usage: {@code java ValuationEngine [prices.csv]}
+     * @param args optional feed file name
+     * @throws IOException If the file or the store cannot be read or written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        File file = new File(args.length > 0 ? args[0] : "prices.csv");
+        System.out.println(applyPriceFile(file));
+        UserStorage.flush();
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Annual Zakat run over every stored user.
+ * The store is split into slices that are scanned in parallel on a fork/join pool,
+ * each with its own memory-mapped cursor. Every user is evaluated against one
+ * Nisab threshold captured when the run starts, and per-user results are streamed
+ * to a CSV report in store order as slices complete. Only a small window of slices
+ * is in flight at a time, so memory stays bounded however many users there are.
+ * The cursors pin the store for the whole run (see {@link UserStoreCursor}), so every
+ * user stored when the run starts is reported exactly once, as they were then, however
+ * their portfolios change while the run is going on; changes made meanwhile count
+ * towards the next run.
+ *
+ * <p>Usage: {@code java ZakatBatchJob [report.csv] [threads]}</p>
+ */
+public class ZakatBatchJob {
+    private static final int SLICES_PER_THREAD = 8;
+    private static final Metrics.Histogram runLatency = Metrics.histogram("zakat.batch_run");
+    private static final Metrics.Counter usersProcessed = Metrics.counter("zakat.batch_users");
+
+    /**
+     * Totals of a batch run.
+     */
+    public static final class Summary {
+        long users;
+        long eligibleUsers;
+        double totalValue;
+        double totalZakat;
+        double nisabThreshold;
+        long goldPriceVersion;
+        long elapsedNanos;
+
+        /**
+         * @return users processed per second
+         */
+        public double getUsersPerSecond() {
+            return elapsedNanos == 0 ? 0 : users * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Zakat run: %,d users (%,d eligible), portfolio total $%,.2f, zakat due $%,.2f, "
+                            + "nisab $%,.2f (gold price v%d), %.1f ms, %,.0f users/s",
+                    users, eligibleUsers, totalValue, totalZakat, nisabThreshold, goldPriceVersion,
+                    elapsedNanos / 1_000_000.0, getUsersPerSecond());
+        }
+    }
+
+    /**
+     * Result of one slice: its CSV lines and partial totals.
+     */
+    private static final class Slice {
+        final StringBuilder csv = new StringBuilder();
+        long users;
+        long eligibleUsers;
+        double totalValue;
+        double totalZakat;
+    }
+
+    /**
+     * Computes Zakat for every stored user and writes a CSV report.
+     * @param report file that receives one line per user
+     * @param threads number of worker threads
+     * @return totals of the run
+     * @throws IOException If the store cannot be read or the report cannot be written
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static Summary run(File report, int threads) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        GoldPrice goldPrice = ZakatService.getGoldPrice(); // one snapshot for the whole run
+        double nisabThreshold = goldPrice.getNisabThreshold();
+        Summary summary = new Summary();
+        summary.nisabThreshold = nisabThreshold;
+        summary.goldPriceVersion = goldPrice.getVersion();
+
+        List<UserStoreCursor> cursors = UserStorage.openCursors(threads * SLICES_PER_THREAD);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (Writer out = FileUtils.openWriter(report.getPath())) {
+            out.write("username,total_value,nisab_threshold,zakat_due,eligible\n");
+            // Keep only a window of slices in flight so finished CSV text does not pile up in memory
+            Deque<Future<Slice>> inFlight = new ArrayDeque<>();
+            int submitted = 0;
+            while (submitted < cursors.size() || !inFlight.isEmpty()) {
+                while (submitted < cursors.size() && inFlight.size() < threads * 2) {
+                    UserStoreCursor cursor = cursors.get(submitted++);
+                    inFlight.add(pool.submit(() -> scan(cursor, nisabThreshold)));
+                }
+                Slice slice = inFlight.removeFirst().get();
+                out.append(slice.csv);
+                summary.users += slice.users;
+                summary.eligibleUsers += slice.eligibleUsers;
+                summary.totalValue += slice.totalValue;
+                summary.totalZakat += slice.totalZakat;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Zakat run interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Zakat run failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+            for (UserStoreCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        runLatency.record(summary.elapsedNanos);
+        usersProcessed.add(summary.users);
+        return summary;
+    }
+
+    private static Slice scan(UserStoreCursor cursor, double nisabThreshold) throws IOException {
+        Slice slice = new Slice();
+        while (cursor.next()) {
+            double total = cursor.totalValue();
+            double zakat = ZakatService.calculateZakat(total, nisabThreshold);
+            boolean eligible = zakat > 0;
+            FileUtils.appendCsvField(slice.csv, cursor.username());
+            slice.csv.append(',').append(total)
+                    .append(',').append(nisabThreshold)
+                    .append(',').append(zakat)
+                    .append(',').append(eligible).append('\n');
+            slice.users++;
+            slice.totalValue += total;
+            if (eligible) {
+                slice.eligibleUsers++;
+                slice.totalZakat += zakat;
+            }
+        }
+        return slice;
+    }
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        File report = new File(args.length > 0 ? args[0] : "zakat_report.csv");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Summary summary = run(report, threads);
+        System.out.println(summary);
+        System.out.println("Report written to " + report);
+    }
+}
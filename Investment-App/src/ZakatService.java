@@ -1,7 +1,18 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public class ZakatService {
     private static final double ZAKAT_RATE = 0.025; // 2.5%
     static final double NISAB_GOLD_GRAMS = 85.0; // Islamic gold standard (approx. 87.48 grams)
-    static double goldPricePerGram = 5400.0; // (update this value periodically)
+    static final double DEFAULT_GOLD_PRICE_PER_GRAM = 5400.0; // used until the price source answers
+    private static final String GOLD_PRICE_FILENAME = "gold_price.txt";
+    private static final long GOLD_PRICE_TTL_MS = 15 * 60_000;
+    static final int HAWL_DAYS = 354; // one lunar year
+    private static final GoldPriceFeed goldPriceFeed = GoldPriceFeed.start(defaultSource(),
+            DEFAULT_GOLD_PRICE_PER_GRAM, GOLD_PRICE_TTL_MS);
+    private static final Metrics.Histogram countLatency = Metrics.histogram("zakat.count_eligible");
 
     /**
      * Checks if the portfolio value meets the Nisab threshold.
@@ -9,21 +20,144 @@ public class ZakatService {
      * @return true if Zakat is applicable
      */
     public static boolean isZakatApplicable(double totalValue) {
-        double nisabThreshold = NISAB_GOLD_GRAMS * goldPricePerGram;
+        return isZakatApplicable(totalValue, getNisabThreshold());
+    }
+
+    /**
+     * Checks a portfolio value against a given Nisab threshold.
+     * Batch runs use this with one threshold snapshot for every user.
+     * @param totalValue total portfolio value
+     * @param nisabThreshold Nisab threshold to compare against
+     * @return true if Zakat is applicable
+     */
+    public static boolean isZakatApplicable(double totalValue, double nisabThreshold) {
         return totalValue >= nisabThreshold;
     }
 
+    /**
+     * @return current Nisab threshold (Nisab gold weight times the current gold price)
+     */
+    public static double getNisabThreshold() {
+        return getGoldPrice().getNisabThreshold();
+    }
+
+    /**
+     * Returns the current gold price snapshot without waiting for a price fetch.
+     * Callers that make several calculations should read this once and pass its
+     * threshold along, so they all see the same price.
+     * @return the latest published gold price
+     */
+    public static GoldPrice getGoldPrice() {
+        return goldPriceFeed.current();
+    }
+
+    /**
+     * @return gold price changes, oldest first
+     */
+    public static List<GoldPrice> getGoldPriceHistory() {
+        return goldPriceFeed.getHistory();
+    }
+
     /**
      * Calculates Zakat amount (2.5% of total value if above Nisab).
      * @param totalValue total portfolio value
      * @return Zakat amount (0 if below Nisab)
      */
     public static double calculateZakat(double totalValue) {
-        return isZakatApplicable(totalValue) ? totalValue * ZAKAT_RATE : 0;
+        return calculateZakat(totalValue, getNisabThreshold());
+    }
+
+    /**
+     * Calculates Zakat amount against a given Nisab threshold.
+     * @param totalValue total portfolio value
+     * @param nisabThreshold Nisab threshold to compare against
+     * @return Zakat amount (0 if below Nisab)
+     */
+    public static double calculateZakat(double totalValue, double nisabThreshold) {
+        return isZakatApplicable(totalValue, nisabThreshold) ? totalValue * ZAKAT_RATE : 0;
     }
 
-    // For flexibility, allow updating gold price (e.g., via admin input)
+    // ------------------- Hawl -------------------
+
+    /**
+     * Finds the lowest portfolio value a user held over the last lunar year (the hawl),
+     * from the portfolio history. Only the history partitions of that year, and at most
+     * the two years before it for the opening balance, are read.
+     * @param username the user to check
+     * @return the minimum balance, or NaN if the user's history does not go back a full lunar year
+     *         or has no snapshot in the two years before it
+     * @throws IOException If the history cannot be read
+     */
+    public static double getMinimumBalanceOverHawl(String username) throws IOException {
+        long now = System.currentTimeMillis();
+        long hawlStart = now - TimeUnit.DAYS.toMillis(HAWL_DAYS);
+        return UserStorage.getHistory().minimum(username, TimeSeriesStore.TOTAL, hawlStart, now + 1);
+    }
+
+    /**
+     * Checks whether a user's wealth stayed at or above the Nisab for a whole lunar year.
+     * Users whose history is shorter than a lunar year have not completed the hawl.
+     * @param username the user to check
+     * @param nisabThreshold Nisab threshold to compare against
+     * @return true if the hawl is complete
+     * @throws IOException If the history cannot be read
+     */
+    public static boolean isHawlComplete(String username, double nisabThreshold) throws IOException {
+        double minimum = getMinimumBalanceOverHawl(username);
+        return !Double.isNaN(minimum) && isZakatApplicable(minimum, nisabThreshold);
+    }
+
+    /**
+     * Counts stored users whose portfolio meets the Nisab threshold.
+     * Streams over the store with a memory-mapped cursor instead of loading all users.
+     * The cursor sees the store as it was when the count started, so users changed
+     * meanwhile are counted once, by their portfolio at that point.
+     * @return number of users for whom Zakat is applicable
+     * @throws IOException If the store cannot be read
+     * @throws ClassNotFoundException If serialization class mismatch occurs
+     */
+    public static int countZakatEligibleUsers() throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        double nisabThreshold = getNisabThreshold();
+        int eligible = 0;
+        try (UserStoreCursor cursor = UserStorage.openCursor()) {
+            while (cursor.next()) {
+                if (isZakatApplicable(cursor.totalValue(), nisabThreshold)) {
+                    eligible++;
+                }
+            }
+        }
+        countLatency.recordSince(start);
+        return eligible;
+    }
+
+    // ------------------- Gold price -------------------
+
+    /**
+     * Fixes the gold price to a value entered by hand (e.g., via admin input).
+     * It stays in effect until another price source is set.
+     * @param price price of one gram of gold
+     * @throws IllegalArgumentException If the price is not a positive number
+     */
     public static void setGoldPricePerGram(double price) {
-        goldPricePerGram = price;
+        goldPriceFeed.fix(price);
+    }
+
+    /**
+     * Switches to another price source and fetches from it right away.
+     * @param source where gold prices are fetched from
+     * @return the price published from the new source
+     * @throws IOException If the new source cannot supply a price; the old source and price stay in effect
+     */
+    public static GoldPrice setGoldPriceSource(GoldPriceSource source) throws IOException {
+        return goldPriceFeed.switchSource(source);
+    }
+
+    /**
+     * Reads prices from gold_price.txt when it exists, otherwise uses the built-in default.
+     */
+    private static GoldPriceSource defaultSource() {
+        File file = new File(GOLD_PRICE_FILENAME);
+        return file.exists() ? new FileGoldPriceSource(file) : new FixedGoldPriceSource(DEFAULT_GOLD_PRICE_PER_GRAM);
     }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the asset log: recovery from a record torn by a crash mid-append, and
+ * replay of the records the user store had not seen when the process stopped.
+ */
+class AssetLogTest {
+    private static final long FLUSH_INTERVAL_MS = 60_000;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void truncatesAPartialRecordAtTheTail() throws IOException {
+        File file = new File(directory, "assets.wal");
+        long durableLength = writeRecords(file, 3);
+
+        // A crash mid-append leaves a record header promising more bytes than were written
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(durableLength);
+            raf.writeInt(64);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        assertRecovered(file, durableLength);
+    }
+
+    @Test
+    void truncatesARecordWithABadChecksum() throws IOException {
+        File file = new File(directory, "assets.wal");
+        long threeRecords = writeRecords(file, 3);
+        try (AssetLog log = AssetLog.open(file)) {
+            log.awaitDurable(log.append(AssetLog.OP_ADD, "alice", 3, new Asset("Silver", 4)));
+        }
+
+        // Flip a byte of the last record's payload, as if its pages were only partly written
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long last = raf.length() - 1;
+            raf.seek(last);
+            int b = raf.read();
+            raf.seek(last);
+            raf.write(b ^ 0xFF);
+        }
+
+        assertRecovered(file, threeRecords);
+    }
+
+    @Test
+    void rejectsAppendsOnceClosed() throws IOException {
+        AssetLog log = AssetLog.open(new File(directory, "assets.wal"));
+        log.close();
+        assertThrows(IOException.class, () -> log.append(AssetLog.OP_ADD, "alice", 0, new Asset("Gold", 1)));
+    }
+
+    @Test
+    void replaysRecordsTheStoreHasNotSeen() throws Exception {
+        File file = new File(directory, "assets.wal");
+        // Alice was last written with the first record applied; the other two only reached the log
+        try (ShardedUserStore store = openStore(); AssetLog log = AssetLog.open(file)) {
+            User alice = new User("alice", "password", "alice@example.com");
+            long first = log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Gold", 100));
+            alice.addAsset(new Asset("Gold", 100));
+            alice.setLogSequence(first);
+            store.insert(alice);
+            log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Cash", 50));
+            log.awaitDurable(log.append(AssetLog.OP_UPDATE, "alice", 0, new Asset("Gold", 150)));
+        }
+
+        try (ShardedUserStore store = openStore(); AssetLog log = AssetLog.open(file);
+             UserIndex index = UserIndex.open(new File(directory, "users.six"), store::openCursor)) {
+            UserStorage.recover(log, store, index);
+            User alice = store.get("alice");
+            assertEquals(List.of(new Asset("Gold", 150), new Asset("Cash", 50)), alice.getAssets());
+            assertEquals(3, alice.getLogSequence());
+            assertTrue(index.findHolders("Cash").contains("alice"), "replayed changes are indexed");
+        }
+
+        // The replayed user was written back on close, so a second replay changes nothing
+        try (ShardedUserStore store = openStore(); AssetLog log = AssetLog.open(file);
+             UserIndex index = UserIndex.open(new File(directory, "users.six"), store::openCursor)) {
+            assertEquals(0, store.getDirtyCount());
+            UserStorage.recover(log, store, index);
+            assertEquals(0, store.getDirtyCount(), "records the store has seen are skipped");
+            assertEquals(2, store.get("alice").getAssetCount());
+        }
+    }
+
+    /**
+     * Appends Gold assets 0..count-1 for alice to a new log.
+     * @return length of the log once they are durable
+     */
+    private static long writeRecords(File file, int count) throws IOException {
+        try (AssetLog log = AssetLog.open(file)) {
+            long sequence = 0;
+            for (int i = 0; i < count; i++) {
+                sequence = log.append(AssetLog.OP_ADD, "alice", i, new Asset("Gold", i));
+            }
+            log.awaitDurable(sequence);
+            assertEquals(count, log.lastSequence());
+        }
+        return file.length();
+    }
+
+    private static void assertRecovered(File file, long durableLength) throws IOException {
+        try (AssetLog reopened = AssetLog.open(file)) {
+            assertEquals(durableLength, file.length(), "torn tail is truncated");
+            List<AssetLog.Record> records = reopened.readAll();
+            assertEquals(3, records.size());
+            for (int i = 0; i < records.size(); i++) {
+                AssetLog.Record record = records.get(i);
+                assertEquals(i + 1, record.sequence);
+                assertEquals("alice", record.username);
+                assertEquals(i, record.asset.getValue());
+            }
+
+            long next = reopened.append(AssetLog.OP_ADD, "alice", 3, new Asset("Gold", 3));
+            reopened.awaitDurable(next);
+            assertEquals(4, next, "sequences continue after the last intact record");
+        }
+        try (AssetLog reopened = AssetLog.open(file)) {
+            assertEquals(4, reopened.readAll().size());
+        }
+    }
+
+    private ShardedUserStore openStore() throws IOException, ClassNotFoundException {
+        return ShardedUserStore.open(directory, 1, 100, FLUSH_INTERVAL_MS);
+    }
+}
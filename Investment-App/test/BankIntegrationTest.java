@@ -0,0 +1,140 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the bank-linking pipeline against a scripted bank: card checks, retries of
+ * failed and timed-out calls, and the OTP confirmation. The breaker is shared by every
+ * bank call, so each test leaves it closed.
+ */
+class BankIntegrationTest {
+    private static final String CARD = "1234567812345678";
+
+    private final ScriptedClient bank = new ScriptedClient();
+
+    @BeforeEach
+    void useScriptedBank() {
+        BankIntegration.setClient(bank);
+    }
+
+    @AfterEach
+    void restoreBank() {
+        BankIntegration.getBreaker().recordSuccess();
+        BankIntegration.setClient(new StubBankClient(0, 0, 0, otp -> { }));
+    }
+
+    @Test
+    void matchesBanksAndCardsBeforeCallingTheBank() {
+        BankRegistry registry = BankRegistry.get();
+        assertEquals("Bank A", registry.findBank("  bank a "));
+        assertNull(registry.findBank("Bank Z"));
+        assertTrue(registry.isValidCard(CARD, "12/29"));
+        assertFalse(registry.isValidCard("1234", "12/29"));
+        assertFalse(registry.isValidCard(CARD, "1229"));
+
+        assertCause(IllegalArgumentException.class, BankIntegration.requestLink("Bank Z", CARD, "12/29"));
+        assertCause(IllegalArgumentException.class, BankIntegration.requestLink("Bank A", "1234", "12/29"));
+        assertEquals(0, bank.calls.get());
+    }
+
+    @Test
+    void linksAnAccountWithTheOtp() throws Exception {
+        String linkId = get(BankIntegration.requestLink("bank b", CARD, "12/29"));
+        assertEquals("Bank B:" + CARD, linkId, "the bank gets the listed name");
+        assertFalse(get(BankIntegration.confirmLink(linkId, "000000")));
+        assertTrue(get(BankIntegration.confirmLink(linkId, ScriptedClient.OTP)));
+    }
+
+    @Test
+    void retriesFailedCalls() throws Exception {
+        bank.failures.set(BankIntegration.MAX_ATTEMPTS - 1);
+        assertEquals("Bank A:" + CARD, get(BankIntegration.requestLink("Bank A", CARD, "12/29")));
+        assertEquals(BankIntegration.MAX_ATTEMPTS, bank.calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, BankIntegration.getBreaker().getState());
+    }
+
+    @Test
+    void givesUpAfterTheLastAttempt() {
+        bank.failures.set(BankIntegration.MAX_ATTEMPTS);
+        assertCause(IOException.class, BankIntegration.fetchTransactions("account", 0, 10));
+        assertEquals(BankIntegration.MAX_ATTEMPTS, bank.calls.get());
+    }
+
+    @Test
+    void retriesACallThatTimesOut() throws Exception {
+        bank.slowCalls.set(1);
+        assertEquals(List.of(), get(BankIntegration.fetchTransactions("account", 0, 10)));
+        assertEquals(2, bank.calls.get(), "the slow call was abandoned and retried");
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    private static void assertCause(Class<? extends Throwable> type, CompletableFuture<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> get(future));
+        assertInstanceOf(type, e.getCause());
+    }
+
+    /**
+     * A bank that answers at once, after failing or stalling as many calls as the test asks.
+     */
+    private static final class ScriptedClient implements BankClient {
+        static final String OTP = "123456";
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger slowCalls = new AtomicInteger();
+
+        @Override
+        public String requestLink(String bank, String cardNumber, String expiry) throws IOException {
+            answer();
+            return bank + ":" + cardNumber;
+        }
+
+        @Override
+        public boolean confirmLink(String linkId, String otp) throws IOException {
+            answer();
+            return OTP.equals(otp);
+        }
+
+        @Override
+        public List<BankTransaction> fetchTransactions(String accountId, long afterSequence, int limit) throws IOException {
+            answer();
+            return List.of();
+        }
+
+        @Override
+        public String getName() {
+            return "scripted";
+        }
+
+        private void answer() throws IOException {
+            calls.incrementAndGet();
+            if (slowCalls.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                try {
+                    Thread.sleep(BankIntegration.CALL_TIMEOUT_MS + 500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw new IOException("bank down");
+            }
+        }
+    }
+}
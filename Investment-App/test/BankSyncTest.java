@@ -0,0 +1,182 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of bank syncs against a feed that delivers some transactions again: every
+ * transaction reaches the cash asset exactly once, across repeated syncs, restarts and
+ * syncs interrupted between the asset change and the cursor commit.
+ */
+class BankSyncTest {
+    private static final int CONCURRENCY = 4;
+    private static final String CARD = "1234567812345678";
+
+    @TempDir
+    File directory;
+
+    private final Feed feed = new Feed();
+    private File accountsFile;
+
+    @BeforeEach
+    void openStorage() throws Exception {
+        UserStorage.useDirectory(new File(directory, "data"));
+        accountsFile = new File(directory, BankSync.ACCOUNTS_FILENAME);
+        BankIntegration.setClient(feed);
+        for (String username : new String[] {"alice", "bob"}) {
+            UserStorage.saveUser(new User(username, "password", username + "@example.com"));
+        }
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        BankIntegration.setClient(new StubBankClient(0, 0, 0, otp -> { }));
+        UserStorage.close();
+    }
+
+    @Test
+    void appliesEveryTransactionOnce() throws Exception {
+        BankSync sync = BankSync.open(accountsFile, CONCURRENCY);
+        sync.register("alice", "Bank A", CARD, "a1");
+        sync.register("alice", "Bank B", CARD, "a2");
+        sync.register("bob", "Bank A", CARD, "b1");
+        feed.add("a1", 10_000, -2_500, 300);
+        feed.add("a2", 5_000);
+        feed.add("b1", 1_234);
+
+        assertEquals(5, sync.syncAll());
+        assertEquals(0, sync.syncAll(), "replayed transactions are skipped");
+        assertEquals(78.0, cash("alice", "Bank A cash ****5678"));
+        assertEquals(50.0, cash("alice", "Bank B cash ****5678"));
+        assertEquals(12.34, cash("bob", "Bank A cash ****5678"));
+        assertEquals(3, sync.getCursor("a1"));
+
+        feed.add("a1", 2_000);
+        assertEquals(1, sync.syncUser("alice"));
+        assertEquals(98.0, cash("alice", "Bank A cash ****5678"));
+
+        // Cursors survive a restart
+        BankSync reopened = BankSync.open(accountsFile, CONCURRENCY);
+        assertEquals(0, reopened.syncAll());
+        assertEquals(98.0, cash("alice", "Bank A cash ****5678"));
+        assertEquals(4, reopened.getCursor("a1"));
+    }
+
+    @Test
+    void writesTheAccountsFileTwicePerRound() throws Exception {
+        BankSync sync = BankSync.open(accountsFile, CONCURRENCY);
+        for (int i = 0; i < 50; i++) {
+            sync.register(i % 2 == 0 ? "alice" : "bob", "Bank A", String.format("%016d", i), "account" + i);
+            feed.add("account" + i, 100, 200);
+        }
+        Metrics.Counter writes = Metrics.counter("bank_sync.file_writes");
+        long before = writes.get();
+
+        assertEquals(100, sync.syncAll());
+        assertEquals(2, writes.get() - before);
+        assertEquals(0, sync.syncAll());
+        assertEquals(2, writes.get() - before, "a round with nothing new writes nothing");
+    }
+
+    @Test
+    void commitsAPendingCursorTheAssetAlreadyReflects() throws Exception {
+        feed.add("a1", 10_000, 2_000);
+        // Crashed after the asset change, before the cursor commit
+        UserStorage.addAsset(UserStorage.findUser("alice"), new Asset("Bank A cash ****5678", 120));
+        writeAccounts("a1", "alice", "Bank A cash ****5678", 0, 2, 12_000);
+
+        BankSync sync = BankSync.open(accountsFile, CONCURRENCY);
+        assertEquals(0, sync.syncAll());
+        assertEquals(2, sync.getCursor("a1"));
+        assertEquals(120.0, cash("alice", "Bank A cash ****5678"));
+        assertEquals(2, BankSync.open(accountsFile, CONCURRENCY).getCursor("a1"), "the settled cursor was written");
+    }
+
+    @Test
+    void dropsAPendingCursorTheAssetNeverReached() throws Exception {
+        feed.add("a1", 10_000, 2_000);
+        // Crashed after recording the pending cursor, before the asset change
+        writeAccounts("a1", "alice", "Bank A cash ****5678", 0, 2, 12_000);
+
+        BankSync sync = BankSync.open(accountsFile, CONCURRENCY);
+        assertEquals(2, sync.syncAll());
+        assertEquals(2, sync.getCursor("a1"));
+        assertEquals(120.0, cash("alice", "Bank A cash ****5678"));
+    }
+
+    private static double cash(String username, String assetName) throws Exception {
+        User user = UserStorage.findUser(username);
+        int index = user.indexOfAsset(assetName);
+        assertTrue(index >= 0, assetName + " missing");
+        return user.getAsset(index).getValue();
+    }
+
+    private void writeAccounts(String id, String username, String assetName, long cursor,
+                               long pendingCursor, long pendingCents) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(id + ".user", username);
+        properties.setProperty(id + ".asset", assetName);
+        properties.setProperty(id + ".cursor", String.valueOf(cursor));
+        properties.setProperty(id + ".pending_cursor", String.valueOf(pendingCursor));
+        properties.setProperty(id + ".pending_cents", String.valueOf(pendingCents));
+        try (OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(accountsFile), StandardCharsets.UTF_8)) {
+            properties.store(out, null);
+        }
+    }
+
+    /**
+     * A bank feed holding fixed transactions per account, which always delivers the
+     * last transaction before the requested ones again.
+     */
+    private static final class Feed implements BankClient {
+        private final Map<String, List<BankTransaction>> transactions = new ConcurrentHashMap<>();
+
+        void add(String accountId, long... amountsCents) {
+            List<BankTransaction> account = transactions.computeIfAbsent(accountId, id -> new ArrayList<>());
+            synchronized (account) {
+                for (long cents : amountsCents) {
+                    account.add(new BankTransaction(account.size() + 1, cents, "Transfer in"));
+                }
+            }
+        }
+
+        @Override
+        public List<BankTransaction> fetchTransactions(String accountId, long afterSequence, int limit) {
+            List<BankTransaction> account = transactions.getOrDefault(accountId, List.of());
+            synchronized (account) {
+                int from = (int) Math.max(0, afterSequence - 1);
+                return new ArrayList<>(account.subList(Math.min(from, account.size()),
+                        Math.min(from + limit, account.size())));
+            }
+        }
+
+        @Override
+        public String requestLink(String bank, String cardNumber, String expiry) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean confirmLink(String linkId, String otp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getName() {
+            return "feed";
+        }
+    }
+}
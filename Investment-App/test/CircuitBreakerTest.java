@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the circuit breaker's states: it opens after consecutive failures, lets one
+ * trial call through once the open period ends, and closes or reopens on its outcome.
+ */
+class CircuitBreakerTest {
+    private static final long OPEN_MS = 100;
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = CircuitBreaker.create("test.opens", 3, OPEN_MS);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure();
+        }
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(), "a success resets the count");
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    void closesAfterASuccessfulTrialCall() throws InterruptedException {
+        CircuitBreaker breaker = open("test.closes");
+        Thread.sleep(OPEN_MS + 20);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest(), "only one trial call at a time");
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    void reopensAfterAFailedTrialCall() throws InterruptedException {
+        CircuitBreaker breaker = open("test.reopens");
+        Thread.sleep(OPEN_MS + 20);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(), "the open period starts again");
+    }
+
+    private static CircuitBreaker open(String name) {
+        CircuitBreaker breaker = CircuitBreaker.create(name, 1, OPEN_MS);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
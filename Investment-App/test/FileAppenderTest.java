@@ -0,0 +1,76 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the group-committing appender: lines are buffered until a flush, a sync,
+ * the byte threshold or close, and nothing is lost across buffer drains.
+ */
+class FileAppenderTest {
+    private static final long SYNC_INTERVAL_MS = 60_000;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void buffersLinesUntilFlushed() throws IOException {
+        File file = new File(directory, "log.txt");
+        try (FileAppender appender = FileAppender.open(file, SYNC_INTERVAL_MS, Long.MAX_VALUE)) {
+            appender.append("first");
+            appender.append("second");
+            assertEquals(0, file.length(), "appended lines wait in the buffer");
+            appender.flush();
+            assertEquals(List.of("first", "second"), Files.readAllLines(file.toPath()));
+            appender.append("third");
+        }
+        assertEquals(List.of("first", "second", "third"), Files.readAllLines(file.toPath()), "close writes the rest");
+    }
+
+    @Test
+    void writesOnceTheSyncThresholdIsReached() throws IOException {
+        File file = new File(directory, "log.txt");
+        try (FileAppender appender = FileAppender.open(file, SYNC_INTERVAL_MS, 10)) {
+            appender.append("1234");
+            assertEquals(0, file.length());
+            appender.append("56789");
+            assertEquals(11, file.length(), "the second line crossed the threshold");
+        }
+    }
+
+    @Test
+    void keepsEveryLineAcrossBufferDrainsAndReopens() throws IOException {
+        File file = new File(directory, "log.txt");
+        List<String> expected = new ArrayList<>();
+        try (FileAppender appender = FileAppender.open(file, SYNC_INTERVAL_MS, Long.MAX_VALUE)) {
+            for (int i = 0; i < 20_000; i++) {
+                String line = "line " + i + " " + "x".repeat(i % 50);
+                appender.append(line);
+                expected.add(line);
+            }
+            appender.append("y".repeat(3 * FileAppender.BUFFER_SIZE));
+            expected.add("y".repeat(3 * FileAppender.BUFFER_SIZE));
+        }
+        try (FileAppender appender = FileAppender.open(file)) {
+            appender.append("after reopening");
+            expected.add("after reopening");
+        }
+        assertEquals(expected, Files.readAllLines(file.toPath()));
+    }
+
+    @Test
+    void rejectsAppendsOnceClosed() throws IOException {
+        FileAppender appender = FileAppender.open(new File(directory, "log.txt"));
+        appender.close();
+        assertThrows(IOException.class, () -> appender.append("late"));
+        appender.flush();
+        appender.close();
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the streaming file helpers: lines read in chunks must come out exactly as
+ * BufferedReader would split them, including across chunk boundaries.
+ */
+class FileUtilsTest {
+    private static final int CHUNK = 1 << 20; // the channel reader's buffer size
+
+    @TempDir
+    File directory;
+
+    @Test
+    void splitsLinesLikeBufferedReader() throws IOException {
+        String text = "first\nsecond\r\nthird\rfourth\n\nlast";
+        File file = write("lines.txt", text.getBytes(StandardCharsets.UTF_8));
+
+        List<String> expected = List.of("first", "second", "third", "fourth", "", "last");
+        assertEquals(expected, FileUtils.readFile(file.getPath()));
+        assertEquals(expected, readWithBufferedReader(file));
+        try (Stream<String> lines = FileUtils.lines(file.getPath())) {
+            assertEquals(expected, lines.toList());
+        }
+    }
+
+    @Test
+    void readsLinesAndCharactersSpanningChunks() throws IOException {
+        // A line ending in a two-byte character split by the first chunk boundary, then a
+        // \r\n split by the second; the byte left over from the first read shifts it by one
+        String first = "a".repeat(CHUNK - 1) + "é";
+        String second = "b".repeat(CHUNK - 4);
+        String text = first + "\n" + second + "\r\n" + "end\n";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals(2 * CHUNK + 4, bytes.length);
+        File file = write("chunks.txt", bytes);
+
+        List<String> lines = new ArrayList<>();
+        long count = FileUtils.forEachLine(file.getPath(), (line, lineNumber) -> {
+            assertEquals(lines.size() + 1, lineNumber);
+            lines.add(line);
+        });
+        assertEquals(3, count);
+        assertEquals(List.of(first, second, "end"), lines);
+    }
+
+    @Test
+    void reportsAMissingFile() {
+        String missing = new File(directory, "missing.txt").getPath();
+        assertEquals(List.of(), FileUtils.readFile(missing));
+        assertThrows(IOException.class, () -> FileUtils.forEachLine(missing, (line, lineNumber) -> { }));
+        assertThrows(IOException.class, () -> FileUtils.lines(missing));
+    }
+
+    @Test
+    void copiesAFileReplacingTheTarget() throws IOException {
+        byte[] bytes = new byte[3 * CHUNK + 17];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        File source = write("source.bin", bytes);
+        File target = write("target.bin", new byte[4 * CHUNK]);
+
+        assertEquals(bytes.length, FileUtils.copyFile(source, target));
+        assertArrayEquals(bytes, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    void writesAndReadsThroughBufferedStreams() throws IOException {
+        String file = new File(directory, "text.txt").getPath();
+        try (BufferedWriter writer = FileUtils.openWriter(file)) {
+            writer.write("one\nzwei\nتلاتة\n");
+        }
+        try (BufferedWriter writer = FileUtils.openWriter(file)) {
+            writer.write("replaced\n");
+        }
+        assertEquals(List.of("replaced"), readWithBufferedReader(new File(file)));
+    }
+
+    @Test
+    void roundTripsCsvFields() {
+        List<String> fields = List.of("plain", "with, comma", "with \"quotes\"", "", "two\nlines");
+        StringBuilder csv = new StringBuilder();
+        for (String field : fields) {
+            if (csv.length() > 0) csv.append(',');
+            FileUtils.appendCsvField(csv, field);
+        }
+        assertEquals("plain,\"with, comma\",\"with \"\"quotes\"\"\",,\"two\nlines\"", csv.toString());
+        assertEquals(fields, FileUtils.parseCsvLine(csv.toString()));
+        assertEquals(List.of("", ""), FileUtils.parseCsvLine(","));
+        assertThrows(IllegalArgumentException.class, () -> FileUtils.parseCsvLine("\"open,field"));
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    private static List<String> readWithBufferedReader(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = FileUtils.openReader(file.getPath())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,149 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the gold price feed: versioned publishing, falling back on the last price
+ * when a source fails, and prices fixed by hand. Refreshes are triggered by the tests;
+ * the TTL is long enough that the background refresh only runs once, at start.
+ */
+class GoldPriceFeedTest {
+    private static final long TTL_MS = 3_600_000;
+
+    @Test
+    void versionsEveryPriceChange() throws IOException {
+        TestSource source = new TestSource(60);
+        try (GoldPriceFeed feed = start(source)) {
+            GoldPrice first = feed.refresh();
+            assertEquals(60, first.getPricePerGram());
+            assertEquals(85 * 60, first.getNisabThreshold());
+            assertEquals("test", first.getSource());
+
+            assertEquals(first.getVersion(), feed.refresh().getVersion(), "an unchanged price keeps its version");
+            source.price = 70;
+            GoldPrice second = feed.refresh();
+            assertEquals(first.getVersion() + 1, second.getVersion());
+            assertEquals(second, feed.current());
+
+            List<GoldPrice> history = feed.getHistory();
+            assertEquals(List.of(50.0, 60.0, 70.0),
+                    history.stream().map(GoldPrice::getPricePerGram).toList());
+        }
+    }
+
+    @Test
+    void keepsTheLastPriceWhenTheSourceFails() throws IOException {
+        TestSource source = new TestSource(60);
+        try (GoldPriceFeed feed = start(source)) {
+            GoldPrice good = feed.refresh();
+            source.failing = true;
+            assertThrows(IOException.class, feed::refresh);
+            assertEquals(good, feed.current());
+
+            source.failing = false;
+            source.price = -1;
+            assertThrows(IOException.class, feed::refresh, "an invalid price is rejected");
+            assertEquals(good, feed.current());
+        }
+    }
+
+    @Test
+    void keepsTheOldSourceWhenANewOneFails() throws IOException {
+        TestSource source = new TestSource(60);
+        TestSource broken = new TestSource(80);
+        broken.failing = true;
+        try (GoldPriceFeed feed = start(source)) {
+            assertThrows(IOException.class, () -> feed.switchSource(broken));
+            source.price = 65;
+            assertEquals(65, feed.refresh().getPricePerGram());
+
+            broken.failing = false;
+            assertEquals(80, feed.switchSource(broken).getPricePerGram());
+            assertEquals(80, feed.refresh().getPricePerGram(), "the new source is used from then on");
+        }
+    }
+
+    @Test
+    void keepsAPriceFixedByHand() throws IOException {
+        TestSource source = new TestSource(60);
+        try (GoldPriceFeed feed = start(source)) {
+            assertEquals("manual", feed.fix(90).getSource());
+            source.price = 70;
+            assertEquals(90, feed.refresh().getPricePerGram(), "refreshes no longer ask the old source");
+            assertThrows(IllegalArgumentException.class, () -> feed.fix(0));
+        }
+    }
+
+    @Test
+    void dropsAPriceFetchedFromASourceReplacedMeanwhile() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GoldPriceSource slow = new TestSource(60) {
+            @Override
+            public double fetchPricePerGram() throws IOException {
+                fetching.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.fetchPricePerGram();
+            }
+        };
+        GoldPriceFeed feed = GoldPriceFeed.start(slow, 50, TTL_MS);
+        try {
+            fetching.await();
+            feed.fix(90);
+        } finally {
+            release.countDown();
+            feed.close(); // waits for the background fetch
+        }
+        assertEquals(90, feed.current().getPricePerGram());
+        assertEquals("manual", feed.current().getSource());
+    }
+
+    /**
+     * Starts a feed at a price of 50 and waits for its first background refresh,
+     * so it cannot race with the refreshes of the test.
+     */
+    private static GoldPriceFeed start(TestSource source) throws IOException {
+        GoldPriceFeed feed = GoldPriceFeed.start(source, 50, TTL_MS);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!feed.current().getSource().equals(source.getName())) {
+            if (System.currentTimeMillis() > deadline) {
+                feed.close();
+                throw new IOException("The feed never fetched a price");
+            }
+            Thread.onSpinWait();
+        }
+        return feed;
+    }
+
+    /**
+     * A source whose price and failures are set by the test.
+     */
+    private static class TestSource implements GoldPriceSource {
+        volatile double price;
+        volatile boolean failing;
+
+        TestSource(double price) {
+            this.price = price;
+        }
+
+        @Override
+        public double fetchPricePerGram() throws IOException {
+            if (failing) throw new IOException("source down");
+            return price;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+    }
+}
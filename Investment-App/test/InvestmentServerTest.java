@@ -0,0 +1,139 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the line protocol, spoken over a socket to a server on a free port
+ * backed by a fresh store.
+ */
+class InvestmentServerTest {
+    @TempDir
+    File directory;
+
+    private InvestmentServer server;
+    private Thread acceptor;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        UserStorage.useDirectory(directory);
+        server = new InvestmentServer(0);
+        acceptor = new Thread(server::acceptConnections, "test-server");
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.close();
+        acceptor.join();
+        UserStorage.close();
+    }
+
+    @Test
+    void managesAPortfolioThroughASession() throws IOException {
+        try (Client client = new Client()) {
+            assertEquals("OK", client.send("SIGNUP\tserver-alice\tSecret1\tserver-alice@example.com"));
+            String token = client.ok("LOGIN\tserver-alice\tSecret1");
+            assertEquals("OK", client.send("ADD\t" + token + "\tCash\t100"));
+            assertEquals("OK", client.send("ADD\t" + token + "\tGold\t200"));
+
+            assertEquals("OK\t2\t300.0", client.send("PORTFOLIO\t" + token));
+            assertEquals("1\tCash\t100.0", client.read());
+            assertEquals("2\tGold\t200.0", client.read());
+
+            // Numbers refer to the listing above
+            assertEquals("OK", client.send("EDIT\t" + token + "\t2\t250"));
+            assertEquals("OK", client.send("REMOVE\t" + token + "\t1"));
+            assertEquals("OK\t1\t250.0", client.send("PORTFOLIO\t" + token));
+            assertEquals("1\tGold\t250.0", client.read());
+
+            assertEquals("OK", client.send("LOGOUT\t" + token));
+            assertEquals("ERR\tNo active session!", client.send("PORTFOLIO\t" + token));
+        }
+    }
+
+    @Test
+    void answersMalformedRequestsWithAnError() throws IOException {
+        try (Client client = new Client()) {
+            assertEquals("OK", client.send("PING"));
+            assertEquals("ERR\tUnknown command: FETCH", client.send("FETCH"));
+            assertEquals("ERR\tADD expects 3 argument(s)", client.send("ADD\ttoken\tCash"));
+            assertTrue(client.send("EDIT\ttoken\tfirst\t1").startsWith("ERR\tInvalid number"));
+            assertEquals("ERR\tInvalid credentials!", client.send("LOGIN\tserver-nobody\tSecret1"));
+            assertEquals("OK", client.send("PING"), "the connection stays usable after errors");
+        }
+    }
+
+    @Test
+    void servesClientsConcurrently() throws IOException {
+        try (Client idle = new Client(); Client active = new Client()) {
+            // A client that sends nothing does not hold up the others
+            assertEquals("OK", idle.send("PING"));
+            assertEquals("OK", active.send("PING"));
+            assertEquals("OK", idle.send("PING"));
+        }
+    }
+
+    @Test
+    void closesTheConnectionOnQuit() throws IOException {
+        try (Client client = new Client()) {
+            assertEquals("OK", client.send("QUIT"));
+            assertNull(client.read(), "the server hung up");
+        }
+    }
+
+    /**
+     * One connection to the server under test.
+     */
+    private final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+
+        /**
+         * Sends a request and reads the first line of its response.
+         */
+        String send(String request) throws IOException {
+            out.println(request);
+            return read();
+        }
+
+        /**
+         * Sends a request that answers {@code OK value} and returns the value.
+         */
+        String ok(String request) throws IOException {
+            String response = send(request);
+            assertTrue(response.startsWith("OK\t"), response);
+            return response.substring(3);
+        }
+
+        String read() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
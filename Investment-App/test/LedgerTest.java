@@ -0,0 +1,172 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the ledger's projections: seeded from the store, rebuilt on open from the
+ * latest readable snapshot plus the events after it, and kept through a torn tail.
+ */
+class LedgerTest {
+    private static final long FLUSH_INTERVAL_MS = 60_000;
+    private static final double NISAB = 1_000;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void seedsANewLedgerFromTheStoreAndCatchesUpWithTheLog() throws Exception {
+        try (ShardedUserStore store = openStore(); AssetLog log = openLog()) {
+            User alice = new User("alice", "password", "alice@example.com");
+            alice.addAsset(new Asset("Gold", 100));
+            alice.addAsset(new Asset("Apple", "AAPL", 2, 300));
+            store.insert(alice);
+            try (Ledger ledger = open(store, log)) {
+                assertEquals(List.of(new Asset("Gold", 100), new Asset("Apple", "AAPL", 2, 300)),
+                        ledger.getHoldings("alice"));
+                assertEquals(0, ledger.lastSequence(), "the store is a snapshot, not events");
+            }
+            // Records the ledger missed, e.g. because the process stopped before it saw them
+            log.setListener(null);
+            log.awaitDurable(log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Cash", 50)));
+            log.awaitDurable(log.append(AssetLog.OP_REMOVE, "alice", 0, null));
+            try (Ledger ledger = open(store, log)) {
+                assertEquals(List.of(new Asset("Apple", "AAPL", 2, 300), new Asset("Cash", 50)),
+                        ledger.getHoldings("alice"));
+                assertEquals(350, ledger.getTotalValue("alice"));
+                assertEquals(2, ledger.lastSequence());
+            }
+        }
+    }
+
+    @Test
+    void rebuildsTheProjectionsFromTheLatestSnapshotAndTheTail() throws Exception {
+        try (ShardedUserStore store = openStore(); AssetLog log = openLog()) {
+            long snapshot;
+            try (Ledger ledger = open(store, log)) {
+                log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Gold", 100));
+                log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Cash", 50));
+                log.append(AssetLog.OP_ADD, "bob", -1, new Asset("Gold", 10_000));
+                snapshot = ledger.snapshot();
+                assertEquals(3, snapshot);
+
+                log.append(AssetLog.OP_UPDATE, "alice", 0, new Asset("Gold", 150));
+                log.append(AssetLog.OP_REMOVE, "alice", 1, null);
+                log.append(AssetLog.OP_ADD, "bob", -1, new Asset("Cash", 500));
+                ledger.revalued("bob", 0, new Asset("Gold", 9_000));
+                log.awaitDurable(log.lastSequence());
+                assertProjections(ledger);
+            }
+
+            try (Ledger ledger = open(store, log)) {
+                assertProjections(ledger);
+                List<Long> tail = new ArrayList<>();
+                assertEquals(7, ledger.forEachEvent(snapshot, event -> tail.add(event.sequence)));
+                assertEquals(List.of(4L, 5L, 6L, 7L), tail);
+            }
+
+            // An unreadable snapshot is skipped: the previous one and a longer tail give the same result
+            flipByte(latestSnapshot());
+            try (Ledger ledger = open(store, log)) {
+                assertProjections(ledger);
+                log.append(AssetLog.OP_ADD, "carol", -1, new Asset("Cash", 1));
+                assertEquals(8, ledger.lastSequence());
+            }
+        }
+    }
+
+    @Test
+    void keepsOnlyTheLatestSnapshots() throws Exception {
+        try (ShardedUserStore store = openStore(); AssetLog log = openLog(); Ledger ledger = open(store, log)) {
+            for (int i = 1; i <= 3; i++) {
+                log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Gold", i));
+                assertEquals(i, ledger.snapshot());
+            }
+            assertEquals(3, ledger.snapshot(), "nothing new to snapshot");
+            String[] snapshots = ledgerDirectory().list((dir, name) -> name.startsWith("snapshot-") && name.endsWith(".snap"));
+            assertEquals(2, snapshots.length);
+        }
+    }
+
+    @Test
+    void dropsAnEventTornByACrash() throws Exception {
+        try (ShardedUserStore store = openStore(); AssetLog log = openLog()) {
+            try (Ledger ledger = open(store, log)) {
+                log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Gold", 100));
+            }
+            File[] segments = ledgerDirectory().listFiles((dir, name) -> name.endsWith(".seg"));
+            assertEquals(1, segments.length);
+            try (RandomAccessFile raf = new RandomAccessFile(segments[0], "rw")) {
+                raf.seek(raf.length());
+                raf.writeInt(64);
+                raf.writeInt(0);
+                raf.write(new byte[10]);
+            }
+
+            try (Ledger ledger = open(store, log)) {
+                assertEquals(1, ledger.lastSequence());
+                log.append(AssetLog.OP_ADD, "alice", -1, new Asset("Cash", 50));
+            }
+            try (Ledger ledger = open(store, log)) {
+                assertEquals(List.of(new Asset("Gold", 100), new Asset("Cash", 50)), ledger.getHoldings("alice"));
+            }
+        }
+    }
+
+    private static void assertProjections(Ledger ledger) {
+        assertEquals(List.of(new Asset("Gold", 150)), ledger.getHoldings("alice"));
+        assertEquals(List.of(new Asset("Gold", 9_000), new Asset("Cash", 500)), ledger.getHoldings("bob"));
+        assertEquals(Map.of("Gold", 9_000.0, "Cash", 500.0), ledger.getHoldingsByName("bob"));
+        assertEquals(150, ledger.getTotalValue("alice"));
+        assertEquals(0, ledger.getZakatEligibleBalance("alice", NISAB));
+        assertEquals(9_500, ledger.getZakatEligibleBalance("bob", NISAB));
+        assertEquals(9_500, ledger.getZakatEligibleBalance(NISAB));
+        assertEquals(7, ledger.lastSequence());
+    }
+
+    /**
+     * Opens the ledger and makes it follow the asset log, as storage does.
+     */
+    private Ledger open(ShardedUserStore store, AssetLog log) throws IOException {
+        Ledger ledger = Ledger.open(ledgerDirectory(), store, log);
+        log.setListener(ledger);
+        return ledger;
+    }
+
+    private File ledgerDirectory() {
+        return new File(directory, Ledger.DIRECTORY);
+    }
+
+    private File latestSnapshot() {
+        File[] snapshots = ledgerDirectory().listFiles((dir, name) -> name.endsWith(".snap"));
+        File latest = snapshots[0];
+        for (File snapshot : snapshots) {
+            if (snapshot.getName().compareTo(latest.getName()) > 0) latest = snapshot;
+        }
+        return latest;
+    }
+
+    private static void flipByte(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xFF);
+        }
+    }
+
+    private ShardedUserStore openStore() throws IOException, ClassNotFoundException {
+        return ShardedUserStore.open(directory, 1, 100, FLUSH_INTERVAL_MS);
+    }
+
+    private AssetLog openLog() throws IOException {
+        return AssetLog.open(new File(directory, "assets.wal"));
+    }
+}
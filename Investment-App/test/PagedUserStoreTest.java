@@ -0,0 +1,248 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of compaction, of reopening the store after a compaction was interrupted
+ * at each of its steps, and of rebuilding the index from damaged slots.
+ */
+class PagedUserStoreTest {
+    private static final int USERS = 200;
+    private static final int ASSETS = 20;
+
+    @TempDir
+    File directory;
+
+    private File dataFile;
+    private File indexFile;
+
+    @Test
+    void compactionReclaimsRelocatedSlots() throws Exception {
+        try (PagedUserStore store = fragmentedStore()) {
+            long before = dataFile.length();
+
+            store.compact();
+            assertEquals(0, store.getFreeBytes());
+            assertTrue(dataFile.length() < before, "compaction shrinks the data file");
+            assertAllUsers(store);
+        }
+
+        try (PagedUserStore reopened = reopen()) {
+            assertAllUsers(reopened);
+        }
+        assertFalse(compactFile(dataFile).exists());
+        assertFalse(compactFile(indexFile).exists());
+    }
+
+    @Test
+    void ignoresACompactionInterruptedBeforeItsCommitPoint() throws Exception {
+        PagedUserStore store = fragmentedStore();
+        store.close();
+        // Half-written files of a compaction that crashed before renaming anything
+        Files.write(compactFile(dataFile).toPath(), new byte[100]);
+        Files.write(compactFile(indexFile).toPath(), new byte[10]);
+
+        try (PagedUserStore reopened = reopen()) {
+            assertAllUsers(reopened);
+            assertTrue(reopened.getFreeBytes() > 0, "the old, uncompacted files are still in use");
+        }
+        assertFalse(compactFile(dataFile).exists());
+        assertFalse(compactFile(indexFile).exists());
+    }
+
+    @Test
+    void finishesACompactionInterruptedAfterItsCommitPoint() throws Exception {
+        try (PagedUserStore store = fragmentedStore()) {
+            Files.copy(indexFile.toPath(), oldIndex().toPath());
+            store.compact();
+        }
+        // As left by a crash between renaming the data file and renaming the index
+        Files.move(indexFile.toPath(), compactFile(indexFile).toPath());
+        Files.move(oldIndex().toPath(), indexFile.toPath());
+
+        try (PagedUserStore reopened = reopen()) {
+            assertAllUsers(reopened);
+            assertEquals(0, reopened.getFreeBytes());
+        }
+        assertFalse(compactFile(indexFile).exists(), "the pending index is installed");
+    }
+
+    @Test
+    void rebuildsAnIndexOfAnotherGeneration() throws Exception {
+        try (PagedUserStore store = fragmentedStore()) {
+            Files.copy(indexFile.toPath(), oldIndex().toPath());
+            store.compact();
+        }
+        Files.move(oldIndex().toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        try (PagedUserStore reopened = reopen()) {
+            assertAllUsers(reopened);
+        }
+    }
+
+    @Test
+    void rebuildsAMissingIndex() throws Exception {
+        fragmentedStore().close();
+        Files.delete(indexFile.toPath());
+
+        try (PagedUserStore reopened = reopen()) {
+            assertAllUsers(reopened);
+        }
+    }
+
+    @Test
+    void skipsACorruptSlotWhenRebuildingTheIndex() throws Exception {
+        try (PagedUserStore store = newStore()) {
+            for (int i = 0; i < 3; i++) {
+                store.insert(new User("user" + i, "password", "user" + i + "@example.com"));
+            }
+        }
+        // Damage the payload of the first slot, right after the file and slot headers
+        flipByte(PagedUserStore.FILE_HEADER_SIZE + PagedUserStore.SLOT_HEADER_SIZE + 4);
+        Files.delete(indexFile.toPath());
+
+        try (PagedUserStore reopened = reopen()) {
+            assertEquals(2, reopened.size(), "the store opens without the damaged record");
+            assertNull(reopened.read("user0"));
+            assertNotNull(reopened.read("user1"));
+            assertNotNull(reopened.read("user2"));
+        }
+    }
+
+    @Test
+    void cutsOffATornUpdateTheIndexNeverPointedTo() throws Exception {
+        long oldLength = tornUpdate();
+
+        try (PagedUserStore reopened = reopen()) {
+            assertEquals(oldLength, dataFile.length(), "the unindexed slot is cut off");
+            User alice = reopened.read("alice");
+            assertEquals(1, alice.getAssetCount());
+
+            alice.addAsset(new Asset("Gold", 200));
+            reopened.update(alice);
+        }
+        try (PagedUserStore reopened = reopen()) {
+            assertEquals(2, reopened.read("alice").getAssetCount());
+        }
+    }
+
+    @Test
+    void freesATornUpdateWhenRebuildingTheIndex() throws Exception {
+        tornUpdate();
+        Files.delete(indexFile.toPath());
+
+        try (PagedUserStore reopened = reopen()) {
+            assertEquals(1, reopened.read("alice").getAssetCount(), "the torn slot is skipped");
+            try (UserStoreCursor cursor = reopened.openCursor()) {
+                assertTrue(cursor.next(), "a scan reads past the freed slot");
+                assertEquals("alice", cursor.username());
+                assertFalse(cursor.next());
+            }
+        }
+    }
+
+    /**
+     * Leaves the files as a crash during an update of alice would: her old record still
+     * indexed and live, followed by the new slot with a damaged payload.
+     * @return length of the data file before the update
+     */
+    private long tornUpdate() throws IOException {
+        File oldData = new File(directory, "old.dat");
+        long oldLength;
+        try (PagedUserStore store = newStore()) {
+            User user = new User("alice", "password", "alice@example.com");
+            user.addAsset(new Asset("Cash", 100));
+            store.insert(user);
+            Files.copy(dataFile.toPath(), oldData.toPath());
+            Files.copy(indexFile.toPath(), oldIndex().toPath());
+            oldLength = dataFile.length();
+
+            user.addAsset(new Asset("Gold", 200));
+            store.update(user);
+            assertTrue(dataFile.length() > oldLength, "the update is written to a new slot");
+        }
+        byte[] newSlot = Arrays.copyOfRange(Files.readAllBytes(dataFile.toPath()), (int) oldLength,
+                (int) dataFile.length());
+        newSlot[PagedUserStore.SLOT_HEADER_SIZE + 4] ^= (byte) 0xFF;
+        Files.move(oldData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(dataFile.toPath(), newSlot, StandardOpenOption.APPEND);
+        Files.move(oldIndex().toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return oldLength;
+    }
+
+    /**
+     * Inserts users with one asset, then grows them all so every record is relocated
+     * and its old slot freed.
+     */
+    private PagedUserStore fragmentedStore() throws IOException {
+        PagedUserStore store = newStore();
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            User user = new User("user" + i, "password", "user" + i + "@example.com");
+            user.addAsset(new Asset("Cash", i));
+            users.add(user);
+        }
+        store.insertAll(users);
+        for (User user : users) {
+            for (int a = 1; a < ASSETS; a++) {
+                user.addAsset(new Asset("Gold " + a, a));
+            }
+        }
+        store.updateAll(users, null);
+        assertTrue(store.getFreeBytes() > 0, "growing the records leaves free slots");
+        return store;
+    }
+
+    private PagedUserStore newStore() throws IOException {
+        dataFile = new File(directory, "users.dat");
+        indexFile = new File(directory, "users.idx");
+        return new PagedUserStore(dataFile, indexFile);
+    }
+
+    private PagedUserStore reopen() throws IOException {
+        return new PagedUserStore(dataFile, indexFile);
+    }
+
+    private File oldIndex() {
+        return new File(directory, "old.idx");
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+    }
+
+    private static void assertAllUsers(PagedUserStore store) throws IOException, ClassNotFoundException {
+        assertEquals(USERS, store.size());
+        for (int i = 0; i < USERS; i++) {
+            User user = store.read("user" + i);
+            assertNotNull(user, "user" + i);
+            assertEquals(ASSETS, user.getAssetCount());
+            assertEquals(i, user.getAssetValue(0));
+            assertEquals(ASSETS - 1, user.getAssetValue(ASSETS - 1));
+        }
+    }
+
+    private static File compactFile(File file) {
+        return new File(file.getPath() + ".compact");
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of password hashing and of migrating plaintext and outdated hashes on login.
+ * The cost is lowered to keep the tests fast and restored afterwards.
+ */
+class PasswordHasherTest {
+    private static final int COST = 1_000;
+
+    @TempDir
+    File directory;
+
+    @BeforeEach
+    void openStorage() throws IOException {
+        UserStorage.useDirectory(directory);
+        PasswordHasher.setIterations(COST);
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        PasswordHasher.setIterations(PasswordHasher.DEFAULT_ITERATIONS);
+        UserStorage.close();
+    }
+
+    @Test
+    void verifiesSaltedHashes() throws IOException {
+        String hash = PasswordHasher.hash("secret");
+        assertTrue(hash.startsWith(PasswordHasher.PREFIX + COST + "$"), hash);
+        assertNotEquals(hash, PasswordHasher.hash("secret"), "every hash has its own salt");
+
+        assertTrue(PasswordHasher.verify("alice", "secret", hash));
+        assertFalse(PasswordHasher.verify("alice", "Secret", hash));
+        assertFalse(PasswordHasher.verify("alice", "secret", PasswordHasher.PREFIX + "1000$not-a-hash"));
+        assertFalse(PasswordHasher.verify("alice", null, hash));
+        assertTrue(PasswordHasher.verify("alice", "plain", "plain"), "legacy plaintext still verifies");
+        assertThrows(IllegalArgumentException.class, () -> PasswordHasher.setIterations(10));
+    }
+
+    @Test
+    void flagsPlaintextAndOtherCostsForRehashing() throws IOException {
+        String hash = PasswordHasher.hash("secret");
+        assertFalse(PasswordHasher.needsRehash(hash));
+        assertTrue(PasswordHasher.needsRehash("secret"));
+        PasswordHasher.setIterations(2 * COST);
+        assertTrue(PasswordHasher.needsRehash(hash));
+        assertTrue(PasswordHasher.verify("alice", "secret", hash), "an older cost keeps verifying");
+    }
+
+    @Test
+    void migratesAPlaintextPasswordOnLogin() throws Exception {
+        UserStorage.saveUser(new User("plainuser", "secret", "plainuser@example.com"));
+
+        assertFalse(UserStorage.isValidLogin("plainuser", "wrong"));
+        assertEquals("secret", UserStorage.findUser("plainuser").getPassword(), "a failed login migrates nothing");
+
+        assertTrue(UserStorage.isValidLogin("plainuser", "secret"));
+        String stored = UserStorage.findUser("plainuser").getPassword();
+        assertTrue(PasswordHasher.isHash(stored), stored);
+        assertFalse(PasswordHasher.needsRehash(stored));
+
+        // The hash was stored, not just cached
+        UserStorage.useDirectory(directory);
+        assertEquals(stored, UserStorage.findUser("plainuser").getPassword());
+        assertTrue(UserStorage.isValidLogin("plainuser", "secret"));
+        assertFalse(UserStorage.isValidLogin("plainuser", "wrong"));
+    }
+
+    @Test
+    void upgradesAnOutdatedCostOnLogin() throws Exception {
+        String old = PasswordHasher.hash("secret");
+        UserStorage.saveUser(new User("olduser", old, "olduser@example.com"));
+        PasswordHasher.setIterations(2 * COST);
+
+        assertTrue(UserStorage.isValidLogin("olduser", "secret"));
+        String stored = UserStorage.findUser("olduser").getPassword();
+        assertTrue(stored.startsWith(PasswordHasher.PREFIX + 2 * COST + "$"), stored);
+        assertTrue(UserStorage.isValidLogin("olduser", "secret"));
+    }
+}
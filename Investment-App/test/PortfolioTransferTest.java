@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of bulk import and export: row validation, both file formats, and a round trip
+ * of an export into another store. The symbols used have no market price, so holdings
+ * keep the value given in the file.
+ */
+class PortfolioTransferTest {
+    @TempDir
+    File directory;
+
+    @BeforeEach
+    void openStorage() throws IOException, ClassNotFoundException {
+        openStorage("source");
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        UserStorage.close();
+    }
+
+    @Test
+    void importsValidCsvRowsAndRejectsTheRest() throws Exception {
+        File file = write("assets.csv",
+                "username,asset,value,symbol,quantity",
+                "alice,Gold,1200.50",
+                "alice,\"Fund, global\",300",
+                "bob,Apple,1900,ptx1,10",
+                "bob,Silver,-5",
+                "bob,Silver,lots",
+                "carol,Gold,10",
+                ",Gold,10");
+
+        PortfolioTransfer.Summary summary = PortfolioTransfer.importFile(file);
+        assertEquals(7, summary.rows);
+        assertEquals(4, summary.getRejected(), summary.toString());
+        assertEquals(2, summary.users);
+
+        assertEquals(List.of(new Asset("Gold", 1200.5), new Asset("Fund, global", 300)),
+                UserStorage.findUser("alice").getAssets());
+        assertEquals(List.of(new Asset("Apple", "PTX1", 10, 1900)), UserStorage.findUser("bob").getAssets(),
+                "symbols are stored in canonical form");
+    }
+
+    @Test
+    void importsJsonArraysAndObjectsPerLine() throws Exception {
+        PortfolioTransfer.importFile(write("array.json",
+                "[{\"username\":\"alice\",\"asset\":\"Gold\",\"value\":1200.5},",
+                " {\"username\":\"bob\",\"asset\":\"Apple\",\"value\":1900,\"symbol\":\"PTX2\",\"quantity\":10}]"));
+        PortfolioTransfer.Summary summary = PortfolioTransfer.importFile(write("lines.json",
+                "{\"username\":\"alice\",\"asset\":\"Caf\\u00e9 \\\"shares\\\"\",\"value\":5}",
+                "{\"username\":\"alice\",\"asset\":\"Cash\"}"));
+        assertEquals(1, summary.getRejected(), "a row without a value is rejected");
+
+        assertEquals(List.of(new Asset("Gold", 1200.5), new Asset("Café \"shares\"", 5)),
+                UserStorage.findUser("alice").getAssets());
+        assertEquals(List.of(new Asset("Apple", "PTX2", 10, 1900)), UserStorage.findUser("bob").getAssets());
+    }
+
+    @Test
+    void roundTripsAnExportAsCsv() throws Exception {
+        assertRoundTrip("export.csv");
+    }
+
+    @Test
+    void roundTripsAnExportAsJson() throws Exception {
+        assertRoundTrip("export.json");
+    }
+
+    /**
+     * Exports a store into a file and imports it into a store holding the same users.
+     */
+    private void assertRoundTrip(String fileName) throws Exception {
+        UserStorage.addAsset(UserStorage.findUser("alice"), new Asset("Gold, \"fine\"", 1200.5));
+        UserStorage.addAsset(UserStorage.findUser("alice"), new Asset("Cash", 0));
+        UserStorage.addAsset(UserStorage.findUser("bob"), new Asset("Apple", "PTX3", 10, 1900));
+        File file = new File(directory, fileName);
+
+        PortfolioTransfer.Summary exported = PortfolioTransfer.exportFile(file);
+        assertEquals(3, exported.rows);
+        assertEquals(2, exported.users, "users without assets are left out");
+
+        openStorage("target");
+        PortfolioTransfer.Summary imported = PortfolioTransfer.importFile(file);
+        assertEquals(3, imported.rows);
+        assertEquals(0, imported.getRejected(), imported.toString());
+        assertEquals(List.of(new Asset("Gold, \"fine\"", 1200.5), new Asset("Cash", 0)),
+                UserStorage.findUser("alice").getAssets());
+        assertEquals(List.of(new Asset("Apple", "PTX3", 10, 1900)), UserStorage.findUser("bob").getAssets());
+    }
+
+    /**
+     * Moves storage to a new directory holding alice and bob without assets.
+     */
+    private void openStorage(String name) throws IOException, ClassNotFoundException {
+        UserStorage.useDirectory(new File(directory, name));
+        for (String username : List.of("alice", "bob")) {
+            UserStorage.saveUser(new User(username, "password", username + "@example.com"));
+        }
+    }
+
+    private File write(String name, String... lines) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), List.of(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,125 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of session expiry and of the lockout after repeated failed logins.
+ * Time is moved by replacing the session manager's clock with a stopped one; sessions and
+ * counters are shared by the whole process, so every test uses names of its own.
+ */
+class SessionManagerTest {
+    private static final LongSupplier SYSTEM_CLOCK = SessionManager.clock;
+
+    private long offset;
+
+    @AfterEach
+    void restoreClock() {
+        SessionManager.clock = SYSTEM_CLOCK;
+    }
+
+    @Test
+    void rejectsATokenIdleForTooLong() {
+        useTestClock();
+        String token = SessionManager.createSession(new User("expiry", "password", "expiry@example.com"));
+        assertNotNull(SessionManager.getSession(token));
+
+        advance(SessionManager.IDLE_TIMEOUT_MS + 1);
+        assertNull(SessionManager.getSession(token), "an expired token is not refreshed");
+
+        advance(-SessionManager.IDLE_TIMEOUT_MS);
+        assertNull(SessionManager.getSession(token), "the expired session was ended");
+    }
+
+    @Test
+    void keepsASessionInUseAlive() {
+        useTestClock();
+        String token = SessionManager.createSession(new User("active", "password", "active@example.com"));
+        for (int i = 0; i < 3; i++) {
+            advance(SessionManager.IDLE_TIMEOUT_MS - 1);
+            assertNotNull(SessionManager.getSession(token), "each use postpones the expiry");
+        }
+        SessionManager.logout(token);
+        assertNull(SessionManager.getSession(token));
+    }
+
+    @Test
+    void locksAnAccountUntilTheLockoutHasPassed() {
+        useTestClock();
+        String username = "lockout";
+        for (int i = 1; i < SessionManager.MAX_ATTEMPTS; i++) {
+            SessionManager.recordFailure(username);
+            assertFalse(SessionManager.isLocked(username));
+        }
+        SessionManager.recordFailure(username);
+        assertTrue(SessionManager.isLocked(username));
+
+        advance(SessionManager.LOCKOUT_MS - 1);
+        assertTrue(SessionManager.isLocked(username));
+        advance(1);
+        assertFalse(SessionManager.isLocked(username));
+
+        // The count starts over once the lock has expired
+        SessionManager.recordFailure(username);
+        assertFalse(SessionManager.isLocked(username));
+        SessionManager.resetAttempts(username);
+    }
+
+    @Test
+    void locksAnAccountFailedConcurrently() throws Exception {
+        int threads = 8;
+        for (int round = 0; round < 200; round++) {
+            String username = "concurrent" + round;
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    boolean fails = t < SessionManager.MAX_ATTEMPTS;
+                    results.add(pool.submit(() -> {
+                        start.await();
+                        // Checks racing with the failures must never clear the lock they set
+                        if (fails) {
+                            SessionManager.recordFailure(username);
+                        } else {
+                            SessionManager.isLocked(username);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
+            assertTrue(SessionManager.isLocked(username), username);
+            SessionManager.resetAttempts(username);
+        }
+    }
+
+    /**
+     * Stops the clock, so only {@link #advance} moves it.
+     */
+    private void useTestClock() {
+        long start = System.currentTimeMillis();
+        SessionManager.clock = () -> start + offset;
+    }
+
+    private void advance(long millis) {
+        offset += millis;
+    }
+}
@@ -0,0 +1,170 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the sharded store across processes: each shard is written by its own JVM,
+ * then the whole store is opened, and rebalanced to other shard counts.
+ */
+class ShardedUserStoreTest {
+    private static final int USERS = 2_000;
+    private static final long FLUSH_INTERVAL_MS = 60_000;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void processesWritingDisjointShardsBuildOneStore() throws Exception {
+        writeShardsInProcesses(3);
+
+        try (ShardedUserStore store = open(3)) {
+            assertEquals(USERS, store.size());
+            int[] sizes = store.shardSizes();
+            for (int size : sizes) {
+                assertTrue(size > 0, "every process wrote some users");
+            }
+            assertAllUsers(store);
+        }
+    }
+
+    @Test
+    void rebalancesWhenTheShardCountChanges() throws Exception {
+        writeShardsInProcesses(3);
+        open(3).close();
+
+        try (ShardedUserStore grown = open(5)) {
+            assertEquals(5, Integer.parseInt(readManifest().getProperty("shards")));
+            assertEquals(USERS, grown.size());
+            assertUsersOnTheirShards(grown, 5);
+            assertAllUsers(grown);
+        }
+
+        try (ShardedUserStore shrunk = open(2)) {
+            assertEquals(USERS, shrunk.size());
+            assertUsersOnTheirShards(shrunk, 2);
+            assertAllUsers(shrunk);
+        }
+        assertFalse(new File(directory, "users-4.dat").exists(), "files of removed shards are deleted");
+    }
+
+    @Test
+    void resumesAnInterruptedRebalance() throws Exception {
+        writeShardsInProcesses(2);
+        // As left by a rebalance from 2 to 4 shards that stopped before moving anyone
+        Properties manifest = new Properties();
+        manifest.setProperty("shards", "2");
+        manifest.setProperty("target", "4");
+        try (OutputStream out = new FileOutputStream(new File(directory, ShardedUserStore.MANIFEST_FILENAME))) {
+            manifest.store(out, null);
+        }
+
+        try (ShardedUserStore store = open(4)) {
+            Properties finished = readManifest();
+            assertEquals("4", finished.getProperty("shards"));
+            assertNull(finished.getProperty("target"));
+            assertEquals(USERS, store.size());
+            assertUsersOnTheirShards(store, 4);
+            assertAllUsers(store);
+        }
+    }
+
+    private ShardedUserStore open(int shards) throws IOException, ClassNotFoundException {
+        return ShardedUserStore.open(directory, shards, 1_000, FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Starts one JVM per shard, each writing the users the ring assigns to its shard,
+     * and waits for all of them.
+     */
+    private void writeShardsInProcesses(int shards) throws Exception {
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        List<Process> processes = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ShardedUserStoreTest.class.getName(), directory.getPath(),
+                    String.valueOf(shard), String.valueOf(shards), String.valueOf(USERS))
+                    .inheritIO()
+                    .start());
+        }
+        for (Process process : processes) {
+            assertTrue(process.waitFor(60, TimeUnit.SECONDS), "shard writer finished");
+            assertEquals(0, process.exitValue(), "shard writer succeeded");
+        }
+    }
+
+    private void assertAllUsers(ShardedUserStore store) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < USERS; i++) {
+            User user = store.get(username(i));
+            assertNotNull(user, username(i));
+            assertEquals(1, user.getAssetCount());
+            assertEquals(i, user.getAssetValue(0));
+        }
+    }
+
+    private void assertUsersOnTheirShards(ShardedUserStore store, int shards) throws Exception {
+        ShardRing ring = new ShardRing(shards);
+        int[] expected = new int[shards];
+        for (int i = 0; i < USERS; i++) {
+            expected[ring.shardOf(username(i))]++;
+        }
+        int[] sizes = store.shardSizes();
+        for (int shard = 0; shard < shards; shard++) {
+            assertEquals(expected[shard], sizes[shard], "users on shard " + shard);
+            for (String username : store.shardUsernames(shard)) {
+                assertEquals(shard, ring.shardOf(username), username);
+            }
+        }
+    }
+
+    private Properties readManifest() throws IOException {
+        Properties manifest = new Properties();
+        try (FileInputStream in = new FileInputStream(new File(directory, ShardedUserStore.MANIFEST_FILENAME))) {
+            manifest.load(in);
+        }
+        return manifest;
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * Shard writer run in a separate process: stores the users that fall on one shard
+     * straight into that shard's files.
+     * Usage: {@code ShardedUserStoreTest directory shard shardCount users}
+     * @param args see usage
+     * @throws Exception If the shard cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args[0]);
+        int shard = Integer.parseInt(args[1]);
+        ShardRing ring = new ShardRing(Integer.parseInt(args[2]));
+        int users = Integer.parseInt(args[3]);
+        PagedUserStore store = new PagedUserStore(new File(directory, "users-" + shard + ".dat"),
+                new File(directory, "users-" + shard + ".idx"));
+        List<User> mine = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            if (ring.shardOf(username(i)) != shard) continue;
+            User user = new User(username(i), "password", username(i) + "@example.com");
+            user.addAsset(new Asset("Gold", i));
+            mine.add(user);
+        }
+        store.insertAll(mine);
+        store.close();
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of range and minimum queries over snapshots spread across daily partitions,
+ * some written and some still buffered, and of reading past a block torn by a crash.
+ */
+class TimeSeriesStoreTest {
+    private static final long FLUSH_INTERVAL_MS = 60_000;
+    private static final long DAY_MS = 86_400_000L;
+    private static final long HOUR_MS = 3_600_000L;
+    private static final long DAY0 = LocalDate.of(2026, 1, 10).toEpochDay() * DAY_MS;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void queriesARangeAcrossPartitionsAndTheBuffer() throws IOException {
+        try (TimeSeriesStore store = open()) {
+            for (int day = 0; day < 3; day++) {
+                store.record(DAY0 + day * DAY_MS + 6 * HOUR_MS, "alice", TimeSeriesStore.TOTAL, 100 + day);
+                store.record(DAY0 + day * DAY_MS + 18 * HOUR_MS, "alice", TimeSeriesStore.TOTAL, 200 + day);
+                store.record(DAY0 + day * DAY_MS + 18 * HOUR_MS, "alice", "Gold", 1);
+                store.record(DAY0 + day * DAY_MS + 18 * HOUR_MS, "bob", TimeSeriesStore.TOTAL, 2);
+            }
+            store.flush();
+            store.record(DAY0 + 2 * DAY_MS + 20 * HOUR_MS, "alice", TimeSeriesStore.TOTAL, 300);
+
+            List<TimeSeriesStore.Point> points = store.query("alice", TimeSeriesStore.TOTAL,
+                    DAY0 + 12 * HOUR_MS, DAY0 + 2 * DAY_MS + 20 * HOUR_MS);
+            assertEquals(List.of(200.0, 101.0, 201.0, 102.0, 202.0), values(points));
+            assertEquals(DAY0 + 18 * HOUR_MS, points.get(0).getTime());
+
+            assertEquals(List.of(202.0, 300.0), values(store.query("alice", TimeSeriesStore.TOTAL,
+                    DAY0 + 2 * DAY_MS + 18 * HOUR_MS, DAY0 + 3 * DAY_MS)), "the buffered point is included");
+        }
+        try (TimeSeriesStore reopened = open()) {
+            assertEquals(7, reopened.query("alice", TimeSeriesStore.TOTAL, DAY0, DAY0 + 3 * DAY_MS).size(),
+                    "close wrote the buffered point");
+            assertEquals(3, reopened.query("bob", TimeSeriesStore.TOTAL, DAY0, DAY0 + 3 * DAY_MS).size());
+        }
+    }
+
+    @Test
+    void findsTheLastValueBeforeATime() throws IOException {
+        try (TimeSeriesStore store = open()) {
+            store.record(DAY0 + HOUR_MS, "alice", TimeSeriesStore.TOTAL, 10);
+            store.flush();
+            store.record(DAY0 + 5 * DAY_MS, "alice", TimeSeriesStore.TOTAL, 20);
+
+            assertEquals(10, store.lastBefore("alice", TimeSeriesStore.TOTAL, DAY0 + 3 * DAY_MS).getValue());
+            assertEquals(20, store.lastBefore("alice", TimeSeriesStore.TOTAL, DAY0 + 6 * DAY_MS).getValue());
+            assertNull(store.lastBefore("alice", TimeSeriesStore.TOTAL, DAY0 + HOUR_MS), "the time is exclusive");
+            assertNull(store.lastBefore("alice", TimeSeriesStore.TOTAL, DAY0 + 3 * DAY_MS, DAY_MS),
+                    "nothing within the lookback");
+        }
+    }
+
+    @Test
+    void countsTheValueCarriedIntoTheRangeInTheMinimum() throws IOException {
+        try (TimeSeriesStore store = open()) {
+            store.record(DAY0, "alice", TimeSeriesStore.TOTAL, 150);
+            store.record(DAY0 + 2 * DAY_MS, "alice", TimeSeriesStore.TOTAL, 120);
+            store.record(DAY0 + 3 * DAY_MS, "alice", TimeSeriesStore.TOTAL, 180);
+            store.flush();
+            store.record(DAY0 + 4 * DAY_MS, "alice", TimeSeriesStore.TOTAL, 90);
+
+            assertEquals(120, store.minimum("alice", TimeSeriesStore.TOTAL, DAY0 + DAY_MS, DAY0 + 4 * DAY_MS));
+            assertEquals(90, store.minimum("alice", TimeSeriesStore.TOTAL, DAY0 + DAY_MS, DAY0 + 5 * DAY_MS));
+            assertEquals(150, store.minimum("alice", TimeSeriesStore.TOTAL, DAY0 + HOUR_MS, DAY0 + DAY_MS),
+                    "a range without points holds the value from before it");
+            assertTrue(Double.isNaN(store.minimum("bob", TimeSeriesStore.TOTAL, DAY0, DAY0 + DAY_MS)));
+        }
+    }
+
+    @Test
+    void ignoresABlockTornAtTheEndOfAPartition() throws IOException {
+        try (TimeSeriesStore store = open()) {
+            store.record(DAY0 + HOUR_MS, "alice", TimeSeriesStore.TOTAL, 10);
+        }
+        File partition = new File(directory, LocalDate.ofEpochDay(DAY0 / DAY_MS) + ".ts");
+        Files.write(partition.toPath(), new byte[] {0x49, 0x57, 0x54, 0x53, 0, 0, 0, 1}, StandardOpenOption.APPEND);
+
+        try (TimeSeriesStore store = open()) {
+            assertEquals(List.of(10.0), values(store.query("alice", TimeSeriesStore.TOTAL, DAY0, DAY0 + DAY_MS)));
+            store.record(DAY0 + 2 * HOUR_MS, "alice", TimeSeriesStore.TOTAL, 20);
+        }
+        try (TimeSeriesStore store = open()) {
+            assertEquals(List.of(10.0, 20.0), values(store.query("alice", TimeSeriesStore.TOTAL, DAY0, DAY0 + DAY_MS)),
+                    "the next write replaced the torn block");
+        }
+    }
+
+    private TimeSeriesStore open() throws IOException {
+        return TimeSeriesStore.open(directory, FLUSH_INTERVAL_MS);
+    }
+
+    private static List<Double> values(List<TimeSeriesStore.Point> points) {
+        return points.stream().map(TimeSeriesStore.Point::getValue).toList();
+    }
+}
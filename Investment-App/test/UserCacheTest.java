@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the write-behind cache: changes reach the store on flush or close, and a
+ * claimed user stays the instance the cache hands out.
+ */
+class UserCacheTest {
+    private static final long FLUSH_INTERVAL_MS = 60_000;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void writesClaimedChangesOnClose() throws Exception {
+        PagedUserStore store = openStore();
+        UserCache cache = UserCache.open(store, 10, FLUSH_INTERVAL_MS);
+        cache.insert(new User("alice", "password", "alice@example.com"));
+        User alice = cache.get("alice");
+        synchronized (alice) {
+            assertTrue(cache.claim(alice));
+            alice.addAsset(new Asset("Gold", 100));
+        }
+        assertEquals(0, store.read("alice").getAssetCount(), "the change is only cached");
+        assertEquals(1, cache.getDirtyCount());
+
+        cache.close();
+        assertEquals(0, cache.getDirtyCount());
+        store.close();
+        PagedUserStore reopened = openStore();
+        assertEquals(100, reopened.read("alice").getAssetValue(0));
+        reopened.close();
+    }
+
+    @Test
+    void keepsADirtyUserWhenItFallsOutOfTheLru() throws Exception {
+        PagedUserStore store = openStore();
+        UserCache cache = UserCache.open(store, 1, FLUSH_INTERVAL_MS);
+        cache.insert(new User("alice", "password", "alice@example.com"));
+        User alice = cache.get("alice");
+        synchronized (alice) {
+            assertTrue(cache.claim(alice));
+            alice.addAsset(new Asset("Gold", 100));
+        }
+        cache.insert(new User("bob", "password", "bob@example.com"));
+
+        assertSame(alice, cache.get("alice"), "the pending instance is handed out, not the old record");
+        cache.close();
+        store.close();
+    }
+
+    @Test
+    void refusesToClaimAnEvictedInstance() throws Exception {
+        PagedUserStore store = openStore();
+        UserCache cache = UserCache.open(store, 1, FLUSH_INTERVAL_MS);
+        cache.insert(new User("alice", "password", "alice@example.com"));
+        User evicted = cache.get("alice");
+        cache.insert(new User("bob", "password", "bob@example.com"));
+        User reloaded = cache.get("alice");
+
+        assertFalse(cache.claim(evicted));
+        assertTrue(cache.claim(reloaded));
+        assertTrue(cache.replace(reloaded, evicted), "a copy can replace the instance held now");
+        assertSame(evicted, cache.get("alice"));
+        cache.close();
+        store.close();
+    }
+
+    private PagedUserStore openStore() throws IOException, ClassNotFoundException {
+        return new PagedUserStore(new File(directory, "users.dat"), new File(directory, "users.idx"));
+    }
+}
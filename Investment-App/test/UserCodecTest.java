@@ -0,0 +1,158 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that records written by every earlier codec version, and by Java serialization
+ * before the codec existed, still decode and are re-encoded in the current version
+ * without losing anything.
+ */
+class UserCodecTest {
+
+    @Test
+    void decodesVersion1Records() throws Exception {
+        ByteBuffer record = header(1, 2);
+        putString(record, "Cash");
+        record.putDouble(1500);
+        putString(record, "Gold");
+        record.putDouble(2500.5);
+
+        User user = UserCodec.decode(record.flip());
+        assertUser(user);
+        assertEquals(2, user.getAssetCount());
+        assertEquals("Cash", user.getAssetName(0));
+        assertEquals(1500, user.getAssetValue(0));
+        assertNull(user.getAssetSymbol(0));
+        assertEquals(0, user.getAssetQuantity(0));
+        assertEquals(2500.5, user.getAssetValue(1));
+        assertEquals(0, user.getVersion(), "version 1 records have no user version");
+
+        assertReencodes(user);
+    }
+
+    @Test
+    void decodesVersion2Records() throws Exception {
+        ByteBuffer record = header(2, 2);
+        putString(record, "Cash");
+        record.putDouble(1500);
+        putString(record, null);
+        record.putDouble(0);
+        putString(record, "Apple");
+        record.putDouble(1900);
+        putString(record, "AAPL");
+        record.putDouble(10);
+
+        User user = UserCodec.decode(record.flip());
+        assertUser(user);
+        assertNull(user.getAssetSymbol(0));
+        assertEquals("AAPL", user.getAssetSymbol(1));
+        assertEquals(10, user.getAssetQuantity(1));
+        assertEquals(1900, user.getAssetValue(1));
+        assertEquals(0, user.getVersion(), "version 2 records have no user version");
+
+        assertReencodes(user);
+    }
+
+    @Test
+    void decodesJavaSerializedRecords() throws Exception {
+        User legacy = new User("alice", "secret", "alice@example.com");
+        legacy.setLogSequence(42);
+        legacy.addAsset(new Asset("Cash", 1500));
+        legacy.addAsset(new Asset("Apple", "AAPL", 10, 1900));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(legacy);
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        assertTrue(UserCodec.isLegacy(record));
+
+        User user = UserCodec.decode(record);
+        assertUser(user);
+        assertEquals(legacy.getAssets(), user.getAssets());
+
+        assertReencodes(user);
+    }
+
+    @Test
+    void roundTripsTheCurrentVersion() throws Exception {
+        User user = new User("alice", "secret", null);
+        user.setLogSequence(42);
+        user.setVersion(3);
+        user.addAsset(new Asset("Épargne", 1500));
+        user.addAsset(new Asset("Apple", "AAPL", 10, 1900));
+
+        User decoded = UserCodec.decode(UserCodec.encode(user));
+        assertEquals("alice", decoded.getUsername());
+        assertNull(decoded.getEmail(), "null strings survive");
+        assertEquals(42, decoded.getLogSequence());
+        assertEquals(3, decoded.getVersion());
+        assertEquals(user.getAssets(), decoded.getAssets());
+        assertEquals(3400, decoded.getTotalValue());
+    }
+
+    @Test
+    void rejectsUnknownVersions() {
+        ByteBuffer record = header(UserCodec.VERSION + 1, 0);
+        assertThrows(IOException.class, () -> UserCodec.decode(record.flip()));
+    }
+
+    @Test
+    void rejectsTruncatedRecords() {
+        ByteBuffer record = header(1, 1);
+        putString(record, "Cash");
+        assertThrows(IOException.class, () -> UserCodec.decode(record.flip()));
+    }
+
+    /**
+     * Writes the fields every version starts with.
+     */
+    private static ByteBuffer header(int version, int assetCount) {
+        ByteBuffer record = ByteBuffer.allocate(512);
+        record.put((byte) version);
+        putString(record, "alice");
+        putString(record, "secret");
+        putString(record, "alice@example.com");
+        record.putLong(42);
+        record.putInt(assetCount);
+        return record;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(utf8.length).put(utf8);
+    }
+
+    private static void assertUser(User user) {
+        assertEquals("alice", user.getUsername());
+        assertEquals("secret", user.getPassword());
+        assertEquals("alice@example.com", user.getEmail());
+        assertEquals(42, user.getLogSequence());
+    }
+
+    /**
+     * Re-encodes the user in the current version and checks nothing was lost.
+     */
+    private static void assertReencodes(User user) throws IOException, ClassNotFoundException {
+        user.setVersion(7);
+        ByteBuffer encoded = UserCodec.encode(user);
+        assertEquals(UserCodec.VERSION, encoded.get(0));
+
+        User decoded = UserCodec.decode(encoded);
+        assertUser(decoded);
+        assertEquals(7, decoded.getVersion());
+        assertEquals(user.getAssets(), decoded.getAssets());
+    }
+}
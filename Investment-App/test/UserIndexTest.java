@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the secondary index file: it is rebuilt from the store when it is missing
+ * or cannot be loaded, a record torn by a crash is dropped, and startup does not wait
+ * for the background load.
+ */
+class UserIndexTest {
+    @TempDir
+    File directory;
+
+    private File indexFile;
+
+    @BeforeEach
+    void openStorage() throws Exception {
+        UserStorage.useDirectory(directory);
+        indexFile = new File(directory, "users.six");
+        for (String username : new String[] {"alice", "bob"}) {
+            UserStorage.saveUser(new User(username, "password", username + "@example.com"));
+            UserStorage.addAsset(UserStorage.findUser(username), new Asset("Gold", 100));
+        }
+        UserStorage.addAsset(UserStorage.findUser("bob"), new Asset("Cash", 50));
+        UserStorage.close();
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        UserStorage.close();
+    }
+
+    @Test
+    void rebuildsAMissingIndexFromTheStore() throws Exception {
+        assertTrue(indexFile.delete());
+        assertIndexed();
+    }
+
+    @Test
+    void rebuildsAnIndexThatCannotBeLoaded() throws Exception {
+        // A record that passes its checksum but holds an unknown operation fails the load
+        appendRecord((byte) 99, "gold", "mallory");
+        assertIndexed();
+
+        UserStorage.saveUser(new User("carol", "password", "carol@example.com"));
+        UserStorage.close();
+        assertIndexed();
+        assertEquals("carol", UserStorage.findUserByEmail("carol@example.com").getUsername(),
+                "the rebuilt file is appended to");
+    }
+
+    @Test
+    void dropsARecordTornByACrash() throws Exception {
+        long length = indexFile.length();
+        Files.write(indexFile.toPath(), new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        assertIndexed();
+
+        UserStorage.saveUser(new User("carol", "password", "carol@example.com"));
+        UserStorage.close();
+        assertTrue(indexFile.length() > length);
+        assertEquals("carol", UserStorage.findUserByEmail("CAROL@example.com").getUsername());
+        assertIndexed();
+    }
+
+    @Test
+    void rebuildsOnRequest() throws Exception {
+        appendRecord((byte) 2, "Silver", "alice"); // an entry the store knows nothing about
+        assertEquals(Set.of("alice"), UserStorage.findUsernamesHoldingAsset("Silver"));
+
+        UserStorage.rebuildIndexes();
+        assertEquals(Set.of(), UserStorage.findUsernamesHoldingAsset("Silver"));
+        assertIndexed();
+    }
+
+    @Test
+    void answersWhetherItIsEmptyWhileLoading() throws Exception {
+        // The load fails, so the loader rebuilds from a store scan held up by the test
+        appendRecord((byte) 99, "gold", "mallory");
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ShardedUserStore store = ShardedUserStore.open(directory, ShardedUserStore.configuredShardCount(), 100, 60_000);
+        UserIndex index = UserIndex.open(indexFile, () -> {
+            scanning.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return store.openCursor();
+        });
+        try {
+            scanning.await();
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                assertFalse(index.isEmpty(), "the file size decides until the load finishes");
+                assertFalse(index.isLoaded());
+            });
+        } finally {
+            release.countDown();
+        }
+        assertEquals("alice", index.findUsernameByEmail("alice@example.com"), "lookups wait for the load");
+        assertEquals(Set.of("alice", "bob"), index.findHolders("Gold"));
+        assertTrue(index.isLoaded());
+        index.close();
+        store.close();
+    }
+
+    private static void assertIndexed() throws Exception {
+        assertEquals("alice", UserStorage.findUserByEmail("alice@example.com").getUsername());
+        assertEquals("bob", UserStorage.findUserByEmail("Bob@Example.com").getUsername());
+        assertEquals(Set.of("alice", "bob"), UserStorage.findUsernamesHoldingAsset("Gold"));
+        assertEquals(Set.of("bob"), UserStorage.findUsernamesHoldingAsset("Cash"));
+    }
+
+    /**
+     * Appends a well-formed record, as the index itself would.
+     */
+    private void appendRecord(byte op, String key, String username) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] userBytes = username.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + keyBytes.length + 2 + userBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt(0).put(op)
+                .putShort((short) keyBytes.length).put(keyBytes)
+                .putShort((short) userBytes.length).put(userBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(4, (int) crc.getValue());
+        Files.write(indexFile.toPath(), record.array(), StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the compare-and-set on a user's version: changes made from an out-of-date
+ * view of a portfolio are merged when it is clear what they were aimed at, and
+ * rejected otherwise. Every test runs against a fresh store of its own.
+ */
+class UserStorageCasTest {
+    @TempDir
+    File directory;
+
+    @BeforeEach
+    void openStorage() throws IOException {
+        UserStorage.useDirectory(directory);
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        UserStorage.close();
+    }
+
+    @Test
+    void mergesAnUpdateMadeFromAnOldVersion() throws Exception {
+        User user = newUser("cas-merge");
+        UserStorage.addAsset(user, new Asset("Cash", 100));
+        UserStorage.addAsset(user, new Asset("Gold", 200));
+        long seenVersion = user.getVersion();
+        Asset seen = user.getAsset(1);
+
+        // Another session removes the asset in front of the one being edited
+        UserStorage.removeAsset(user, 0);
+        long version = UserStorage.updateAsset(user, seenVersion, 1, seen, new Asset("Gold", 250));
+
+        assertEquals(List.of(new Asset("Gold", 250)), UserStorage.findUser(user.getUsername()).getAssets());
+        assertEquals(seenVersion + 2, version);
+    }
+
+    @Test
+    void rejectsAChangeToAnAssetRemovedMeanwhile() throws Exception {
+        User user = newUser("cas-removed");
+        UserStorage.addAsset(user, new Asset("Cash", 100));
+        UserStorage.addAsset(user, new Asset("Gold", 200));
+        long seenVersion = user.getVersion();
+        Asset seen = user.getAsset(1);
+
+        UserStorage.removeAsset(user, 1);
+        assertThrows(IOException.class, () -> UserStorage.removeAsset(user, seenVersion, 1, seen));
+        assertThrows(IOException.class,
+                () -> UserStorage.updateAsset(user, seenVersion, 1, seen, new Asset("Gold", 250)));
+        assertEquals(List.of(new Asset("Cash", 100)), UserStorage.findUser(user.getUsername()).getAssets());
+    }
+
+    @Test
+    void rejectsAChangeToAnAssetHeldMoreThanOnce() throws Exception {
+        User user = newUser("cas-duplicate");
+        UserStorage.addAsset(user, new Asset("Gold", 200));
+        UserStorage.addAsset(user, new Asset("Cash", 100));
+        UserStorage.addAsset(user, new Asset("Gold", 200));
+        long seenVersion = user.getVersion();
+        Asset seen = user.getAsset(2);
+
+        UserStorage.removeAsset(user, 1);
+        assertThrows(IOException.class, () -> UserStorage.removeAsset(user, seenVersion, 2, seen));
+        assertEquals(List.of(new Asset("Gold", 200), new Asset("Gold", 200)),
+                UserStorage.findUser(user.getUsername()).getAssets());
+    }
+
+    @Test
+    void rejectsAnUpdateFromAStaleCopy() throws Exception {
+        User user = newUser("cas-stale");
+        UserStorage.addAsset(user, new Asset("Cash", 100));
+        User stale = copy(UserStorage.findUser(user.getUsername()));
+
+        UserStorage.addAsset(user, new Asset("Gold", 200));
+        assertThrows(IOException.class, () -> UserStorage.updateUser(stale));
+        assertEquals(2, UserStorage.findUser(user.getUsername()).getAssetCount());
+    }
+
+    @Test
+    void acceptsAnUpdateFromAnUpToDateCopy() throws Exception {
+        User user = newUser("cas-current");
+        UserStorage.addAsset(user, new Asset("Cash", 100));
+        long version = user.getVersion();
+        User current = copy(UserStorage.findUser(user.getUsername()));
+
+        UserStorage.updateUser(current);
+        User found = UserStorage.findUser(user.getUsername());
+        assertSame(current, found, "the copy replaces the cached instance");
+        assertEquals(version + 1, found.getVersion());
+
+        // The instance it replaced is now out of date
+        assertThrows(IOException.class, () -> UserStorage.updateUser(user));
+    }
+
+    @Test
+    void keepsEveryAdditionMadeConcurrently() throws Exception {
+        User user = newUser("cas-concurrent");
+        int threads = 4;
+        int perThread = 100;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                // Each thread works from its own copy, as sessions holding an evicted instance do
+                User copy = copy(user);
+                String name = "Asset " + t;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        UserStorage.addAsset(copy, new Asset(name, i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        User stored = UserStorage.findUser(user.getUsername());
+        assertEquals(threads * perThread, stored.getAssetCount());
+        assertEquals(threads * perThread, stored.getVersion(), "every change counted one version");
+    }
+
+    private static User newUser(String username) throws IOException, ClassNotFoundException {
+        UserStorage.saveUser(new User(username, "password", username + "@example.com"));
+        return UserStorage.findUser(username);
+    }
+
+    /**
+     * Copies a user as if they had been evicted from the cache and read back from disk.
+     */
+    private static User copy(User user) throws IOException, ClassNotFoundException {
+        return UserCodec.decode(UserCodec.encode(user));
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of a user's portfolio: the running totals kept up to date on every change,
+ * and the snapshots, views and serialized form built over the asset columns.
+ */
+class UserTest {
+    private static final List<String> NAMES = List.of("Cash", "Gold", "Silver", "Apple");
+
+    @Test
+    void keepsTheTotalsUpToDateThroughEveryChange() {
+        User user = new User("alice", "password", "alice@example.com");
+        // Query the per-name totals first, so the changes below have to maintain them
+        assertEquals(0, user.getTotalValue("Gold"));
+
+        user.addAsset(new Asset("Cash", 100));
+        user.addAsset(new Asset("Gold", 200));
+        user.addAsset(new Asset("Gold", 50.5));
+        user.addAsset(new Asset("Apple", "AAPL", 10, 1900));
+        assertTotals(user);
+        assertEquals(250.5, user.getTotalValue("Gold"));
+
+        user.updateAsset(1, new Asset("Silver", 75));
+        assertTotals(user);
+        assertTrue(user.holdsAsset("Gold"), "one Gold asset is left");
+
+        user.removeAsset(2);
+        assertTotals(user);
+        assertFalse(user.holdsAsset("Gold"));
+
+        assertEquals(1, user.markToMarket(Map.of("AAPL", 200.0)));
+        assertTotals(user);
+        assertEquals(2000, user.getTotalValue("Apple"));
+    }
+
+    @Test
+    void buildsThePerNameTotalsOnFirstUse() {
+        User user = new User("alice", "password", "alice@example.com");
+        user.addAsset(new Asset("Gold", 200));
+        user.addAsset(new Asset("Cash", 100));
+        user.updateAsset(0, new Asset("Gold", 300));
+        assertTotals(user);
+    }
+
+    @Test
+    void startsFromZeroOnceTheLastAssetIsRemoved() {
+        User user = new User("alice", "password", "alice@example.com");
+        user.addAsset(new Asset("Cash", 0.1));
+        user.addAsset(new Asset("Gold", 0.2));
+        user.removeAsset(0);
+        user.removeAsset(0);
+        assertEquals(0.0, user.getTotalValue(), "no rounding drift is left behind");
+        assertFalse(user.holdsAsset("Gold"));
+    }
+
+    @Test
+    void totalsADecodedUser() throws Exception {
+        User user = new User("alice", "password", "alice@example.com");
+        user.addAsset(new Asset("Cash", 100));
+        user.addAsset(new Asset("Apple", "AAPL", 10, 1900));
+
+        User decoded = UserCodec.decode(UserCodec.encode(user));
+        assertEquals(2000, decoded.getTotalValue());
+        assertTotals(decoded);
+    }
+
+    @Test
+    void keepsASnapshotAsItWasWhenThePortfolioChanges() {
+        User user = new User("alice", "password", "alice@example.com");
+        user.addAsset(new Asset("Cash", 100));
+        user.addAsset(new Asset("Apple", "AAPL", 10, 1900));
+        List<Asset> snapshot = user.getAssets();
+        List<Asset> view = user.getAssetsView();
+
+        user.updateAsset(0, new Asset("Gold", 300));
+        user.markToMarket(Map.of("AAPL", 200.0));
+        user.removeAsset(1);
+        user.addAsset(new Asset("Silver", 75));
+
+        assertEquals(List.of(new Asset("Cash", 100), new Asset("Apple", "AAPL", 10, 1900)), snapshot);
+        assertEquals(List.of(new Asset("Gold", 300), new Asset("Silver", 75)), view, "the view is live");
+        assertEquals(List.of(new Asset("Gold", 300), new Asset("Silver", 75)), user.getAssets());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.add(new Asset("Oil", 1)));
+        assertThrows(UnsupportedOperationException.class, () -> view.remove(0));
+    }
+
+    @Test
+    void keepsASnapshotAsItWasWhenTheLastAssetIsRemoved() {
+        User user = new User("alice", "password", "alice@example.com");
+        user.addAsset(new Asset("Cash", 100));
+        List<Asset> snapshot = user.getAssets();
+        user.removeAsset(0);
+        user.addAsset(new Asset("Gold", 200));
+
+        assertEquals(List.of(new Asset("Cash", 100)), snapshot);
+        assertEquals(List.of(new Asset("Gold", 200)), user.getAssets());
+    }
+
+    @Test
+    void sharesAssetNamesAcrossPortfolios() {
+        User alice = new User("alice", "password", "alice@example.com");
+        User bob = new User("bob", "password", "bob@example.com");
+        alice.addAsset(new Asset(new String("Platinum"), 100));
+        bob.addAsset(new Asset(new String("Platinum"), 200));
+
+        assertSame(alice.getAssetName(0), bob.getAssetName(0));
+        assertSame(alice.getAssetName(0), bob.getAssets().get(0).getName());
+    }
+
+    @Test
+    void serializesThePortfolioAsAnAssetList() throws Exception {
+        User user = new User("alice", "password", "alice@example.com");
+        user.addAsset(new Asset("Cash", 100));
+        user.addAsset(new Asset("Apple", "AAPL", 10, 1900));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(user);
+        }
+        User read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (User) in.readObject();
+        }
+        assertEquals(user.getAssets(), read.getAssets());
+        assertEquals(2000, read.getTotalValue());
+        assertTotals(read);
+    }
+
+    /**
+     * Compares the running totals with sums over the assets.
+     */
+    private static void assertTotals(User user) {
+        assertEquals(user.sumAssetValues(), user.getTotalValue(), 1e-9);
+        for (String name : NAMES) {
+            assertEquals(user.sumAssetValues(name), user.getTotalValue(name), 1e-9, name);
+            assertEquals(user.indexOfAsset(name) >= 0, user.holdsAsset(name), name);
+        }
+    }
+}
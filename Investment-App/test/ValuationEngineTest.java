@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of price ticks: only the portfolios holding a changed symbol are revalued,
+ * however their holdings reached the store. Prices are shared by the whole process,
+ * so every test ticks symbols of its own.
+ */
+class ValuationEngineTest {
+    @TempDir
+    File directory;
+
+    @BeforeEach
+    void openStorage() throws IOException {
+        UserStorage.useDirectory(directory);
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        UserStorage.close();
+    }
+
+    @Test
+    void revaluesOnlyThePortfoliosHoldingAChangedSymbol() throws Exception {
+        User alice = newUser("alice");
+        UserStorage.addAsset(alice, new Asset("Apple", "VT1", 10, 1000));
+        UserStorage.addAsset(alice, new Asset("Cash", 500));
+        User bob = newUser("bob");
+        UserStorage.addAsset(bob, new Asset("Cash", 300));
+
+        ValuationEngine.Revaluation tick = ValuationEngine.applyPrices(Map.of("VT1", 120.0));
+        assertEquals(1, tick.getSymbolsChanged());
+        assertEquals(1, tick.getPortfoliosRevalued());
+        assertEquals(1200, UserStorage.findUser("alice").getAssetValue(0));
+        assertEquals(1700, UserStorage.findUser("alice").getTotalValue());
+        assertEquals(300, UserStorage.findUser("bob").getTotalValue());
+
+        assertEquals(0, ValuationEngine.applyPrices(Map.of("VT1", 120.0)).getSymbolsChanged(),
+                "an unchanged price revalues nothing");
+        assertEquals(120.0, ValuationEngine.getPrice(" vt1 "), "symbols are looked up in canonical form");
+    }
+
+    @Test
+    void revaluesAUserWrittenAsAWhole() throws Exception {
+        // Index the holders first, so the ones below are only known as they are written
+        ValuationEngine.applyPrices(Map.of("VT2", 10.0));
+        User carol = new User("carol", "password", "carol@example.com");
+        carol.addAsset(new Asset("Silver", "VT2", 5, 50));
+        UserStorage.saveUser(carol);
+        User dave = newUser("dave");
+        dave.addAsset(new Asset("Silver", "VT2", 2, 20));
+        UserStorage.updateUser(dave);
+
+        assertEquals(2, ValuationEngine.applyPrices(Map.of("VT2", 11.0)).getPortfoliosRevalued());
+        assertEquals(55, UserStorage.findUser("carol").getTotalValue());
+        assertEquals(22, UserStorage.findUser("dave").getTotalValue());
+    }
+
+    @Test
+    void findsTheHoldersInTheStoreAfterARestart() throws Exception {
+        User erin = newUser("erin");
+        UserStorage.addAsset(erin, new Asset("Oil", "VT3", 4, 40));
+        // Reopening forgets the holders, so the next tick has to find erin in the store
+        UserStorage.useDirectory(directory);
+
+        assertEquals(1, ValuationEngine.applyPrices(Map.of("VT3", 15.0)).getPortfoliosRevalued());
+        assertEquals(60, UserStorage.findUser("erin").getTotalValue());
+    }
+
+    private static User newUser(String username) throws IOException, ClassNotFoundException {
+        UserStorage.saveUser(new User(username, "password", username + "@example.com"));
+        return UserStorage.findUser(username);
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the batch Zakat run over a fresh store, with the gold price fixed so the
+ * Nisab threshold is known.
+ */
+class ZakatBatchJobTest {
+    private static final double GOLD_PRICE = 100; // Nisab of 8,500
+    private static final int USERS = 300;
+
+    @TempDir
+    File directory;
+
+    @BeforeEach
+    void openStorage() throws IOException {
+        UserStorage.useDirectory(new File(directory, "data"));
+        ZakatService.setGoldPricePerGram(GOLD_PRICE);
+    }
+
+    @AfterEach
+    void closeStorage() throws IOException {
+        ZakatService.setGoldPricePerGram(ZakatService.DEFAULT_GOLD_PRICE_PER_GRAM);
+        UserStorage.close();
+    }
+
+    @Test
+    void reportsEveryUserOnceWithTheirZakat() throws Exception {
+        // Every third user holds 10,000 and owes 250; the others hold 100 per index, below the Nisab
+        for (int i = 0; i < USERS; i++) {
+            User user = new User("zakat" + i, "password", "zakat" + i + "@example.com");
+            UserStorage.saveUser(user);
+            UserStorage.addAsset(UserStorage.findUser(user.getUsername()),
+                    new Asset("Cash", i % 3 == 0 ? 10_000 : i % 80));
+        }
+        File report = new File(directory, "report.csv");
+
+        ZakatBatchJob.Summary summary = ZakatBatchJob.run(report, 4);
+
+        int eligible = (USERS + 2) / 3;
+        assertEquals(USERS, summary.users);
+        assertEquals(eligible, summary.eligibleUsers);
+        assertEquals(eligible * 250.0, summary.totalZakat, 1e-6);
+        assertEquals(85 * GOLD_PRICE, summary.nisabThreshold);
+
+        List<String> lines = Files.readAllLines(report.toPath());
+        assertEquals("username,total_value,nisab_threshold,zakat_due,eligible", lines.get(0));
+        Map<String, String[]> rows = new HashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            assertEquals(null, rows.put(fields[0], fields), "reported twice: " + fields[0]);
+        }
+        assertEquals(USERS, rows.size());
+        assertEquals(List.of("zakat0", "10000.0", "8500.0", "250.0", "true"), List.of(rows.get("zakat0")));
+        assertEquals(List.of("zakat1", "1.0", "8500.0", "0.0", "false"), List.of(rows.get("zakat1")));
+    }
+
+    @Test
+    void writesAnEmptyReportForAnEmptyStore() throws Exception {
+        File report = new File(directory, "report.csv");
+        ZakatBatchJob.Summary summary = ZakatBatchJob.run(report, 2);
+        assertEquals(0, summary.users);
+        assertEquals(1, Files.readAllLines(report.toPath()).size());
+    }
+}